@@ -3,9 +3,11 @@ package ch.epfl.smartmap.activities;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import android.app.ActionBar;
 import android.app.Dialog;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
@@ -27,8 +29,9 @@ import ch.epfl.smartmap.background.InvitationsService;
 import ch.epfl.smartmap.background.NearEventsThread;
 import ch.epfl.smartmap.background.OwnPositionService;
 import ch.epfl.smartmap.background.ServiceContainer;
-import ch.epfl.smartmap.background.UpdateDatabaseThread;
 import ch.epfl.smartmap.cache.Cache;
+import ch.epfl.smartmap.cache.CacheDelta;
+import ch.epfl.smartmap.cache.CacheSnapshot;
 import ch.epfl.smartmap.cache.Displayable;
 import ch.epfl.smartmap.cache.Event;
 import ch.epfl.smartmap.cache.Invitation;
@@ -55,9 +58,10 @@ import com.google.android.gms.maps.model.Marker;
 /**
  * This Activity displays the core features of the App. It dispays the
  * {@code GoogleMap}, contains the {@code SideMenu}, as well as the
- * {@code SearchLayout}. Starts {@code FriendsPositionsThread},
- * {@code NearEventsThread} and {@code UpdateDatabaseThread} in its
- * {@code onCreate} method.
+ * {@code SearchLayout}. Starts {@code FriendsPositionsThread} and
+ * {@code NearEventsThread} in its {@code onCreate} method, and writes the
+ * pending changes of the {@code Cache} to the database when it is destroyed
+ * or when memory runs low.
  * 
  * @author jfperren
  * @author hugo-S
@@ -139,6 +143,10 @@ public class MainActivity extends FragmentActivity implements CacheListener {
     private static final int MENU_ITEM_NOTIFICATION_INDEX = 1;
     private static final int MENU_ITEM_CLOSE_SEARCH_INDEX = 2;
     private static final int MENU_ITEM_OPEN_INFO_INDEX = 3;
+    // Fields that are shown on a marker
+    private static final int MARKER_FIELDS = CacheDelta.NAME | CacheDelta.LOCATION | CacheDelta.IMAGE;
+    // Value of mRenderedGeneration before markers are first drawn
+    private static final long NOTHING_RENDERED = -1;
     private DrawerLayout mDrawerLayout;
     private ListView mDrawerList;
     private SideMenu mSideMenu;
@@ -161,6 +169,9 @@ public class MainActivity extends FragmentActivity implements CacheListener {
 
     private FriendsPositionsThread mFriendsPosThread;
 
+    // Generation of the Cache currently displayed by markers, only accessed on the UI thread
+    private long mRenderedGeneration = NOTHING_RENDERED;
+
     /**
      * Display the map with the current location
      */
@@ -188,13 +199,18 @@ public class MainActivity extends FragmentActivity implements CacheListener {
 
     private void initializeMarkers() {
         if ((mFriendMarkerManager != null) && (mEventMarkerManager != null)) {
-            mFriendMarkerManager.updateMarkers(this, new HashSet<Displayable>(ServiceContainer.getCache()
-                .getAllVisibleFriends()));
-            mEventMarkerManager.updateMarkers(this, new HashSet<Displayable>(ServiceContainer.getCache()
-                .getAllVisibleEvents()));
+            // Friends and events from the same snapshot, so that they are consistent
+            CacheSnapshot snapshot = ServiceContainer.getCache().getSnapshot();
+            if (snapshot.getGeneration() == mRenderedGeneration) {
+                return;
+            }
+            mFriendMarkerManager.updateMarkers(this,
+                new HashSet<Displayable>(snapshot.getAllVisibleFriends()));
+            mEventMarkerManager.updateMarkers(this, new HashSet<Displayable>(snapshot.getAllVisibleEvents()));
             for (Marker marker : mEventMarkerManager.getDisplayedMarkers()) {
                 marker.setSnippet(DefaultMarkerManager.MarkerColor.ORANGE.toString());
             }
+            mRenderedGeneration = snapshot.getGeneration();
         } else {
             Log.e(TAG, "The friend marcker or the event marcker was null");
         }
@@ -216,6 +232,32 @@ public class MainActivity extends FragmentActivity implements CacheListener {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.listeners.CacheListener#onCacheUpdate(ch.epfl.smartmap.cache.CacheDelta)
+     */
+    @Override
+    public void onCacheUpdate(final CacheDelta delta) {
+        this.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // Skip changes already contained in the snapshot markers were last redrawn from
+                if (delta.getGeneration() > mRenderedGeneration) {
+                    if (delta.isReset() || !delta.getFilterChanges().isEmpty()) {
+                        // Visibility of every friend may have changed
+                        MainActivity.this.initializeMarkers();
+                    } else if ((mFriendMarkerManager != null) && (mEventMarkerManager != null)) {
+                        MainActivity.this.patchFriendMarkers(delta.getUserChanges());
+                        MainActivity.this.patchEventMarkers(delta.getEventChanges());
+                        // Deltas are received in order, so all previous generations are displayed too
+                        mRenderedGeneration = delta.getGeneration();
+                    }
+                }
+                MainActivity.this.updateItemMenu();
+            }
+        });
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -263,7 +305,6 @@ public class MainActivity extends FragmentActivity implements CacheListener {
 
         mFriendsPosThread = new FriendsPositionsThread();
         mFriendsPosThread.start();
-        new UpdateDatabaseThread().start();
         new NearEventsThread().start();
     }
 
@@ -330,7 +371,7 @@ public class MainActivity extends FragmentActivity implements CacheListener {
 
     @Override
     protected void onDestroy() {
-        ServiceContainer.getDatabase().updateFromCache();
+        ServiceContainer.getCache().flushToDatabase();
         Log.d(TAG, "Updated Database");
         super.onDestroy();
     }
@@ -341,14 +382,7 @@ public class MainActivity extends FragmentActivity implements CacheListener {
      */
     @Override
     public void onEventListUpdate() {
-        this.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mEventMarkerManager.updateMarkers(MainActivity.this, new HashSet<Displayable>(ServiceContainer
-                    .getCache().getAllVisibleEvents()));
-                MainActivity.this.updateItemMenu();
-            }
-        });
+        // Markers are patched in onCacheUpdate
     }
 
     @Override
@@ -367,6 +401,11 @@ public class MainActivity extends FragmentActivity implements CacheListener {
         });
     }
 
+    @Override
+    public void onLiveEventsUpdate(Set<Long> startedIds, Set<Long> endedIds) {
+        // Nothing, markers do not depend on live status
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Get ID of MenuItem
@@ -450,16 +489,19 @@ public class MainActivity extends FragmentActivity implements CacheListener {
         this.zoomAccordingToAllMarkers();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // The process may be killed from now on, so pending changes must not wait for the delay. They
+            // are written by the writer's thread, so that the UI thread does not wait for the database.
+            ServiceContainer.getCache().flushToDatabaseInBackground();
+        }
+    }
+
     @Override
     public void onUserListUpdate() {
-        this.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mFriendMarkerManager.updateMarkers(MainActivity.this, new HashSet<Displayable>(ServiceContainer
-                    .getCache().getAllVisibleFriends()));
-                MainActivity.this.updateItemMenu();
-            }
-        });
+        // Markers are patched in onCacheUpdate
     }
 
     /**
@@ -479,6 +521,71 @@ public class MainActivity extends FragmentActivity implements CacheListener {
         }
     }
 
+    /**
+     * Updates only the markers of the Events that changed
+     * 
+     * @param changes
+     *            changes on Events given by the Cache
+     */
+    private void patchEventMarkers(CacheDelta.ChangeSet changes) {
+        if ((mEventMarkerManager == null) || changes.isEmpty()) {
+            return;
+        }
+
+        Set<Displayable> eventsToUpdate = new HashSet<Displayable>();
+        Set<Long> idsToRemove = new HashSet<Long>(changes.getRemovedIds());
+        Set<Long> changedIds = new HashSet<Long>(changes.getAddedIds());
+        for (long id : changes.getModifiedIds()) {
+            if (changes.hasChanged(id, MARKER_FIELDS)) {
+                changedIds.add(id);
+            }
+        }
+
+        for (long id : changedIds) {
+            Event event = ServiceContainer.getCache().getEvent(id);
+            if (event != null) {
+                eventsToUpdate.add(event);
+            } else {
+                idsToRemove.add(id);
+            }
+        }
+
+        mEventMarkerManager.patchMarkers(this, eventsToUpdate, idsToRemove);
+    }
+
+    /**
+     * Updates only the markers of the Friends that changed
+     * 
+     * @param changes
+     *            changes on Users given by the Cache
+     */
+    private void patchFriendMarkers(CacheDelta.ChangeSet changes) {
+        if ((mFriendMarkerManager == null) || changes.isEmpty()) {
+            return;
+        }
+
+        Set<Displayable> friendsToUpdate = new HashSet<Displayable>();
+        Set<Long> idsToRemove = new HashSet<Long>(changes.getRemovedIds());
+        Set<Long> changedIds = new HashSet<Long>(changes.getAddedIds());
+        changedIds.addAll(changes.getModifiedIds());
+
+        // Friendship or block status changes can hide a friend, so check visibility of every changed id
+        Set<User> visibleFriends = ServiceContainer.getCache().getAllVisibleFriends();
+        for (long id : changedIds) {
+            User user = ServiceContainer.getCache().getUser(id);
+            if ((user != null) && visibleFriends.contains(user)) {
+                if (!changes.getModifiedIds().contains(id) || changes.hasChanged(id, MARKER_FIELDS)
+                    || !mFriendMarkerManager.isDisplayedItem(user)) {
+                    friendsToUpdate.add(user);
+                }
+            } else {
+                idsToRemove.add(id);
+            }
+        }
+
+        mFriendMarkerManager.patchMarkers(this, friendsToUpdate, idsToRemove);
+    }
+
     /**
      * Zoom on item and sets Item menu
      * 
@@ -1,21 +1,33 @@
 package ch.epfl.smartmap.background;
 
 import java.util.HashSet;
+import java.util.List;
 
 import android.util.Log;
 import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.ChangeSet;
 import ch.epfl.smartmap.servercom.SmartMapClientException;
 
 /**
- * A thread that periodically retrieves friends' locations
+ * A thread that periodically retrieves friends' locations. Only positions that changed since the previous
+ * update are downloaded, except every {@code FULL_SYNC_INTERVAL} where all of them are, to also get friends
+ * that became visible again without moving. Changes made while the server could not be reached are sent
+ * before each update.
  * 
  * @author jfperren
  */
 public class FriendsPositionsThread extends Thread {
 
     private static final String TAG = FriendsPositionsThread.class.getSimpleName();
+
+    // In milliseconds
+    private static final long FULL_SYNC_INTERVAL = 10 * 60 * 1000;
+
     private boolean mEnabled = true;
 
+    private String mCursor;
+    private long mLastFullSync;
+
     /**
      * Disables position updates
      */
@@ -33,20 +45,45 @@ public class FriendsPositionsThread extends Thread {
     @Override
     public void run() {
         while (true) {
-            if ((!ServiceContainer.getSettingsManager().isOffline()) && mEnabled) {
+            // While the server is unavailable, wait instead of adding to its load
+            if ((!ServiceContainer.getSettingsManager().isOffline()) && mEnabled
+                && ServiceContainer.getNetworkPolicy().isServerAvailable()) {
                 try {
+                    // Changes made offline first, so that positions reflect them
+                    ServiceContainer.getCache().replayMutations(ServiceContainer.getNetworkClient());
                     Log.d(TAG, "Update Friends Positions");
-                    ServiceContainer.getCache().putUsers(
-                        new HashSet<UserContainer>(ServiceContainer.getNetworkClient().listFriendsPos()));
+                    this.updatePositions();
                 } catch (SmartMapClientException e) {
                     Log.e(InvitationsService.class.getSimpleName(), "Network error: " + e);
                 }
             }
             try {
-                sleep(ServiceContainer.getSettingsManager().getRefreshFrequency());
+                sleep(Math.max(ServiceContainer.getSettingsManager().getRefreshFrequency(), ServiceContainer
+                    .getNetworkPolicy().getRemainingUnavailableTime()));
             } catch (InterruptedException e) {
                 Log.e(TAG, "Can't sleep: " + e);
             }
         }
     }
+
+    /**
+     * Fetches the positions that changed since the previous update and puts them in the Cache
+     *
+     * @throws SmartMapClientException
+     */
+    private void updatePositions() throws SmartMapClientException {
+        long now = System.currentTimeMillis();
+        if ((now - mLastFullSync) >= FULL_SYNC_INTERVAL) {
+            mCursor = null;
+        }
+        ChangeSet<List<UserContainer>> changes =
+            ServiceContainer.getNetworkClient().listFriendsPosSince(mCursor);
+        if (mCursor == null) {
+            mLastFullSync = now;
+        }
+        mCursor = changes.getCursor();
+        if (!changes.getChanges().isEmpty()) {
+            ServiceContainer.getCache().putUsers(new HashSet<UserContainer>(changes.getChanges()));
+        }
+    }
 }
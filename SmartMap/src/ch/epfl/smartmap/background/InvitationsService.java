@@ -12,9 +12,9 @@ import android.os.SystemClock;
 import android.util.Log;
 import ch.epfl.smartmap.cache.Cache;
 import ch.epfl.smartmap.database.DatabaseHelper;
+import ch.epfl.smartmap.servercom.ChangeSet;
 import ch.epfl.smartmap.servercom.InvitationBag;
 import ch.epfl.smartmap.servercom.NetworkFriendInvitationBag;
-import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClientException;
 
 /**
@@ -33,11 +33,19 @@ public class InvitationsService extends Service {
     // Handler for Runnables
     private final Handler mHandler = new Handler();
 
+    // Versions of the invitations we already have, to only fetch them again when they changed
+    private volatile String mFriendInvitationsCursor;
+    private volatile String mEventInvitationsCursor;
+
     private final Runnable getInvitations = new Runnable() {
         @Override
         public void run() {
-            new AsyncInvitations().execute();
-            mHandler.postDelayed(this, INVITE_UPDATE_DELAY);
+            // While the server is unavailable, wait instead of adding to its load
+            if (ServiceContainer.getNetworkPolicy().isServerAvailable()) {
+                new AsyncInvitations().execute();
+            }
+            mHandler.postDelayed(this, Math.max(INVITE_UPDATE_DELAY, ServiceContainer.getNetworkPolicy()
+                .getRemainingUnavailableTime()));
         }
     };
 
@@ -53,7 +61,8 @@ public class InvitationsService extends Service {
             ServiceContainer.setSettingsManager(new SettingsManager(this.getApplicationContext()));
         }
         if (ServiceContainer.getNetworkClient() == null) {
-            ServiceContainer.setNetworkClient(new NetworkSmartMapClient());
+            ServiceContainer.setNetworkClient(ServiceContainer.createNetworkClient(this
+                .getApplicationContext()));
         }
         if (ServiceContainer.getDatabase() == null) {
             ServiceContainer.setDatabaseHelper(new DatabaseHelper(this.getApplicationContext()));
@@ -110,27 +119,41 @@ public class InvitationsService extends Service {
         @Override
         protected Void doInBackground(Void... arg0) {
             try {
-                NetworkFriendInvitationBag userInvitBag =
-                    (NetworkFriendInvitationBag) ServiceContainer.getNetworkClient().getFriendInvitations();
-                InvitationBag eventInvitBag = ServiceContainer.getNetworkClient().getEventInvitations();
+                ChangeSet<InvitationBag> userChanges =
+                    ServiceContainer.getNetworkClient().getFriendInvitationsSince(mFriendInvitationsCursor);
+                ChangeSet<InvitationBag> eventChanges =
+                    ServiceContainer.getNetworkClient().getEventInvitationsSince(mEventInvitationsCursor);
 
-                // Acknowledge removed friends
-                for (Long id : userInvitBag.getRemovedFriendsIds()) {
-                    ServiceContainer.getNetworkClient().ackRemovedFriend(id);
+                if (userChanges.isUnchanged() && eventChanges.isUnchanged()) {
+                    Log.d(TAG, "Invitations unchanged");
+                    return null;
                 }
-                // Get friends invitations
-                Log.d(TAG, "Friend invitations");
-                if (!userInvitBag.getInvitations().isEmpty()) {
-                    ServiceContainer.getCache().putInvitations(userInvitBag.getInvitations());
+
+                if (!userChanges.isUnchanged()) {
+                    NetworkFriendInvitationBag userInvitBag =
+                        (NetworkFriendInvitationBag) userChanges.getChanges();
+                    // Acknowledge removed friends
+                    for (Long id : userInvitBag.getRemovedFriendsIds()) {
+                        ServiceContainer.getNetworkClient().ackRemovedFriend(id);
+                    }
+                    // Get friends invitations
+                    Log.d(TAG, "Friend invitations");
+                    if (!userInvitBag.getInvitations().isEmpty()) {
+                        ServiceContainer.getCache().putInvitations(userInvitBag.getInvitations());
+                    }
+                    mFriendInvitationsCursor = userChanges.getCursor();
                 }
-                // Get event invitations
 
-                Log.d(TAG, "Event invitations");
-                if (!eventInvitBag.getInvitations().isEmpty()) {
-                    ServiceContainer.getCache().putInvitations(eventInvitBag.getInvitations());
+                // Get event invitations
+                if (!eventChanges.isUnchanged()) {
+                    Log.d(TAG, "Event invitations");
+                    InvitationBag eventInvitBag = eventChanges.getChanges();
+                    if (!eventInvitBag.getInvitations().isEmpty()) {
+                        ServiceContainer.getCache().putInvitations(eventInvitBag.getInvitations());
+                    }
+                    mEventInvitationsCursor = eventChanges.getCursor();
                 }
-                Log.d(TAG, "Successfully fetched invitations / users : " + userInvitBag.getInvitations()
-                    + " / events : " + eventInvitBag.getInvitations());
+                Log.d(TAG, "Successfully fetched invitations");
             } catch (SmartMapClientException e) {
                 Log.e(TAG, "Couldn't retrieve invitations due to a server error: " + e);
             }
@@ -76,6 +76,11 @@ public final class LogoutManager {
      * @author SpicyCH
      */
     private void logout() {
+        // Write the changes that are still pending before leaving
+        if (ServiceContainer.getCache() != null) {
+            ServiceContainer.getCache().flushToDatabase();
+        }
+
         // Clear cache and database. Note: the preferences set in the SettingsActivity will be kept since they are local
         // to the device.
 
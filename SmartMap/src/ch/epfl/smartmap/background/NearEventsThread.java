@@ -22,29 +22,40 @@ public class NearEventsThread extends Thread {
     @Override
     public void run() {
         while (true) {
-            Location pos = ServiceContainer.getSettingsManager().getLocation();
-            try {
-                List<Long> nearEventIds =
-                    ServiceContainer.getNetworkClient().getPublicEvents(pos.getLatitude(),
-                        pos.getLongitude(), ServiceContainer.getSettingsManager().getNearEventsMaxDistance());
-
-                Set<EventContainer> nearEvents = new HashSet<EventContainer>();
-                for (long id : nearEventIds) {
-                    nearEvents.add(ServiceContainer.getNetworkClient().getEventInfo(id));
-                }
-                ServiceContainer.getCache().putEvents(nearEvents);
-
-                Log.d(TAG, "Fetch Near Events : " + nearEventIds + " radius "
-                    + ServiceContainer.getSettingsManager().getNearEventsMaxDistance());
-
-            } catch (SmartMapClientException e) {
-                Log.e(TAG, "Couldn't retrieve public events: " + e);
+            if (ServiceContainer.getNetworkPolicy().isServerAvailable()) {
+                this.fetchNearEvents();
             }
             try {
-                sleep(REFRESH_DELAY);
+                // While the server is unavailable, wait instead of adding to its load
+                sleep(Math.max(REFRESH_DELAY, ServiceContainer.getNetworkPolicy()
+                    .getRemainingUnavailableTime()));
             } catch (InterruptedException e) {
                 Log.e(TAG, "Can't sleep: " + e);
             }
         }
     }
+
+    /**
+     * Fetches the events near the user and puts them in the Cache
+     */
+    private void fetchNearEvents() {
+        Location pos = ServiceContainer.getSettingsManager().getLocation();
+        try {
+            List<Long> nearEventIds =
+                ServiceContainer.getNetworkClient().getPublicEvents(pos.getLatitude(), pos.getLongitude(),
+                    ServiceContainer.getSettingsManager().getNearEventsMaxDistance());
+
+            // A single request for all events
+            List<EventContainer> nearEventInfos =
+                ServiceContainer.getNetworkClient().getEventsInfo(nearEventIds);
+            Set<EventContainer> nearEvents = new HashSet<EventContainer>(nearEventInfos);
+            ServiceContainer.getCache().putEvents(nearEvents);
+
+            Log.d(TAG, "Fetch Near Events : " + nearEventIds + " radius "
+                + ServiceContainer.getSettingsManager().getNearEventsMaxDistance());
+
+        } catch (SmartMapClientException e) {
+            Log.e(TAG, "Couldn't retrieve public events: " + e);
+        }
+    }
 }
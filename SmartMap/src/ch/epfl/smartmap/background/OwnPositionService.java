@@ -13,9 +13,11 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
+import ch.epfl.smartmap.servercom.NetworkPolicy;
 import ch.epfl.smartmap.servercom.SmartMapClientException;
 import ch.epfl.smartmap.util.Utils;
 
@@ -50,8 +52,20 @@ public class OwnPositionService extends Service {
     private static final float INITIAL_ACCURACY = 1000;
     private float mCurrentAccuracy = INITIAL_ACCURACY;
 
-    // Delay before trying to reconnect
+    // Delay before trying to reconnect, doubled after each failure
     private static final int RECONNECT_DELAY = 10 * 1000;
+    private static final int MAX_RECONNECT_DELAY = 5 * 60 * 1000;
+    private int mReconnectAttempts = 0;
+
+    // Handler for reconnections, which must not block the main thread
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            new StartUp().execute();
+        }
+    };
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -66,6 +80,12 @@ public class OwnPositionService extends Service {
         mLocManager = (LocationManager) this.getSystemService(Context.LOCATION_SERVICE);
     }
 
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mReconnect);
+        super.onDestroy();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         // Recreating services if they are not set
@@ -73,6 +93,8 @@ public class OwnPositionService extends Service {
 
         mUpdateTime = ServiceContainer.getSettingsManager().getRefreshFrequency();
 
+        mHandler.removeCallbacks(mReconnect);
+        mReconnectAttempts = 0;
         new StartUp().execute();
 
         return START_STICKY;
@@ -105,8 +127,9 @@ public class OwnPositionService extends Service {
                 // Give new location to SettingsManager
                 ServiceContainer.getSettingsManager().setLocation(newLocation);
             }
-            // Sends new Position to server
-            if (!ServiceContainer.getSettingsManager().isOffline()) {
+            // Sends new Position to server, unless it is unavailable
+            if (!ServiceContainer.getSettingsManager().isOffline()
+                    && ServiceContainer.getNetworkPolicy().isServerAvailable()) {
                 ServiceContainer.getSettingsManager().setLastSeen(new GregorianCalendar().getTimeInMillis());
                 ServiceContainer.getSettingsManager().setLocationName(
                         Utils.getCityFromLocation(ServiceContainer.getSettingsManager().getLocation()));
@@ -165,6 +188,7 @@ public class OwnPositionService extends Service {
         @Override
         protected void onPostExecute(Boolean result) {
             if (result) {
+                mReconnectAttempts = 0;
                 // Creates a Criteria, used to chose LocationManager settings
                 Criteria criteria = new Criteria();
                 criteria.setAccuracy(Criteria.ACCURACY_FINE);
@@ -182,13 +206,12 @@ public class OwnPositionService extends Service {
                             new MyLocationListener());
                 }
             } else {
-                // Retry connection
-                try {
-                    Thread.sleep(RECONNECT_DELAY);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Thread interrupted: " + e);
-                }
-                new StartUp().execute();
+                // Retry connection later, with a jittered backoff
+                long delay = Math.max(NetworkPolicy.backoff(mReconnectAttempts, RECONNECT_DELAY, MAX_RECONNECT_DELAY),
+                        ServiceContainer.getNetworkPolicy().getRemainingUnavailableTime());
+                mReconnectAttempts++;
+                Log.d(TAG, "Reconnecting in " + delay + " ms");
+                mHandler.postDelayed(mReconnect, delay);
             }
         }
     }
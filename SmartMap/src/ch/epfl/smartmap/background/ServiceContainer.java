@@ -1,11 +1,21 @@
 package ch.epfl.smartmap.background;
 
+import java.io.File;
+
 import android.content.Context;
 import ch.epfl.smartmap.cache.Cache;
+import ch.epfl.smartmap.cache.ImageStore;
+import ch.epfl.smartmap.cache.MetricsRegistry;
 import ch.epfl.smartmap.database.DatabaseHelper;
 import ch.epfl.smartmap.database.DatabaseHelperInterface;
 import ch.epfl.smartmap.search.CachedSearchEngine;
+import ch.epfl.smartmap.servercom.AsyncSmartMapClient;
+import ch.epfl.smartmap.servercom.CoalescingSmartMapClient;
+import ch.epfl.smartmap.servercom.NetworkExecutor;
+import ch.epfl.smartmap.servercom.NetworkPolicy;
 import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.ProfilePictureCache;
+import ch.epfl.smartmap.servercom.ResilientSmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClient;
 
 /**
@@ -21,11 +31,18 @@ import ch.epfl.smartmap.servercom.SmartMapClient;
  * @author Pamoi
  */
 public final class ServiceContainer {
+    // Directory, in the application's cache directory, where profile pictures are stored
+    private static final String PICTURES_DIRECTORY = "pictures";
+
     private static SmartMapClient mNetworkClient;
+    private static NetworkExecutor mNetworkExecutor;
+    private static NetworkPolicy mNetworkPolicy;
     private static DatabaseHelperInterface mDBHelper;
     private static Cache mCache;
     private static CachedSearchEngine mSearchEngine;
     private static SettingsManager mSettingsManager;
+    private static ImageStore mImageStore;
+    private static MetricsRegistry mMetrics;
 
     /**
      * Private constructor that hides implicit public one.
@@ -42,12 +59,26 @@ public final class ServiceContainer {
      */
     public static void forceInitSmartMapServices(Context context) {
         setSettingsManager(new SettingsManager(context));
-        setNetworkClient(new NetworkSmartMapClient());
+        setMetrics(new MetricsRegistry());
+        setNetworkPolicy(new NetworkPolicy(getMetrics()));
+        setNetworkClient(createNetworkClient(context));
+        setNetworkExecutor(new NetworkExecutor());
         setDatabaseHelper(new DatabaseHelper(context));
+        setImageStore(new ImageStore());
         setCache(new Cache());
         setSearchEngine(new CachedSearchEngine());
     }
 
+    /**
+     * Get an asynchronous version of the network client service, sending requests with the network executor
+     * service.
+     * 
+     * @return AsyncSmartMapClient
+     */
+    public static AsyncSmartMapClient getAsyncNetworkClient() {
+        return new AsyncSmartMapClient(mNetworkClient, mNetworkExecutor);
+    }
+
     /**
      * Get the cache service.
      * 
@@ -66,6 +97,24 @@ public final class ServiceContainer {
         return mDBHelper;
     }
 
+    /**
+     * Get the image store service.
+     * 
+     * @return ImageStore
+     */
+    public static ImageStore getImageStore() {
+        return mImageStore;
+    }
+
+    /**
+     * Get the metrics registry service.
+     * 
+     * @return MetricsRegistry
+     */
+    public static MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Get the network client service.
      * 
@@ -75,6 +124,28 @@ public final class ServiceContainer {
         return mNetworkClient;
     }
 
+    /**
+     * Get the network executor service.
+     * 
+     * @return NetworkExecutor
+     */
+    public static NetworkExecutor getNetworkExecutor() {
+        return mNetworkExecutor;
+    }
+
+    /**
+     * Get the network policy service, whose state background loops should respect. It is created when first
+     * needed, since background loops check it even when only the network client service was set.
+     * 
+     * @return NetworkPolicy
+     */
+    public static synchronized NetworkPolicy getNetworkPolicy() {
+        if (mNetworkPolicy == null) {
+            mNetworkPolicy = new NetworkPolicy(getMetrics());
+        }
+        return mNetworkPolicy;
+    }
+
     /**
      * Get the search engine service.
      * 
@@ -103,12 +174,21 @@ public final class ServiceContainer {
         if (ServiceContainer.getSettingsManager() == null) {
             setSettingsManager(new SettingsManager(context));
         }
+        if (ServiceContainer.getMetrics() == null) {
+            setMetrics(new MetricsRegistry());
+        }
         if (ServiceContainer.getNetworkClient() == null) {
-            setNetworkClient(new NetworkSmartMapClient());
+            setNetworkClient(createNetworkClient(context));
+        }
+        if (ServiceContainer.getNetworkExecutor() == null) {
+            setNetworkExecutor(new NetworkExecutor());
         }
         if (ServiceContainer.getDatabase() == null) {
             setDatabaseHelper(new DatabaseHelper(context));
         }
+        if (ServiceContainer.getImageStore() == null) {
+            setImageStore(new ImageStore());
+        }
         if (ServiceContainer.getCache() == null) {
             setCache(new Cache());
         }
@@ -135,6 +215,24 @@ public final class ServiceContainer {
         mDBHelper = db;
     }
 
+    /**
+     * Set the image store service.
+     * 
+     * @param store
+     */
+    public static void setImageStore(ImageStore store) {
+        mImageStore = store;
+    }
+
+    /**
+     * Set the metrics registry service.
+     * 
+     * @param metrics
+     */
+    public static void setMetrics(MetricsRegistry metrics) {
+        mMetrics = metrics;
+    }
+
     /**
      * Set the network client service.
      * 
@@ -144,6 +242,24 @@ public final class ServiceContainer {
         mNetworkClient = client;
     }
 
+    /**
+     * Set the network executor service.
+     * 
+     * @param executor
+     */
+    public static void setNetworkExecutor(NetworkExecutor executor) {
+        mNetworkExecutor = executor;
+    }
+
+    /**
+     * Set the network policy service.
+     * 
+     * @param policy
+     */
+    public static synchronized void setNetworkPolicy(NetworkPolicy policy) {
+        mNetworkPolicy = policy;
+    }
+
     /**
      * Set the search engine service.
      * 
@@ -161,4 +277,19 @@ public final class ServiceContainer {
     public static void setSettingsManager(SettingsManager sm) {
         mSettingsManager = sm;
     }
+
+    /**
+     * @param context
+     *            The app's context
+     * @return a network client storing profile pictures in the cache directory of the app, sending requests
+     *         through the network policy service and sharing identical requests made at the same time
+     */
+    static SmartMapClient createNetworkClient(Context context) {
+        NetworkSmartMapClient client = new NetworkSmartMapClient();
+        client.setPictureCache(new ProfilePictureCache(new File(context.getCacheDir(), PICTURES_DIRECTORY)));
+        client.setNetworkPolicy(getNetworkPolicy());
+        // Shared requests are retried once for all their callers
+        return new CoalescingSmartMapClient(new ResilientSmartMapClient(client, getNetworkPolicy()),
+            CoalescingSmartMapClient.DEFAULT_RESULT_TTL, getMetrics());
+    }
 }
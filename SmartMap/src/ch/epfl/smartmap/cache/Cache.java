@@ -3,12 +3,20 @@ package ch.epfl.smartmap.cache;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
-
-import android.graphics.Bitmap;
-import android.os.AsyncTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.location.Location;
 import android.util.Log;
 import android.util.LongSparseArray;
 import ch.epfl.smartmap.background.Notifications;
@@ -17,9 +25,14 @@ import ch.epfl.smartmap.background.SettingsManager;
 import ch.epfl.smartmap.callbacks.NetworkRequestCallback;
 import ch.epfl.smartmap.database.DatabaseHelperInterface;
 import ch.epfl.smartmap.listeners.CacheListener;
+import ch.epfl.smartmap.servercom.Mutation;
+import ch.epfl.smartmap.servercom.NetworkExecutor.Priority;
 import ch.epfl.smartmap.servercom.SmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClientException;
 
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
 /**
  * Note from @jfperren
  * Since the architecture change (which was really needed otherwise we
@@ -36,8 +49,14 @@ import ch.epfl.smartmap.servercom.SmartMapClientException;
  * The {@code Cache} contains every instance of {@code User}, {@code Event}, {@code Invitation} and
  * {@code Filter} that is used by the GUI. You can initialize the Cache from a DatabaseHelper with
  * {@code initFromDatabase}, and then update it with a SmartMapClient using {@code updateFromNetwork}. All
- * methods in the Cache that call the {@code SmartMapClient} use {@code AsyncTask}s and then update the
- * {@code Cache} with the results
+ * methods in the Cache that call the {@code SmartMapClient} run on the {@code NetworkExecutor}, in its
+ * interactive lane for user actions and in its background lane otherwise, and then update the {@code Cache}
+ * with the results.
+ * <p>
+ * The Cache is read far more often than it is written, so instead of a single monitor it uses a
+ * read-write lock: getters only take the shared read lock and never wait behind each other, and methods
+ * that modify the Cache take the exclusive write lock. Network requests are never made while holding the
+ * lock, so the GUI never waits on network I/O when reading the Cache.
  * 
  * @author jfperren
  */
@@ -45,6 +64,12 @@ public class Cache implements CacheInterface {
 
     private static final String TAG = Cache.class.getSimpleName();
 
+    // Time during which an Event stays in the Cache after its end, in milliseconds
+    public static final long EXPIRED_EVENT_RETENTION = 60 * 60 * 1000;
+
+    // Shorter waits for the lock are not recorded, the lock was most likely free
+    private static final long CONTENDED_LOCK_NANOS = 1000;
+
     // SparseArrays containing live instances
     private final LongSparseArray<User> mUserInstances;
     private final LongSparseArray<Event> mEventInstances;
@@ -52,20 +77,67 @@ public class Cache implements CacheInterface {
     private final LongSparseArray<Invitation> mInvitationInstances;
 
     // These sets are the keys for the LongSparseArrays
-    private final Set<Long> mUserIds;
-    private final Set<Long> mEventIds;
-    private final Set<Long> mFilterIds;
-    private final Set<Long> mInvitationIds;
+    private final LongSet mUserIds;
+    private final LongSet mEventIds;
+    private final LongSet mFilterIds;
+    private final LongSet mInvitationIds;
 
     // Contains the ids of the friends
-    private final Set<Long> mFriendIds;
+    private final LongSet mFriendIds;
     private long mSelfId;
 
+    // Secondary indexes on categories, kept up to date on each modification
+    private final LongSet mMyEventIds;
+    private final LongSet mParticipatingEventIds;
+    private final LongSet mActiveFilterIds;
+    private final LongSet mLiveEventIds;
+
+    // Flips the live status of events when they start or end, and evicts them when they expire
+    private final EventLifecycleScheduler mLifecycleScheduler;
+
+    // Spatial indexes on the positions of events and friends
+    private final SpatialIndex mEventPositions;
+    private final SpatialIndex mFriendPositions;
+
+    // Fetches values for updateFromNetwork
+    private final NetworkSyncEngine mSyncEngine;
+
+    // Changes made while the server could not be reached
+    private final MutationQueue mMutationQueue;
+
+    // Writes changes to the database in the background
+    private final DatabaseWriter mDatabaseWriter;
+
     // Id for the next filter to be added
     private long nextFilterId;
 
     // Contains all listeners
-    private final List<CacheListener> mListeners;
+    private final List<RegisteredListener> mListeners;
+
+    // Guards every data structure above
+    private final ReadWriteLock mLock;
+
+    // Changes made by the modification in progress, only accessed with the write lock
+    private CacheDelta mPendingDelta;
+    private int mModificationDepth;
+
+    // Deltas of finished modifications, queued with the write lock so that they stay in order, and
+    // delivered to the database writer and the listeners once it is released
+    private final Queue<CacheDelta> mUndeliveredDeltas;
+    // Held by the thread delivering the deltas
+    private final ReentrantLock mDeliveryLock;
+
+    // Increased with the write lock at the end of each modification that changed something
+    private volatile long mGeneration;
+    // Snapshot of the last generation that was asked for, if any
+    private volatile CacheSnapshot mSnapshot;
+
+    // Waits for the lock and time spent in listeners
+    private final MetricsRegistry mMetrics;
+    private final MetricsRegistry.Timer mReadWaitTimer;
+    private final MetricsRegistry.Timer mWriteWaitTimer;
+    private final MetricsRegistry.Timer mListenersTimer;
+    private final MetricsRegistry.Histogram mFanOutHistogram;
 
     /**
      * Constructor
@@ -77,17 +149,49 @@ public class Cache implements CacheInterface {
         mFilterInstances = new LongSparseArray<Filter>();
         mInvitationInstances = new LongSparseArray<Invitation>();
 
-        mFriendIds = new HashSet<Long>();
+        mFriendIds = new LongSet();
         mSelfId = ServiceContainer.getSettingsManager().getUserId();
 
-        mUserIds = new HashSet<Long>();
-        mEventIds = new HashSet<Long>();
-        mFilterIds = new HashSet<Long>();
-        mInvitationIds = new HashSet<Long>();
+        mUserIds = new LongSet();
+        mEventIds = new LongSet();
+        mFilterIds = new LongSet();
+        mInvitationIds = new LongSet();
+
+        mMyEventIds = new LongSet();
+        mParticipatingEventIds = new LongSet();
+        mActiveFilterIds = new LongSet();
+        mLiveEventIds = new LongSet();
+
+        mLifecycleScheduler = new EventLifecycleScheduler(new EventLifecycleScheduler.LifecycleListener() {
+            @Override
+            public void onLifecycleUpdate(Set<Long> startedIds, Set<Long> endedIds, Set<Long> expiredIds) {
+                Cache.this.applyLifecycleUpdate(startedIds, endedIds, expiredIds);
+            }
+        }, EXPIRED_EVENT_RETENTION);
+
+        mEventPositions = new SpatialIndex();
+        mFriendPositions = new SpatialIndex();
+
+        mSyncEngine = new NetworkSyncEngine(this);
+        mMutationQueue = new MutationQueue(this);
+        mDatabaseWriter = new DatabaseWriter(this, ServiceContainer.getDatabase(), DatabaseWriter.MAX_DELAY);
 
         nextFilterId = Filter.DEFAULT_FILTER_ID + 1;
 
-        mListeners = new ArrayList<CacheListener>();
+        // Listeners are iterated while being added
+        mListeners = new CopyOnWriteArrayList<RegisteredListener>();
+
+        mLock = new ReentrantReadWriteLock();
+        mUndeliveredDeltas = new ConcurrentLinkedQueue<CacheDelta>();
+        mDeliveryLock = new ReentrantLock();
+
+        mMetrics = ServiceContainer.getMetrics();
+        mReadWaitTimer = mMetrics.timer(MetricsRegistry.LOCK_READ_WAIT);
+        mWriteWaitTimer = mMetrics.timer(MetricsRegistry.LOCK_WRITE_WAIT);
+        mListenersTimer = mMetrics.timer(MetricsRegistry.LISTENERS_TIME);
+        mFanOutHistogram = mMetrics.histogram(MetricsRegistry.LISTENERS_FAN_OUT);
+
+        mGeneration = CacheSnapshot.NO_GENERATION;
 
         this.putUser(UserContainer.newEmptyContainer().setId(mSelfId)
             .setName(ServiceContainer.getSettingsManager().getUserName()));
@@ -101,14 +205,19 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void acceptInvitation(final Invitation invitation,
+    public void acceptInvitation(final Invitation invitation,
         final NetworkRequestCallback<Void> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        if (this.mustQueueChanges()) {
+            this.acceptInvitationOffline(invitation, callback);
+            return;
+        }
+        final NetworkRequestCallback<Void> singleCallback = new SingleCallback<Void>(callback);
+        this.submitInteractive(new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
-                return Cache.this.acceptInvitationTaskInBackground(invitation, callback);
+            public Void call() {
+                return Cache.this.acceptInvitationTaskInBackground(invitation, singleCallback);
             }
-        }.execute();
+        }, singleCallback);
     }
 
     /*
@@ -118,8 +227,9 @@ public class Cache implements CacheInterface {
      * .listeners.CacheListener)
      */
     @Override
-    public synchronized void addOnCacheListener(CacheListener listener) {
-        mListeners.add(listener);
+    public void addOnCacheListener(CacheListener listener) {
+        mListeners.add(new RegisteredListener(listener,
+            mMetrics.timer(MetricsRegistry.LISTENER_TIME_PREFIX + listener.getClass().getName())));
     }
 
     /*
@@ -131,7 +241,7 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void addParticipantsToEvent(Set<Long> ids, final Event event,
+    public void addParticipantsToEvent(Set<Long> ids, final Event event,
         final NetworkRequestCallback<Void> callback) {
         Set<Long> newParticipantIds = event.getContainerCopy().getParticipantIds();
         newParticipantIds.addAll(ids);
@@ -139,23 +249,28 @@ public class Cache implements CacheInterface {
         final EventContainer newImmutableEvent =
             event.getContainerCopy().setParticipantIds(newParticipantIds);
 
-        new AsyncTask<Void, Void, Void>() {
+        if (this.mustQueueChanges()) {
+            this.queueMutation(Mutation.joinEvent(newImmutableEvent.getId()));
+            this.updateEvent(newImmutableEvent);
+            if (callback != null) {
+                callback.onSuccess(null);
+            }
+            return;
+        }
+        final NetworkRequestCallback<Void> singleCallback = new SingleCallback<Void>(callback);
+        this.submitInteractive(new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public Void call() {
                 try {
                     ServiceContainer.getNetworkClient().joinEvent(newImmutableEvent.getId());
                     ServiceContainer.getCache().updateEvent(newImmutableEvent);
-                    if (callback != null) {
-                        callback.onSuccess(null);
-                    }
+                    singleCallback.onSuccess(null);
                 } catch (SmartMapClientException e) {
-                    if (callback != null) {
-                        callback.onFailure(e);
-                    }
+                    singleCallback.onFailure(e);
                 }
                 return null;
             }
-        }.execute();
+        }, singleCallback);
     }
 
     /*
@@ -166,14 +281,25 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void createEvent(final EventContainer createdEvent,
+    public void createEvent(final EventContainer createdEvent,
         final NetworkRequestCallback<Event> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        if (this.mustQueueChanges()) {
+            long localId = mMutationQueue.nextLocalId();
+            this.queueMutation(Mutation.createEvent(localId, createdEvent));
+            createdEvent.setId(localId);
+            this.putEvent(createdEvent);
+            if (callback != null) {
+                callback.onSuccess(this.getEvent(localId));
+            }
+            return;
+        }
+        final NetworkRequestCallback<Event> singleCallback = new SingleCallback<Event>(callback);
+        this.submitInteractive(new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
-                return Cache.this.createEventTaskInBackground(createdEvent, callback);
+            public Void call() {
+                return Cache.this.createEventTaskInBackground(createdEvent, singleCallback);
             }
-        }.execute();
+        }, singleCallback);
     }
 
     /*
@@ -184,15 +310,37 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void declineInvitation(final Invitation invitation,
+    public void declineInvitation(final Invitation invitation,
         final NetworkRequestCallback<Void> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        if (this.mustQueueChanges()) {
+            this.declineInvitationOffline(invitation, callback);
+            return;
+        }
+        final NetworkRequestCallback<Void> singleCallback = new SingleCallback<Void>(callback);
+        this.submitInteractive(new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
-                return Cache.this.declineInvitationTaskInBackground(invitation, callback);
+            public Void call() {
+                return Cache.this.declineInvitationTaskInBackground(invitation, singleCallback);
             }
+        }, singleCallback);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.CacheInterface#flushToDatabase()
+     */
+    @Override
+    public void flushToDatabase() {
+        mDatabaseWriter.flush();
+    }
 
-        }.execute();
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.CacheInterface#flushToDatabaseInBackground()
+     */
+    @Override
+    public void flushToDatabaseInBackground() {
+        mDatabaseWriter.flushInBackground();
     }
 
     /*
@@ -200,13 +348,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllActiveFilters()
      */
     @Override
-    public synchronized Set<Filter> getAllActiveFilters() {
-        return this.getFilters(new SearchFilter<Filter>() {
-            @Override
-            public synchronized boolean filter(Filter filter) {
-                return filter.isActive();
-            }
-        });
+    public Set<Filter> getAllActiveFilters() {
+        this.lockForReading();
+        try {
+            return this.getFilters(mActiveFilterIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -214,10 +362,15 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllCustomFilters()
      */
     @Override
-    public synchronized Set<Filter> getAllCustomFilters() {
-        Set<Long> customFilterIds = new HashSet<Long>(mFilterIds);
-        customFilterIds.remove(Filter.DEFAULT_FILTER_ID);
-        return this.getFilters(customFilterIds);
+    public Set<Filter> getAllCustomFilters() {
+        this.lockForReading();
+        try {
+            LongSet customFilterIds = new LongSet(mFilterIds);
+            customFilterIds.remove(Filter.DEFAULT_FILTER_ID);
+            return this.getFilters(customFilterIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -225,8 +378,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllEvents()
      */
     @Override
-    public synchronized Set<Event> getAllEvents() {
-        return this.getEvents(mEventIds);
+    public Set<Event> getAllEvents() {
+        this.lockForReading();
+        try {
+            return this.getEvents(mEventIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -234,8 +392,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllFilters()
      */
     @Override
-    public synchronized Set<Filter> getAllFilters() {
-        return this.getFilters(mFilterIds);
+    public Set<Filter> getAllFilters() {
+        this.lockForReading();
+        try {
+            return this.getFilters(mFilterIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -243,8 +406,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllFriends()
      */
     @Override
-    public synchronized Set<User> getAllFriends() {
-        return this.getUsers(mFriendIds);
+    public Set<User> getAllFriends() {
+        this.lockForReading();
+        try {
+            return this.getUsers(mFriendIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -252,8 +420,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllInvitations()
      */
     @Override
-    public synchronized SortedSet<Invitation> getAllInvitations() {
-        return this.getInvitations(mInvitationIds);
+    public SortedSet<Invitation> getAllInvitations() {
+        this.lockForReading();
+        try {
+            return this.getInvitations(mInvitationIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -261,8 +434,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllUsers()
      */
     @Override
-    public synchronized Set<User> getAllUsers() {
-        return this.getUsers(mUserIds);
+    public Set<User> getAllUsers() {
+        this.lockForReading();
+        try {
+            return this.getUsers(mUserIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -270,15 +448,20 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllVisibleEvents()
      */
     @Override
-    public synchronized Set<Event> getAllVisibleEvents() {
-        Set<Event> allVisibleEvents = new HashSet<Event>();
-        for (Event event : this.getAllEvents()) {
-            if (event.isVisible()) {
-                allVisibleEvents.add(event);
+    public Set<Event> getAllVisibleEvents() {
+        this.lockForReading();
+        try {
+            Set<Event> allVisibleEvents = new HashSet<Event>();
+            for (Event event : this.getAllEvents()) {
+                if (event.isVisible()) {
+                    allVisibleEvents.add(event);
+                }
             }
-        }
 
-        return this.getEvents(mEventIds);
+            return this.getEvents(mEventIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -286,26 +469,28 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getAllVisibleFriends()
      */
     @Override
-    public synchronized Set<User> getAllVisibleFriends() {
-        // Get all friends
-        Set<Long> allVisibleUsersId = new HashSet<Long>();
-        if (this.getDefaultFilter() != null) {
+    public Set<User> getAllVisibleFriends() {
+        this.lockForReading();
+        try {
             // Get all friends
-            allVisibleUsersId.addAll(this.getDefaultFilter().getVisibleFriends());
-        } else {
-            allVisibleUsersId.addAll(mFriendIds);
-        }
+            LongSet allVisibleUsersId = new LongSet();
+            if (this.getDefaultFilter() != null) {
+                // Get all friends
+                allVisibleUsersId.addAll(this.getDefaultFilter().getVisibleFriends());
+            } else {
+                allVisibleUsersId.addAll(mFriendIds);
+            }
 
-        // For each active filter, keep friends in it
-        for (Long id : mFilterIds) {
-            Filter filter = this.getFilter(id);
-            if (filter.isActive()) {
-                allVisibleUsersId.retainAll(filter.getVisibleFriends());
+            // For each active filter, keep friends in it
+            for (long id : mActiveFilterIds.toLongArray()) {
+                allVisibleUsersId.retainAll(this.getFilter(id).getVisibleFriends());
             }
-        }
 
-        // Return all friends that passed all filters
-        return this.getUsers(allVisibleUsersId);
+            // Return all friends that passed all filters
+            return this.getUsers(allVisibleUsersId);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -313,8 +498,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getDefaultFilter()
      */
     @Override
-    public synchronized Filter getDefaultFilter() {
-        return this.getFilter(Filter.DEFAULT_FILTER_ID);
+    public Filter getDefaultFilter() {
+        this.lockForReading();
+        try {
+            return this.getFilter(Filter.DEFAULT_FILTER_ID);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -322,8 +512,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getEvent(long)
      */
     @Override
-    public synchronized Event getEvent(long id) {
-        return mEventInstances.get(id);
+    public Event getEvent(long id) {
+        this.lockForReading();
+        try {
+            return mEventInstances.get(id);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -333,15 +528,20 @@ public class Cache implements CacheInterface {
      * .Cache.SearchFilter)
      */
     @Override
-    public synchronized Set<Event> getEvents(SearchFilter<Event> filter) {
-        Set<Event> events = new HashSet<Event>();
-        for (long id : mEventIds) {
-            Event event = this.getEvent(id);
-            if (filter.filter(event)) {
-                events.add(event);
+    public Set<Event> getEvents(SearchFilter<Event> filter) {
+        this.lockForReading();
+        try {
+            Set<Event> events = new HashSet<Event>();
+            for (long id : mEventIds.toLongArray()) {
+                Event event = this.getEvent(id);
+                if (filter.filter(event)) {
+                    events.add(event);
+                }
             }
+            return events;
+        } finally {
+            mLock.readLock().unlock();
         }
-        return events;
     }
 
     /*
@@ -349,15 +549,36 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getEvents(java.util.Set)
      */
     @Override
-    public synchronized Set<Event> getEvents(Set<Long> ids) {
-        Set<Event> events = new HashSet<Event>();
-        for (long id : ids) {
-            Event event = this.getEvent(id);
-            if (event != null) {
-                events.add(event);
+    public Set<Event> getEvents(Set<Long> ids) {
+        this.lockForReading();
+        try {
+            Set<Event> events = new HashSet<Event>();
+            for (long id : ids) {
+                Event event = this.getEvent(id);
+                if (event != null) {
+                    events.add(event);
+                }
             }
+            return events;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * ch.epfl.smartmap.cache.CacheInterface#getEventsInBounds(com.google.android.gms.maps.model.LatLngBounds)
+     */
+    @Override
+    public Set<Event> getEventsInBounds(LatLngBounds bounds) {
+        this.lockForReading();
+        try {
+            return this.getEvents(mEventPositions.getIdsInBounds(bounds.southwest.latitude,
+                bounds.southwest.longitude, bounds.northeast.latitude, bounds.northeast.longitude));
+        } finally {
+            mLock.readLock().unlock();
         }
-        return events;
     }
 
     /*
@@ -365,8 +586,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getFilter(long)
      */
     @Override
-    public synchronized Filter getFilter(long id) {
-        return mFilterInstances.get(id);
+    public Filter getFilter(long id) {
+        this.lockForReading();
+        try {
+            return mFilterInstances.get(id);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -376,17 +602,22 @@ public class Cache implements CacheInterface {
      * .Cache.SearchFilter)
      */
     @Override
-    public synchronized Set<Filter> getFilters(SearchFilter<Filter> searchFilter) {
-        Set<Filter> filters = new HashSet<Filter>();
+    public Set<Filter> getFilters(SearchFilter<Filter> searchFilter) {
+        this.lockForReading();
+        try {
+            Set<Filter> filters = new HashSet<Filter>();
 
-        for (long id : mFilterIds) {
-            Filter filter = this.getFilter(id);
-            if ((filter != null) && searchFilter.filter(filter)) {
-                filters.add(filter);
+            for (long id : mFilterIds.toLongArray()) {
+                Filter filter = this.getFilter(id);
+                if ((filter != null) && searchFilter.filter(filter)) {
+                    filters.add(filter);
+                }
             }
-        }
 
-        return filters;
+            return filters;
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -394,17 +625,22 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getFilters(java.util.Set)
      */
     @Override
-    public synchronized Set<Filter> getFilters(Set<Long> ids) {
-        Set<Filter> filters = new HashSet<Filter>();
+    public Set<Filter> getFilters(Set<Long> ids) {
+        this.lockForReading();
+        try {
+            Set<Filter> filters = new HashSet<Filter>();
 
-        for (long id : ids) {
-            Filter filter = this.getFilter(id);
-            if (filter != null) {
-                filters.add(filter);
+            for (long id : ids) {
+                Filter filter = this.getFilter(id);
+                if (filter != null) {
+                    filters.add(filter);
+                }
             }
-        }
 
-        return filters;
+            return filters;
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -412,8 +648,37 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getFriendIds()
      */
     @Override
-    public synchronized Set<Long> getFriendIds() {
-        return mFriendIds;
+    public Set<Long> getFriendIds() {
+        this.lockForReading();
+        try {
+            return new LongSet(mFriendIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.CacheInterface#getFriendsWithin(android.location.Location, double)
+     */
+    @Override
+    public Set<User> getFriendsWithin(Location center, double radius) {
+        this.lockForReading();
+        try {
+            return this.getUsers(mFriendPositions.getIdsWithin(center.getLatitude(), center.getLongitude(),
+                radius));
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.CacheInterface#getGeneration()
+     */
+    @Override
+    public long getGeneration() {
+        return mGeneration;
     }
 
     /*
@@ -421,8 +686,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getInvitation(long)
      */
     @Override
-    public synchronized Invitation getInvitation(long id) {
-        return mInvitationInstances.get(id);
+    public Invitation getInvitation(long id) {
+        this.lockForReading();
+        try {
+            return mInvitationInstances.get(id);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -432,17 +702,22 @@ public class Cache implements CacheInterface {
      * .cache.Cache.SearchFilter)
      */
     @Override
-    public synchronized SortedSet<Invitation> getInvitations(SearchFilter<Invitation> filter) {
-        SortedSet<Invitation> invitations = new TreeSet<Invitation>();
+    public SortedSet<Invitation> getInvitations(SearchFilter<Invitation> filter) {
+        this.lockForReading();
+        try {
+            SortedSet<Invitation> invitations = new TreeSet<Invitation>();
 
-        for (long id : mInvitationIds) {
-            Invitation invitation = mInvitationInstances.get(id);
-            if ((filter == null) || ((invitation != null) && filter.filter(invitation))) {
-                invitations.add(invitation);
+            for (long id : mInvitationIds.toLongArray()) {
+                Invitation invitation = mInvitationInstances.get(id);
+                if ((filter == null) || ((invitation != null) && filter.filter(invitation))) {
+                    invitations.add(invitation);
+                }
             }
-        }
 
-        return invitations;
+            return invitations;
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -450,15 +725,29 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getInvitations(java.util.Set)
      */
     @Override
-    public synchronized SortedSet<Invitation> getInvitations(Set<Long> ids) {
-        SortedSet<Invitation> invitations = new TreeSet<Invitation>();
-        for (long id : ids) {
-            Invitation invitation = this.getInvitation(id);
-            if (invitation != null) {
-                invitations.add(invitation);
+    public SortedSet<Invitation> getInvitations(Set<Long> ids) {
+        this.lockForReading();
+        try {
+            SortedSet<Invitation> invitations = new TreeSet<Invitation>();
+            for (long id : ids) {
+                Invitation invitation = this.getInvitation(id);
+                if (invitation != null) {
+                    invitations.add(invitation);
+                }
             }
+            return invitations;
+        } finally {
+            mLock.readLock().unlock();
         }
-        return invitations;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.CacheInterface#getLastSyncTimings()
+     */
+    @Override
+    public Map<String, Long> getLastSyncTimings() {
+        return mSyncEngine.getLastTimings();
     }
 
     /*
@@ -466,13 +755,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getLiveEvents()
      */
     @Override
-    public synchronized Set<Event> getLiveEvents() {
-        return this.getEvents(new SearchFilter<Event>() {
-            @Override
-            public synchronized boolean filter(Event item) {
-                return item.isLive();
-            }
-        });
+    public Set<Event> getLiveEvents() {
+        this.lockForReading();
+        try {
+            return this.getEvents(mLiveEventIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -480,13 +769,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getMyEvents()
      */
     @Override
-    public synchronized Set<Event> getMyEvents() {
-        return this.getEvents(new SearchFilter<Event>() {
-            @Override
-            public synchronized boolean filter(Event item) {
-                return item.isOwn();
-            }
-        });
+    public Set<Event> getMyEvents() {
+        this.lockForReading();
+        try {
+            return this.getEvents(mMyEventIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -494,13 +783,16 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getNearEvents()
      */
     @Override
-    public synchronized Set<Event> getNearEvents() {
-        return this.getEvents(new SearchFilter<Event>() {
-            @Override
-            public synchronized boolean filter(Event item) {
-                return item.isNear();
-            }
-        });
+    public Set<Event> getNearEvents() {
+        this.lockForReading();
+        try {
+            SettingsManager settingsManager = ServiceContainer.getSettingsManager();
+            Location ourLocation = settingsManager.getLocation();
+            return this.getEvents(mEventPositions.getIdsWithin(ourLocation.getLatitude(),
+                ourLocation.getLongitude(), settingsManager.getNearEventsMaxDistance()));
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -508,13 +800,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getParticipatingEvents()
      */
     @Override
-    public synchronized Set<Event> getParticipatingEvents() {
-        return this.getEvents(new SearchFilter<Event>() {
-            @Override
-            public synchronized boolean filter(Event item) {
-                return item.isGoing();
-            }
-        });
+    public Set<Event> getParticipatingEvents() {
+        this.lockForReading();
+        try {
+            return this.getEvents(mParticipatingEventIds);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -522,8 +814,40 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getSelf()
      */
     @Override
-    public synchronized User getSelf() {
-        return mUserInstances.get(mSelfId);
+    public User getSelf() {
+        this.lockForReading();
+        try {
+            return mUserInstances.get(mSelfId);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.CacheInterface#getSnapshot()
+     */
+    @Override
+    public CacheSnapshot getSnapshot() {
+        // Without lock, a modification in progress has not increased the generation yet
+        CacheSnapshot snapshot = mSnapshot;
+        if ((snapshot != null) && (snapshot.getGeneration() == mGeneration)) {
+            return snapshot;
+        }
+        this.lockForReading();
+        try {
+            snapshot = mSnapshot;
+            if ((snapshot == null) || (snapshot.getGeneration() != mGeneration)) {
+                snapshot =
+                    new CacheSnapshot(mGeneration, this.getAllUsers(), this.getAllEvents(),
+                        this.getAllFilters(), this.getAllInvitations(), this.getAllVisibleFriends(),
+                        this.getAllVisibleEvents());
+                mSnapshot = snapshot;
+            }
+            return snapshot;
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -532,16 +856,21 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.cache.CacheInterface#getUnansweredFriendInvitations()
      */
     @Override
-    public synchronized SortedSet<Invitation> getUnansweredFriendInvitations() {
-        return this.getInvitations(new SearchFilter<Invitation>() {
-            @Override
-            public boolean filter(Invitation item) {
-                int type = item.getType();
-                int status = item.getStatus();
-                return (type == Invitation.FRIEND_INVITATION)
-                    && ((status == Invitation.READ) || (status == Invitation.UNREAD));
-            }
-        });
+    public SortedSet<Invitation> getUnansweredFriendInvitations() {
+        this.lockForReading();
+        try {
+            return this.getInvitations(new SearchFilter<Invitation>() {
+                @Override
+                public boolean filter(Invitation item) {
+                    int type = item.getType();
+                    int status = item.getStatus();
+                    return (type == Invitation.FRIEND_INVITATION)
+                        && ((status == Invitation.READ) || (status == Invitation.UNREAD));
+                }
+            });
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -549,8 +878,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getUser(long)
      */
     @Override
-    public synchronized User getUser(long id) {
-        return mUserInstances.get(id);
+    public User getUser(long id) {
+        this.lockForReading();
+        try {
+            return mUserInstances.get(id);
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
 
     /*
@@ -558,15 +892,20 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#getUsers(java.util.Set)
      */
     @Override
-    public synchronized Set<User> getUsers(Set<Long> ids) {
-        Set<User> users = new HashSet<User>();
-        for (long id : ids) {
-            User user = this.getUser(id);
-            if (user != null) {
-                users.add(user);
+    public Set<User> getUsers(Set<Long> ids) {
+        this.lockForReading();
+        try {
+            Set<User> users = new HashSet<User>();
+            for (long id : ids) {
+                User user = this.getUser(id);
+                if (user != null) {
+                    users.add(user);
+                }
             }
+            return users;
+        } finally {
+            mLock.readLock().unlock();
         }
-        return users;
     }
 
     /*
@@ -576,34 +915,50 @@ public class Cache implements CacheInterface {
      * .database.DatabaseHelper)
      */
     @Override
-    public synchronized void initFromDatabase(DatabaseHelperInterface database) {
-        // Clear previous values
-        mEventInstances.clear();
-        mUserInstances.clear();
-        mFilterInstances.clear();
-        mInvitationInstances.clear();
-
-        // Clear ids
-        mUserIds.clear();
-        mEventIds.clear();
-        mFilterIds.clear();
-        mInvitationIds.clear();
-
-        // Clear friend ids
-        mFriendIds.clear();
-        mSelfId = User.NO_ID;
-
-        // Fill with database values
-        this.putUsers(database.getAllUsers());
-        this.putEvents(database.getAllEvents());
-        this.putFilters(database.getAllFilters());
-        this.putInvitations(database.getAllInvitations());
-
-        // Notify listeners
-        for (CacheListener listener : mListeners) {
-            listener.onEventListUpdate();
-            listener.onUserListUpdate();
-            listener.onFilterListUpdate();
+    public void initFromDatabase(DatabaseHelperInterface database) {
+        // Read before taking the lock, so that readers are not blocked by the database
+        Set<UserContainer> users = database.getAllUsers();
+        Set<EventContainer> events = database.getAllEvents();
+        Set<FilterContainer> filters = database.getAllFilters();
+        Set<InvitationContainer> invitations = database.getAllInvitations();
+
+        this.lockForModification();
+        try {
+            // Clear previous values
+            mEventInstances.clear();
+            mUserInstances.clear();
+            mFilterInstances.clear();
+            mInvitationInstances.clear();
+
+            // Clear ids
+            mUserIds.clear();
+            mEventIds.clear();
+            mFilterIds.clear();
+            mInvitationIds.clear();
+
+            // Clear friend ids
+            mFriendIds.clear();
+            mSelfId = User.NO_ID;
+
+            // Clear indexes
+            mMyEventIds.clear();
+            mParticipatingEventIds.clear();
+            mActiveFilterIds.clear();
+            mLiveEventIds.clear();
+            mLifecycleScheduler.clear();
+            mEventPositions.clear();
+            mFriendPositions.clear();
+
+            // Fill with database values
+            this.putUsers(users);
+            this.putEvents(events);
+            this.putFilters(filters);
+            this.putInvitations(invitations);
+
+            // Everything changed, listeners need to reload all values
+            mPendingDelta.setReset();
+        } finally {
+            this.unlockAfterModification();
         }
     }
 
@@ -614,22 +969,11 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void inviteFriendsToEvent(final long eventId, final Set<Long> usersIds,
+    public void inviteFriendsToEvent(final long eventId, final Set<Long> usersIds,
         final NetworkRequestCallback<Void> callback) {
 
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    ServiceContainer.getNetworkClient().inviteUsersToEvent(eventId,
-                        new ArrayList<Long>(usersIds));
-                    callback.onSuccess(null);
-                } catch (SmartMapClientException e) {
-                    callback.onFailure(e);
-                }
-                return null;
-            }
-        }.execute();
+        ServiceContainer.getAsyncNetworkClient().inviteUsersToEvent(eventId, new ArrayList<Long>(usersIds),
+            callback);
     }
 
     /*
@@ -638,20 +982,15 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void inviteUser(long id, final NetworkRequestCallback<Void> callback) {
-        new AsyncTask<Long, Void, Void>() {
-            @Override
-            protected Void doInBackground(Long... params) {
-                try {
-                    ServiceContainer.getNetworkClient().inviteFriend(params[0]);
-                    callback.onSuccess(null);
-                } catch (SmartMapClientException e) {
-                    Log.e(TAG, "Error while inviting friend: " + e);
-                    callback.onFailure(e);
-                }
-                return null;
+    public void inviteUser(long id, final NetworkRequestCallback<Void> callback) {
+        if (this.mustQueueChanges()) {
+            this.queueMutation(Mutation.inviteFriend(id));
+            if (callback != null) {
+                callback.onSuccess(null);
             }
-        }.execute(id);
+            return;
+        }
+        ServiceContainer.getAsyncNetworkClient().inviteFriend(id, callback);
     }
 
     /*
@@ -662,24 +1001,31 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void modifyOwnEvent(final EventContainer createdEvent,
+    public void modifyOwnEvent(final EventContainer createdEvent,
         final NetworkRequestCallback<Void> callback) {
-        new AsyncTask<EventContainer, Void, Void>() {
-
+        if (this.mustQueueChanges()) {
+            this.queueMutation(Mutation.updateEvent(createdEvent));
+            this.updateEvent(createdEvent);
+            if (callback != null) {
+                callback.onSuccess(null);
+            }
+            return;
+        }
+        final NetworkRequestCallback<Void> singleCallback = new SingleCallback<Void>(callback);
+        this.submitInteractive(new Callable<Void>() {
             @Override
-            protected Void doInBackground(EventContainer... params) {
+            public Void call() {
                 try {
-                    ServiceContainer.getNetworkClient().updateEvent(params[0]);
-                    Cache.this.updateEvent(params[0]);
-                    callback.onSuccess(null);
+                    ServiceContainer.getNetworkClient().updateEvent(createdEvent);
+                    Cache.this.updateEvent(createdEvent);
+                    singleCallback.onSuccess(null);
                 } catch (SmartMapClientException e) {
-                    callback.onFailure(e);
+                    singleCallback.onFailure(e);
                     Log.e(TAG, "Error while modifying own event: " + e);
                 }
                 return null;
             }
-
-        }.execute(createdEvent);
+        }, singleCallback);
     }
 
     /*
@@ -687,9 +1033,13 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#notifyEventListeners()
      */
     @Override
-    public synchronized void notifyEventListeners() {
-        for (CacheListener listener : mListeners) {
-            listener.onEventListUpdate();
+    public void notifyEventListeners() {
+        this.lockForModification();
+        try {
+            // Values did not change but the way they are displayed did, listeners need to reload everything
+            mPendingDelta.setReset();
+        } finally {
+            this.unlockAfterModification();
         }
     }
 
@@ -700,7 +1050,7 @@ public class Cache implements CacheInterface {
      * .ImmutableEvent)
      */
     @Override
-    public synchronized void putEvent(EventContainer newEvent) {
+    public void putEvent(EventContainer newEvent) {
         Set<EventContainer> singleton = new HashSet<EventContainer>();
         singleton.add(newEvent);
         this.putEvents(singleton);
@@ -711,23 +1061,19 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#putEvents(java.util.Set)
      */
     @Override
-    public synchronized void putEvents(Set<EventContainer> newEvents) {
-        boolean needToCallListeners = false;
-
-        Set<UserContainer> usersToAdd = new HashSet<UserContainer>();
-        Set<EventContainer> eventsToUpdate = new HashSet<EventContainer>();
-        Set<EventContainer> eventsToAdd = new HashSet<EventContainer>();
-
-        for (final EventContainer newEvent : newEvents) {
-            // Get id
-            long eventId = newEvent.getId();
-
-            if (this.getEvent(eventId) != null) {
-                // Put in the update list
-                eventsToUpdate.add(newEvent);
-            } else {
-                // Need to add to Cache, check if contains all informations
-                if (newEvent.getCreatorContainer() != null) {
+    public void putEvents(Set<EventContainer> newEvents) {
+        this.lockForModification();
+        try {
+            Set<UserContainer> usersToAdd = new HashSet<UserContainer>();
+            Set<EventContainer> eventsToUpdate = new HashSet<EventContainer>();
+            Set<EventContainer> eventsToAdd = new HashSet<EventContainer>();
+
+            for (EventContainer newEvent : newEvents) {
+                if (this.getEvent(newEvent.getId()) != null) {
+                    // Put in the update list
+                    eventsToUpdate.add(newEvent);
+                } else if (newEvent.getCreatorContainer() != null) {
+                    // Need to add to Cache, only if contains all informations
                     eventsToAdd.add(newEvent);
                     usersToAdd.add(newEvent.getCreatorContainer());
                 }
@@ -738,22 +1084,19 @@ public class Cache implements CacheInterface {
 
             // Add user to Container for new Events & Add to SparseArray
             for (EventContainer eventInfo : eventsToAdd) {
-                needToCallListeners = true;
                 eventInfo.setCreator(this.getUser(eventInfo.getCreatorContainer().getId()));
                 mEventIds.add(eventInfo.getId());
-                mEventInstances.put(eventInfo.getId(), Event.createFromContainer(eventInfo));
+                Event event = Event.createFromContainer(eventInfo);
+                mEventInstances.put(eventInfo.getId(), event);
+                mPendingDelta.getEventChanges().added(eventInfo.getId());
+                this.indexCategories(event);
+                this.indexPosition(event);
             }
 
-            // Update Events to need to be updated & put true if update didnt
-            // call listeners
-            needToCallListeners = !this.updateEvents(eventsToUpdate) && needToCallListeners;
-
-            // Update Listeners if needed
-            if (needToCallListeners) {
-                for (CacheListener listener : mListeners) {
-                    listener.onEventListUpdate();
-                }
-            }
+            // Update Events that need to be updated
+            this.updateEvents(eventsToUpdate);
+        } finally {
+            this.unlockAfterModification();
         }
     }
 
@@ -764,7 +1107,7 @@ public class Cache implements CacheInterface {
      * .ImmutableFilter)
      */
     @Override
-    public synchronized void putFilter(FilterContainer newFilter) {
+    public void putFilter(FilterContainer newFilter) {
         Set<FilterContainer> singleton = new HashSet<FilterContainer>();
         singleton.add(newFilter);
         this.putFilters(singleton);
@@ -775,37 +1118,35 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#putFilters(java.util.Set)
      */
     @Override
-    public synchronized void putFilters(Set<FilterContainer> newFilters) {
-        boolean needToCallListeners = false;
-
-        Set<FilterContainer> filtersToUpdate = new HashSet<FilterContainer>();
+    public void putFilters(Set<FilterContainer> newFilters) {
+        this.lockForModification();
+        try {
+            Set<FilterContainer> filtersToUpdate = new HashSet<FilterContainer>();
+
+            for (FilterContainer newFilter : newFilters) {
+                if (!mFilterIds.contains(newFilter.getId())) {
+                    // if not default
+                    if (newFilter.getId() != Filter.DEFAULT_FILTER_ID) {
+                        // Need to set an id
+                        newFilter.setId(nextFilterId);
+                        nextFilterId++;
+                    }
 
-        for (FilterContainer newFilter : newFilters) {
-            if (!mFilterIds.contains(newFilter.getId())) {
-                // if not default
-                if (newFilter.getId() != Filter.DEFAULT_FILTER_ID) {
-                    // Need to set an id
-                    newFilter.setId(nextFilterId);
-                    nextFilterId++;
+                    mFilterIds.add(newFilter.getId());
+                    Filter filter = Filter.createFromContainer(newFilter);
+                    mFilterInstances.put(newFilter.getId(), filter);
+                    this.indexCategories(filter);
+                    mPendingDelta.getFilterChanges().added(newFilter.getId());
+                } else {
+                    // Put in update set
+                    filtersToUpdate.add(newFilter);
                 }
-
-                mFilterIds.add(newFilter.getId());
-                mFilterInstances.put(newFilter.getId(), Filter.createFromContainer(newFilter));
-                needToCallListeners = true;
-            } else {
-                // Put in update set
-                filtersToUpdate.add(newFilter);
             }
-        }
 
-        // Update filters that need to be added
-        needToCallListeners = !this.updateFilters(filtersToUpdate) && needToCallListeners;
-
-        // Notify listeners
-        if (needToCallListeners) {
-            for (CacheListener listener : mListeners) {
-                listener.onFilterListUpdate();
-            }
+            // Update filters that need to be updated
+            this.updateFilters(filtersToUpdate);
+        } finally {
+            this.unlockAfterModification();
         }
     }
 
@@ -816,7 +1157,7 @@ public class Cache implements CacheInterface {
      * cache.ImmutableInvitation)
      */
     @Override
-    public synchronized void putInvitation(InvitationContainer invitationInfo) {
+    public void putInvitation(InvitationContainer invitationInfo) {
         Set<InvitationContainer> singleton = new HashSet<InvitationContainer>();
         singleton.add(invitationInfo);
         this.putInvitations(singleton);
@@ -827,59 +1168,61 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#putInvitations(java.util.Set)
      */
     @Override
-    public synchronized void putInvitations(Set<InvitationContainer> invitationInfos) {
-        boolean needToCallListeners = false;
-
+    public void putInvitations(Set<InvitationContainer> invitationInfos) {
         // Contains values to add later all at once
         Set<UserContainer> usersToAdd = new HashSet<UserContainer>();
         Set<EventContainer> eventsToAdd = new HashSet<EventContainer>();
         Set<InvitationContainer> invitationsToAdd = new HashSet<InvitationContainer>();
 
+        // Before taking the lock, since new invitations get their id from the database
         this.processInvitations(invitationInfos, usersToAdd, eventsToAdd, invitationsToAdd);
 
-        // Add all users
-        this.putUsers(usersToAdd);
+        List<Invitation> addedInvitations = new ArrayList<Invitation>();
+        this.lockForModification();
+        try {
+            // Add all users
+            this.putUsers(usersToAdd);
 
-        // Add all events
-        this.putEvents(eventsToAdd);
+            // Add all events
+            this.putEvents(eventsToAdd);
 
-        // Create and add live instances of Invitations
-        for (InvitationContainer invitationInfo : invitationsToAdd) {
-            boolean isSetCorrectly = false;
+            // Create and add live instances of Invitations
+            for (InvitationContainer invitationInfo : invitationsToAdd) {
+                boolean isSetCorrectly = false;
 
-            switch (invitationInfo.getType()) {
-                case Invitation.FRIEND_INVITATION:
-                case Invitation.ACCEPTED_FRIEND_INVITATION:
-                    invitationInfo.setUser(this.getUser(invitationInfo.getUserInfos().getId()));
-                    isSetCorrectly = invitationInfo.getUser() != null;
-                    break;
-                case Invitation.EVENT_INVITATION:
-                    invitationInfo.setEvent(this.getEvent(invitationInfo.getEventInfos().getId()));
-                    isSetCorrectly = invitationInfo.getEvent() != null;
-                    break;
-                default:
-                    assert false;
-                    break;
-            }
+                switch (invitationInfo.getType()) {
+                    case Invitation.FRIEND_INVITATION:
+                    case Invitation.ACCEPTED_FRIEND_INVITATION:
+                        invitationInfo.setUser(this.getUser(invitationInfo.getUserInfos().getId()));
+                        isSetCorrectly = invitationInfo.getUser() != null;
+                        break;
+                    case Invitation.EVENT_INVITATION:
+                        invitationInfo.setEvent(this.getEvent(invitationInfo.getEventInfos().getId()));
+                        isSetCorrectly = invitationInfo.getEvent() != null;
+                        break;
+                    default:
+                        assert false;
+                        break;
+                }
 
-            if (isSetCorrectly) {
-                mInvitationIds.add(invitationInfo.getId());
-                long invitationId = invitationInfo.getId();
-                Invitation invitation = Invitation.createFromContainer(invitationInfo);
-                mInvitationInstances.put(invitationInfo.getId(), invitation);
-                if (invitationId != Invitation.ALREADY_RECEIVED) {
-                    Notifications.createNotification(invitation, ServiceContainer.getSettingsManager()
-                        .getContext());
+                // Another thread may have added it since it was processed
+                if (isSetCorrectly && !mInvitationIds.contains(invitationInfo.getId())) {
+                    mInvitationIds.add(invitationInfo.getId());
+                    long invitationId = invitationInfo.getId();
+                    Invitation invitation = Invitation.createFromContainer(invitationInfo);
+                    mInvitationInstances.put(invitationInfo.getId(), invitation);
+                    mPendingDelta.getInvitationChanges().added(invitationId);
+                    if (invitationId != Invitation.ALREADY_RECEIVED) {
+                        addedInvitations.add(invitation);
+                    }
                 }
             }
-
-            needToCallListeners = true;
+        } finally {
+            this.unlockAfterModification();
         }
 
-        if (needToCallListeners) {
-            for (CacheListener listener : mListeners) {
-                listener.onInvitationListUpdate();
-            }
+        for (Invitation invitation : addedInvitations) {
+            Notifications.createNotification(invitation, ServiceContainer.getSettingsManager().getContext());
         }
     }
 
@@ -890,7 +1233,7 @@ public class Cache implements CacheInterface {
      * ImmutableUser)
      */
     @Override
-    public synchronized void putUser(UserContainer newFriend) {
+    public void putUser(UserContainer newFriend) {
         Set<UserContainer> singleton = new HashSet<UserContainer>();
         singleton.add(newFriend);
         this.putUsers(singleton);
@@ -901,40 +1244,38 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#putUsers(java.util.Set)
      */
     @Override
-    public synchronized void putUsers(Set<UserContainer> newUsers) {
-        boolean needToCallListeners = false;
-
-        Set<UserContainer> usersToUpdate = new HashSet<UserContainer>();
+    public void putUsers(Set<UserContainer> newUsers) {
+        this.lockForModification();
+        try {
+            Set<UserContainer> usersToUpdate = new HashSet<UserContainer>();
 
-        for (UserContainer newUser : newUsers) {
-            mUserIds.add(newUser.getId());
+            for (UserContainer newUser : newUsers) {
+                mUserIds.add(newUser.getId());
 
-            if (newUser.getFriendship() == User.FRIEND) {
-                mFriendIds.add(newUser.getId());
-            } else if (newUser.getFriendship() == User.SELF) {
-                mSelfId = newUser.getId();
-            }
+                if (newUser.getFriendship() == User.FRIEND) {
+                    mFriendIds.add(newUser.getId());
+                } else if (newUser.getFriendship() == User.SELF) {
+                    mSelfId = newUser.getId();
+                }
 
-            if (mUserInstances.get(newUser.getId()) == null) {
-                if ((newUser.getFriendship() == User.FRIEND) || (newUser.getFriendship() == User.STRANGER)
-                    || (newUser.getFriendship() == User.SELF)) {
-                    mUserInstances.put(newUser.getId(), User.createFromContainer(newUser));
-                    needToCallListeners = true;
+                if (mUserInstances.get(newUser.getId()) == null) {
+                    if ((newUser.getFriendship() == User.FRIEND) || (newUser.getFriendship() == User.STRANGER)
+                        || (newUser.getFriendship() == User.SELF)) {
+                        User user = User.createFromContainer(newUser);
+                        mUserInstances.put(newUser.getId(), user);
+                        this.indexPosition(user);
+                        mPendingDelta.getUserChanges().added(newUser.getId());
+                    }
+                } else {
+                    // Put in set for update
+                    usersToUpdate.add(newUser);
                 }
-            } else {
-                // Put in set for update
-                usersToUpdate.add(newUser);
             }
-        }
 
-        // Update users that need to be updated
-        needToCallListeners = !this.updateUsers(usersToUpdate) && needToCallListeners;
-
-        // Notify listeners if needed
-        if (needToCallListeners) {
-            for (CacheListener listener : mListeners) {
-                listener.onUserListUpdate();
-            }
+            // Update users that need to be updated
+            this.updateUsers(usersToUpdate);
+        } finally {
+            this.unlockAfterModification();
         }
     }
 
@@ -943,22 +1284,27 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#readAllInvitations()
      */
     @Override
-    public synchronized void readAllInvitations() {
-        SortedSet<Invitation> unreadInvitations = this.getInvitations(new Cache.SearchFilter<Invitation>() {
-            @Override
-            public boolean filter(Invitation item) {
-                // Get Unread invitations
-                return item.getStatus() == Invitation.UNREAD;
-            }
-        });
-
-        Set<InvitationContainer> readInvitations = new HashSet<InvitationContainer>();
+    public void readAllInvitations() {
+        this.lockForModification();
+        try {
+            SortedSet<Invitation> unreadInvitations = this.getInvitations(new Cache.SearchFilter<Invitation>() {
+                @Override
+                public boolean filter(Invitation item) {
+                    // Get Unread invitations
+                    return item.getStatus() == Invitation.UNREAD;
+                }
+            });
 
-        for (Invitation invitation : unreadInvitations) {
-            readInvitations.add(invitation.getContainerCopy().setStatus(Invitation.READ));
-        }
+            Set<InvitationContainer> readInvitations = new HashSet<InvitationContainer>();
+
+            for (Invitation invitation : unreadInvitations) {
+                readInvitations.add(invitation.getContainerCopy().setStatus(Invitation.READ));
+            }
 
-        this.updateInvitations(readInvitations);
+            this.updateInvitations(readInvitations);
+        } finally {
+            this.unlockAfterModification();
+        }
     }
 
     /*
@@ -966,8 +1312,8 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#removeEvent(long)
      */
     @Override
-    public synchronized void removeEvent(long id) {
-        Set<Long> singleton = new HashSet<Long>();
+    public void removeEvent(long id) {
+        LongSet singleton = new LongSet();
         singleton.add(id);
         this.removeEvents(singleton);
     }
@@ -977,26 +1323,27 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#removeEvents(java.util.Set)
      */
     @Override
-    public synchronized void removeEvents(Set<Long> ids) {
-        boolean isListModified = false;
-
-        for (long id : ids) {
-            if (mEventIds.contains(id)) {
-                // Remove id from sets
-                mEventIds.remove(id);
-
-                // Remove instance from array
-                mEventInstances.remove(id);
-
-                isListModified = true;
-            }
-        }
-
-        // Notify listeners if needed
-        if (isListModified) {
-            for (CacheListener l : mListeners) {
-                l.onEventListUpdate();
+    public void removeEvents(Set<Long> ids) {
+        this.lockForModification();
+        try {
+            for (long id : ids) {
+                if (mEventIds.contains(id)) {
+                    // Remove id from sets
+                    mEventIds.remove(id);
+
+                    // Remove instance from array
+                    mEventInstances.remove(id);
+                    mMyEventIds.remove(id);
+                    mParticipatingEventIds.remove(id);
+                    mLiveEventIds.remove(id);
+                    mLifecycleScheduler.cancel(id);
+                    mEventPositions.remove(id);
+
+                    mPendingDelta.getEventChanges().removed(id);
+                }
             }
+        } finally {
+            this.unlockAfterModification();
         }
     }
 
@@ -1005,8 +1352,8 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#removeFilter(long)
      */
     @Override
-    public synchronized void removeFilter(long id) {
-        Set<Long> singleton = new HashSet<Long>();
+    public void removeFilter(long id) {
+        LongSet singleton = new LongSet();
         singleton.add(id);
         this.removeFilters(singleton);
     }
@@ -1016,27 +1363,24 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#removeFilters(java.util.Set)
      */
     @Override
-    public synchronized void removeFilters(Set<Long> ids) {
-        boolean isListModified = false;
-
-        for (long id : ids) {
-            // Check that we are not trying to remove the default filter
-            if (mFilterIds.contains(id) && (id != Filter.DEFAULT_FILTER_ID)) {
-                // Remove id from sets
-                mFilterIds.remove(id);
+    public void removeFilters(Set<Long> ids) {
+        this.lockForModification();
+        try {
+            for (long id : ids) {
+                // Check that we are not trying to remove the default filter
+                if (mFilterIds.contains(id) && (id != Filter.DEFAULT_FILTER_ID)) {
+                    // Remove id from sets
+                    mFilterIds.remove(id);
 
-                // Remove instance from array
-                mFilterInstances.remove(id);
+                    // Remove instance from array
+                    mFilterInstances.remove(id);
+                    mActiveFilterIds.remove(id);
 
-                isListModified = true;
-            }
-        }
-
-        // Notify listeners if needed
-        if (isListModified) {
-            for (CacheListener l : mListeners) {
-                l.onFilterListUpdate();
+                    mPendingDelta.getFilterChanges().removed(id);
+                }
             }
+        } finally {
+            this.unlockAfterModification();
         }
     }
 
@@ -1046,8 +1390,8 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void removeFriend(long id, final NetworkRequestCallback<Void> callback) {
-        Set<Long> singleton = new HashSet<Long>();
+    public void removeFriend(long id, final NetworkRequestCallback<Void> callback) {
+        LongSet singleton = new LongSet();
         singleton.add(id);
         this.removeFriends(singleton, callback);
     }
@@ -1058,38 +1402,26 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void removeFriends(Set<Long> ids, final NetworkRequestCallback<Void> callback) {
-        boolean isListModified = false;
-        for (long id : ids) {
-            if (mFriendIds.contains(id)) {
-                new AsyncTask<Long, Void, Void>() {
-                    @Override
-                    protected Void doInBackground(Long... params) {
-                        try {
-                            ServiceContainer.getNetworkClient().removeFriend(params[0]);
-                            callback.onSuccess(null);
-                        } catch (SmartMapClientException e) {
-                            callback.onFailure(e);
-                        }
-                        return null;
-                    }
-                }.execute(id);
-
-                // Remove id from sets
-                mFriendIds.remove(id);
-                mUserInstances.remove(id);
-                // Remove instance from array
-                mUserInstances.remove(id);
-
-                isListModified = true;
-            }
-        }
-
-        // Notify listeners if needed
-        if (isListModified) {
-            for (CacheListener l : mListeners) {
-                l.onUserListUpdate();
+    public void removeFriends(Set<Long> ids, final NetworkRequestCallback<Void> callback) {
+        this.lockForModification();
+        try {
+            for (long id : ids) {
+                if (mFriendIds.contains(id)) {
+                    ServiceContainer.getAsyncNetworkClient().removeFriend(id, callback);
+
+                    // Remove id from sets
+                    mFriendIds.remove(id);
+                    mUserInstances.remove(id);
+                    // Remove instance from array
+                    mUserInstances.remove(id);
+                    mFriendPositions.remove(id);
+                    ServiceContainer.getImageStore().remove(id);
+
+                    mPendingDelta.getUserChanges().removed(id);
+                }
             }
+        } finally {
+            this.unlockAfterModification();
         }
     }
 
@@ -1100,7 +1432,7 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.cache.Event, ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void removeParticipantsFromEvent(Set<Long> ids, Event event,
+    public void removeParticipantsFromEvent(Set<Long> ids, Event event,
         final NetworkRequestCallback<Void> callback) {
         Set<Long> newParticipantIds = event.getContainerCopy().getParticipantIds();
         newParticipantIds.removeAll(ids);
@@ -1108,23 +1440,28 @@ public class Cache implements CacheInterface {
         final EventContainer newImmutableEvent =
             event.getContainerCopy().setParticipantIds(newParticipantIds);
 
-        new AsyncTask<Void, Void, Void>() {
+        if (this.mustQueueChanges()) {
+            this.queueMutation(Mutation.leaveEvent(newImmutableEvent.getId()));
+            this.updateEvent(newImmutableEvent);
+            if (callback != null) {
+                callback.onSuccess(null);
+            }
+            return;
+        }
+        final NetworkRequestCallback<Void> singleCallback = new SingleCallback<Void>(callback);
+        this.submitInteractive(new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public Void call() {
                 try {
                     ServiceContainer.getNetworkClient().leaveEvent(newImmutableEvent.getId());
                     ServiceContainer.getCache().updateEvent(newImmutableEvent);
-                    if (callback != null) {
-                        callback.onSuccess(null);
-                    }
+                    singleCallback.onSuccess(null);
                 } catch (SmartMapClientException e) {
-                    if (callback != null) {
-                        callback.onFailure(e);
-                    }
+                    singleCallback.onFailure(e);
                 }
                 return null;
             }
-        }.execute();
+        }, singleCallback);
     }
 
     /*
@@ -1132,23 +1469,17 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#removeUsers(java.util.Set)
      */
     @Override
-    public synchronized void removeUsers(Set<Long> userIds) {
-        boolean isListModified = false;
-
-        for (long id : userIds) {
-            if (this.getUser(id) != null) {
-                mUserInstances.remove(id);
-                mUserIds.remove(id);
-                mFriendIds.remove(id);
-                isListModified = true;
-            }
-        }
+    public void removeUsers(Set<Long> userIds) {
+        this.removeUsers(userIds, false);
+    }
 
-        if (isListModified) {
-            for (CacheListener listener : mListeners) {
-                listener.onUserListUpdate();
-            }
-        }
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.CacheInterface#replayMutations(ch.epfl.smartmap.servercom.SmartMapClient)
+     */
+    @Override
+    public int replayMutations(SmartMapClient networkClient) throws SmartMapClientException {
+        return mMutationQueue.replay(networkClient);
     }
 
     /*
@@ -1159,14 +1490,36 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void setBlockedStatus(final UserContainer user,
+    public void setBlockedStatus(final UserContainer user,
         final NetworkRequestCallback<Void> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        if (this.mustQueueChanges()) {
+            if (user.isBlocked() == User.BlockStatus.UNBLOCKED) {
+                this.queueMutation(Mutation.unblockFriend(user.getId()));
+            } else {
+                this.queueMutation(Mutation.blockFriend(user.getId()));
+            }
+            this.updateUser(user);
+            if (callback != null) {
+                callback.onSuccess(null);
+            }
+            return;
+        }
+        final NetworkRequestCallback<Void> singleCallback = new SingleCallback<Void>(callback);
+        this.submitInteractive(new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
-                return Cache.this.setBlockedStatusTaskInBackground(user, callback);
+            public Void call() {
+                return Cache.this.setBlockedStatusTaskInBackground(user, singleCallback);
             }
-        }.execute();
+        }, singleCallback);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.CacheInterface#setSyncParallelism(int)
+     */
+    @Override
+    public void setSyncParallelism(int parallelism) {
+        ServiceContainer.getNetworkExecutor().setBackgroundThreads(parallelism);
     }
 
     /*
@@ -1177,110 +1530,8 @@ public class Cache implements CacheInterface {
      * ch.epfl.smartmap.callbacks.NetworkRequestCallback)
      */
     @Override
-    public synchronized void updateFromNetwork(final SmartMapClient networkClient)
-        throws SmartMapClientException {
-
-        // Get settings
-        SettingsManager settingsManager = ServiceContainer.getSettingsManager();
-
-        // Sets with new values (avoid calling multiple times the
-        // listeners)
-        Set<UserContainer> updatedUsers = new HashSet<UserContainer>();
-        Set<EventContainer> updatedEvents = new HashSet<EventContainer>();
-
-        // Update self informations
-        long myId = settingsManager.getUserId();
-        UserContainer self = networkClient.getUserInfo(myId);
-        if (self != null) {
-            self.setImage(networkClient.getProfilePicture(myId));
-            updatedUsers.add(self);
-        }
-
-        // Fetch friend ids
-        Set<Long> friendIds = new HashSet<Long>(networkClient.getFriendsIds());
-        Set<Long> friendPosIds = new HashSet<Long>();
-        // Fetch friends via listFriendPos
-        Set<UserContainer> listFriendPos = new HashSet<UserContainer>(networkClient.listFriendsPos());
-
-        for (UserContainer positionInfos : listFriendPos) {
-            // get id
-            long id = positionInfos.getId();
-            // Get other online info
-            UserContainer onlineInfos = networkClient.getUserInfo(id);
-            // Get picture
-            Bitmap image = networkClient.getProfilePicture(id);
-            // Put all inside container
-            onlineInfos.setLocation(positionInfos.getLocation());
-            onlineInfos.setLocationString(positionInfos.getLocationString());
-            onlineInfos.setImage(image);
-
-            // Put friend in Set
-            friendPosIds.add(id);
-            updatedUsers.add(onlineInfos);
-        }
-
-        // For friends that blocked us or that we blocked, try to find a value
-        // in cache or database
-        Set<Long> friendThatBlockedUsIds = friendIds;
-        friendThatBlockedUsIds.removeAll(friendPosIds);
-        for (long id : friendThatBlockedUsIds) {
-            User cached = Cache.this.getUser(id);
-            if (cached != null) {
-                updatedUsers.add(cached.getContainerCopy());
-            } else {
-                UserContainer friend = ServiceContainer.getDatabase().getUser(id);
-                if (friend != null) {
-                    UserContainer onlineValues = networkClient.getUserInfo(id);
-                    friend.setName(onlineValues.getName());
-                } else {
-                    friend = networkClient.getUserInfo(id);
-                }
-                Bitmap image = networkClient.getProfilePicture(id);
-                friend.setImage(image);
-                friend.setFriendship(User.FRIEND);
-                updatedUsers.add(friend);
-            }
-        }
-
-        // Get near Events
-        Set<Long> nearEventIds =
-            new HashSet<Long>(networkClient.getPublicEvents(settingsManager.getLocation().getLatitude(),
-                settingsManager.getLocation().getLongitude(), settingsManager.getNearEventsMaxDistance()));
-
-        // Update all cached event if needed
-        for (long id : mEventIds) {
-            // Get event infos
-            EventContainer onlineInfos = networkClient.getEventInfo(id);
-            // Check if event needs to be kept
-            if (nearEventIds.contains(id) || (onlineInfos.getCreatorContainer().getId() == myId)
-                || onlineInfos.getParticipantIds().contains(myId)) {
-                // if so, put it in Set
-                updatedEvents.add(onlineInfos);
-                updatedUsers.add(onlineInfos.getCreatorContainer());
-            }
-        }
-
-        // Update users from invitations
-        for (Invitation invitation : Cache.this.getAllInvitations()) {
-            if (invitation.getType() == Invitation.FRIEND_INVITATION) {
-                // get id
-                long id = invitation.getUser().getId();
-                // Get online info
-                UserContainer onlineInfos = networkClient.getUserInfo(id);
-                // Get picture
-                Bitmap image = networkClient.getProfilePicture(id);
-                // Put all inside container
-                onlineInfos.setImage(image);
-
-                // Put friend in Set
-                updatedUsers.add(onlineInfos);
-            }
-        }
-
-        // Put new values in cache
-        Cache.this.keepOnlyTheseUsers(updatedUsers);
-        Cache.this.keepOnlyTheseEvents(updatedEvents);
-
+    public void updateFromNetwork(SmartMapClient networkClient) throws SmartMapClientException {
+        mSyncEngine.sync(networkClient);
     }
 
     /*
@@ -1288,14 +1539,14 @@ public class Cache implements CacheInterface {
      * @see ch.epfl.smartmap.cache.CacheInterface#updateUserInfos(long)
      */
     @Override
-    public synchronized void updateUserInfos(long id) {
-        new AsyncTask<Long, Void, Void>() {
+    public void updateUserInfos(final long id) {
+        ServiceContainer.getNetworkExecutor().submit(Priority.BACKGROUND, new Callable<Void>() {
             @Override
-            protected Void doInBackground(Long... params) {
+            public Void call() {
                 try {
-                    UserContainer userInfos = ServiceContainer.getNetworkClient().getUserInfo(params[0]);
+                    UserContainer userInfos = ServiceContainer.getNetworkClient().getUserInfo(id);
                     if ((userInfos != null) && (ServiceContainer.getNetworkClient() != null)) {
-                        userInfos.setImage(ServiceContainer.getNetworkClient().getProfilePicture(params[0]));
+                        userInfos.setImage(ServiceContainer.getNetworkClient().getProfilePicture(id));
                     }
                     Cache.this.updateUser(userInfos);
                 } catch (SmartMapClientException e) {
@@ -1303,7 +1554,7 @@ public class Cache implements CacheInterface {
                 }
                 return null;
             }
-        }.execute(id);
+        }, null);
     }
 
     /**
@@ -1313,7 +1564,7 @@ public class Cache implements CacheInterface {
      * @param invitation
      * @throws SmartMapClientException
      */
-    private synchronized void acceptFriendInvitation(Invitation invitation) throws SmartMapClientException {
+    private void acceptFriendInvitation(Invitation invitation) throws SmartMapClientException {
         UserContainer newFriend =
             ServiceContainer.getNetworkClient().acceptInvitation(invitation.getUser().getId());
         ServiceContainer.getDatabase().deletePendingFriend(invitation.getUser().getId());
@@ -1321,6 +1572,42 @@ public class Cache implements CacheInterface {
         this.putUser(newFriend);
     }
 
+    /**
+     * Accepts an invitation in the Cache at once, and records it to be sent when the server can be reached
+     * 
+     * @param invitation
+     *            the invitation to accept
+     * @param callback
+     *            the callback to network request
+     */
+    private void acceptInvitationOffline(Invitation invitation, NetworkRequestCallback<Void> callback) {
+        switch (invitation.getType()) {
+            case Invitation.FRIEND_INVITATION:
+                long friendId = invitation.getUser().getId();
+                this.queueMutation(Mutation.acceptInvitation(friendId));
+                ServiceContainer.getDatabase().deletePendingFriend(friendId);
+                this.putUser(invitation.getUser().getContainerCopy().setFriendship(User.FRIEND));
+                break;
+            case Invitation.EVENT_INVITATION:
+                Event event = ((GenericInvitation) invitation).getEvent();
+                this.queueMutation(Mutation.joinEvent(event.getId()));
+                EventContainer joinedEvent = event.getContainerCopy();
+                Set<Long> participantIds = joinedEvent.getParticipantIds();
+                participantIds.add(mSelfId);
+                this.putEvent(joinedEvent.setParticipantIds(participantIds));
+                break;
+            default:
+                assert false;
+                break;
+        }
+
+        this.updateInvitation(invitation.getContainerCopy().setStatus(Invitation.ACCEPTED));
+
+        if (callback != null) {
+            callback.onSuccess(null);
+        }
+    }
+
     /**
      * Body of doInBackground in acceptInvitation asyncTask
      * 
@@ -1357,6 +1644,59 @@ public class Cache implements CacheInterface {
         return null;
     }
 
+    /**
+     * Called from the lifecycle scheduler's thread. Updates the live status of the Events that started or
+     * ended, and removes those that expired.
+     *
+     * @param startedIds
+     * @param endedIds
+     * @param expiredIds
+     */
+    private void applyLifecycleUpdate(Set<Long> startedIds, Set<Long> endedIds, Set<Long> expiredIds) {
+        this.lockForModification();
+        try {
+            LongSet changedIds = new LongSet(startedIds);
+            changedIds.addAll(endedIds);
+            for (long id : changedIds.toLongArray()) {
+                Event event = mEventInstances.get(id);
+                if (event != null) {
+                    this.indexLiveStatus(event);
+                }
+            }
+
+            // Dates may have been modified since the scheduler woke up, check again
+            long now = System.currentTimeMillis();
+            LongSet idsToRemove = new LongSet();
+            for (long id : expiredIds) {
+                Event event = mEventInstances.get(id);
+                if ((event != null)
+                    && ((event.getEndDate().getTimeInMillis() + EXPIRED_EVENT_RETENTION) <= now)) {
+                    idsToRemove.add(id);
+                }
+            }
+            this.removeEvents(idsToRemove);
+        } finally {
+            this.unlockAfterModification();
+        }
+    }
+
+    /**
+     * Replaces the Users and Events of the Cache with the ones fetched by the {@code NetworkSyncEngine}, in
+     * a single modification so that readers never see a partial update.
+     *
+     * @param users
+     * @param events
+     */
+    void applyNetworkUpdate(Set<UserContainer> users, Set<EventContainer> events) {
+        this.lockForModification();
+        try {
+            this.keepOnlyTheseUsers(users);
+            this.keepOnlyTheseEvents(events);
+        } finally {
+            this.unlockAfterModification();
+        }
+    }
+
     /**
      * Body of doInBackground in createEvent asyncTask
      * 
@@ -1387,6 +1727,60 @@ public class Cache implements CacheInterface {
         return null;
     }
 
+    /**
+     * Gives the queued deltas to the database writer and to the listeners, in the order of their
+     * modifications. If another thread is already delivering, it also delivers the deltas queued by this
+     * one. A listener modifying the Cache gets here again, its delta is then delivered by the outer loop.
+     */
+    private void deliverDeltas() {
+        if (mDeliveryLock.isHeldByCurrentThread()) {
+            return;
+        }
+        // Checked again after unlocking, in case a delta was queued while the lock was being released
+        while (!mUndeliveredDeltas.isEmpty() && mDeliveryLock.tryLock()) {
+            try {
+                CacheDelta delta = mUndeliveredDeltas.poll();
+                while (delta != null) {
+                    mDatabaseWriter.record(delta);
+                    this.notifyListeners(delta);
+                    delta = mUndeliveredDeltas.poll();
+                }
+            } finally {
+                mDeliveryLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Declines an invitation in the Cache at once, and records it to be sent when the server can be reached
+     * 
+     * @param invitation
+     *            the invitation to decline
+     * @param callback
+     *            the callback to network request
+     */
+    private void declineInvitationOffline(Invitation invitation, NetworkRequestCallback<Void> callback) {
+        switch (invitation.getType()) {
+            case Invitation.FRIEND_INVITATION:
+                long friendId = invitation.getUser().getId();
+                this.queueMutation(Mutation.declineInvitation(friendId));
+                ServiceContainer.getDatabase().deletePendingFriend(friendId);
+                break;
+            case Invitation.EVENT_INVITATION:
+                // No interaction needed here
+                break;
+            default:
+                assert false;
+                break;
+        }
+
+        this.updateInvitation(invitation.getContainerCopy().setStatus(Invitation.DECLINED));
+
+        if (callback != null) {
+            callback.onSuccess(null);
+        }
+    }
+
     /**
      * Body of doInBackground in declineInvitation asyncTask
      * 
@@ -1423,17 +1817,202 @@ public class Cache implements CacheInterface {
         return null;
     }
 
-    private synchronized void keepOnlyTheseEvents(Set<EventContainer> events) {
-        mEventIds.clear();
-        mEventInstances.clear();
-        this.putEvents(events);
+    private void keepOnlyTheseEvents(Set<EventContainer> events) {
+        this.lockForModification();
+        try {
+            // Remove events that are not in the set anymore, and update the others. Events created offline
+            // are not on the server yet.
+            LongSet idsToRemove = new LongSet();
+            for (long id : mEventIds.toLongArray()) {
+                if (!Mutation.isLocalId(id)) {
+                    idsToRemove.add(id);
+                }
+            }
+            for (EventContainer event : events) {
+                idsToRemove.remove(event.getId());
+            }
+            this.removeEvents(idsToRemove);
+            this.putEvents(events);
+        } finally {
+            this.unlockAfterModification();
+        }
+    }
+
+    private void keepOnlyTheseUsers(Set<UserContainer> users) {
+        this.lockForModification();
+        try {
+            // Remove users that are not in the set anymore, and update the others
+            LongSet idsToRemove = new LongSet(mUserIds);
+            for (UserContainer user : users) {
+                idsToRemove.remove(user.getId());
+            }
+            this.removeUsers(idsToRemove);
+            // Ids without live instance are not removed by removeUsers
+            mUserIds.removeAll(idsToRemove);
+            mFriendIds.removeAll(idsToRemove);
+            this.putUsers(users);
+        } finally {
+            this.unlockAfterModification();
+        }
+    }
+
+    /**
+     * Puts the Event in the category indexes it belongs to, and removes it from the others
+     * 
+     * @param event
+     */
+    private void indexCategories(Event event) {
+        updateIndex(mMyEventIds, event.getId(), event.isOwn());
+        updateIndex(mParticipatingEventIds, event.getId(), event.isGoing());
+        this.indexLiveStatus(event);
+        mLifecycleScheduler.schedule(event.getId(), event.getStartDate().getTimeInMillis(), event
+            .getEndDate().getTimeInMillis());
     }
 
-    private synchronized void keepOnlyTheseUsers(Set<UserContainer> users) {
-        mFriendIds.clear();
-        mUserIds.clear();
-        mUserInstances.clear();
-        this.putUsers(users);
+    /**
+     * Puts the Filter in the active index if it is active, removes it otherwise
+     * 
+     * @param filter
+     */
+    private void indexCategories(Filter filter) {
+        updateIndex(mActiveFilterIds, filter.getId(), filter.isActive());
+    }
+
+    /**
+     * Puts the Event in the live index if it is live, removes it otherwise. A change of status is recorded
+     * in the pending {@code CacheDelta}.
+     * 
+     * @param event
+     */
+    private void indexLiveStatus(Event event) {
+        boolean isLive = event.isLive();
+        if (isLive != mLiveEventIds.contains(event.getId())) {
+            updateIndex(mLiveEventIds, event.getId(), isLive);
+            mPendingDelta.liveStatusChanged(event.getId(), isLive);
+        }
+    }
+
+    /**
+     * Puts the position of an Event in the spatial index, or moves it if it was already indexed
+     * 
+     * @param event
+     */
+    private void indexPosition(Event event) {
+        LatLng position = event.getLatLng();
+        mEventPositions.put(event.getId(), position.latitude, position.longitude);
+    }
+
+    /**
+     * Puts the position of a Friend in the spatial index, only Friends are localisable
+     * 
+     * @param user
+     */
+    private void indexPosition(User user) {
+        if (user.getFriendship() == User.FRIEND) {
+            LatLng position = user.getLatLng();
+            mFriendPositions.put(user.getId(), position.latitude, position.longitude);
+        } else {
+            mFriendPositions.remove(user.getId());
+        }
+    }
+
+    /**
+     * Takes the write lock and starts recording changes in a new {@code CacheDelta}, unless a modification
+     * is already in progress in which case changes are added to the current one. Must always be followed by
+     * {@code unlockAfterModification}.
+     */
+    private void lockForModification() {
+        long start = mWriteWaitTimer.start();
+        mLock.writeLock().lock();
+        mWriteWaitTimer.stop(start, CONTENDED_LOCK_NANOS);
+        if (mModificationDepth == 0) {
+            mPendingDelta = new CacheDelta();
+        }
+        mModificationDepth++;
+    }
+
+    /**
+     * Takes the read lock, and records the wait if it was held by a modification in another thread
+     */
+    private void lockForReading() {
+        long start = mReadWaitTimer.start();
+        mLock.readLock().lock();
+        mReadWaitTimer.stop(start, CONTENDED_LOCK_NANOS);
+    }
+
+    /**
+     * Releases the write lock, and if this ends the outermost modification, delivers the recorded changes
+     * once the lock is released, so that listeners and the database writer do not block readers.
+     */
+    private void unlockAfterModification() {
+        boolean isOutermost = false;
+        try {
+            mModificationDepth--;
+            if (mModificationDepth == 0) {
+                isOutermost = true;
+                CacheDelta delta = mPendingDelta;
+                mPendingDelta = null;
+                if (!delta.isEmpty()) {
+                    mGeneration++;
+                    delta.setGeneration(mGeneration);
+                    mUndeliveredDeltas.add(delta);
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        if (isOutermost) {
+            this.deliverDeltas();
+        }
+    }
+
+    /**
+     * @return whether changes must be recorded to be sent later: when offline, when the server is
+     *         unavailable, or when older changes were not sent yet, so that they are applied in order
+     */
+    private boolean mustQueueChanges() {
+        return ServiceContainer.getSettingsManager().isOffline()
+            || !ServiceContainer.getNetworkPolicy().isServerAvailable() || !mMutationQueue.isEmpty();
+    }
+
+    /**
+     * Calls each listener once for each type of item that changed and once if some Events started or
+     * ended, and then gives it the whole delta.
+     * 
+     * @param delta
+     *            changes made during the modification
+     */
+    private void notifyListeners(CacheDelta delta) {
+        if (delta.isEmpty()) {
+            return;
+        }
+
+        boolean reset = delta.isReset();
+        long notificationStart = mListenersTimer.start();
+        mFanOutHistogram.record(mListeners.size());
+        for (RegisteredListener registered : mListeners) {
+            CacheListener listener = registered.mListener;
+            long listenerStart = mListenersTimer.start();
+            if (reset || !delta.getEventChanges().isEmpty()) {
+                listener.onEventListUpdate();
+            }
+            if (reset || !delta.getUserChanges().isEmpty()) {
+                listener.onUserListUpdate();
+            }
+            if (reset || !delta.getFilterChanges().isEmpty()) {
+                listener.onFilterListUpdate();
+            }
+            if (reset || !delta.getInvitationChanges().isEmpty()) {
+                listener.onInvitationListUpdate();
+            }
+            if (!delta.getStartedEventIds().isEmpty() || !delta.getEndedEventIds().isEmpty()) {
+                listener.onLiveEventsUpdate(delta.getStartedEventIds(), delta.getEndedEventIds());
+            }
+            listener.onCacheUpdate(delta);
+            // Slow listeners delay the notifications of the next modifications
+            registered.mTimer.stop(listenerStart);
+        }
+        mListenersTimer.stop(notificationStart);
     }
 
     /**
@@ -1475,17 +2054,19 @@ public class Cache implements CacheInterface {
                             invitationsToAdd.add(invitationInfo);
                         }
                         // Acknowledge new friend
-                        new AsyncTask<Long, Void, Void>() {
-                            @Override
-                            protected Void doInBackground(Long... params) {
-                                try {
-                                    ServiceContainer.getNetworkClient().ackAcceptedInvitation(params[0]);
-                                } catch (SmartMapClientException e) {
-                                    Log.e(TAG, "Error while acknowledging accpeted invitation : " + e);
+                        final long userId = invitationInfo.getUserId();
+                        ServiceContainer.getNetworkExecutor().submit(Priority.BACKGROUND,
+                            new Callable<Void>() {
+                                @Override
+                                public Void call() {
+                                    try {
+                                        ServiceContainer.getNetworkClient().ackAcceptedInvitation(userId);
+                                    } catch (SmartMapClientException e) {
+                                        Log.e(TAG, "Error while acknowledging accpeted invitation : " + e);
+                                    }
+                                    return null;
                                 }
-                                return null;
-                            }
-                        }.execute(invitationInfo.getUserId());
+                            }, null);
                         break;
                     case Invitation.EVENT_INVITATION:
                         // Check that it contains all informations
@@ -1494,17 +2075,19 @@ public class Cache implements CacheInterface {
                             eventsToAdd.add(invitationInfo.getEventInfos());
                         }
                         // Acknowledge event invitation
-                        new AsyncTask<Long, Void, Void>() {
-                            @Override
-                            protected Void doInBackground(Long... params) {
-                                try {
-                                    ServiceContainer.getNetworkClient().ackEventInvitation(params[0]);
-                                } catch (SmartMapClientException e) {
-                                    Log.e(TAG, "Error while acknowledging event invitation : " + e);
+                        final long eventId = invitationInfo.getEventId();
+                        ServiceContainer.getNetworkExecutor().submit(Priority.BACKGROUND,
+                            new Callable<Void>() {
+                                @Override
+                                public Void call() {
+                                    try {
+                                        ServiceContainer.getNetworkClient().ackEventInvitation(eventId);
+                                    } catch (SmartMapClientException e) {
+                                        Log.e(TAG, "Error while acknowledging event invitation : " + e);
+                                    }
+                                    return null;
                                 }
-                                return null;
-                            }
-                        }.execute(invitationInfo.getEventId());
+                            }, null);
                         break;
                     default:
                         assert false;
@@ -1514,6 +2097,125 @@ public class Cache implements CacheInterface {
         }
     }
 
+    /**
+     * Records a change to be sent later, and starts sending the recorded changes if the server can be
+     * reached
+     * 
+     * @param mutation
+     */
+    private void queueMutation(Mutation mutation) {
+        mMutationQueue.add(mutation);
+        if (!ServiceContainer.getSettingsManager().isOffline()
+            && ServiceContainer.getNetworkPolicy().isServerAvailable()) {
+            ServiceContainer.getNetworkExecutor().submit(Priority.BACKGROUND, new Callable<Integer>() {
+                @Override
+                public Integer call() throws SmartMapClientException {
+                    return Cache.this.replayMutations(ServiceContainer.getNetworkClient());
+                }
+            }, null);
+        }
+    }
+
+    /**
+     * @param userIds
+     * @param keepPictures
+     *            {@code true} if the users are put again with another type, so that they keep their picture
+     */
+    private void removeUsers(Set<Long> userIds, boolean keepPictures) {
+        this.lockForModification();
+        try {
+            for (long id : userIds) {
+                if (this.getUser(id) != null) {
+                    mUserInstances.remove(id);
+                    mUserIds.remove(id);
+                    mFriendIds.remove(id);
+                    mFriendPositions.remove(id);
+                    if (!keepPictures) {
+                        // Otherwise the store would keep a handle and a time for every user ever seen
+                        ServiceContainer.getImageStore().remove(id);
+                    }
+                    mPendingDelta.getUserChanges().removed(id);
+                }
+            }
+        } finally {
+            this.unlockAfterModification();
+        }
+    }
+
+    /**
+     * Called when the server processed the creation of an Event made offline. Replaces its local id by the
+     * one given by the server, or removes it if the server refused it.
+     * 
+     * @param localId
+     *            id given to the Event when it was created
+     * @param id
+     *            id given by the server, {@code Mutation.NO_ID} if it was refused
+     */
+    void replaceLocalEvent(long localId, long id) {
+        this.lockForModification();
+        try {
+            Event event = mEventInstances.get(localId);
+            if (event != null) {
+                EventContainer createdEvent = event.getContainerCopy();
+                this.removeEvent(localId);
+                if (id != Mutation.NO_ID) {
+                    this.putEvent(createdEvent.setId(id));
+                }
+            }
+        } finally {
+            this.unlockAfterModification();
+        }
+    }
+
+    /**
+     * Called when the server refused to block or unblock a user offline. Gives the User back the status it
+     * had before.
+     * 
+     * @param id
+     *            id of the User
+     * @param status
+     *            status before the refused change
+     */
+    void restoreBlockedStatus(long id, User.BlockStatus status) {
+        this.lockForModification();
+        try {
+            User user = mUserInstances.get(id);
+            if (user != null) {
+                this.updateUser(user.getContainerCopy().setBlocked(status));
+            }
+        } finally {
+            this.unlockAfterModification();
+        }
+    }
+
+    /**
+     * Called when the server refused to join or leave an Event offline. Puts the user back in the
+     * participants, or removes them, as before the refused change.
+     * 
+     * @param eventId
+     *            id of the Event
+     * @param isParticipating
+     *            whether the user participated before the refused change
+     */
+    void restoreParticipation(long eventId, boolean isParticipating) {
+        this.lockForModification();
+        try {
+            Event event = mEventInstances.get(eventId);
+            if (event != null) {
+                EventContainer restoredEvent = event.getContainerCopy();
+                Set<Long> participantIds = restoredEvent.getParticipantIds();
+                if (isParticipating) {
+                    participantIds.add(mSelfId);
+                } else {
+                    participantIds.remove(mSelfId);
+                }
+                this.updateEvent(restoredEvent.setParticipantIds(participantIds));
+            }
+        } finally {
+            this.unlockAfterModification();
+        }
+    }
+
     /**
      * Body of doInBackground in setBlockedStatus asyncTask
      * 
@@ -1525,19 +2227,12 @@ public class Cache implements CacheInterface {
      */
     private Void setBlockedStatusTaskInBackground(UserContainer user, NetworkRequestCallback<Void> callback) {
         try {
-            boolean changed = false;
             if (user.isBlocked() == User.BlockStatus.UNBLOCKED) {
                 ServiceContainer.getNetworkClient().unblockFriend(user.getId());
-                changed = Cache.this.updateUser(user);
             } else {
                 ServiceContainer.getNetworkClient().blockFriend(user.getId());
-                changed = Cache.this.updateUser(user);
-            }
-            if (changed) {
-                for (CacheListener listener : mListeners) {
-                    listener.onUserListUpdate();
-                }
             }
+            Cache.this.updateUser(user);
             if (callback != null) {
                 callback.onSuccess(null);
             }
@@ -1549,75 +2244,116 @@ public class Cache implements CacheInterface {
         return null;
     }
 
-    private synchronized boolean updateEvent(EventContainer eventInfo) {
+    /**
+     * Runs a task the user is waiting for in the interactive lane. The task gives its result to the callback
+     * itself, the callback is only told here if the task timed out or threw an unexpected exception.
+     *
+     * @param task
+     * @param callback
+     *            the callback the task reports to
+     */
+    private void submitInteractive(Callable<Void> task, final SingleCallback<?> callback) {
+        ServiceContainer.getNetworkExecutor().submit(Priority.INTERACTIVE, task,
+            new NetworkRequestCallback<Void>() {
+                @Override
+                public void onFailure(Exception e) {
+                    Log.e(TAG, "Interactive task failed: " + e);
+                    callback.onFailure(e);
+                }
+
+                @Override
+                public void onSuccess(Void result) {
+                    // The task already told the callback
+                }
+            });
+    }
+
+    private boolean updateEvent(EventContainer eventInfo) {
         Set<EventContainer> singleton = new HashSet<EventContainer>();
         singleton.add(eventInfo);
         return this.updateEvents(singleton);
     }
 
-    private synchronized boolean updateEvents(Set<EventContainer> eventInfos) {
-        boolean isListModified = false;
-        for (EventContainer eventInfo : eventInfos) {
-            Event event = this.getEvent(eventInfo.getId());
-            if ((event != null) && event.update(eventInfo)) {
-                isListModified = true;
-            }
-        }
-
-        if (isListModified) {
-            for (CacheListener listener : mListeners) {
-                listener.onEventListUpdate();
+    private boolean updateEvents(Set<EventContainer> eventInfos) {
+        this.lockForModification();
+        try {
+            boolean isListModified = false;
+            for (EventContainer eventInfo : eventInfos) {
+                Event event = this.getEvent(eventInfo.getId());
+                if (event != null) {
+                    EventContainer before = event.getContainerCopy();
+                    boolean hasChanged = event.update(eventInfo);
+                    int changedFields = CacheDelta.changedFields(before, event.getContainerCopy());
+                    if (hasChanged || (changedFields != 0)) {
+                        this.indexCategories(event);
+                        this.indexPosition(event);
+                        mPendingDelta.getEventChanges().modified(event.getId(), changedFields);
+                        isListModified = true;
+                    }
+                }
             }
+            return isListModified;
+        } finally {
+            this.unlockAfterModification();
         }
-
-        return isListModified;
     }
 
     @SuppressWarnings("unused")
-    private synchronized boolean updateFilter(FilterContainer filterInfo) {
+    private boolean updateFilter(FilterContainer filterInfo) {
         Set<FilterContainer> singleton = new HashSet<FilterContainer>();
         singleton.add(filterInfo);
         return this.updateFilters(singleton);
     }
 
-    private synchronized boolean updateFilters(Set<FilterContainer> filterInfos) {
-        boolean isListModified = false;
-
-        for (FilterContainer filterInfo : filterInfos) {
-            Filter filter = this.getFilter(filterInfo.getId());
-            if ((filter != null) && filter.update(filterInfo)) {
-                isListModified = true;
-            }
-        }
-
-        if (isListModified) {
-            for (CacheListener listener : mListeners) {
-                listener.onFilterListUpdate();
+    private boolean updateFilters(Set<FilterContainer> filterInfos) {
+        this.lockForModification();
+        try {
+            boolean isListModified = false;
+            for (FilterContainer filterInfo : filterInfos) {
+                Filter filter = this.getFilter(filterInfo.getId());
+                if (filter != null) {
+                    FilterContainer before = filter.getContainerCopy();
+                    boolean hasChanged = filter.update(filterInfo);
+                    int changedFields = CacheDelta.changedFields(before, filter.getContainerCopy());
+                    if (hasChanged || (changedFields != 0)) {
+                        this.indexCategories(filter);
+                        mPendingDelta.getFilterChanges().modified(filter.getId(), changedFields);
+                        isListModified = true;
+                    }
+                }
             }
+            return isListModified;
+        } finally {
+            this.unlockAfterModification();
         }
-
-        return isListModified;
     }
 
-    private synchronized boolean updateInvitation(InvitationContainer invitation) {
+    private boolean updateInvitation(InvitationContainer invitation) {
         Set<InvitationContainer> singleton = new HashSet<InvitationContainer>();
         singleton.add(invitation);
         return this.updateInvitations(singleton);
     }
 
-    private synchronized boolean updateInvitations(Set<InvitationContainer> invitations) {
-        boolean isListModified = false;
-        for (InvitationContainer invitation : invitations) {
-            isListModified = isListModified || this.getInvitation(invitation.getId()).update(invitation);
-        }
-
-        if (isListModified) {
-            for (CacheListener listener : mListeners) {
-                listener.onInvitationListUpdate();
+    private boolean updateInvitations(Set<InvitationContainer> invitations) {
+        this.lockForModification();
+        try {
+            boolean isListModified = false;
+            for (InvitationContainer invitationInfo : invitations) {
+                Invitation invitation = this.getInvitation(invitationInfo.getId());
+                if (invitation != null) {
+                    InvitationContainer before = invitation.getContainerCopy();
+                    boolean hasChanged = invitation.update(invitationInfo);
+                    int changedFields = CacheDelta.changedFields(before, invitation.getContainerCopy());
+                    if (hasChanged || (changedFields != 0)) {
+                        mPendingDelta.getInvitationChanges().modified(invitation.getId(), changedFields);
+                        isListModified = true;
+                    }
+                }
             }
+            return isListModified;
+        } finally {
+            this.unlockAfterModification();
         }
-
-        return isListModified;
     }
 
     /**
@@ -1625,7 +2361,7 @@ public class Cache implements CacheInterface {
      * 
      * @param userInfo
      */
-    private synchronized boolean updateUser(UserContainer userInfo) {
+    private boolean updateUser(UserContainer userInfo) {
         Set<UserContainer> singleton = new HashSet<UserContainer>();
         singleton.add(userInfo);
         return this.updateUsers(singleton);
@@ -1636,40 +2372,117 @@ public class Cache implements CacheInterface {
      * 
      * @param userInfos
      */
-    private synchronized boolean updateUsers(Set<UserContainer> userInfos) {
-        boolean isListModified = false;
-
-        Set<Long> usersWithNewTypeIds = new HashSet<Long>();
-        Set<UserContainer> usersWithNewType = new HashSet<UserContainer>();
-
-        for (UserContainer userInfo : userInfos) {
-            User user = this.getUser(userInfo.getId());
-            if (user != null) {
-                // Check if friendship has changed
-                if (user.getFriendship() == userInfo.getFriendship()) {
-                    isListModified = user.update(userInfo) || isListModified;
-                } else {
-                    // Need to remove and add user again to change the instance
-                    // type
-                    usersWithNewTypeIds.add(userInfo.getId());
-                    usersWithNewType.add(userInfo);
+    private boolean updateUsers(Set<UserContainer> userInfos) {
+        this.lockForModification();
+        try {
+            boolean isListModified = false;
+
+            LongSet usersWithNewTypeIds = new LongSet();
+            Set<UserContainer> usersWithNewType = new HashSet<UserContainer>();
+
+            for (UserContainer userInfo : userInfos) {
+                User user = this.getUser(userInfo.getId());
+                if (user != null) {
+                    // Check if friendship has changed
+                    if (user.getFriendship() == userInfo.getFriendship()) {
+                        UserContainer before = user.getContainerCopy();
+                        boolean hasChanged = user.update(userInfo);
+                        int changedFields = CacheDelta.changedFields(before, user.getContainerCopy());
+                        if (hasChanged || (changedFields != 0)) {
+                            this.indexPosition(user);
+                            mPendingDelta.getUserChanges().modified(user.getId(), changedFields);
+                            isListModified = true;
+                        }
+                    } else {
+                        // Need to remove and add user again to change the instance
+                        // type
+                        usersWithNewTypeIds.add(userInfo.getId());
+                        usersWithNewType.add(userInfo);
+                    }
                 }
             }
+
+            // Remove and add again users with new type
+            if (!usersWithNewType.isEmpty()) {
+                this.removeUsers(usersWithNewTypeIds, true);
+                this.putUsers(usersWithNewType);
+            }
+
+            return isListModified;
+        } finally {
+            this.unlockAfterModification();
         }
+    }
 
-        // Remove and add again users with new type
-        if (!usersWithNewType.isEmpty()) {
-            this.removeUsers(usersWithNewTypeIds);
-            this.putUsers(usersWithNewType);
+    /**
+     * Adds or removes an id from an index
+     * 
+     * @param index
+     * @param id
+     * @param belongs
+     *            {@code true} if the id should be in the index
+     */
+    private static void updateIndex(LongSet index, long id, boolean belongs) {
+        if (belongs) {
+            index.add(id);
+        } else {
+            index.remove(id);
         }
+    }
 
-        if (isListModified) {
-            for (CacheListener listener : mListeners) {
-                listener.onUserListUpdate();
+    /**
+     * A listener with the timer of its class, looked up once when it is added
+     */
+    private static final class RegisteredListener {
+        private final CacheListener mListener;
+        private final MetricsRegistry.Timer mTimer;
+
+        private RegisteredListener(CacheListener listener, MetricsRegistry.Timer timer) {
+            mListener = listener;
+            mTimer = timer;
+        }
+    }
+
+    /**
+     * Forwards only the first result to a callback, so that a task that timed out does not also report its
+     * own result when it ends
+     *
+     * @param <T>
+     *            Type of result
+     */
+    private static final class SingleCallback<T> implements NetworkRequestCallback<T> {
+        private final NetworkRequestCallback<T> mCallback;
+        private final AtomicBoolean mIsCalled = new AtomicBoolean();
+
+        /**
+         * @param callback
+         *            may be {@code null}
+         */
+        private SingleCallback(NetworkRequestCallback<T> callback) {
+            mCallback = callback;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see ch.epfl.smartmap.callbacks.NetworkRequestCallback#onFailure(java.lang.Exception)
+         */
+        @Override
+        public void onFailure(Exception e) {
+            if ((mCallback != null) && mIsCalled.compareAndSet(false, true)) {
+                mCallback.onFailure(e);
             }
         }
 
-        return isListModified;
+        /*
+         * (non-Javadoc)
+         * @see ch.epfl.smartmap.callbacks.NetworkRequestCallback#onSuccess(java.lang.Object)
+         */
+        @Override
+        public void onSuccess(T result) {
+            if ((mCallback != null) && mIsCalled.compareAndSet(false, true)) {
+                mCallback.onSuccess(result);
+            }
+        }
     }
 
     /**
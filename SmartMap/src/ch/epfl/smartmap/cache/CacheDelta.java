@@ -0,0 +1,395 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.location.Location;
+
+/**
+ * Describes everything that changed in the {@code Cache} during one modification (for example one call to
+ * {@code putUsers} or {@code updateFromNetwork}). For each type of item, it gives the ids that were added,
+ * removed or modified, and for modified ones a bitmask of the fields that changed. This allows listeners to
+ * only patch what changed instead of reloading everything.
+ * <p>
+ * An id that was added and then removed in the same modification is not reported at all, and an id that was
+ * removed and then added again (which happens when the type of an {@code User} changes) is reported as
+ * modified with {@code ALL_FIELDS}.
+ *
+ * @author jfperren
+ */
+public final class CacheDelta {
+
+    // Fields common to several types
+    public static final int NAME = 1;
+    public static final int LOCATION = 1 << 1;
+    public static final int LOCATION_STRING = 1 << 2;
+
+    // User fields
+    public static final int IMAGE = 1 << 3;
+    public static final int FRIENDSHIP = 1 << 4;
+    public static final int BLOCKED = 1 << 5;
+    public static final int CONTACT = 1 << 6;
+
+    // Event fields
+    public static final int CREATOR = 1 << 7;
+    public static final int DATES = 1 << 8;
+    public static final int DESCRIPTION = 1 << 9;
+    public static final int PARTICIPANTS = 1 << 10;
+    public static final int LIVE = 1 << 15;
+
+    // Filter fields
+    public static final int IDS = 1 << 11;
+    public static final int ACTIVE = 1 << 12;
+
+    // Invitation fields
+    public static final int STATUS = 1 << 13;
+    public static final int TIMESTAMP = 1 << 14;
+
+    public static final int ALL_FIELDS = ~0;
+
+    private final ChangeSet mUserChanges;
+    private final ChangeSet mEventChanges;
+    private final ChangeSet mFilterChanges;
+    private final ChangeSet mInvitationChanges;
+
+    // Events whose live status changed
+    private final LongSet mStartedEventIds;
+    private final LongSet mEndedEventIds;
+
+    private boolean mIsReset;
+
+    // Generation of the Cache after this modification
+    private long mGeneration;
+
+    /**
+     * Constructor, creates an empty delta. Only the Cache should create and fill deltas.
+     */
+    CacheDelta() {
+        mUserChanges = new ChangeSet();
+        mEventChanges = new ChangeSet();
+        mFilterChanges = new ChangeSet();
+        mInvitationChanges = new ChangeSet();
+        mStartedEventIds = new LongSet();
+        mEndedEventIds = new LongSet();
+        mIsReset = false;
+    }
+
+    /**
+     * @return ids of {@code Event}s that were in the Cache and stopped being live, read-only
+     */
+    public Set<Long> getEndedEventIds() {
+        return Collections.unmodifiableSet(mEndedEventIds);
+    }
+
+    /**
+     * @return changes made on {@code Event}s
+     */
+    public ChangeSet getEventChanges() {
+        return mEventChanges;
+    }
+
+    /**
+     * @return changes made on {@code Filter}s
+     */
+    public ChangeSet getFilterChanges() {
+        return mFilterChanges;
+    }
+
+    /**
+     * @return changes made on {@code Invitation}s
+     */
+    public ChangeSet getInvitationChanges() {
+        return mInvitationChanges;
+    }
+
+    /**
+     * @return generation of the Cache once this delta was applied, compare it with
+     *         {@code CacheSnapshot.getGeneration} to know if a snapshot already contains these changes
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return ids of {@code Event}s that were in the Cache and became live, read-only
+     */
+    public Set<Long> getStartedEventIds() {
+        return Collections.unmodifiableSet(mStartedEventIds);
+    }
+
+    /**
+     * @return changes made on {@code User}s
+     */
+    public ChangeSet getUserChanges() {
+        return mUserChanges;
+    }
+
+    /**
+     * @return {@code true} if nothing changed
+     */
+    public boolean isEmpty() {
+        return !mIsReset && mUserChanges.isEmpty() && mEventChanges.isEmpty() && mFilterChanges.isEmpty()
+            && mInvitationChanges.isEmpty();
+    }
+
+    /**
+     * @return {@code true} if the whole content of the Cache was replaced (for example by
+     *         {@code initFromDatabase}), in which case the ids are not reported and listeners need to reload
+     *         everything
+     */
+    public boolean isReset() {
+        return mIsReset;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "CacheDelta[generation=" + mGeneration + ", reset=" + mIsReset + ", users=" + mUserChanges
+            + ", events=" + mEventChanges + ", filters=" + mFilterChanges + ", invitations="
+            + mInvitationChanges + ", started=" + mStartedEventIds + ", ended=" + mEndedEventIds + "]";
+    }
+
+    /**
+     * Records that an {@code Event} started or ended. Events added during the same modification are
+     * ignored, their live status is part of their addition.
+     *
+     * @param id
+     * @param isLive
+     *            new live status of the {@code Event}
+     */
+    void liveStatusChanged(long id, boolean isLive) {
+        if (mEventChanges.mAdded.contains(id)) {
+            return;
+        }
+        if (isLive) {
+            if (!mEndedEventIds.remove(id)) {
+                mStartedEventIds.add(id);
+            }
+        } else {
+            if (!mStartedEventIds.remove(id)) {
+                mEndedEventIds.add(id);
+            }
+        }
+        mEventChanges.modified(id, LIVE);
+    }
+
+    /**
+     * @param generation
+     *            generation of the Cache once this delta was applied
+     */
+    void setGeneration(long generation) {
+        mGeneration = generation;
+    }
+
+    /**
+     * Marks the delta as a complete reset of the Cache
+     */
+    void setReset() {
+        mIsReset = true;
+    }
+
+    /**
+     * @return a bitmask of the fields that differ between the two versions of an {@code Event}
+     */
+    static int changedFields(EventContainer before, EventContainer after) {
+        int fields = 0;
+        if (!equal(before.getName(), after.getName())) {
+            fields |= NAME;
+        }
+        if (!sameLocation(before.getLocation(), after.getLocation())) {
+            fields |= LOCATION;
+        }
+        if (!equal(before.getLocationString(), after.getLocationString())) {
+            fields |= LOCATION_STRING;
+        }
+        if (!equal(before.getDescription(), after.getDescription())) {
+            fields |= DESCRIPTION;
+        }
+        if (before.getCreatorContainer().getId() != after.getCreatorContainer().getId()) {
+            fields |= CREATOR;
+        }
+        if ((before.getStartDate().getTimeInMillis() != after.getStartDate().getTimeInMillis())
+            || (before.getEndDate().getTimeInMillis() != after.getEndDate().getTimeInMillis())) {
+            fields |= DATES;
+        }
+        if (!equal(before.getParticipantIds(), after.getParticipantIds())) {
+            fields |= PARTICIPANTS;
+        }
+        return fields;
+    }
+
+    /**
+     * @return a bitmask of the fields that differ between the two versions of a {@code Filter}
+     */
+    static int changedFields(FilterContainer before, FilterContainer after) {
+        int fields = 0;
+        if (!equal(before.getName(), after.getName())) {
+            fields |= NAME;
+        }
+        if (!equal(before.getIds(), after.getIds())) {
+            fields |= IDS;
+        }
+        if (before.isActive() != after.isActive()) {
+            fields |= ACTIVE;
+        }
+        return fields;
+    }
+
+    /**
+     * @return a bitmask of the fields that differ between the two versions of an {@code Invitation}
+     */
+    static int changedFields(InvitationContainer before, InvitationContainer after) {
+        int fields = 0;
+        if (before.getStatus() != after.getStatus()) {
+            fields |= STATUS;
+        }
+        if (before.getTimeStamp() != after.getTimeStamp()) {
+            fields |= TIMESTAMP;
+        }
+        return fields;
+    }
+
+    /**
+     * @return a bitmask of the fields that differ between the two versions of an {@code User}
+     */
+    static int changedFields(UserContainer before, UserContainer after) {
+        int fields = 0;
+        if (!equal(before.getName(), after.getName())) {
+            fields |= NAME;
+        }
+        if ((before.getImage() != after.getImage()) || (before.getImageHandle() != after.getImageHandle())) {
+            fields |= IMAGE;
+        }
+        if (!sameLocation(before.getLocation(), after.getLocation())) {
+            fields |= LOCATION;
+        }
+        if (!equal(before.getLocationString(), after.getLocationString())) {
+            fields |= LOCATION_STRING;
+        }
+        if (before.getFriendship() != after.getFriendship()) {
+            fields |= FRIENDSHIP;
+        }
+        if (before.isBlocked() != after.isBlocked()) {
+            fields |= BLOCKED;
+        }
+        if (!equal(before.getEmail(), after.getEmail())
+            || !equal(before.getPhoneNumber(), after.getPhoneNumber())) {
+            fields |= CONTACT;
+        }
+        return fields;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    private static boolean sameLocation(Location a, Location b) {
+        if ((a == null) || (b == null)) {
+            return a == b;
+        }
+        return (a.getLatitude() == b.getLatitude()) && (a.getLongitude() == b.getLongitude())
+            && (a.getTime() == b.getTime());
+    }
+
+    /**
+     * Ids that were added, removed or modified for one type of item. Sets returned by the getters are
+     * read-only.
+     *
+     * @author jfperren
+     */
+    public static final class ChangeSet {
+
+        private final LongSet mAdded;
+        private final LongSet mRemoved;
+        private final Map<Long, Integer> mModified;
+
+        private ChangeSet() {
+            mAdded = new LongSet();
+            mRemoved = new LongSet();
+            mModified = new HashMap<Long, Integer>();
+        }
+
+        /**
+         * @return ids of items that were added
+         */
+        public Set<Long> getAddedIds() {
+            return Collections.unmodifiableSet(mAdded);
+        }
+
+        /**
+         * @param id
+         * @return the bitmask of fields that changed for this id, 0 if it was not modified
+         */
+        public int getChangedFields(long id) {
+            Integer fields = mModified.get(id);
+            return (fields != null) ? fields : 0;
+        }
+
+        /**
+         * @return ids of items that were modified
+         */
+        public Set<Long> getModifiedIds() {
+            return Collections.unmodifiableSet(mModified.keySet());
+        }
+
+        /**
+         * @return ids of items that were removed
+         */
+        public Set<Long> getRemovedIds() {
+            return Collections.unmodifiableSet(mRemoved);
+        }
+
+        /**
+         * @param id
+         * @param fields
+         *            bitmask of fields
+         * @return {@code true} if the item was modified and at least one of the given fields changed
+         */
+        public boolean hasChanged(long id, int fields) {
+            return (this.getChangedFields(id) & fields) != 0;
+        }
+
+        /**
+         * @return {@code true} if nothing was added, removed or modified
+         */
+        public boolean isEmpty() {
+            return mAdded.isEmpty() && mRemoved.isEmpty() && mModified.isEmpty();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "{added=" + mAdded + ", removed=" + mRemoved + ", modified=" + mModified.keySet() + "}";
+        }
+
+        void added(long id) {
+            if (mRemoved.remove(id)) {
+                // Instance was replaced
+                mModified.put(id, ALL_FIELDS);
+            } else {
+                mAdded.add(id);
+            }
+        }
+
+        void modified(long id, int fields) {
+            if ((fields != 0) && !mAdded.contains(id)) {
+                mModified.put(id, this.getChangedFields(id) | fields);
+            }
+        }
+
+        void removed(long id) {
+            if (!mAdded.remove(id)) {
+                mModified.remove(id);
+                mRemoved.add(id);
+            }
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package ch.epfl.smartmap.cache;
 
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 
+import android.location.Location;
 import ch.epfl.smartmap.cache.Cache.SearchFilter;
 import ch.epfl.smartmap.callbacks.NetworkRequestCallback;
 import ch.epfl.smartmap.database.DatabaseHelperInterface;
@@ -10,8 +12,16 @@ import ch.epfl.smartmap.listeners.CacheListener;
 import ch.epfl.smartmap.servercom.SmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClientException;
 
+import com.google.android.gms.maps.model.LatLngBounds;
+
 /**
  * All methods that must be implemented by the Cache
+ * <p>
+ * Actions the user is waiting for, like {@code acceptInvitation} or {@code createEvent}, give their
+ * callback a {@code TimeoutException} if the server does not answer within
+ * {@code NetworkExecutor.INTERACTIVE_TIMEOUT}. The request may still reach the server after that. Its result
+ * is then applied to the Cache and listeners are notified as usual, but the callback is not called again. A
+ * timeout therefore only means that the outcome of the action is not known yet, not that it failed.
  * 
  * @author jfperren
  */
@@ -21,7 +31,8 @@ interface CacheInterface {
      * @param invitation
      *            Invitation you want to accept
      * @param callback
-     *            Callback that will be notified when something happens
+     *            Callback that will be notified when something happens. Called once, with a
+     *            {@code TimeoutException} if the outcome is not known in time
      */
     void acceptInvitation(Invitation invitation, NetworkRequestCallback<Void> callback);
 
@@ -40,18 +51,20 @@ interface CacheInterface {
      * @param event
      *            Event to which you add participants
      * @param callback
-     *            Gets notified when something happens on the network
+     *            Gets notified when something happens on the network. Called once, with a
+     *            {@code TimeoutException} if the outcome is not known in time
      */
     void addParticipantsToEvent(Set<Long> ids, Event event, NetworkRequestCallback<Void> callback);
 
     /**
      * Create a new Event with you as a creator, send it to the server and then add it to the cache while
-     * calling listeners
+     * calling listeners. While offline, the Event is added at once with a local id and sent later.
      * 
      * @param createdEvent
      *            Container with informations about the Event
      * @param callback
-     *            Gets notified when something happens on the network
+     *            Gets notified when something happens on the network. Called once, with a
+     *            {@code TimeoutException} if the outcome is not known in time
      */
     void createEvent(EventContainer createdEvent, NetworkRequestCallback<Event> callback);
 
@@ -61,10 +74,23 @@ interface CacheInterface {
      * @param invitation
      *            Invitation you want to decline
      * @param callback
-     *            Gets notified when something happens on the network
+     *            Gets notified when something happens on the network. Called once, with a
+     *            {@code TimeoutException} if the outcome is not known in time
      */
     void declineInvitation(Invitation invitation, NetworkRequestCallback<Void> callback);
 
+    /**
+     * Writes the changes that are waiting to be written to the database, and waits until they are. Changes
+     * are otherwise written in the background shortly after they are made.
+     */
+    void flushToDatabase();
+
+    /**
+     * Makes the changes that are waiting to be written be written now in the background, without waiting
+     * until they are
+     */
+    void flushToDatabaseInBackground();
+
     /**
      * @return all Filters currently activated
      */
@@ -135,6 +161,15 @@ interface CacheInterface {
      */
     Set<Event> getEvents(Set<Long> ids);
 
+    /**
+     * Uses the spatial index, so only the Events located around the given bounds are looked at.
+     * 
+     * @param bounds
+     *            area of the map, typically the visible region
+     * @return all Events located inside the given bounds
+     */
+    Set<Event> getEventsInBounds(LatLngBounds bounds);
+
     /**
      * @param id
      *            Filter's id
@@ -162,6 +197,22 @@ interface CacheInterface {
      */
     Set<Long> getFriendIds();
 
+    /**
+     * Uses the spatial index, so only the Friends located around the given center are looked at.
+     * 
+     * @param center
+     *            center of the search
+     * @param radius
+     *            maximum distance from the center, in meters
+     * @return all Friends whose last known position is within {@code radius} meters of the center
+     */
+    Set<User> getFriendsWithin(Location center, double radius);
+
+    /**
+     * @return the current generation of the Cache, increased by every modification
+     */
+    long getGeneration();
+
     /**
      * @param id
      * @return the Invitation with the given id, {@code null} if not found
@@ -181,6 +232,12 @@ interface CacheInterface {
      */
     SortedSet<Invitation> getInvitations(Set<Long> ids);
 
+    /**
+     * @return the duration in milliseconds of each phase of the last successful {@code updateFromNetwork},
+     *         in the order they started
+     */
+    Map<String, Long> getLastSyncTimings();
+
     /**
      * @return a {@code Set} with all Live Events in the Cache
      */
@@ -206,6 +263,12 @@ interface CacheInterface {
      */
     User getSelf();
 
+    /**
+     * @return a consistent view of users, events, filters and invitations at the current generation. It is
+     *         shared between callers until the next modification, so it is cheap to get.
+     */
+    CacheSnapshot getSnapshot();
+
     /**
      * @return a {@code Set} with all unanswered Invitations
      */
@@ -243,8 +306,21 @@ interface CacheInterface {
 
     void inviteUser(long id, NetworkRequestCallback<Void> callback);
 
+    /**
+     * Sends the new values of an Event created by you to the server, and then updates it in the Cache
+     * 
+     * @param createdEvent
+     *            Container with the new informations about the Event
+     * @param callback
+     *            Gets notified when something happens on the network. Called once, with a
+     *            {@code TimeoutException} if the outcome is not known in time
+     */
     void modifyOwnEvent(EventContainer createdEvent, NetworkRequestCallback<Void> callback);
 
+    /**
+     * Notifies all listeners that they need to reload every value, for example after a change in the
+     * settings. The {@code CacheDelta} they receive is a reset.
+     */
     void notifyEventListeners();
 
     /**
@@ -386,7 +462,8 @@ interface CacheInterface {
      * @param event
      *            Event to which you want to remove them
      * @param callback
-     *            Gets notified with network informations
+     *            Gets notified with network informations. Called once, with a
+     *            {@code TimeoutException} if the outcome is not known in time
      */
     void removeParticipantsFromEvent(Set<Long> ids, Event event, NetworkRequestCallback<Void> callback);
 
@@ -399,15 +476,36 @@ interface CacheInterface {
     void removeUsers(Set<Long> userIds);
 
     /**
-     * Blocks/Unblocks someone on the Server and then update the value in the Cache
+     * Sends the changes that were made while the server could not be reached, in batches. Does nothing if
+     * there are none.
+     * 
+     * @param networkClient
+     *            Interface between Application and Server
+     * @return the number of changes processed by the server
+     * @throws SmartMapClientException
+     *             If there is a connectivity issue, the remaining changes are sent next time
+     */
+    int replayMutations(SmartMapClient networkClient) throws SmartMapClientException;
+
+    /**
+     * Blocks/Unblocks someone on the Server and then update the value in the Cache. While offline, the value
+     * is updated at once and sent later.
      * 
      * @param user
      *            User of which you want to change BlockStatus
      * @param callback
-     *            Used to get feedback from the NetworkClient
+     *            Used to get feedback from the NetworkClient. Called once, with a
+     *            {@code TimeoutException} if the outcome is not known in time
      */
     void setBlockedStatus(UserContainer user, NetworkRequestCallback<Void> callback);
 
+    /**
+     * @param parallelism
+     *            maximum number of background requests sent at the same time, including those of
+     *            {@code updateFromNetwork}
+     */
+    void setSyncParallelism(int parallelism);
+
     /**
      * Updates all values contained in the Cache with the ones from the Network
      * 
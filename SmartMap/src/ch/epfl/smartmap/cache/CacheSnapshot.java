@@ -0,0 +1,105 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedSet;
+
+/**
+ * A consistent view of the content of the {@code Cache} at a given generation. The generation is increased
+ * by every modification of the {@code Cache}, so two snapshots with the same generation have the same
+ * content, and a consumer can skip its work if the generation it last rendered did not change.
+ * <p>
+ * Snapshots are built at most once per generation and shared, so getting one is cheap. They hold the live
+ * instances of the Cache: their fields may be modified later, but such a modification always comes with a
+ * new generation. All sets are read-only.
+ *
+ * @author jfperren
+ */
+public final class CacheSnapshot {
+
+    // Generation of a Cache that has never been modified
+    public static final long NO_GENERATION = 0;
+
+    private final long mGeneration;
+
+    private final Set<User> mUsers;
+    private final Set<Event> mEvents;
+    private final Set<Filter> mFilters;
+    private final SortedSet<Invitation> mInvitations;
+
+    private final Set<User> mVisibleFriends;
+    private final Set<Event> mVisibleEvents;
+
+    /**
+     * Constructor, only called by the Cache while holding its lock
+     */
+    CacheSnapshot(long generation, Set<User> users, Set<Event> events, Set<Filter> filters,
+        SortedSet<Invitation> invitations, Set<User> visibleFriends, Set<Event> visibleEvents) {
+        mGeneration = generation;
+        mUsers = Collections.unmodifiableSet(users);
+        mEvents = Collections.unmodifiableSet(events);
+        mFilters = Collections.unmodifiableSet(filters);
+        mInvitations = Collections.unmodifiableSortedSet(invitations);
+        mVisibleFriends = Collections.unmodifiableSet(visibleFriends);
+        mVisibleEvents = Collections.unmodifiableSet(visibleEvents);
+    }
+
+    /**
+     * @return all {@code Event}s
+     */
+    public Set<Event> getAllEvents() {
+        return mEvents;
+    }
+
+    /**
+     * @return all {@code Filter}s
+     */
+    public Set<Filter> getAllFilters() {
+        return mFilters;
+    }
+
+    /**
+     * @return all {@code Invitation}s, sorted like in the Cache
+     */
+    public SortedSet<Invitation> getAllInvitations() {
+        return mInvitations;
+    }
+
+    /**
+     * @return all {@code User}s
+     */
+    public Set<User> getAllUsers() {
+        return mUsers;
+    }
+
+    /**
+     * @return {@code Event}s that should be displayed on the map
+     */
+    public Set<Event> getAllVisibleEvents() {
+        return mVisibleEvents;
+    }
+
+    /**
+     * @return friends that pass all active {@code Filter}s
+     */
+    public Set<User> getAllVisibleFriends() {
+        return mVisibleFriends;
+    }
+
+    /**
+     * @return generation of the Cache when this snapshot was taken
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "CacheSnapshot[generation=" + mGeneration + ", users=" + mUsers.size() + ", events="
+            + mEvents.size() + ", filters=" + mFilters.size() + ", invitations=" + mInvitations.size() + "]";
+    }
+}
@@ -0,0 +1,297 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.SQLException;
+import android.util.Log;
+import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.database.DatabaseHelperInterface;
+
+/**
+ * Writes the changes made to the {@code Cache} to the database, instead of rewriting the whole database
+ * periodically. The Cache gives it every {@code CacheDelta}, from which it records the ids of the items that
+ * are dirty or were removed. A single daemon thread writes them in one batch at most {@code MAX_DELAY} after
+ * the first change, so that changes made in the meantime are coalesced. It is started by the first change
+ * and stops by itself when nothing is left to write.
+ * <p>
+ * Items are read from the Cache when they are written, so an item modified several times is written once
+ * with its last values. Events are only written if they are owned or joined by the user, like
+ * {@code DatabaseHelper.updateFromCache} does. Changes are written to the database that was in use when the
+ * writer was created, so that a late write after a logout does not go to the database of the next user.
+ *
+ * @author jfperren
+ */
+final class DatabaseWriter {
+
+    private static final String TAG = DatabaseWriter.class.getSimpleName();
+    private static final String THREAD_NAME = "DatabaseWriter";
+
+    // Maximum time between a change and its write, in milliseconds
+    static final long MAX_DELAY = 2000;
+
+    private final Cache mCache;
+    private final DatabaseHelperInterface mDatabase;
+    private final long mDelay;
+    // Only one write at a time, so that batches are written in order
+    private final Object mWriteLock;
+
+    // Guarded by this
+    private Changes mPending;
+    private long mFirstChangeTime;
+    private Thread mWorker;
+
+    /**
+     * Constructor
+     *
+     * @param cache
+     *            Cache from which items are read
+     * @param database
+     *            database in which changes are written, may be {@code null} in which case changes are kept
+     * @param delay
+     *            maximum time between a change and its write, in milliseconds
+     */
+    DatabaseWriter(Cache cache, DatabaseHelperInterface database, long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Invalid delay " + delay);
+        }
+        mCache = cache;
+        mDatabase = database;
+        mDelay = delay;
+        mWriteLock = new Object();
+        mPending = new Changes();
+    }
+
+    /**
+     * Writes the pending changes now, in the calling thread, for example before logging out or when the
+     * process may be killed
+     */
+    void flush() {
+        synchronized (mWriteLock) {
+            Changes changes;
+            synchronized (this) {
+                changes = mPending;
+                mPending = new Changes();
+            }
+            if (changes.isEmpty()) {
+                return;
+            }
+            if (mDatabase == null) {
+                Log.w(TAG, "No database, changes are kept");
+                this.restore(changes);
+                return;
+            }
+
+            List<UserContainer> users = new ArrayList<UserContainer>();
+            for (long id : changes.mUsers.mDirty.toLongArray()) {
+                User user = mCache.getUser(id);
+                if (user != null) {
+                    users.add(user.getContainerCopy());
+                } else {
+                    changes.mUsers.removed(id);
+                }
+            }
+            List<EventContainer> events = new ArrayList<EventContainer>();
+            for (long id : changes.mEvents.mDirty.toLongArray()) {
+                Event event = mCache.getEvent(id);
+                if (event == null) {
+                    changes.mEvents.removed(id);
+                } else if (event.isOwn() || event.isGoing()) {
+                    events.add(event.getContainerCopy());
+                }
+            }
+            List<FilterContainer> filters = new ArrayList<FilterContainer>();
+            for (long id : changes.mFilters.mDirty.toLongArray()) {
+                Filter filter = mCache.getFilter(id);
+                if (filter != null) {
+                    filters.add(filter.getContainerCopy());
+                } else {
+                    changes.mFilters.removed(id);
+                }
+            }
+            List<InvitationContainer> invitations = new ArrayList<InvitationContainer>();
+            for (long id : changes.mInvitations.mDirty.toLongArray()) {
+                Invitation invitation = mCache.getInvitation(id);
+                if (invitation != null) {
+                    invitations.add(invitation.getContainerCopy());
+                } else {
+                    changes.mInvitations.removed(id);
+                }
+            }
+
+            MetricsRegistry metrics = ServiceContainer.getMetrics();
+            long start = metrics.timer(MetricsRegistry.DATABASE_WRITE_TIME).start();
+            try {
+                mDatabase.storeChanges(users, events, filters, invitations,
+                    changes.mUsers.mRemoved, changes.mEvents.mRemoved, changes.mFilters.mRemoved,
+                    changes.mInvitations.mRemoved);
+            } catch (SQLException e) {
+                Log.e(TAG, "Could not write changes, will try again: " + e);
+                this.restore(changes);
+                return;
+            }
+            metrics.timer(MetricsRegistry.DATABASE_WRITE_TIME).stop(start);
+            metrics.counter(MetricsRegistry.DATABASE_ROWS_WRITTEN).increment(
+                users.size() + events.size() + filters.size() + invitations.size());
+        }
+    }
+
+    /**
+     * Makes the worker write the pending changes now instead of after the delay, without waiting for it,
+     * for example when the process may be killed but the calling thread must not block
+     */
+    synchronized void flushInBackground() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        mFirstChangeTime = System.currentTimeMillis() - mDelay;
+        this.startWorkerIfNeeded();
+        this.notifyAll();
+    }
+
+    /**
+     * Records the items changed by a modification of the Cache. Called after each modification, in the order
+     * of the modifications, and delays the next ones, so it only updates sets.
+     *
+     * @param delta
+     */
+    synchronized void record(CacheDelta delta) {
+        if (delta.isEmpty() || delta.isReset()) {
+            // A reset either comes from the database itself, or only changes the way values are displayed
+            return;
+        }
+        boolean wasEmpty = mPending.isEmpty();
+        mPending.mUsers.record(delta.getUserChanges(), CacheDelta.ALL_FIELDS);
+        // Whether an event is live is not stored
+        mPending.mEvents.record(delta.getEventChanges(), ~CacheDelta.LIVE);
+        mPending.mFilters.record(delta.getFilterChanges(), CacheDelta.ALL_FIELDS);
+        mPending.mInvitations.record(delta.getInvitationChanges(), CacheDelta.ALL_FIELDS);
+        if (wasEmpty && !mPending.isEmpty()) {
+            mFirstChangeTime = System.currentTimeMillis();
+            this.startWorkerIfNeeded();
+        }
+    }
+
+    /**
+     * Waits until the oldest pending change must be written
+     *
+     * @return {@code false} if nothing is left to write, in which case the worker must stop
+     */
+    private synchronized boolean awaitChanges() throws InterruptedException {
+        while (!mPending.isEmpty()) {
+            long wait = (mFirstChangeTime + mDelay) - System.currentTimeMillis();
+            if (wait <= 0) {
+                return true;
+            }
+            this.wait(wait);
+        }
+        // In the same block as the check, so that the next change starts a new worker
+        mWorker = null;
+        return false;
+    }
+
+    /**
+     * Puts back changes that could not be written, under the ones recorded since
+     */
+    private synchronized void restore(Changes changes) {
+        changes.mUsers.addNewer(mPending.mUsers);
+        changes.mEvents.addNewer(mPending.mEvents);
+        changes.mFilters.addNewer(mPending.mFilters);
+        changes.mInvitations.addNewer(mPending.mInvitations);
+        mPending = changes;
+        mFirstChangeTime = System.currentTimeMillis();
+        this.startWorkerIfNeeded();
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private void startWorkerIfNeeded() {
+        if (mWorker == null) {
+            mWorker = new Thread(new Worker(), THREAD_NAME);
+            mWorker.setDaemon(true);
+            mWorker.start();
+        }
+    }
+
+    /**
+     * Pending changes of all types
+     */
+    private static final class Changes {
+        private final DirtyIds mUsers = new DirtyIds();
+        private final DirtyIds mEvents = new DirtyIds();
+        private final DirtyIds mFilters = new DirtyIds();
+        private final DirtyIds mInvitations = new DirtyIds();
+
+        private boolean isEmpty() {
+            return mUsers.isEmpty() && mEvents.isEmpty() && mFilters.isEmpty() && mInvitations.isEmpty();
+        }
+    }
+
+    /**
+     * Ids of the items of one type to write and to remove, an id is never in both sets
+     */
+    private static final class DirtyIds {
+        private final LongSet mDirty = new LongSet();
+        private final LongSet mRemoved = new LongSet();
+
+        private void addNewer(DirtyIds newer) {
+            for (long id : newer.mDirty.toLongArray()) {
+                this.dirty(id);
+            }
+            for (long id : newer.mRemoved.toLongArray()) {
+                this.removed(id);
+            }
+        }
+
+        private void dirty(long id) {
+            mRemoved.remove(id);
+            mDirty.add(id);
+        }
+
+        private boolean isEmpty() {
+            return mDirty.isEmpty() && mRemoved.isEmpty();
+        }
+
+        private void record(CacheDelta.ChangeSet changes, int storedFields) {
+            for (long id : changes.getAddedIds()) {
+                this.dirty(id);
+            }
+            for (long id : changes.getModifiedIds()) {
+                if (changes.hasChanged(id, storedFields)) {
+                    this.dirty(id);
+                }
+            }
+            for (long id : changes.getRemovedIds()) {
+                this.removed(id);
+            }
+        }
+
+        private void removed(long id) {
+            mDirty.remove(id);
+            mRemoved.add(id);
+        }
+    }
+
+    /**
+     * Writes the pending changes each time the oldest one reaches the maximum delay
+     */
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (DatabaseWriter.this.awaitChanges()) {
+                    DatabaseWriter.this.flush();
+                }
+            } catch (InterruptedException e) {
+                // Stop, a new worker is started by the next change
+            } finally {
+                synchronized (DatabaseWriter.this) {
+                    if (mWorker == Thread.currentThread()) {
+                        mWorker = null;
+                    }
+                }
+            }
+        }
+    }
+}
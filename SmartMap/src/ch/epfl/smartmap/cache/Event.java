@@ -1,6 +1,7 @@
 package ch.epfl.smartmap.cache;
 
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.Set;
@@ -36,7 +37,7 @@ public abstract class Event implements Displayable, EventInterface {
     public static final Calendar NO_START_DATE = GregorianCalendar.getInstance(TimeZone.getDefault());
     public static final Calendar NO_END_DATE = GregorianCalendar.getInstance(TimeZone.getDefault());
     public static final Set<User> NO_PARTICIPANTS = new HashSet<User>();
-    public static final Set<Long> NO_PARTICIPANTIDS = new HashSet<Long>();
+    public static final Set<Long> NO_PARTICIPANTIDS = Collections.unmodifiableSet(new LongSet());
     // Default image
     public static final Bitmap DEFAULT_WHITE_IMAGE = BitmapFactory.decodeResource(ServiceContainer
         .getSettingsManager().getContext().getResources(), R.drawable.ic_event_white);
@@ -46,7 +47,7 @@ public abstract class Event implements Displayable, EventInterface {
     private final long mId;
     private String mName;
     private User mCreator;
-    private Set<Long> mParticipantIds;
+    private LongSet mParticipantIds;
     private Calendar mStartDate;
     private Calendar mEndDate;
     private Location mLocation;
@@ -82,7 +83,7 @@ public abstract class Event implements Displayable, EventInterface {
         mLocation = (location != null) ? new Location(location) : NO_LOCATION;
         mLocationString = (locationString != null) ? locationString : NO_LOCATION_STRING;
         mDescription = (description != null) ? description : NO_DESCRIPTION;
-        mParticipantIds = (participantIds != null) ? new HashSet<Long>(participantIds) : NO_PARTICIPANTIDS;
+        mParticipantIds = (participantIds != null) ? new LongSet(participantIds) : new LongSet();
     }
 
     /*
@@ -103,7 +104,7 @@ public abstract class Event implements Displayable, EventInterface {
     @Override
     public EventContainer getContainerCopy() {
         return new EventContainer(mId, mName, mCreator.getContainerCopy(), mDescription, mStartDate,
-            mEndDate, mLocation, mLocationString, mParticipantIds);
+            mEndDate, mLocation, mLocationString, new LongSet(mParticipantIds));
     }
 
     /*
@@ -169,7 +170,7 @@ public abstract class Event implements Displayable, EventInterface {
      */
     @Override
     public Set<Long> getParticipantIds() {
-        return mParticipantIds;
+        return Collections.unmodifiableSet(mParticipantIds);
     }
 
     /*
@@ -229,9 +230,9 @@ public abstract class Event implements Displayable, EventInterface {
      */
     @Override
     public boolean isLive() {
-        Calendar now = GregorianCalendar.getInstance(TimeZone.getTimeZone(Utils.GMT_SWITZERLAND));
-        // Maybe it is the other way around
-        return (mStartDate.compareTo(now) <= 0) && (mEndDate.compareTo(now) >= 0);
+        // Instants do not depend on the time zone, no need to allocate a Calendar
+        long now = System.currentTimeMillis();
+        return (mStartDate.getTimeInMillis() <= now) && (mEndDate.getTimeInMillis() >= now);
     }
 
     /*
@@ -329,7 +330,7 @@ public abstract class Event implements Displayable, EventInterface {
             && !event.getParticipantIds().equals(mParticipantIds)) {
             Log.d("EVENT", "" + event.getParticipantIds());
             Log.d("EVENT", "" + mParticipantIds);
-            mParticipantIds = new HashSet<Long>(event.getParticipantIds());
+            mParticipantIds = new LongSet(event.getParticipantIds());
             hasChanged = false;
         }
 
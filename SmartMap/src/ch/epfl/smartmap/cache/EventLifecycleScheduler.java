@@ -0,0 +1,252 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Keeps the start, end and expiry instants of events in a priority queue, and notifies its listener exactly
+ * when they are reached. This way, nobody needs to compare every event with the current time to know which
+ * ones are live. A single daemon thread sleeps until the next instant, it is started when something is
+ * scheduled and stops by itself when the queue is empty.
+ * <p>
+ * Rescheduling or cancelling an event does not remove its entries from the queue, they are simply ignored
+ * when they are reached.
+ *
+ * @author jfperren
+ */
+public final class EventLifecycleScheduler {
+
+    private static final String THREAD_NAME = "EventLifecycleScheduler";
+
+    private static final int START = 0;
+    private static final int END = 1;
+    private static final int EXPIRY = 2;
+
+    private final LifecycleListener mListener;
+    private final long mRetention;
+
+    // Pending instants, ordered by time
+    private final PriorityQueue<Deadline> mQueue;
+    // Current schedule of each event, as {startTime, endTime, stamp}
+    private final Map<Long, long[]> mSchedules;
+    private long mNextStamp;
+
+    private Thread mWorker;
+
+    /**
+     * Constructor
+     *
+     * @param listener
+     *            notified from the scheduler thread when events start, end or expire
+     * @param retention
+     *            time in milliseconds during which an event is kept after its end, before expiring
+     */
+    public EventLifecycleScheduler(LifecycleListener listener, long retention) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        if (retention < 0) {
+            throw new IllegalArgumentException("Invalid retention " + retention);
+        }
+        mListener = listener;
+        mRetention = retention;
+        mQueue = new PriorityQueue<Deadline>();
+        mSchedules = new HashMap<Long, long[]>();
+        mNextStamp = 0;
+    }
+
+    /**
+     * Stops following an event, does nothing if it was not scheduled
+     *
+     * @param id
+     */
+    public synchronized void cancel(long id) {
+        mSchedules.remove(id);
+    }
+
+    /**
+     * Stops following every event
+     */
+    public synchronized void clear() {
+        mSchedules.clear();
+        mQueue.clear();
+        this.notifyAll();
+    }
+
+    /**
+     * @param id
+     * @return {@code true} if the event is followed by the scheduler
+     */
+    public synchronized boolean isScheduled(long id) {
+        return mSchedules.containsKey(id);
+    }
+
+    /**
+     * Starts following an event, or updates its instants if it was already followed. Instants that are
+     * already passed are not notified, except for the expiry which is notified as soon as possible.
+     *
+     * @param id
+     * @param startTime
+     *            start of the event, in milliseconds since epoch
+     * @param endTime
+     *            end of the event, in milliseconds since epoch
+     */
+    public synchronized void schedule(long id, long startTime, long endTime) {
+        long[] previous = mSchedules.get(id);
+        if ((previous != null) && (previous[0] == startTime) && (previous[1] == endTime)) {
+            // Nothing changed, entries in the queue are still valid
+            return;
+        }
+
+        long stamp = mNextStamp++;
+        mSchedules.put(id, new long[]{startTime, endTime, stamp});
+
+        long now = System.currentTimeMillis();
+        if (startTime > now) {
+            mQueue.add(new Deadline(startTime, id, START, stamp));
+        }
+        // An event is live until the last millisecond of its end date
+        if (endTime >= now) {
+            mQueue.add(new Deadline(endTime + 1, id, END, stamp));
+        }
+        mQueue.add(new Deadline(endTime + mRetention, id, EXPIRY, stamp));
+
+        if (mWorker == null) {
+            mWorker = new Thread(new Worker(), THREAD_NAME);
+            mWorker.setDaemon(true);
+            mWorker.start();
+        } else {
+            // Next deadline may have changed
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of followed events
+     */
+    public synchronized int size() {
+        return mSchedules.size();
+    }
+
+    /**
+     * Waits until at least one deadline is reached, and moves every reached deadline to the given sets.
+     *
+     * @return {@code false} if the queue became empty and the worker must stop
+     */
+    private synchronized boolean awaitDeadlines(Set<Long> startedIds, Set<Long> endedIds,
+        Set<Long> expiredIds) throws InterruptedException {
+        while (startedIds.isEmpty() && endedIds.isEmpty() && expiredIds.isEmpty()) {
+            if (mQueue.isEmpty()) {
+                mWorker = null;
+                return false;
+            }
+
+            long now = System.currentTimeMillis();
+            long delay = mQueue.peek().mTime - now;
+            if (delay > 0) {
+                this.wait(delay);
+                continue;
+            }
+
+            while (!mQueue.isEmpty() && (mQueue.peek().mTime <= now)) {
+                Deadline deadline = mQueue.poll();
+                long[] schedule = mSchedules.get(deadline.mId);
+                if ((schedule == null) || (schedule[2] != deadline.mStamp)) {
+                    // Event was cancelled or rescheduled
+                    continue;
+                }
+                switch (deadline.mType) {
+                    case START:
+                        startedIds.add(deadline.mId);
+                        break;
+                    case END:
+                        startedIds.remove(deadline.mId);
+                        endedIds.add(deadline.mId);
+                        break;
+                    default:
+                        mSchedules.remove(deadline.mId);
+                        expiredIds.add(deadline.mId);
+                        break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Receives the instants reached by the scheduler
+     *
+     * @author jfperren
+     */
+    public interface LifecycleListener {
+
+        /**
+         * Called from the scheduler thread each time some instants are reached. Sets are never {@code null}
+         * but may be empty.
+         *
+         * @param startedIds
+         *            ids of events that just started
+         * @param endedIds
+         *            ids of events that just ended
+         * @param expiredIds
+         *            ids of events that ended more than the retention time ago
+         */
+        void onLifecycleUpdate(Set<Long> startedIds, Set<Long> endedIds, Set<Long> expiredIds);
+    }
+
+    /**
+     * An instant at which something happens to an event
+     */
+    private static final class Deadline implements Comparable<Deadline> {
+        private final long mTime;
+        private final long mId;
+        private final int mType;
+        private final long mStamp;
+
+        private Deadline(long time, long id, int type, long stamp) {
+            mTime = time;
+            mId = id;
+            mType = type;
+            mStamp = stamp;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            if (mTime != other.mTime) {
+                return (mTime < other.mTime) ? -1 : 1;
+            }
+            return mType - other.mType;
+        }
+    }
+
+    /**
+     * Sleeps until the next deadline and notifies the listener outside of the scheduler's lock
+     */
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Set<Long> startedIds = new HashSet<Long>();
+                    Set<Long> endedIds = new HashSet<Long>();
+                    Set<Long> expiredIds = new HashSet<Long>();
+                    if (!EventLifecycleScheduler.this.awaitDeadlines(startedIds, endedIds, expiredIds)) {
+                        return;
+                    }
+                    mListener.onLifecycleUpdate(startedIds, endedIds, expiredIds);
+                }
+            } catch (InterruptedException e) {
+                // Stop, a new worker is started on the next call to schedule
+            } finally {
+                synchronized (EventLifecycleScheduler.this) {
+                    if (mWorker == Thread.currentThread()) {
+                        mWorker = null;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package ch.epfl.smartmap.cache;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
 
 import android.content.Context;
@@ -32,14 +32,15 @@ public abstract class Filter implements FilterInterface {
     // Default values
     public static final long NO_ID = -1;
     public static final String NO_NAME = "Unknown filter";
-    public static final Set<Long> NO_IDS = new HashSet<Long>();
+    public static final Set<Long> NO_IDS = Collections.unmodifiableSet(new LongSet());
     public static final Bitmap DEFAULT_WHITE_IMAGE = BitmapFactory.decodeResource(ServiceContainer
         .getSettingsManager().getContext().getResources(), R.drawable.ic_filter_white);
     public static final Bitmap DEFAULT_BLUE_IMAGE = BitmapFactory.decodeResource(ServiceContainer
         .getSettingsManager().getContext().getResources(), R.drawable.ic_filter_blue);
 
     private long mId;
-    private final Set<Long> mIds;
+    // Never modified, update replaces it, so that getIds can be iterated from any thread
+    private volatile Set<Long> mIds;
 
     /**
      * Constructor
@@ -54,7 +55,7 @@ public abstract class Filter implements FilterInterface {
             throw new IllegalArgumentException();
         }
         mId = (id >= 0) ? id : Filter.NO_ID;
-        mIds = (ids != null) ? new HashSet<Long>(ids) : Filter.NO_IDS;
+        mIds = immutableCopy(ids);
     }
 
     /*
@@ -90,7 +91,7 @@ public abstract class Filter implements FilterInterface {
      */
     @Override
     public Set<Long> getIds() {
-        return new HashSet<Long>(mIds);
+        return mIds;
     }
 
     /*
@@ -177,8 +178,7 @@ public abstract class Filter implements FilterInterface {
         }
 
         if ((filter.getIds() != null) && !filter.getIds().equals(mIds)) {
-            mIds.clear();
-            mIds.addAll(filter.getIds());
+            mIds = immutableCopy(filter.getIds());
             hasChanged = true;
         }
 
@@ -206,4 +206,11 @@ public abstract class Filter implements FilterInterface {
             throw new IllegalArgumentException();
         }
     }
+
+    /**
+     * @return a read-only copy of the ids, empty if they are {@code null}
+     */
+    private static Set<Long> immutableCopy(Set<Long> ids) {
+        return Collections.unmodifiableSet((ids != null) ? new LongSet(ids) : new LongSet());
+    }
 }
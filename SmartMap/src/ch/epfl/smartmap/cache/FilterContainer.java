@@ -1,6 +1,5 @@
 package ch.epfl.smartmap.cache;
 
-import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -32,7 +31,7 @@ public class FilterContainer {
      */
     public FilterContainer(long id, String name, Set<Long> ids, boolean isActive) {
         mId = id;
-        mIds = new HashSet<Long>(ids);
+        mIds = new LongSet(ids);
         mName = name;
         mIsActive = isActive;
     }
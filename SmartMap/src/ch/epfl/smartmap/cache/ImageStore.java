@@ -0,0 +1,474 @@
+package ch.epfl.smartmap.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+/**
+ * Central store for the profile pictures of {@code User}s. Users only hold a {@code Handle} on their
+ * picture, and identical pictures share the same {@code Handle}, so that for example every user without a
+ * picture points to the same default image.
+ * <p>
+ * Decoded pixels are kept in an LRU cache bounded by a byte budget. The first time a picture is evicted,
+ * its handle compresses it and keeps the compressed copy, from which it is decoded again the next time it
+ * is needed, so later evictions only drop the pixels. Downsampled variants, for list rows and markers, are
+ * computed on demand and share the same budget.
+ * <p>
+ * Pictures stored on the device are given with {@code putStored}, as a {@code PictureSource} instead of
+ * pixels. They are only decoded when first displayed, and their variants come from a stored thumbnail, so
+ * the full size picture is not decoded at all for users that only appear in lists or on the map.
+ * <p>
+ * The store also remembers when the picture of each user was last received, so that it is not downloaded
+ * again on every synchronization. This class is thread-safe.
+ *
+ * @author jfperren
+ */
+public final class ImageStore {
+
+    // Maximum size in pixels of the variants used in lists and on markers
+    public static final int LIST_ROW_SIZE = 96;
+    public static final int MARKER_SIZE = 64;
+    // Maximum size in pixels of the thumbnails of a PictureSource, enough for every variant
+    public static final int THUMBNAIL_SIZE = LIST_ROW_SIZE;
+
+    // By default, use an eighth of the memory available to the application
+    public static final int DEFAULT_BUDGET = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime()
+        .maxMemory() / 8);
+
+    // Part of the budget reserved for downsampled variants
+    private static final int VARIANTS_BUDGET_DIVISOR = 4;
+
+    // Quality of the compressed copies of opaque pictures, only compressed once
+    private static final int EVICTED_QUALITY = 90;
+
+    private static final int FNV_OFFSET = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final LruCache<Handle, Bitmap> mDecoded;
+    private final LruCache<String, Bitmap> mVariants;
+
+    // Handles by content hash, only weakly referenced so that unused pictures can be collected
+    private final Map<Long, WeakReference<Handle>> mHandlesByHash;
+    private final Map<Long, Handle> mHandlesByUser;
+    private final Map<Long, Long> mReceivedTimes;
+
+    private Handle mDefaultHandle;
+    // Gives a different key to the variants of each stored picture
+    private long mStoredCount;
+
+    /**
+     * Constructor, uses {@code DEFAULT_BUDGET}
+     */
+    public ImageStore() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param budget
+     *            maximum number of bytes used by decoded pictures and their variants
+     */
+    public ImageStore(int budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Invalid budget " + budget);
+        }
+        int variantsBudget = Math.max(1, budget / VARIANTS_BUDGET_DIVISOR);
+        mDecoded = new LruCache<Handle, Bitmap>(Math.max(1, budget - variantsBudget)) {
+            @Override
+            protected void entryRemoved(boolean evicted, Handle handle, Bitmap oldValue, Bitmap newValue) {
+                if (evicted) {
+                    handle.release(oldValue);
+                }
+            }
+
+            @Override
+            protected int sizeOf(Handle handle, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mVariants = new LruCache<String, Bitmap>(variantsBudget) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mHandlesByHash = new HashMap<Long, WeakReference<Handle>>();
+        mHandlesByUser = new HashMap<Long, Handle>();
+        mReceivedTimes = new HashMap<Long, Long>();
+    }
+
+    /**
+     * Forgets the pictures of all users. Handles already given keep working.
+     */
+    public synchronized void clear() {
+        mVariants.evictAll();
+        mHandlesByHash.clear();
+        mHandlesByUser.clear();
+        mReceivedTimes.clear();
+    }
+
+    /**
+     * @param userId
+     * @return the handle on the picture of this user, or {@code null} if the store does not know it
+     */
+    public synchronized Handle get(long userId) {
+        return mHandlesByUser.get(userId);
+    }
+
+    /**
+     * @return the handle on {@code User.NO_IMAGE}, which is never evicted
+     */
+    public synchronized Handle getDefaultHandle() {
+        if (mDefaultHandle == null) {
+            mDefaultHandle = new Handle(this, User.NO_IMAGE, hash(User.NO_IMAGE), true);
+        }
+        return mDefaultHandle;
+    }
+
+    /**
+     * @param userId
+     * @param maxAge
+     *            in milliseconds
+     * @return {@code true} if a picture was received for this user less than {@code maxAge} ago
+     */
+    public synchronized boolean hasFreshPicture(long userId, long maxAge) {
+        Long receivedTime = mReceivedTimes.get(userId);
+        return (receivedTime != null) && ((System.currentTimeMillis() - receivedTime) < maxAge);
+    }
+
+    /**
+     * @param bitmap
+     * @return the handle shared by all pictures with the same content as this one
+     */
+    public Handle intern(Bitmap bitmap) {
+        if ((bitmap == null) || (bitmap == User.NO_IMAGE)) {
+            return this.getDefaultHandle();
+        }
+        // Hashing reads every pixel, do it before taking the lock
+        long hash = hash(bitmap);
+        Handle handle;
+        synchronized (this) {
+            handle = this.findHandle(hash, bitmap);
+            if (handle != null) {
+                return handle;
+            }
+            handle = new Handle(this, bitmap, hash, false);
+            mHandlesByHash.put(hash, new WeakReference<Handle>(handle));
+            this.purgeCollectedHandles();
+        }
+        mDecoded.put(handle, bitmap);
+        return handle;
+    }
+
+    /**
+     * Remembers that the picture of an user was just checked and did not change
+     *
+     * @param userId
+     */
+    public synchronized void markReceived(long userId) {
+        if (mHandlesByUser.containsKey(userId)) {
+            mReceivedTimes.put(userId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Sets the picture of an user
+     *
+     * @param userId
+     * @param bitmap
+     *            the received picture, {@code null} or {@code User.NO_IMAGE} if the user has none
+     * @return the handle on the picture
+     */
+    public Handle put(long userId, Bitmap bitmap) {
+        Handle handle = this.intern(bitmap);
+        synchronized (this) {
+            mHandlesByUser.put(userId, handle);
+            mReceivedTimes.put(userId, System.currentTimeMillis());
+        }
+        return handle;
+    }
+
+    /**
+     * Sets the picture of an user to one that is only decoded from the source when it is needed, unless the
+     * store already has a picture for this user, which is then more recent than the stored one
+     *
+     * @param userId
+     * @param source
+     *            where the picture of the user is stored, {@code null} if the user has none
+     * @return the handle on the picture, or {@code null} if the user already had one
+     */
+    public synchronized Handle putStored(long userId, PictureSource source) {
+        if (mHandlesByUser.containsKey(userId)) {
+            return null;
+        }
+        Handle handle =
+            (source != null) ? new Handle(this, userId, source, mStoredCount++) : this.getDefaultHandle();
+        mHandlesByUser.put(userId, handle);
+        // Like a received picture, so that it is not downloaded again right away
+        mReceivedTimes.put(userId, System.currentTimeMillis());
+        return handle;
+    }
+
+    /**
+     * Forgets the picture of an user, for example when it is removed from the {@code Cache}
+     *
+     * @param userId
+     */
+    public synchronized void remove(long userId) {
+        mHandlesByUser.remove(userId);
+        mReceivedTimes.remove(userId);
+    }
+
+    /**
+     * @return number of bytes currently used by decoded pictures and their variants
+     */
+    public int size() {
+        return mDecoded.size() + mVariants.size();
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private Handle findHandle(long hash, Bitmap bitmap) {
+        if ((mDefaultHandle != null) && (mDefaultHandle.mHash == hash) && mDefaultHandle.matches(bitmap)) {
+            return mDefaultHandle;
+        }
+        WeakReference<Handle> reference = mHandlesByHash.get(hash);
+        Handle handle = (reference != null) ? reference.get() : null;
+        return ((handle != null) && handle.matches(bitmap)) ? handle : null;
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private void purgeCollectedHandles() {
+        // Cheap enough since the map only grows with new pictures
+        if ((mHandlesByHash.size() % 64) == 0) {
+            Iterator<WeakReference<Handle>> iterator = mHandlesByHash.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().get() == null) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a 64 bits hash of the dimensions and pixels of the bitmap
+     */
+    private static long hash(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+        // Two independent 32 bits FNV-1a hashes, seeded differently
+        int low = FNV_OFFSET ^ width;
+        int high = FNV_OFFSET ^ height;
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int pixel : row) {
+                low = (low ^ pixel) * FNV_PRIME;
+                high = (high ^ Integer.rotateLeft(pixel, 16)) * FNV_PRIME;
+            }
+        }
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A reference on a picture of the {@code ImageStore}. Handles are shared between users having the same
+     * picture, so they must be compared by identity.
+     *
+     * @author jfperren
+     */
+    public static final class Handle {
+
+        private final ImageStore mStore;
+        private final long mHash;
+        private final boolean mIsPinned;
+        // Identifies the variants of this picture
+        private final String mKey;
+        // Only for stored pictures, which are decoded from their source
+        private final long mUserId;
+        private final PictureSource mSource;
+
+        // Guarded by this. Dimensions are 0 until a stored picture is decoded.
+        private int mWidth;
+        private int mHeight;
+        // At least one of them is non-null, except for a stored picture which may have neither
+        private Bitmap mBitmap;
+        private byte[] mCompressed;
+        // Whether mBitmap was decoded from a lossy copy, and thus differs a bit from the original pixels
+        private boolean mIsLossy;
+
+        private Handle(ImageStore store, Bitmap bitmap, long hash, boolean isPinned) {
+            mStore = store;
+            mHash = hash;
+            mIsPinned = isPinned;
+            mWidth = bitmap.getWidth();
+            mHeight = bitmap.getHeight();
+            mKey = hash + ":" + mWidth + "x" + mHeight;
+            mUserId = User.NO_ID;
+            mSource = null;
+            mBitmap = bitmap;
+        }
+
+        private Handle(ImageStore store, long userId, PictureSource source, long count) {
+            mStore = store;
+            mHash = 0;
+            mIsPinned = false;
+            mKey = "stored:" + userId + ":" + count;
+            mUserId = userId;
+            mSource = source;
+        }
+
+        /**
+         * @return the full size picture, or {@code User.NO_IMAGE} if a stored picture cannot be read
+         */
+        public Bitmap getBitmap() {
+            Bitmap bitmap;
+            boolean wasDecoded = false;
+            synchronized (this) {
+                if (mBitmap == null) {
+                    Bitmap decoded =
+                        (mSource != null) ? mSource.decode(mUserId) : BitmapFactory.decodeByteArray(
+                            mCompressed, 0, mCompressed.length);
+                    if (decoded == null) {
+                        // Not kept, the source may be readable again later
+                        return User.NO_IMAGE;
+                    }
+                    mBitmap = decoded;
+                    mWidth = decoded.getWidth();
+                    mHeight = decoded.getHeight();
+                    wasDecoded = true;
+                }
+                bitmap = mBitmap;
+            }
+            if (wasDecoded) {
+                // Outside of the lock, this may evict and release other handles
+                mStore.mDecoded.put(this, bitmap);
+            } else if (!mIsPinned) {
+                // Marks it as recently used
+                mStore.mDecoded.get(this);
+            }
+            return bitmap;
+        }
+
+        /**
+         * @return an estimation of the number of bytes used by the full size picture once decoded, or 0 if
+         *         it is a stored picture that was never decoded
+         */
+        public synchronized int getByteCount() {
+            return mWidth * mHeight * 4;
+        }
+
+        /**
+         * @param maxSize
+         *            maximum width and height of the variant, in pixels
+         * @return the picture downsampled so that it fits in a square of the given size, or the full size
+         *         picture if it is already small enough
+         */
+        public Bitmap getVariant(int maxSize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("Invalid size " + maxSize);
+            }
+            boolean isDecoded;
+            boolean fits;
+            synchronized (this) {
+                isDecoded = mBitmap != null;
+                fits = (mWidth > 0) && (mWidth <= maxSize) && (mHeight <= maxSize);
+            }
+            if (fits && (isDecoded || (mSource == null))) {
+                return this.getBitmap();
+            }
+            String key = mKey + ":" + maxSize;
+            Bitmap variant = mStore.mVariants.get(key);
+            if (variant == null) {
+                Bitmap picture = null;
+                if ((mSource != null) && !isDecoded && (maxSize <= THUMBNAIL_SIZE)) {
+                    // Avoids decoding the full size picture for list rows and markers
+                    picture = mSource.decodeThumbnail(mUserId);
+                }
+                boolean isThumbnail = picture != null;
+                if (!isThumbnail) {
+                    picture = this.getBitmap();
+                }
+                int width = picture.getWidth();
+                int height = picture.getHeight();
+                if ((width <= maxSize) && (height <= maxSize)) {
+                    if (!isThumbnail) {
+                        return picture;
+                    }
+                    variant = picture;
+                } else {
+                    float scale = (float) maxSize / Math.max(width, height);
+                    variant =
+                        Bitmap.createScaledBitmap(picture, Math.max(1, Math.round(width * scale)),
+                            Math.max(1, Math.round(height * scale)), true);
+                }
+                mStore.mVariants.put(key, variant);
+            }
+            return variant;
+        }
+
+        /**
+         * @return {@code true} if the given bitmap has the same content as this picture
+         */
+        private boolean matches(Bitmap bitmap) {
+            Bitmap decoded;
+            synchronized (this) {
+                if ((mSource != null) || (bitmap.getWidth() != mWidth) || (bitmap.getHeight() != mHeight)) {
+                    return false;
+                }
+                decoded = mBitmap;
+            }
+            // If evicted or decoded from a lossy copy, trust the 64 bits hash rather than the pixels
+            return (decoded == null) || mIsLossy || decoded.sameAs(bitmap);
+        }
+
+        /**
+         * Called when the decoded picture is evicted from the store, keeps only a compressed copy. It is made
+         * the first time only, stored pictures do not need one since they are decoded from their source.
+         */
+        private synchronized void release(Bitmap evicted) {
+            if (mIsPinned || (mBitmap != evicted)) {
+                return;
+            }
+            if ((mSource == null) && (mCompressed == null)) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                // JPEG is much faster to encode than PNG, and lossy is fine since it is only done once
+                mIsLossy = !mBitmap.hasAlpha();
+                mBitmap.compress(mIsLossy ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.PNG,
+                    EVICTED_QUALITY, stream);
+                mCompressed = stream.toByteArray();
+            }
+            mBitmap = null;
+        }
+    }
+
+    /**
+     * Where stored pictures are decoded from, for example the files written by the database
+     *
+     * @author jfperren
+     */
+    public interface PictureSource {
+
+        /**
+         * @param userId
+         * @return the full size picture of the user, or {@code null} if it cannot be read
+         */
+        Bitmap decode(long userId);
+
+        /**
+         * @param userId
+         * @return a picture of the user fitting in a square of {@code THUMBNAIL_SIZE} pixels, or {@code null}
+         *         if there is none
+         */
+        Bitmap decodeThumbnail(long userId);
+    }
+}
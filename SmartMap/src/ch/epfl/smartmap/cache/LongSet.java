@@ -0,0 +1,428 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@code Set} of ids stored as primitive {@code long}s in an open addressing hash table with linear
+ * probing. Unlike a {@code HashSet<Long>}, it does not allocate a {@code Long} and an entry for each id, so
+ * it is much lighter on memory and on the garbage collector. Use the methods taking a {@code long} to avoid
+ * boxing, the ones from {@code Set} are only there so that it can be used wherever a {@code Set<Long>} is
+ * expected.
+ * <p>
+ * Iterators box each id, loops on a large set should iterate over {@code toLongArray} instead. This class
+ * is not thread-safe.
+ *
+ * @author jfperren
+ */
+public final class LongSet extends AbstractSet<Long> {
+
+    private static final int MIN_CAPACITY = 8;
+    // Marks an empty slot, the id itself is stored in a separate flag
+    private static final long FREE = Long.MIN_VALUE;
+
+    private long[] mKeys;
+    private int mSize;
+    private boolean mContainsFree;
+    private int mModificationCount;
+
+    /**
+     * Constructor, creates an empty set
+     */
+    public LongSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Constructor, creates a set containing the given ids
+     *
+     * @param ids
+     */
+    public LongSet(Collection<Long> ids) {
+        if (ids instanceof LongSet) {
+            LongSet other = (LongSet) ids;
+            mKeys = other.mKeys.clone();
+            mSize = other.mSize;
+            mContainsFree = other.mContainsFree;
+        } else {
+            mKeys = newTable(ids.size());
+            this.addAll(ids);
+        }
+    }
+
+    /**
+     * Constructor, creates an empty set large enough to contain the given number of ids without growing
+     *
+     * @param expectedSize
+     */
+    public LongSet(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Invalid size " + expectedSize);
+        }
+        mKeys = newTable(expectedSize);
+    }
+
+    /**
+     * @param id
+     * @return {@code true} if the id was not already in the set
+     */
+    public boolean add(long id) {
+        if (id == FREE) {
+            if (mContainsFree) {
+                return false;
+            }
+            mContainsFree = true;
+        } else {
+            int slot = this.slotOf(id);
+            if (mKeys[slot] == id) {
+                return false;
+            }
+            mKeys[slot] = id;
+        }
+        mSize++;
+        mModificationCount++;
+        if (this.storedSize() > (mKeys.length / 2)) {
+            this.resize(mKeys.length * 2);
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#add(java.lang.Object)
+     */
+    @Override
+    public boolean add(Long id) {
+        return this.add(id.longValue());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#clear()
+     */
+    @Override
+    public void clear() {
+        if (mSize > 0) {
+            mKeys = newTable(0);
+            mSize = 0;
+            mContainsFree = false;
+            mModificationCount++;
+        }
+    }
+
+    /**
+     * @param id
+     * @return {@code true} if the id is in the set
+     */
+    public boolean contains(long id) {
+        if (id == FREE) {
+            return mContainsFree;
+        }
+        return mKeys[this.slotOf(id)] == id;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#contains(java.lang.Object)
+     */
+    @Override
+    public boolean contains(Object object) {
+        return (object instanceof Long) && this.contains(((Long) object).longValue());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractSet#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        // Same value as a Set<Long> containing the same ids
+        int hash = mContainsFree ? longHash(FREE) : 0;
+        for (long key : mKeys) {
+            if (key != FREE) {
+                hash += longHash(key);
+            }
+        }
+        return hash;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public Iterator<Long> iterator() {
+        return new LongSetIterator();
+    }
+
+    /**
+     * @param id
+     * @return {@code true} if the id was in the set
+     */
+    public boolean remove(long id) {
+        if (id == FREE) {
+            if (!mContainsFree) {
+                return false;
+            }
+            mContainsFree = false;
+        } else {
+            int slot = this.slotOf(id);
+            if (mKeys[slot] != id) {
+                return false;
+            }
+            this.removeSlot(slot);
+        }
+        mSize--;
+        mModificationCount++;
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#remove(java.lang.Object)
+     */
+    @Override
+    public boolean remove(Object object) {
+        return (object instanceof Long) && this.remove(((Long) object).longValue());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractSet#removeAll(java.util.Collection)
+     */
+    @Override
+    public boolean removeAll(Collection<?> collection) {
+        // Removes each id directly, AbstractSet's implementation may go through the iterator
+        boolean modified = false;
+        for (Object object : collection) {
+            modified |= this.remove(object);
+        }
+        return modified;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#retainAll(java.util.Collection)
+     */
+    @Override
+    public boolean retainAll(Collection<?> collection) {
+        long[] previousKeys = mKeys;
+        boolean previousContainsFree = mContainsFree;
+        int previousSize = mSize;
+
+        mKeys = newTable(Math.min(mSize, collection.size()));
+        mSize = 0;
+        mContainsFree = false;
+        if (previousContainsFree && collection.contains(FREE)) {
+            mContainsFree = true;
+            mSize++;
+        }
+        for (long key : previousKeys) {
+            if ((key != FREE) && collection.contains(key)) {
+                mKeys[this.slotOf(key)] = key;
+                mSize++;
+            }
+        }
+
+        if (mSize != previousSize) {
+            mModificationCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return a new array with all ids of the set, in no particular order
+     */
+    public long[] toLongArray() {
+        long[] ids = new long[mSize];
+        int i = 0;
+        if (mContainsFree) {
+            ids[i++] = FREE;
+        }
+        for (long key : mKeys) {
+            if (key != FREE) {
+                ids[i++] = key;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Empties a slot and moves back the following keys of the cluster so that lookups never stop too early
+     */
+    private void removeSlot(int slot) {
+        int mask = mKeys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (mKeys[next] != FREE) {
+            int home = mix(mKeys[next]) & mask;
+            // Move the key back unless its home is between the hole and its current slot
+            boolean isBetween =
+                (hole <= next) ? ((hole < home) && (home <= next)) : ((hole < home) || (home <= next));
+            if (!isBetween) {
+                mKeys[hole] = mKeys[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mKeys[hole] = FREE;
+    }
+
+    private void resize(int capacity) {
+        long[] previousKeys = mKeys;
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, FREE);
+        for (long key : previousKeys) {
+            if (key != FREE) {
+                mKeys[this.slotOf(key)] = key;
+            }
+        }
+    }
+
+    /**
+     * @return the slot containing the id, or the free slot where it should be inserted
+     */
+    private int slotOf(long id) {
+        int mask = mKeys.length - 1;
+        int slot = mix(id) & mask;
+        while ((mKeys[slot] != FREE) && (mKeys[slot] != id)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return number of ids stored in the table
+     */
+    private int storedSize() {
+        return mContainsFree ? mSize - 1 : mSize;
+    }
+
+    /**
+     * @return the first free slot of the table, there is always one since it is at most half full
+     */
+    private static int firstFreeSlot(long[] table) {
+        int slot = 0;
+        while (table[slot] != FREE) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private static int longHash(long value) {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    /**
+     * Spreads the bits of the id, ids are often consecutive and would otherwise form long clusters
+     */
+    private static int mix(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * @return an empty table that can hold the given number of ids with a load factor of at most 1/2
+     */
+    private static long[] newTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (expectedSize * 2)) {
+            capacity *= 2;
+        }
+        long[] table = new long[capacity];
+        Arrays.fill(table, FREE);
+        return table;
+    }
+
+    /**
+     * Iterates over the table, boxing each id. Slots are visited starting after a free one, so that no
+     * cluster wraps around the end of the iteration: removing an id then only moves back ids that were not
+     * returned yet.
+     */
+    private final class LongSetIterator implements Iterator<Long> {
+        private int mExpectedModificationCount = mModificationCount;
+        private boolean mFreeReturned = !mContainsFree;
+        private final int mStart = firstFreeSlot(mKeys);
+        // Offsets from mStart of the next slot to return and of the last returned one, -1 for FREE
+        private int mNextOffset = 0;
+        private int mLastOffset = -1;
+        private boolean mCanRemove;
+
+        private LongSetIterator() {
+            this.advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !mFreeReturned || (mNextOffset < mKeys.length);
+        }
+
+        @Override
+        public Long next() {
+            this.checkForModification();
+            mCanRemove = true;
+            if (!mFreeReturned) {
+                mFreeReturned = true;
+                mLastOffset = -1;
+                return FREE;
+            }
+            if (mNextOffset >= mKeys.length) {
+                throw new NoSuchElementException();
+            }
+            mLastOffset = mNextOffset;
+            long key = mKeys[this.slotAt(mNextOffset)];
+            this.advance();
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            if (!mCanRemove) {
+                throw new IllegalStateException();
+            }
+            this.checkForModification();
+            mCanRemove = false;
+            if (mLastOffset < 0) {
+                mContainsFree = false;
+            } else {
+                LongSet.this.removeSlot(this.slotAt(mLastOffset));
+                // An id that was not returned yet may have been moved back into the slot
+                mNextOffset = mLastOffset - 1;
+                this.advance();
+            }
+            mSize--;
+            mModificationCount++;
+            mExpectedModificationCount = mModificationCount;
+        }
+
+        private void advance() {
+            do {
+                mNextOffset++;
+            } while ((mNextOffset < mKeys.length) && (mKeys[this.slotAt(mNextOffset)] == FREE));
+        }
+
+        private void checkForModification() {
+            if (mModificationCount != mExpectedModificationCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+
+        private int slotAt(int offset) {
+            return (mStart + offset) & (mKeys.length - 1);
+        }
+    }
+}
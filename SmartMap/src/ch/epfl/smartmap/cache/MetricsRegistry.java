@@ -0,0 +1,414 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters, timers and histograms describing how the Cache is used: where searches are answered
+ * (Cache, database or network), how long threads wait for the Cache lock and how long listeners take to
+ * handle a modification.
+ * <p>
+ * Recording a value only costs a few atomic operations and no allocation, so metrics can stay enabled in
+ * production. Metrics are created on first use and never removed, use {@code dump} to get a readable summary
+ * of all of them, for example from a debug screen.
+ *
+ * @author jfperren
+ */
+public final class MetricsRegistry {
+
+    // Search engine
+    public static final String SEARCH_CACHE_HITS = "search.cache.hits";
+    public static final String SEARCH_DATABASE_HITS = "search.database.hits";
+    public static final String SEARCH_NETWORK_HITS = "search.network.hits";
+    public static final String SEARCH_MISSES = "search.misses";
+    public static final String SEARCH_NETWORK_ERRORS = "search.network.errors";
+    public static final String SEARCH_DATABASE_TIME = "search.database.time";
+    public static final String SEARCH_NETWORK_TIME = "search.network.time";
+
+    // Cache lock
+    public static final String LOCK_READ_WAIT = "cache.lock.read.wait";
+    public static final String LOCK_WRITE_WAIT = "cache.lock.write.wait";
+
+    // Listeners
+    public static final String LISTENERS_TIME = "cache.listeners.time";
+    public static final String LISTENERS_FAN_OUT = "cache.listeners.fanout";
+    public static final String LISTENER_TIME_PREFIX = "cache.listener.";
+
+    // Network client
+    public static final String NETWORK_SHARED_REQUESTS = "network.requests.shared";
+    public static final String NETWORK_KEPT_RESULTS = "network.requests.kept";
+    public static final String NETWORK_RETRIES = "network.requests.retried";
+    public static final String NETWORK_REFUSED_REQUESTS = "network.requests.refused";
+
+    // Offline mutations
+    public static final String MUTATIONS_QUEUED = "mutations.queued";
+    public static final String MUTATIONS_COLLAPSED = "mutations.collapsed";
+    public static final String MUTATIONS_REPLAYED = "mutations.replayed";
+
+    // Writes of the Cache to the database
+    public static final String DATABASE_ROWS_WRITTEN = "database.rows.written";
+    public static final String DATABASE_WRITE_TIME = "database.write.time";
+
+    private final ConcurrentMap<String, Counter> mCounters;
+    private final ConcurrentMap<String, Histogram> mHistograms;
+    private final ConcurrentMap<String, Timer> mTimers;
+
+    private volatile boolean mIsEnabled;
+
+    /**
+     * Constructor, metrics are enabled
+     */
+    public MetricsRegistry() {
+        mCounters = new ConcurrentHashMap<String, Counter>();
+        mHistograms = new ConcurrentHashMap<String, Histogram>();
+        mTimers = new ConcurrentHashMap<String, Timer>();
+        mIsEnabled = true;
+    }
+
+    /**
+     * @param name
+     * @return the counter with this name, created if needed
+     */
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter newCounter = new Counter(this);
+            counter = mCounters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return a summary of all metrics, one per line and sorted by name
+     */
+    public String dump() {
+        SortedMap<String, Object> metrics = new TreeMap<String, Object>();
+        metrics.putAll(mCounters);
+        metrics.putAll(mHistograms);
+        metrics.putAll(mTimers);
+
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param name
+     * @return the histogram with this name, created if needed
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram(this);
+            histogram = mHistograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return {@code true} if values are recorded
+     */
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    /**
+     * Sets all metrics back to zero
+     */
+    public void reset() {
+        for (Counter counter : mCounters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+        for (Timer timer : mTimers.values()) {
+            timer.mDurations.reset();
+        }
+    }
+
+    /**
+     * @param enabled
+     *            if {@code false}, recording values does nothing
+     */
+    public void setEnabled(boolean enabled) {
+        mIsEnabled = enabled;
+    }
+
+    /**
+     * @param name
+     * @return the timer with this name, created if needed
+     */
+    public Timer timer(String name) {
+        Timer timer = mTimers.get(name);
+        if (timer == null) {
+            Timer newTimer = new Timer(this);
+            timer = mTimers.putIfAbsent(name, newTimer);
+            if (timer == null) {
+                timer = newTimer;
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * A number that can only be increased
+     *
+     * @author jfperren
+     */
+    public static final class Counter {
+        private final MetricsRegistry mRegistry;
+        private final AtomicLong mCount;
+
+        private Counter(MetricsRegistry registry) {
+            mRegistry = registry;
+            mCount = new AtomicLong();
+        }
+
+        /**
+         * @return current value
+         */
+        public long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * Increases the counter by one
+         */
+        public void increment() {
+            this.increment(1);
+        }
+
+        /**
+         * @param amount
+         */
+        public void increment(long amount) {
+            if (mRegistry.mIsEnabled) {
+                mCount.addAndGet(amount);
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "count=" + mCount.get();
+        }
+
+        private void reset() {
+            mCount.set(0);
+        }
+    }
+
+    /**
+     * Distribution of non-negative values. Values are counted in buckets whose bounds are powers of two, so
+     * percentiles are only precise up to a factor of two, which is enough to spot outliers.
+     *
+     * @author jfperren
+     */
+    public static final class Histogram {
+        // Bucket i contains values in [2^(i-1), 2^i), bucket 0 contains 0
+        private static final int BUCKETS = 64;
+
+        private final MetricsRegistry mRegistry;
+        private final AtomicLongArray mBuckets;
+        private final AtomicLong mCount;
+        private final AtomicLong mSum;
+        private final AtomicLong mMax;
+
+        private Histogram(MetricsRegistry registry) {
+            mRegistry = registry;
+            mBuckets = new AtomicLongArray(BUCKETS);
+            mCount = new AtomicLong();
+            mSum = new AtomicLong();
+            mMax = new AtomicLong();
+        }
+
+        /**
+         * @return number of recorded values
+         */
+        public long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * @return largest recorded value, 0 if none
+         */
+        public long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * @return average of recorded values, 0 if none
+         */
+        public double getMean() {
+            long count = mCount.get();
+            return (count == 0) ? 0 : (double) mSum.get() / count;
+        }
+
+        /**
+         * @param percentile
+         *            between 0 and 100
+         * @return an upper bound of the given percentile of recorded values, 0 if none
+         */
+        public long getPercentile(double percentile) {
+            if ((percentile < 0) || (percentile > 100)) {
+                throw new IllegalArgumentException("Invalid percentile " + percentile);
+            }
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mBuckets.get(i);
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil((percentile / 100) * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if ((seen >= rank) && (seen > 0)) {
+                    // Never report more than the real maximum
+                    return Math.min(upperBound(i), mMax.get());
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @param value
+         *            non-negative, negative values are recorded as 0
+         */
+        public void record(long value) {
+            if (!mRegistry.mIsEnabled) {
+                return;
+            }
+            long positiveValue = Math.max(0, value);
+            int bucket = Long.SIZE - Long.numberOfLeadingZeros(positiveValue);
+            mBuckets.incrementAndGet(Math.min(BUCKETS - 1, bucket));
+            mCount.incrementAndGet();
+            mSum.addAndGet(positiveValue);
+            long max = mMax.get();
+            while ((positiveValue > max) && !mMax.compareAndSet(max, positiveValue)) {
+                max = mMax.get();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "count=%d mean=%.1f p50=%d p99=%d max=%d",
+                mCount.get(), this.getMean(), this.getPercentile(50), this.getPercentile(99), mMax.get());
+        }
+
+        private void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        private static long upperBound(int bucket) {
+            return (bucket == 0) ? 0 : (bucket >= (Long.SIZE - 1)) ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+    }
+
+    /**
+     * Distribution of durations, recorded in microseconds
+     *
+     * @author jfperren
+     */
+    public static final class Timer {
+        // Returned by start when metrics are disabled, nanoTime can be negative
+        private static final long NOT_STARTED = Long.MIN_VALUE;
+
+        private final MetricsRegistry mRegistry;
+        private final Histogram mDurations;
+
+        private Timer(MetricsRegistry registry) {
+            mRegistry = registry;
+            mDurations = new Histogram(registry);
+        }
+
+        /**
+         * @return durations in microseconds
+         */
+        public Histogram getDurations() {
+            return mDurations;
+        }
+
+        /**
+         * @param duration
+         * @param unit
+         */
+        public void record(long duration, TimeUnit unit) {
+            mDurations.record(unit.toMicros(duration));
+        }
+
+        /**
+         * @return a value to give to {@code stop}
+         */
+        public long start() {
+            return mRegistry.mIsEnabled ? System.nanoTime() : NOT_STARTED;
+        }
+
+        /**
+         * Records the time elapsed since {@code start}
+         *
+         * @param start
+         *            value returned by {@code start}
+         */
+        public void stop(long start) {
+            if (start != NOT_STARTED) {
+                this.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Records the time elapsed since {@code start} only if it is long enough, for example to only record
+         * waits for a lock that was held by another thread
+         *
+         * @param start
+         *            value returned by {@code start}
+         * @param minimumNanos
+         *            shorter durations are ignored
+         */
+        public void stop(long start, long minimumNanos) {
+            if (start != NOT_STARTED) {
+                long duration = System.nanoTime() - start;
+                if (duration >= minimumNanos) {
+                    this.record(duration, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return mDurations.toString() + " (us)";
+        }
+    }
+}
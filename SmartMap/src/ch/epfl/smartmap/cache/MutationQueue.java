@@ -0,0 +1,265 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.servercom.Mutation;
+import ch.epfl.smartmap.servercom.SmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Write-ahead log of the changes made by the user while the server cannot be reached. A {@link Mutation} is
+ * stored in the database before the {@code Cache} applies it, so that it survives a restart of the
+ * application. Once the server is reachable, {@code replay} collapses the log and sends it in batches of
+ * {@code Mutation.MAX_BATCH_SIZE}, then removes what the server processed. Changes to an event created
+ * offline are sent in a later batch than its creation, with the id given by the server. That id is written
+ * to them in the log when the creation is removed from it, so that they survive a restart.
+ *
+ * @author jfperren
+ */
+final class MutationQueue {
+
+    private static final String TAG = MutationQueue.class.getSimpleName();
+
+    private final Cache mCache;
+    private final AtomicLong mLastLocalId;
+    // Only one replay at a time, so that mutations are sent in order
+    private final Object mReplayLock;
+
+    // Mutations not processed by the server yet, in order, loaded from the database on first use
+    private List<Mutation> mPending;
+
+    /**
+     * Constructor
+     *
+     * @param cache
+     *            Cache in which results are put
+     */
+    MutationQueue(Cache cache) {
+        mCache = cache;
+        // Local ids grow with time, so that they are not given again after a restart
+        mLastLocalId = new AtomicLong(Mutation.FIRST_LOCAL_ID + System.currentTimeMillis());
+        mReplayLock = new Object();
+    }
+
+    /**
+     * Stores a mutation at the end of the log
+     *
+     * @param mutation
+     */
+    synchronized void add(Mutation mutation) {
+        this.loadIfNeeded();
+        long id = ServiceContainer.getDatabase().addMutation(mutation);
+        mPending.add(mutation.withId(id));
+        ServiceContainer.getMetrics().counter(MetricsRegistry.MUTATIONS_QUEUED).increment();
+    }
+
+    /**
+     * @return whether all mutations were processed by the server
+     */
+    synchronized boolean isEmpty() {
+        this.loadIfNeeded();
+        return mPending.isEmpty();
+    }
+
+    /**
+     * @return an id for an event created offline, see {@code Mutation.FIRST_LOCAL_ID}
+     */
+    long nextLocalId() {
+        return mLastLocalId.incrementAndGet();
+    }
+
+    /**
+     * Sends the logged mutations, stops at the first batch that fails or that the server did not process
+     * entirely. The remaining mutations are kept for the next replay.
+     *
+     * @param networkClient
+     * @return the number of mutations processed by the server
+     * @throws SmartMapClientException
+     */
+    int replay(SmartMapClient networkClient) throws SmartMapClientException {
+        synchronized (mReplayLock) {
+            List<Mutation> pending;
+            synchronized (this) {
+                this.loadIfNeeded();
+                pending = new ArrayList<Mutation>(mPending);
+            }
+            if (pending.isEmpty()) {
+                return 0;
+            }
+
+            List<Mutation> collapsed = Mutation.collapse(pending);
+            List<Mutation> dropped = new ArrayList<Mutation>(pending);
+            dropped.removeAll(collapsed);
+            this.remove(dropped);
+            MetricsRegistry metrics = ServiceContainer.getMetrics();
+            metrics.counter(MetricsRegistry.MUTATIONS_COLLAPSED).increment(dropped.size());
+
+            // Ids given by the server to the events created offline, by local id
+            Map<Long, Long> createdIds = new HashMap<Long, Long>();
+            int replayed = 0;
+            List<Mutation> orphans = new ArrayList<Mutation>();
+            int next = 0;
+            while (next < collapsed.size()) {
+                List<Mutation> batch = new ArrayList<Mutation>();
+                Set<Long> createdInBatch = new HashSet<Long>();
+                while ((next < collapsed.size()) && (batch.size() < Mutation.MAX_BATCH_SIZE)) {
+                    Mutation mutation = collapsed.get(next);
+                    if (changesLocalEvent(mutation)) {
+                        if (createdInBatch.contains(mutation.getTargetId())) {
+                            // Sent in the next batch, once the server gave the event its id
+                            break;
+                        }
+                        Long id = createdIds.get(mutation.getTargetId());
+                        if (id == null) {
+                            // The creation of the event was refused
+                            Log.w(TAG, "Mutation " + mutation + " changes an event that was not created");
+                            orphans.add(mutation);
+                            next++;
+                            continue;
+                        }
+                        mutation = mutation.withTargetId(id);
+                    } else if (mutation.getType() == Mutation.Type.CREATE_EVENT) {
+                        createdInBatch.add(mutation.getTargetId());
+                    }
+                    batch.add(mutation);
+                    next++;
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+
+                Map<String, Mutation.Result> results = new HashMap<String, Mutation.Result>();
+                for (Mutation.Result result : networkClient.replayMutations(batch)) {
+                    results.put(result.getKey(), result);
+                }
+
+                List<Mutation> processed = new ArrayList<Mutation>();
+                for (Mutation mutation : batch) {
+                    Mutation.Result result = results.get(mutation.getKey());
+                    if (result == null) {
+                        // The server stopped there, the others are sent next time
+                        break;
+                    }
+                    this.applyResult(mutation, result, createdIds);
+                    processed.add(mutation);
+                }
+                this.remove(processed, createdIds);
+                replayed += processed.size();
+
+                if (processed.size() < batch.size()) {
+                    break;
+                }
+            }
+
+            this.remove(orphans);
+
+            metrics.counter(MetricsRegistry.MUTATIONS_REPLAYED).increment(replayed);
+            Log.d(TAG, "Replayed " + replayed + " mutations, dropped " + (dropped.size() + orphans.size()));
+            return replayed;
+        }
+    }
+
+    private void applyResult(Mutation mutation, Mutation.Result result, Map<Long, Long> createdIds) {
+        if (!result.isSuccess()) {
+            Log.w(TAG, "Mutation " + mutation + " was refused: " + result.getMessage());
+            this.undo(mutation);
+        }
+        if (mutation.getType() == Mutation.Type.CREATE_EVENT) {
+            if (result.isSuccess()) {
+                createdIds.put(mutation.getTargetId(), result.getId());
+            }
+            mCache.replaceLocalEvent(mutation.getTargetId(), result.isSuccess() ? result.getId()
+                : Mutation.NO_ID);
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mPending == null) {
+            mPending = ServiceContainer.getDatabase().getAllMutations();
+        }
+    }
+
+    private void remove(List<Mutation> mutations) {
+        this.remove(mutations, Collections.<Long, Long> emptyMap());
+    }
+
+    /**
+     * Removes processed mutations, and gives the id of the events created by them to the pending mutations
+     * that change these events. Both are written in the same transaction, so that these mutations are still
+     * sent to the right event after a restart.
+     *
+     * @param mutations
+     *            processed mutations
+     * @param createdIds
+     *            ids given by the server to the events created offline, by local id
+     */
+    private synchronized void remove(List<Mutation> mutations, Map<Long, Long> createdIds) {
+        List<Mutation> rewritten = new ArrayList<Mutation>();
+        for (Mutation mutation : mPending) {
+            if (changesLocalEvent(mutation) && createdIds.containsKey(mutation.getTargetId())
+                && !mutations.contains(mutation)) {
+                rewritten.add(mutation.withTargetId(createdIds.get(mutation.getTargetId())));
+            }
+        }
+        if (mutations.isEmpty() && rewritten.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<Long>();
+        for (Mutation mutation : mutations) {
+            ids.add(mutation.getId());
+        }
+        ServiceContainer.getDatabase().deleteMutations(ids, rewritten);
+        mPending.removeAll(mutations);
+        for (Mutation mutation : rewritten) {
+            // Same key, so equal to the mutation it replaces
+            mPending.set(mPending.indexOf(mutation), mutation);
+        }
+    }
+
+    /**
+     * Undoes the change that the Cache applied for a mutation that the server refused
+     *
+     * @param mutation
+     */
+    private void undo(Mutation mutation) {
+        switch (mutation.getType()) {
+            case BLOCK_FRIEND:
+                mCache.restoreBlockedStatus(mutation.getTargetId(), User.BlockStatus.UNBLOCKED);
+                break;
+            case UNBLOCK_FRIEND:
+                mCache.restoreBlockedStatus(mutation.getTargetId(), User.BlockStatus.BLOCKED);
+                break;
+            case JOIN_EVENT:
+                mCache.restoreParticipation(mutation.getTargetId(), false);
+                break;
+            case LEAVE_EVENT:
+                mCache.restoreParticipation(mutation.getTargetId(), true);
+                break;
+            case CREATE_EVENT:
+                // The local event is removed with its result
+                break;
+            default:
+                // Invitations and event updates are set back by the next update from the network
+                break;
+        }
+    }
+
+    /**
+     * @param mutation
+     * @return whether the mutation changes an event created offline, which must be created on the server
+     *         first
+     */
+    private static boolean changesLocalEvent(Mutation mutation) {
+        return mutation.getType().isOnEvent() && (mutation.getType() != Mutation.Type.CREATE_EVENT)
+            && Mutation.isLocalId(mutation.getTargetId());
+    }
+}
@@ -0,0 +1,317 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+import android.util.Log;
+import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.background.SettingsManager;
+import ch.epfl.smartmap.servercom.Mutation;
+import ch.epfl.smartmap.servercom.NetworkExecutor;
+import ch.epfl.smartmap.servercom.NetworkExecutor.Priority;
+import ch.epfl.smartmap.servercom.SmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Does the work of {@code Cache.updateFromNetwork}. Requests are sent in parallel in the background lane of
+ * the {@code NetworkExecutor}, so they share its threads and connections with the other background work,
+ * and each id is only fetched once even if it is needed by several phases (for example a friend
+ * who is also the creator of an event). Results are given to the {@code Cache} in a single batch at the end,
+ * so the Cache is never locked while waiting for the network.
+ * <p>
+ * A synchronization is made of three phases:
+ * <ul>
+ * <li>{@code PHASE_LISTS}: fetch friend ids, friend positions and near event ids</li>
+ * <li>{@code PHASE_USERS} and {@code PHASE_EVENTS}: fetch informations and pictures of every needed user,
+ * and informations of every cached event, with one batched request for each kind of data. Pictures that are
+ * already in the {@code ImageStore} are revalidated one by one instead, which only costs a 304 Not Modified
+ * if they did not change. They run at the same time, their durations are measured from the start of the
+ * phase to the end of their last request.</li>
+ * <li>{@code PHASE_APPLY}: put the results in the Cache</li>
+ * </ul>
+ * The duration of each phase during the last synchronization is available with {@code getLastTimings}.
+ *
+ * @author jfperren
+ */
+final class NetworkSyncEngine {
+
+    private static final String TAG = NetworkSyncEngine.class.getSimpleName();
+
+    static final String PHASE_LISTS = "lists";
+    static final String PHASE_USERS = "users";
+    static final String PHASE_EVENTS = "events";
+    static final String PHASE_APPLY = "apply";
+
+    // Pictures received more recently than this are not downloaded again, in milliseconds
+    static final long PICTURE_MAX_AGE = 30 * 60 * 1000;
+
+    private final Cache mCache;
+
+    private volatile Map<String, Long> mLastTimings;
+
+    /**
+     * Constructor
+     *
+     * @param cache
+     *            Cache in which results are put
+     */
+    NetworkSyncEngine(Cache cache) {
+        mCache = cache;
+        mLastTimings = Collections.emptyMap();
+    }
+
+    /**
+     * @return the duration in milliseconds of each phase of the last successful synchronization, in the
+     *         order they started. Empty if no synchronization succeeded yet.
+     */
+    Map<String, Long> getLastTimings() {
+        return mLastTimings;
+    }
+
+    /**
+     * Fetches everything the Cache needs from the network and puts it in the Cache
+     *
+     * @param networkClient
+     * @throws SmartMapClientException
+     *             if any request failed, in which case the Cache is not modified
+     */
+    void sync(final SmartMapClient networkClient) throws SmartMapClientException {
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        List<Future<?>> pending = new ArrayList<Future<?>>();
+        try {
+            // Lists
+            long phaseStart = System.currentTimeMillis();
+            SettingsManager settingsManager = ServiceContainer.getSettingsManager();
+            final long myId = settingsManager.getUserId();
+            final Location location = settingsManager.getLocation();
+            final double radius = settingsManager.getNearEventsMaxDistance();
+
+            Future<List<Long>> friendIdsFuture = this.submit(pending, new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() throws SmartMapClientException {
+                    return networkClient.getFriendsIds();
+                }
+            });
+            Future<List<UserContainer>> positionsFuture =
+                this.submit(pending, new Callable<List<UserContainer>>() {
+                    @Override
+                    public List<UserContainer> call() throws SmartMapClientException {
+                        return networkClient.listFriendsPos();
+                    }
+                });
+            Future<List<Long>> nearEventIdsFuture = this.submit(pending, new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() throws SmartMapClientException {
+                    return networkClient.getPublicEvents(location.getLatitude(), location.getLongitude(),
+                        radius);
+                }
+            });
+
+            LongSet friendIds = new LongSet(await(friendIdsFuture));
+            Map<Long, UserContainer> positions = new HashMap<Long, UserContainer>();
+            for (UserContainer position : await(positionsFuture)) {
+                positions.put(position.getId(), position);
+            }
+            LongSet nearEventIds = new LongSet(await(nearEventIdsFuture));
+            timings.put(PHASE_LISTS, System.currentTimeMillis() - phaseStart);
+
+            // Users and events, every id is fetched only once
+            phaseStart = System.currentTimeMillis();
+            LongSet userIdsToFetch = new LongSet();
+            userIdsToFetch.add(myId);
+            userIdsToFetch.addAll(positions.keySet());
+
+            // Friends that blocked us or that we blocked do not appear in positions, use cached values
+            LongSet hiddenFriendIds = new LongSet(friendIds);
+            hiddenFriendIds.removeAll(positions.keySet());
+            Map<Long, UserContainer> cachedHiddenFriends = new HashMap<Long, UserContainer>();
+            for (long id : hiddenFriendIds.toLongArray()) {
+                User cached = mCache.getUser(id);
+                if (cached != null) {
+                    cachedHiddenFriends.put(id, cached.getContainerCopy());
+                } else {
+                    userIdsToFetch.add(id);
+                }
+            }
+
+            for (Invitation invitation : mCache.getAllInvitations()) {
+                if (invitation.getType() == Invitation.FRIEND_INVITATION) {
+                    userIdsToFetch.add(invitation.getUser().getId());
+                }
+            }
+
+            // A single batched request for users, one for new pictures and one for events
+            final ImageStore imageStore = ServiceContainer.getImageStore();
+            final List<Long> pictureIdsToFetch = new ArrayList<Long>();
+            final List<Long> pictureIdsToRevalidate = new ArrayList<Long>();
+            for (long id : userIdsToFetch.toLongArray()) {
+                if (!imageStore.hasFreshPicture(id, PICTURE_MAX_AGE)) {
+                    if (imageStore.get(id) != null) {
+                        pictureIdsToRevalidate.add(id);
+                    } else {
+                        pictureIdsToFetch.add(id);
+                    }
+                }
+            }
+            final List<Long> userIdsList = new ArrayList<Long>(userIdsToFetch);
+            Future<List<UserContainer>> usersFuture =
+                this.submit(pending, new Callable<List<UserContainer>>() {
+                    @Override
+                    public List<UserContainer> call() throws SmartMapClientException {
+                        return networkClient.getUsersInfo(userIdsList);
+                    }
+                });
+            Future<Map<Long, Bitmap>> picturesFuture =
+                this.submit(pending, new Callable<Map<Long, Bitmap>>() {
+                    @Override
+                    public Map<Long, Bitmap> call() throws SmartMapClientException {
+                        return networkClient.getProfilePictures(pictureIdsToFetch);
+                    }
+                });
+            // Conditional requests are small, send them at the same time as the others
+            Map<Long, Future<Bitmap>> revalidatedPictureFutures = new HashMap<Long, Future<Bitmap>>();
+            for (final long id : pictureIdsToRevalidate) {
+                revalidatedPictureFutures.put(id, this.submit(pending, new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws SmartMapClientException {
+                        return networkClient.getProfilePictureIfModified(id);
+                    }
+                }));
+            }
+
+            final List<Long> eventIds = new ArrayList<Long>();
+            for (Event cachedEvent : mCache.getAllEvents()) {
+                if (Mutation.isLocalId(cachedEvent.getId())) {
+                    // Created offline, the server does not know it yet
+                    continue;
+                }
+                eventIds.add(cachedEvent.getId());
+            }
+            Future<List<EventContainer>> eventsFuture =
+                this.submit(pending, new Callable<List<EventContainer>>() {
+                    @Override
+                    public List<EventContainer> call() throws SmartMapClientException {
+                        return networkClient.getEventsInfo(eventIds);
+                    }
+                });
+
+            Map<Long, UserContainer> updatedUsers = new HashMap<Long, UserContainer>();
+            Map<Long, Bitmap> pictures = new HashMap<Long, Bitmap>(await(picturesFuture));
+            for (Map.Entry<Long, Future<Bitmap>> entry : revalidatedPictureFutures.entrySet()) {
+                Bitmap picture = await(entry.getValue());
+                if (picture != null) {
+                    pictures.put(entry.getKey(), picture);
+                } else {
+                    // Still up to date, keep the one in the store
+                    imageStore.markReceived(entry.getKey());
+                }
+            }
+            for (UserContainer onlineInfos : await(usersFuture)) {
+                long id = onlineInfos.getId();
+                // A null image keeps the one in the store
+                Bitmap picture = pictures.get(id);
+                if (picture != null) {
+                    onlineInfos.setImage(picture);
+                }
+                UserContainer position = positions.get(id);
+                if (position != null) {
+                    onlineInfos.setLocation(position.getLocation());
+                    onlineInfos.setLocationString(position.getLocationString());
+                } else if (hiddenFriendIds.contains(id)) {
+                    // Prefer values from the database, only the name is taken from the server
+                    UserContainer friend = ServiceContainer.getDatabase().getUser(id);
+                    if (friend != null) {
+                        friend.setName(onlineInfos.getName());
+                        if (onlineInfos.getImage() != null) {
+                            friend.setImage(onlineInfos.getImage());
+                        }
+                        onlineInfos = friend;
+                    }
+                    onlineInfos.setFriendship(User.FRIEND);
+                }
+                updatedUsers.put(id, onlineInfos);
+            }
+            updatedUsers.putAll(cachedHiddenFriends);
+            timings.put(PHASE_USERS, System.currentTimeMillis() - phaseStart);
+
+            Set<EventContainer> updatedEvents = new HashSet<EventContainer>();
+            for (EventContainer onlineInfos : await(eventsFuture)) {
+                // Check if event needs to be kept
+                if (nearEventIds.contains(onlineInfos.getId())
+                    || (onlineInfos.getCreatorContainer().getId() == myId)
+                    || onlineInfos.getParticipantIds().contains(myId)) {
+                    updatedEvents.add(onlineInfos);
+                    // Fetched informations are more complete than the creator's
+                    long creatorId = onlineInfos.getCreatorContainer().getId();
+                    if (!updatedUsers.containsKey(creatorId)) {
+                        updatedUsers.put(creatorId, onlineInfos.getCreatorContainer());
+                    }
+                }
+            }
+            timings.put(PHASE_EVENTS, System.currentTimeMillis() - phaseStart);
+
+            // Apply everything at once
+            phaseStart = System.currentTimeMillis();
+            mCache.applyNetworkUpdate(new HashSet<UserContainer>(updatedUsers.values()), updatedEvents);
+            timings.put(PHASE_APPLY, System.currentTimeMillis() - phaseStart);
+
+            Log.d(TAG, "Fetched " + userIdsList.size() + " users and " + eventIds.size()
+                + " events, timings: " + timings);
+            mLastTimings = Collections.unmodifiableMap(timings);
+        } finally {
+            // Does nothing if everything completed, otherwise stops sending useless requests
+            for (Future<?> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private <T> Future<T> submit(List<Future<?>> pending, Callable<T> task) {
+        if (NetworkExecutor.isBackgroundThread()) {
+            // Waiting for other tasks of the lane from one of its threads could block it forever
+            FutureTask<T> future = new FutureTask<T>(task);
+            future.run();
+            return future;
+        }
+        Future<T> future = ServiceContainer.getNetworkExecutor().submit(Priority.BACKGROUND, task, null);
+        pending.add(future);
+        return future;
+    }
+
+    /**
+     * Waits for the result of a request, and rethrows its exception if it failed
+     */
+    private static <T> T await(Future<T> future) throws SmartMapClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmartMapClientException(e);
+        } catch (CancellationException e) {
+            // Timed out in the NetworkExecutor
+            throw new SmartMapClientException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SmartMapClientException) {
+                throw (SmartMapClientException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new SmartMapClientException(cause);
+            }
+        }
+    }
+}
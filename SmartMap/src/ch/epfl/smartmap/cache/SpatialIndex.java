@@ -0,0 +1,334 @@
+package ch.epfl.smartmap.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A uniform latitude/longitude grid mapping ids to the cell containing their position. Queries only look at
+ * the cells overlapping the searched area instead of scanning every entry, so their cost depends on the
+ * size of the area and not on the number of indexed items. This class is not thread-safe, the {@code Cache}
+ * is responsible for synchronizing the accesses.
+ *
+ * @author jfperren
+ */
+public final class SpatialIndex {
+
+    // Default size of a cell, roughly 5.5km along a meridian
+    public static final double DEFAULT_CELL_SIZE = 0.05;
+
+    // Mean earth radius, in meters
+    public static final double EARTH_RADIUS = 6371009;
+
+    private static final double METERS_PER_DEGREE = (Math.PI * EARTH_RADIUS) / 180;
+    private static final double MAX_LATITUDE = 90;
+    private static final double MAX_LONGITUDE = 180;
+
+    private final double mCellSize;
+    private final int mRows;
+    private final int mColumns;
+
+    // Ids contained in each non-empty cell
+    private final Map<Long, Set<Long>> mCells;
+    // Position of each indexed id, as {latitude, longitude}
+    private final Map<Long, double[]> mPositions;
+
+    /**
+     * Constructor, creates an index with cells of {@code DEFAULT_CELL_SIZE} degrees
+     */
+    public SpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cellSize
+     *            size of a cell side, in degrees
+     */
+    public SpatialIndex(double cellSize) {
+        if ((cellSize <= 0) || (cellSize > MAX_LONGITUDE)) {
+            throw new IllegalArgumentException("Invalid cell size " + cellSize);
+        }
+        mCellSize = cellSize;
+        mRows = (int) Math.ceil((2 * MAX_LATITUDE) / cellSize) + 1;
+        mColumns = (int) Math.ceil((2 * MAX_LONGITUDE) / cellSize) + 1;
+        mCells = new HashMap<Long, Set<Long>>();
+        mPositions = new HashMap<Long, double[]>();
+    }
+
+    /**
+     * Removes every id from the index
+     */
+    public void clear() {
+        mCells.clear();
+        mPositions.clear();
+    }
+
+    /**
+     * @param id
+     * @return {@code true} if the id is indexed
+     */
+    public boolean contains(long id) {
+        return mPositions.containsKey(id);
+    }
+
+    /**
+     * @param latitude
+     * @param longitude
+     * @return the key of the cell containing the given position, which only depends on the cell size
+     */
+    public long getCell(double latitude, double longitude) {
+        return this.cellOf(latitude, longitude);
+    }
+
+    /**
+     * Gives the cells that may contain positions at most {@code radius} meters away from the center, so
+     * that positions stored with their cell key, for example in a database, can be searched with range
+     * queries. Keys of a row of the grid are consecutive, so there is at most one range per row, or two if
+     * the circle crosses the 180th meridian. Ranges that follow each other are merged.
+     *
+     * @param latitude
+     *            latitude of the center
+     * @param longitude
+     *            longitude of the center
+     * @param radius
+     *            radius of the circle, in meters
+     * @return the ranges of cell keys as {first, last}, both inclusive, sorted by key
+     */
+    public List<long[]> getCellRangesWithin(double latitude, double longitude, double radius) {
+        double[] bounds = boundsWithin(latitude, longitude, radius);
+        int firstRow = this.rowOf(bounds[0]);
+        int lastRow = this.rowOf(bounds[2]);
+        int firstColumn = this.columnOf(bounds[1]);
+        int lastColumn = this.columnOf(bounds[3]);
+
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            long rowStart = (long) row * mColumns;
+            if (firstColumn <= lastColumn) {
+                addRange(ranges, rowStart + firstColumn, rowStart + lastColumn);
+            } else {
+                // Crosses the 180th meridian, east part first to keep the keys sorted
+                addRange(ranges, rowStart, rowStart + lastColumn);
+                addRange(ranges, rowStart + firstColumn, (rowStart + mColumns) - 1);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @param south
+     *            southern latitude of the area
+     * @param west
+     *            western longitude of the area
+     * @param north
+     *            northern latitude of the area
+     * @param east
+     *            eastern longitude of the area, may be smaller than {@code west} if the area crosses the
+     *            180th meridian
+     * @return ids of all items located inside the given area
+     */
+    public Set<Long> getIdsInBounds(double south, double west, double north, double east) {
+        Set<Long> result = new HashSet<Long>();
+        if (west <= east) {
+            this.collectInBounds(south, west, north, east, result);
+        } else {
+            // Area crosses the 180th meridian, split it in two
+            this.collectInBounds(south, west, north, MAX_LONGITUDE, result);
+            this.collectInBounds(south, -MAX_LONGITUDE, north, east, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param latitude
+     *            latitude of the center
+     * @param longitude
+     *            longitude of the center
+     * @param radius
+     *            radius of the circle, in meters
+     * @return ids of all items located at most {@code radius} meters away from the center
+     */
+    public Set<Long> getIdsWithin(double latitude, double longitude, double radius) {
+        double[] bounds = boundsWithin(latitude, longitude, radius);
+        Set<Long> candidates = this.getIdsInBounds(bounds[0], bounds[1], bounds[2], bounds[3]);
+
+        Set<Long> result = new HashSet<Long>();
+        for (long id : candidates) {
+            double[] position = mPositions.get(id);
+            if (distance(latitude, longitude, position[0], position[1]) <= radius) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds an id to the index, or moves it if it was already indexed
+     *
+     * @param id
+     * @param latitude
+     * @param longitude
+     */
+    public void put(long id, double latitude, double longitude) {
+        double[] previous = mPositions.get(id);
+        long newCell = this.cellOf(latitude, longitude);
+
+        if (previous != null) {
+            long previousCell = this.cellOf(previous[0], previous[1]);
+            if (previousCell != newCell) {
+                this.removeFromCell(previousCell, id);
+            }
+        }
+
+        Set<Long> cell = mCells.get(newCell);
+        if (cell == null) {
+            cell = new HashSet<Long>();
+            mCells.put(newCell, cell);
+        }
+        cell.add(id);
+        mPositions.put(id, new double[]{latitude, longitude});
+    }
+
+    /**
+     * Removes an id from the index, does nothing if it was not indexed
+     *
+     * @param id
+     */
+    public void remove(long id) {
+        double[] position = mPositions.remove(id);
+        if (position != null) {
+            this.removeFromCell(this.cellOf(position[0], position[1]), id);
+        }
+    }
+
+    /**
+     * @return the number of indexed ids
+     */
+    public int size() {
+        return mPositions.size();
+    }
+
+    private long cellOf(double latitude, double longitude) {
+        return ((long) this.rowOf(latitude) * mColumns) + this.columnOf(longitude);
+    }
+
+    private void collectInBounds(double south, double west, double north, double east, Set<Long> result) {
+        int firstRow = this.rowOf(south);
+        int lastRow = this.rowOf(north);
+        int firstColumn = this.columnOf(west);
+        int lastColumn = this.columnOf(east);
+
+        long coveredCells = ((long) (lastRow - firstRow) + 1) * ((long) (lastColumn - firstColumn) + 1);
+
+        if (coveredCells > mCells.size()) {
+            // Area is larger than the occupied part of the grid, visit occupied cells only
+            for (Map.Entry<Long, Set<Long>> cell : mCells.entrySet()) {
+                int row = (int) (cell.getKey() / mColumns);
+                int column = (int) (cell.getKey() % mColumns);
+                if ((row >= firstRow) && (row <= lastRow) && (column >= firstColumn)
+                    && (column <= lastColumn)) {
+                    this.collectInCell(cell.getValue(), south, west, north, east, result);
+                }
+            }
+        } else {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    Set<Long> cell = mCells.get(((long) row * mColumns) + column);
+                    if (cell != null) {
+                        this.collectInCell(cell, south, west, north, east, result);
+                    }
+                }
+            }
+        }
+    }
+
+    private void collectInCell(Set<Long> cell, double south, double west, double north, double east,
+        Set<Long> result) {
+        for (long id : cell) {
+            double[] position = mPositions.get(id);
+            if ((position[0] >= south) && (position[0] <= north) && (position[1] >= west)
+                && (position[1] <= east)) {
+                result.add(id);
+            }
+        }
+    }
+
+    private int columnOf(double longitude) {
+        int column = (int) Math.floor((wrapLongitude(longitude) + MAX_LONGITUDE) / mCellSize);
+        return Math.max(0, Math.min(mColumns - 1, column));
+    }
+
+    private void removeFromCell(long cellKey, long id) {
+        Set<Long> cell = mCells.get(cellKey);
+        if (cell != null) {
+            cell.remove(id);
+            if (cell.isEmpty()) {
+                mCells.remove(cellKey);
+            }
+        }
+    }
+
+    private int rowOf(double latitude) {
+        int row = (int) Math.floor((latitude + MAX_LATITUDE) / mCellSize);
+        return Math.max(0, Math.min(mRows - 1, row));
+    }
+
+    /**
+     * @return the great-circle distance in meters between two points, using the haversine formula
+     */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double deltaLatitude = Math.toRadians(latitude2 - latitude1);
+        double deltaLongitude = Math.toRadians(longitude2 - longitude1);
+        double a =
+            (Math.sin(deltaLatitude / 2) * Math.sin(deltaLatitude / 2))
+                + (Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                    * Math.sin(deltaLongitude / 2) * Math.sin(deltaLongitude / 2));
+        return 2 * EARTH_RADIUS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    private static void addRange(List<long[]> ranges, long first, long last) {
+        long[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if ((previous != null) && ((previous[1] + 1) == first)) {
+            previous[1] = last;
+        } else {
+            ranges.add(new long[]{first, last});
+        }
+    }
+
+    /**
+     * @return the bounds {south, west, north, east} of the area containing a circle, west may be greater
+     *         than east if the area crosses the 180th meridian
+     */
+    private static double[] boundsWithin(double latitude, double longitude, double radius) {
+        double latitudeDelta = radius / METERS_PER_DEGREE;
+        double south = Math.max(-MAX_LATITUDE, latitude - latitudeDelta);
+        double north = Math.min(MAX_LATITUDE, latitude + latitudeDelta);
+
+        // Longitude span of the circle grows with the latitude, take the widest one
+        double widestLatitude = Math.max(Math.abs(south), Math.abs(north));
+        double cosine = Math.cos(Math.toRadians(widestLatitude));
+        double longitudeDelta = (cosine > 0) ? latitudeDelta / cosine : MAX_LONGITUDE;
+
+        if ((longitudeDelta >= MAX_LONGITUDE) || (north >= MAX_LATITUDE) || (south <= -MAX_LATITUDE)) {
+            return new double[]{south, -MAX_LONGITUDE, north, MAX_LONGITUDE};
+        }
+        return new double[]{south, wrapLongitude(longitude - longitudeDelta), north,
+            wrapLongitude(longitude + longitudeDelta)};
+    }
+
+    private static double wrapLongitude(double longitude) {
+        if ((longitude >= -MAX_LONGITUDE) && (longitude <= MAX_LONGITUDE)) {
+            return longitude;
+        }
+        double wrapped = ((longitude + MAX_LONGITUDE) % (2 * MAX_LONGITUDE));
+        if (wrapped < 0) {
+            wrapped += 2 * MAX_LONGITUDE;
+        }
+        return wrapped - MAX_LONGITUDE;
+    }
+}
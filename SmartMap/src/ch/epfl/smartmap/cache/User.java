@@ -35,7 +35,7 @@ public abstract class User implements UserInterface {
 
     private final long mId;
     private String mName;
-    private Bitmap mImage;
+    private ImageStore.Handle mImage;
 
     /**
      * Constructor
@@ -51,9 +51,19 @@ public abstract class User implements UserInterface {
 
         mId = (id >= 0) ? id : User.NO_ID;
         mName = (name != null) ? name : User.NO_NAME;
-        mImage = (image != null) ? Bitmap.createBitmap(image) : User.NO_IMAGE;
 
-        if ((mId != User.NO_ID) && ((mName == User.NO_NAME) || (mImage == User.NO_IMAGE))) {
+        // Only keep a handle, the picture itself is shared in the store
+        ImageStore store = ServiceContainer.getImageStore();
+        boolean isImageKnown = true;
+        if ((image != null) && (image != User.NO_IMAGE)) {
+            mImage = (mId != User.NO_ID) ? store.put(mId, image) : store.intern(image);
+        } else {
+            ImageStore.Handle storedImage = store.get(mId);
+            isImageKnown = storedImage != null;
+            mImage = isImageKnown ? storedImage : store.getDefaultHandle();
+        }
+
+        if ((mId != User.NO_ID) && ((mName == User.NO_NAME) || !isImageKnown)) {
             // If missing informations, tell cache to ask the client
             ServiceContainer.getCache().updateUserInfos(id);
         }
@@ -74,7 +84,7 @@ public abstract class User implements UserInterface {
      */
     @Override
     public Bitmap getActionImage() {
-        return mImage;
+        return mImage.getBitmap();
     }
 
     /*
@@ -83,8 +93,9 @@ public abstract class User implements UserInterface {
      */
     @Override
     public UserContainer getContainerCopy() {
-        return new UserContainer(mId, mName, null, null, null, null, mImage, User.BlockStatus.UNBLOCKED,
-            this.getFriendship());
+        // Copy the handle, decoding the picture is left to those who draw it
+        return new UserContainer(mId, mName, null, null, null, null, null, User.BlockStatus.UNBLOCKED,
+            this.getFriendship()).setImageHandle(mImage);
     }
 
     /*
@@ -96,6 +107,13 @@ public abstract class User implements UserInterface {
         return mId;
     }
 
+    /**
+     * @return the handle on the profile picture, use it to get downsampled variants
+     */
+    public ImageStore.Handle getImageHandle() {
+        return mImage;
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.cache.User#getName()
@@ -151,9 +169,17 @@ public abstract class User implements UserInterface {
             hasChanged = true;
         }
 
-        if ((newValues.getImage() != null) && (newValues.getImage() != User.NO_IMAGE)
-            && !newValues.getImage().sameAs(mImage)) {
-            mImage = newValues.getImage();
+        if ((newValues.getImage() != null) && (newValues.getImage() != User.NO_IMAGE)) {
+            // Identical pictures share the same handle
+            ImageStore.Handle newImage = ServiceContainer.getImageStore().put(mId, newValues.getImage());
+            if (newImage != mImage) {
+                mImage = newImage;
+                hasChanged = true;
+            }
+        } else if ((newValues.getImageHandle() != null)
+            && (newValues.getImageHandle() != ServiceContainer.getImageStore().getDefaultHandle())
+            && (newValues.getImageHandle() != mImage)) {
+            mImage = newValues.getImageHandle();
             hasChanged = true;
         }
 
@@ -169,6 +195,16 @@ public abstract class User implements UserInterface {
      * @return the {@code User} live instance.
      */
     protected static User createFromContainer(UserContainer userContainer) {
+        User user = User.newFromContainer(userContainer);
+        if ((userContainer.getImage() == null) && (userContainer.getImageHandle() != null)
+            && (userContainer.getImageHandle() != ServiceContainer.getImageStore().getDefaultHandle())) {
+            // Keep the picture of the copy, without decoding it
+            user.mImage = userContainer.getImageHandle();
+        }
+        return user;
+    }
+
+    private static User newFromContainer(UserContainer userContainer) {
         switch (userContainer.getFriendship()) {
             case User.FRIEND:
                 return new Friend(userContainer.getId(), userContainer.getName(),
@@ -20,6 +20,7 @@ public final class UserContainer {
     private String mLocationString;
     private Location mLocation;
     private Bitmap mImage;
+    private ImageStore.Handle mImageHandle;
     private User.BlockStatus mIsBlocked;
     private int mFriendship;
 
@@ -76,12 +77,19 @@ public final class UserContainer {
     }
 
     /**
-     * @return image field
+     * @return image field, copies of live instances carry a handle instead, see {@link #getImageHandle()}
      */
     public Bitmap getImage() {
         return mImage;
     }
 
+    /**
+     * @return handle on the stored picture, the picture is only decoded when drawn
+     */
+    public ImageStore.Handle getImageHandle() {
+        return mImageHandle;
+    }
+
     /**
      * @return location field
      */
@@ -162,6 +170,15 @@ public final class UserContainer {
         return this;
     }
 
+    /**
+     * @param newImageHandle
+     * @return this
+     */
+    public UserContainer setImageHandle(ImageStore.Handle newImageHandle) {
+        mImageHandle = newImageHandle;
+        return this;
+    }
+
     /**
      * @param newLocation
      * @return this
@@ -1,20 +1,27 @@
 package ch.epfl.smartmap.database;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.location.Location;
@@ -27,10 +34,14 @@ import ch.epfl.smartmap.cache.EventContainer;
 import ch.epfl.smartmap.cache.Filter;
 import ch.epfl.smartmap.cache.FilterContainer;
 import ch.epfl.smartmap.cache.Friend;
+import ch.epfl.smartmap.cache.ImageStore;
 import ch.epfl.smartmap.cache.Invitation;
 import ch.epfl.smartmap.cache.InvitationContainer;
+import ch.epfl.smartmap.cache.LongSet;
+import ch.epfl.smartmap.cache.SpatialIndex;
 import ch.epfl.smartmap.cache.User;
 import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.Mutation;
 
 /**
  * SQLite helper
@@ -41,11 +52,12 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
 
     private static final String TAG = DatabaseHelper.class.getSimpleName();
 
-    private static final int DATABASE_VERSION = 12;
+    private static final int DATABASE_VERSION = 13;
     private static final String DATABASE_NAME = "SmartMapDB";
 
     public static final int DEFAULT_PICTURE = R.drawable.ic_default_user; // placeholder
-    public static final int IMAGE_QUALITY = 100;
+    // Quality of the lossy format of the stored pictures
+    public static final int IMAGE_QUALITY = 80;
 
     public static final String TABLE_USER = "users";
     public static final String TABLE_FILTER = "filters";
@@ -54,6 +66,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
     public static final String TABLE_EVENT_USER = "event_users";
     public static final String TABLE_INVITATIONS = "invitations";
     public static final String TABLE_PENDING = "pending";
+    public static final String TABLE_MUTATIONS = "mutations";
 
     private static final String KEY_USER_ID = "userID";
     private static final String KEY_NAME = "name";
@@ -79,51 +92,62 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
 
     private static final String KEY_EVTDESC = "eventDescription";
 
+    private static final String KEY_TARGET_ID = "targetID";
+    private static final String KEY_PARAMS = "params";
+    private static final String KEY_MUTATION_KEY = "mutationKey";
+    private static final String KEY_CELL = "cell";
+
+    // Aliases of the joined columns of the bulk reads
+    private static final String KEY_PARTICIPANT_ID = "participantID";
+    private static final String KEY_MEMBER_ID = "memberID";
+
     // Columns for the User table
     private static final String[] USER_COLUMNS = {KEY_USER_ID, KEY_NAME, KEY_NUMBER, KEY_EMAIL,
-        KEY_LONGITUDE, KEY_LATITUDE, KEY_POSNAME, KEY_LASTSEEN, KEY_BLOCKED, KEY_FRIENDSHIP};
+        KEY_LONGITUDE, KEY_LATITUDE, KEY_POSNAME, KEY_LASTSEEN, KEY_BLOCKED, KEY_FRIENDSHIP, KEY_CELL};
 
     // Columns for the Filter table
     private static final String[] FILTER_COLUMNS = {KEY_ID, KEY_NAME, KEY_ACTIVE};
 
-    // Columns for the Filter/User table
-    private static final String[] FILTER_USER_COLUMNS = {KEY_ID, KEY_FILTER_ID, KEY_USER_ID};
-
     // Columns for the Event table
     private static final String[] EVENT_COLUMNS = {KEY_ID, KEY_NAME, KEY_EVTDESC, KEY_USER_ID, KEY_LONGITUDE,
-        KEY_LATITUDE, KEY_DATE, KEY_ENDDATE, KEY_POSNAME, KEY_COUNTRY_NAME};
-
-    // Columns for the Event-User table
-    private static final String[] EVENT_USER_COLUMNS = {KEY_ID, KEY_EVENT_ID, KEY_USER_ID};
+        KEY_LATITUDE, KEY_DATE, KEY_ENDDATE, KEY_POSNAME, KEY_COUNTRY_NAME, KEY_CELL};
 
     // Columns for the pending requests table
     private static final String[] PENDING_COLUMNS = {KEY_USER_ID, KEY_NAME};
 
+    // Columns for the mutations table
+    private static final String[] MUTATION_COLUMNS = {KEY_ID, KEY_TYPE, KEY_TARGET_ID, KEY_PARAMS,
+        KEY_MUTATION_KEY, KEY_DATE};
+
     // Table of users
     private static final String CREATE_TABLE_USER = "CREATE TABLE IF NOT EXISTS " + TABLE_USER + "("
         + KEY_USER_ID + " INTEGER PRIMARY KEY," + KEY_NAME + " TEXT," + KEY_NUMBER + " TEXT," + KEY_EMAIL
         + " TEXT," + KEY_LONGITUDE + " DOUBLE," + KEY_LATITUDE + " DOUBLE," + KEY_POSNAME + " TEXT,"
-        + KEY_LASTSEEN + " INTEGER," + KEY_BLOCKED + " INTEGER," + KEY_FRIENDSHIP + " INTEGER" + ")";
+        + KEY_LASTSEEN + " INTEGER," + KEY_BLOCKED + " INTEGER," + KEY_FRIENDSHIP + " INTEGER," + KEY_CELL
+        + " INTEGER" + ")";
 
     // Table of filters
     private static final String CREATE_TABLE_FILTER = "CREATE TABLE IF NOT EXISTS " + TABLE_FILTER + "("
         + KEY_ID + " INTEGER PRIMARY KEY," + KEY_NAME + " TEXT," + KEY_ACTIVE + " INTEGER" + ")";
 
-    // Table that maps filters to users
+    // Table that maps filters to users, rows go away with their filter
     private static final String CREATE_TABLE_FILTER_USER = "CREATE TABLE IF NOT EXISTS " + TABLE_FILTER_USER
-        + "(" + KEY_ID + " INTEGER PRIMARY KEY," + KEY_FILTER_ID + " INTEGER," + KEY_USER_ID + " INTEGER"
-        + ")";
+        + "(" + KEY_ID + " INTEGER PRIMARY KEY," + KEY_FILTER_ID + " INTEGER NOT NULL REFERENCES "
+        + TABLE_FILTER + "(" + KEY_ID + ") ON DELETE CASCADE," + KEY_USER_ID + " INTEGER, UNIQUE ("
+        + KEY_FILTER_ID + "," + KEY_USER_ID + ")" + ")";
 
     // Table of events
     private static final String CREATE_TABLE_EVENT = "CREATE TABLE IF NOT EXISTS " + TABLE_EVENT + "("
         + KEY_ID + " INTEGER PRIMARY KEY," + KEY_NAME + " TEXT," + KEY_EVTDESC + " TEXT," + KEY_USER_ID
         + " INTEGER," + KEY_LONGITUDE + " DOUBLE," + KEY_LATITUDE + " DOUBLE," + KEY_DATE + " INTEGER,"
-        + KEY_ENDDATE + " INTEGER," + KEY_POSNAME + " TEXT," + KEY_COUNTRY_NAME + " TEXT" + ")";
+        + KEY_ENDDATE + " INTEGER," + KEY_POSNAME + " TEXT," + KEY_COUNTRY_NAME + " TEXT," + KEY_CELL
+        + " INTEGER" + ")";
 
-    // Table that maps events to attending users
+    // Table that maps events to attending users, rows go away with their event
     private static final String CREATE_TABLE_EVENT_USER = "CREATE TABLE IF NOT EXISTS " + TABLE_EVENT_USER
-        + "(" + KEY_ID + " INTEGER PRIMARY KEY," + KEY_EVENT_ID + " INTEGER," + KEY_USER_ID + " INTEGER"
-        + ")";
+        + "(" + KEY_ID + " INTEGER PRIMARY KEY," + KEY_EVENT_ID + " INTEGER NOT NULL REFERENCES "
+        + TABLE_EVENT + "(" + KEY_ID + ") ON DELETE CASCADE," + KEY_USER_ID + " INTEGER, UNIQUE ("
+        + KEY_EVENT_ID + "," + KEY_USER_ID + ")" + ")";
 
     // Table of invitations
     private static final String CREATE_TABLE_INVITATIONS = "CREATE TABLE IF NOT EXISTS " + TABLE_INVITATIONS
@@ -134,8 +158,45 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
     private static final String CREATE_TABLE_PENDING = "CREATE TABLE IF NOT EXISTS " + TABLE_PENDING + "("
         + KEY_USER_ID + " INTEGER PRIMARY KEY," + KEY_NAME + " TEXT" + ")";
 
+    // Log of mutations made offline, in the order they were made
+    private static final String CREATE_TABLE_MUTATIONS = "CREATE TABLE IF NOT EXISTS " + TABLE_MUTATIONS + "("
+        + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," + KEY_TYPE + " TEXT," + KEY_TARGET_ID + " INTEGER,"
+        + KEY_PARAMS + " TEXT," + KEY_MUTATION_KEY + " TEXT UNIQUE," + KEY_DATE + " INTEGER" + ")";
+
+    // Secondary indexes, the unique constraints already index event_users and filter_users by event and
+    // filter
+    private static final String[] CREATE_INDEXES = {
+        createIndex(TABLE_EVENT_USER, KEY_USER_ID), createIndex(TABLE_INVITATIONS, KEY_USER_ID),
+        createIndex(TABLE_INVITATIONS, KEY_EVENT_ID), createIndex(TABLE_USER, KEY_CELL),
+        createIndex(TABLE_EVENT, KEY_CELL)};
+
+    // Above this number of ranges of cells, a near query scans all the rows of the band of latitudes
+    private static final int MAX_CELL_RANGES = 32;
+
+    // Only the grid of this index is used, to give the cell of each user and event
+    private static final SpatialIndex GRID = new SpatialIndex();
+
+    // Statements of the bulk write, conflict clauses replace the lookups done by the add methods
+    private static final String INSERT_USER = insertInto("REPLACE", TABLE_USER, USER_COLUMNS);
+    private static final String INSERT_USER_IF_ABSENT = insertInto("IGNORE", TABLE_USER, USER_COLUMNS);
+    private static final String INSERT_EVENT = insertInto("REPLACE", TABLE_EVENT, EVENT_COLUMNS);
+    private static final String INSERT_EVENT_USER = insertInto("REPLACE", TABLE_EVENT_USER, new String[]{
+        KEY_EVENT_ID, KEY_USER_ID});
+    private static final String INSERT_FILTER = insertInto("REPLACE", TABLE_FILTER, FILTER_COLUMNS);
+    private static final String INSERT_FILTER_USER = insertInto("REPLACE", TABLE_FILTER_USER, new String[]{
+        KEY_FILTER_ID, KEY_USER_ID});
+    private static final String INSERT_INVITATION = insertInto("REPLACE", TABLE_INVITATIONS, new String[]{
+        KEY_ID, KEY_USER_ID, KEY_EVENT_ID, KEY_STATUS, KEY_DATE, KEY_TYPE});
+    private static final String INSERT_PENDING = insertInto("IGNORE", TABLE_PENDING,
+        new String[]{KEY_USER_ID});
+
     private final SQLiteDatabase mDatabase;
     private final Context mContext;
+    private final PictureFiles mPictures;
+    // Picture last written to the file of each user, handles are shared by identical pictures
+    private final Map<Long, ImageStore.Handle> mStoredPictures;
+    // Pictures read from the files, that the store may since have given to the users
+    private final Map<Long, WeakReference<Bitmap>> mReadPictures;
 
     /**
      * DatabaseHelper constructor. Will be made private, so use initialize() or
@@ -148,6 +209,9 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         super(context, DATABASE_NAME + "_" + ServiceContainer.getSettingsManager().getUserId(), null,
             DATABASE_VERSION);
         mContext = context;
+        mPictures = new PictureFiles(context);
+        mStoredPictures = new ConcurrentHashMap<Long, ImageStore.Handle>();
+        mReadPictures = new ConcurrentHashMap<Long, WeakReference<Bitmap>>();
         mDatabase = this.getWritableDatabase();
         this.onCreate(mDatabase);
     }
@@ -180,6 +244,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
                 if (event.getLocation() != null) {
                     values.put(KEY_LONGITUDE, event.getLocation().getLongitude());
                     values.put(KEY_LATITUDE, event.getLocation().getLatitude());
+                    values.put(KEY_CELL, cellOf(event.getLocation()));
                 }
                 if ((event.getStartDate() != null) && (event.getEndDate() != null)) {
                     values.put(KEY_DATE, event.getStartDate().getTimeInMillis());
@@ -285,6 +350,22 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#addMutation(ch.epfl.smartmap.servercom.Mutation)
+     */
+    @Override
+    public long addMutation(Mutation mutation) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_TYPE, mutation.getType().name());
+        values.put(KEY_TARGET_ID, mutation.getTargetId());
+        values.put(KEY_PARAMS, new JSONObject(mutation.getParams()).toString());
+        values.put(KEY_MUTATION_KEY, mutation.getKey());
+        values.put(KEY_DATE, mutation.getCreationTime());
+
+        return mDatabase.insert(TABLE_MUTATIONS, null, values);
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.database.DatabaseHelperInterface#addPendingFriend(long)
@@ -324,6 +405,9 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
                 values.put(KEY_LONGITUDE, user.getLocation().getLongitude());
                 values.put(KEY_LATITUDE, user.getLocation().getLatitude());
                 values.put(KEY_LASTSEEN, user.getLocation().getTime());
+                if (hasPosition(user.getLocation())) {
+                    values.put(KEY_CELL, cellOf(user.getLocation()));
+                }
             } else {
                 values.put(KEY_LONGITUDE, User.NO_LONGITUDE);
                 values.put(KEY_LATITUDE, User.NO_LATITUDE);
@@ -359,6 +443,9 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENT_USER);
         mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_INVITATIONS);
         mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_PENDING);
+        mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_MUTATIONS);
+        mStoredPictures.clear();
+        mReadPictures.clear();
 
         this.onCreate(mDatabase);
     }
@@ -398,6 +485,40 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         mDatabase.delete(TABLE_INVITATIONS, KEY_ID + " = ?", new String[]{String.valueOf(id)});
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#deleteMutations(java.util.Collection)
+     */
+    @Override
+    public void deleteMutations(Collection<Long> ids) {
+        this.deleteMutations(ids, Collections.<Mutation> emptyList());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#deleteMutations(java.util.Collection,
+     * java.util.Collection)
+     */
+    @Override
+    public void deleteMutations(Collection<Long> ids, Collection<Mutation> rewrittenMutations) {
+        mDatabase.beginTransaction();
+        try {
+            for (long id : ids) {
+                mDatabase.delete(TABLE_MUTATIONS, KEY_ID + " = ?", new String[]{String.valueOf(id)});
+            }
+            for (Mutation mutation : rewrittenMutations) {
+                ContentValues values = new ContentValues();
+                values.put(KEY_TARGET_ID, mutation.getTargetId());
+                values.put(KEY_PARAMS, new JSONObject(mutation.getParams()).toString());
+                mDatabase.update(TABLE_MUTATIONS, values, KEY_ID + " = ?",
+                    new String[]{String.valueOf(mutation.getId())});
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.database.DatabaseHelperInterface#deletePendingFriend(long)
@@ -414,6 +535,8 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
     @Override
     public void deleteUser(long id) {
         mDatabase.delete(TABLE_USER, KEY_USER_ID + " = ?", new String[]{String.valueOf(id)});
+        mStoredPictures.remove(id);
+        mReadPictures.remove(id);
     }
 
     /*
@@ -422,21 +545,8 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
      */
     @Override
     public Set<EventContainer> getAllEvents() {
-        Set<EventContainer> events = new HashSet<EventContainer>();
-
-        String query = "SELECT  * FROM " + TABLE_EVENT;
-
-        Cursor cursor = mDatabase.rawQuery(query, null);
-
-        if ((cursor != null) && cursor.moveToFirst()) {
-            do {
-                events.add(this.getEvent(cursor.getLong(cursor.getColumnIndex(KEY_ID))));
-            } while (cursor.moveToNext());
-
-            cursor.close();
-        }
-
-        return events;
+        return new HashSet<EventContainer>(this.readEvents(null, null, this.readUsers(null, null, false))
+            .values());
     }
 
     /*
@@ -445,30 +555,14 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
      */
     @Override
     public Set<FilterContainer> getAllFilters() {
-
         Set<FilterContainer> filters = new HashSet<FilterContainer>();
-        Set<Long> filterIds = new HashSet<Long>();
-
-        String query = "SELECT  * FROM " + TABLE_FILTER;
-
-        Cursor cursor = mDatabase.rawQuery(query, null);
-
-        if ((cursor != null) && cursor.moveToFirst()) {
-            do {
-                // using getFilter to add this row's filter to the list
-                filters.add(this.getFilter(cursor.getLong(cursor.getColumnIndex(KEY_ID))));
-            } while (cursor.moveToNext());
-
-            cursor.close();
-        }
-
-        for (FilterContainer filter : filters) {
-            filterIds.add(filter.getId());
+        boolean hasDefaultFilter = false;
+        for (FilterContainer filter : this.readFilters(null, null)) {
+            filters.add(filter);
+            hasDefaultFilter |= filter.getId() == Filter.DEFAULT_FILTER_ID;
         }
 
-        Log.d(TAG, "Database contains filter ids : " + filterIds);
-
-        if (!filterIds.contains(Filter.DEFAULT_FILTER_ID)) {
+        if (!hasDefaultFilter) {
             Log.d(TAG, "database contains no default filter");
             filters.add(new FilterContainer(Filter.DEFAULT_FILTER_ID, "", new HashSet<Long>(), true));
         }
@@ -484,11 +578,22 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
     public Set<InvitationContainer> getAllInvitations() {
         Set<InvitationContainer> invitations = new HashSet<InvitationContainer>();
 
-        String query = "SELECT  * FROM " + TABLE_INVITATIONS;
+        Cursor cursor = mDatabase.rawQuery("SELECT  * FROM " + TABLE_INVITATIONS, null);
+        if (cursor == null) {
+            return invitations;
+        }
 
-        Cursor cursor = mDatabase.rawQuery(query, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return invitations;
+            }
+
+            // Users and events are read once for all invitations
+            Map<Long, UserContainer> users = this.readUsers(null, null, false);
+            Map<Long, EventContainer> events =
+                this.readEvents("e." + KEY_ID + " IN (SELECT " + KEY_EVENT_ID + " FROM " + TABLE_INVITATIONS
+                    + ")", null, users);
 
-        if ((cursor != null) && cursor.moveToFirst()) {
             do {
                 long id = cursor.getLong(cursor.getColumnIndex(KEY_ID));
                 long userId = cursor.getLong(cursor.getColumnIndex(KEY_USER_ID));
@@ -497,13 +602,10 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
                 long date = cursor.getLong(cursor.getColumnIndex(KEY_DATE));
                 int type = cursor.getInt(cursor.getColumnIndex(KEY_TYPE));
 
-                UserContainer user = this.getUser(userId);
-                EventContainer event = this.getEvent(eventId);
-
-                invitations.add(new InvitationContainer(id, user, event, status, date, type));
-
+                invitations.add(new InvitationContainer(id, users.get(userId), events.get(eventId), status,
+                    date, type));
             } while (cursor.moveToNext());
-
+        } finally {
             cursor.close();
         }
 
@@ -512,26 +614,53 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
 
     /*
      * (non-Javadoc)
-     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#getAllUsers()
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#getAllMutations()
      */
     @Override
-    public Set<UserContainer> getAllUsers() {
-        Set<UserContainer> users = new HashSet<UserContainer>();
+    public List<Mutation> getAllMutations() {
+        List<Mutation> mutations = new ArrayList<Mutation>();
 
-        String query = "SELECT  * FROM " + TABLE_USER;
+        Cursor cursor = mDatabase.query(TABLE_MUTATIONS, MUTATION_COLUMNS, null, null, null, null, KEY_ID);
 
-        Cursor cursor = mDatabase.rawQuery(query, null);
-
-        if ((cursor != null) && (cursor.getCount() > 0) && cursor.moveToFirst()) {
+        if ((cursor != null) && cursor.moveToFirst()) {
             do {
-                Log.d(TAG, "" + cursor);
-                users.add(this.getUser(cursor.getLong(cursor.getColumnIndex(KEY_USER_ID))));
+                long id = cursor.getLong(cursor.getColumnIndex(KEY_ID));
+                try {
+                    Mutation.Type type =
+                        Mutation.Type.valueOf(cursor.getString(cursor.getColumnIndex(KEY_TYPE)));
+                    long targetId = cursor.getLong(cursor.getColumnIndex(KEY_TARGET_ID));
+                    JSONObject jsonParams =
+                        new JSONObject(cursor.getString(cursor.getColumnIndex(KEY_PARAMS)));
+                    Map<String, String> params = new HashMap<String, String>();
+                    Iterator<?> names = jsonParams.keys();
+                    while (names.hasNext()) {
+                        String name = (String) names.next();
+                        params.put(name, jsonParams.getString(name));
+                    }
+                    String key = cursor.getString(cursor.getColumnIndex(KEY_MUTATION_KEY));
+                    long date = cursor.getLong(cursor.getColumnIndex(KEY_DATE));
+
+                    mutations.add(new Mutation(id, type, targetId, params, key, date));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Ignoring invalid mutation " + id + ": " + e);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Ignoring invalid mutation " + id + ": " + e);
+                }
             } while (cursor.moveToNext());
 
             cursor.close();
         }
 
-        return users;
+        return mutations;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#getAllUsers()
+     */
+    @Override
+    public Set<UserContainer> getAllUsers() {
+        return new HashSet<UserContainer>(this.readUsers(null, null, true).values());
     }
 
     /*
@@ -540,50 +669,31 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
      */
     @Override
     public EventContainer getEvent(long id) {
+        // The creator is read with getUser
+        Map<Long, EventContainer> events =
+            this.readEvents("e." + KEY_ID + " = ?", new String[]{String.valueOf(id)},
+                new HashMap<Long, UserContainer>());
+        return events.get(id);
+    }
 
-        Cursor cursor =
-            mDatabase.query(TABLE_EVENT, EVENT_COLUMNS, KEY_ID + " = ?", new String[]{String.valueOf(id)},
-                null, null, null, null);
-
-        EventContainer event = null;
-        if ((cursor != null) && cursor.moveToFirst()) {
-
-            GregorianCalendar startDate = new GregorianCalendar();
-            GregorianCalendar endDate = new GregorianCalendar();
-            startDate.setTimeInMillis(cursor.getLong(cursor.getColumnIndex(KEY_DATE)));
-            endDate.setTimeInMillis(cursor.getLong(cursor.getColumnIndex(KEY_ENDDATE)));
-
-            Location location = new Location(Displayable.PROVIDER_NAME);
-            location.setLongitude(cursor.getDouble(cursor.getColumnIndex(KEY_LONGITUDE)));
-            location.setLatitude(cursor.getDouble(cursor.getColumnIndex(KEY_LATITUDE)));
-            String locationString = cursor.getString(cursor.getColumnIndex(KEY_POSNAME));
-
-            String name = cursor.getString(cursor.getColumnIndex(KEY_NAME));
-            String description = cursor.getString(cursor.getColumnIndex(KEY_EVTDESC));
-            long creatorId = cursor.getColumnIndex(KEY_USER_ID);
-
-            event =
-                new EventContainer(id, name, this.getUser(creatorId), description, startDate, endDate,
-                    location, locationString, new HashSet<Long>());
-
-            // Second query to get the associated list of IDs
-            Set<Long> ids = new HashSet<Long>();
-
-            cursor =
-                mDatabase.query(TABLE_EVENT_USER, EVENT_USER_COLUMNS, KEY_EVENT_ID + " = ?",
-                    new String[]{String.valueOf(id)}, null, null, null, null);
-
-            if (cursor != null && cursor.moveToFirst()) {
-                do {
-                    ids.add(cursor.getLong(cursor.getColumnIndex(KEY_USER_ID)));
-                } while (cursor.moveToNext());
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#getEventsNear(double, double, double)
+     */
+    @Override
+    public Set<EventContainer> getEventsNear(double latitude, double longitude, double radius) {
+        String cells = cellSelection("e." + KEY_CELL, latitude, longitude, radius);
+        Map<Long, UserContainer> creators =
+            this.readUsers(KEY_USER_ID + " IN (SELECT " + KEY_USER_ID + " FROM " + TABLE_EVENT + " e WHERE "
+                + cells + ")", null, false);
 
-                cursor.close();
+        Set<EventContainer> events = new HashSet<EventContainer>();
+        for (EventContainer event : this.readEvents(cells, null, creators).values()) {
+            if (isWithin(event.getLocation(), latitude, longitude, radius)) {
+                events.add(event);
             }
-
-            event.setParticipantIds(ids);
         }
-        return event;
+        return events;
     }
 
     /*
@@ -592,38 +702,9 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
      */
     @Override
     public FilterContainer getFilter(long id) {
-        // First query to get the filter's name
-        Cursor cursor =
-            mDatabase.query(TABLE_FILTER, FILTER_COLUMNS, KEY_ID + " = ?", new String[]{String.valueOf(id)},
-                null, null, null, null);
-
-        String name = "";
-        boolean isActive = false;
-
-        if (cursor != null) {
-            cursor.moveToFirst();
-            name = cursor.getString(cursor.getColumnIndex(KEY_NAME));
-            isActive = cursor.getInt(cursor.getColumnIndex(KEY_ACTIVE)) == 1;
-        }
-
-        // Second query to get the associated list of IDs
-        Set<Long> ids = new HashSet<Long>();
-
-        cursor =
-            mDatabase.query(TABLE_FILTER_USER, FILTER_USER_COLUMNS, KEY_FILTER_ID + " = ?",
-                new String[]{String.valueOf(id)}, null, null, null, null);
-
-        if ((cursor != null) && cursor.moveToFirst()) {
-            do {
-                ids.add(cursor.getLong(cursor.getColumnIndex(KEY_USER_ID)));
-            } while (cursor.moveToNext());
-
-            cursor.close();
-        }
-
-        FilterContainer filter = new FilterContainer(id, name, ids, isActive);
-
-        return filter;
+        List<FilterContainer> filters =
+            this.readFilters("f." + KEY_ID + " = ?", new String[]{String.valueOf(id)});
+        return filters.isEmpty() ? null : filters.get(0);
     }
 
     /*
@@ -656,15 +737,13 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
     public List<Long> getFriendIds() {
         List<Long> friendIds = new ArrayList<Long>();
 
-        String query = "SELECT  * FROM " + TABLE_USER;
-
-        Cursor cursor = mDatabase.rawQuery(query, null);
+        Cursor cursor =
+            mDatabase.query(TABLE_USER, new String[]{KEY_USER_ID}, KEY_FRIENDSHIP + " = ?",
+                new String[]{String.valueOf(User.FRIEND)}, null, null, null);
 
         if ((cursor != null) && cursor.moveToFirst()) {
             do {
-                if (this.getUser(cursor.getLong(cursor.getColumnIndex(KEY_USER_ID))).getFriendship() == User.FRIEND) {
-                    friendIds.add(cursor.getLong(cursor.getColumnIndex(KEY_USER_ID)));
-                }
+                friendIds.add(cursor.getLong(0));
             } while (cursor.moveToNext());
 
             cursor.close();
@@ -673,6 +752,25 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         return friendIds;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#getFriendsNear(double, double, double)
+     */
+    @Override
+    public Set<UserContainer> getFriendsNear(double latitude, double longitude, double radius) {
+        String selection =
+            KEY_FRIENDSHIP + " = " + User.FRIEND + " AND "
+                + cellSelection(KEY_CELL, latitude, longitude, radius);
+
+        Set<UserContainer> friends = new HashSet<UserContainer>();
+        for (UserContainer friend : this.readUsers(selection, null, true).values()) {
+            if (isWithin(friend.getLocation(), latitude, longitude, radius)) {
+                friends.add(friend);
+            }
+        }
+        return friends;
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.database.DatabaseHelperInterface#getPendingFriends()
@@ -702,11 +800,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
      */
     @Override
     public Bitmap getPictureById(long userId) {
-        File file = new File(mContext.getFilesDir(), userId + ".png");
-        Bitmap pic = null;
-        if (file.exists()) {
-            pic = BitmapFactory.decodeFile(file.getAbsolutePath());
-        }
+        Bitmap pic = this.readPicture(userId);
         if (pic == null) {
             pic = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.ic_default_user);
         }
@@ -719,35 +813,14 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
      */
     @Override
     public UserContainer getUser(long id) {
+        return this.readUsers(KEY_USER_ID + " = ?", new String[]{String.valueOf(id)}, true).get(id);
+    }
 
-        Cursor cursor =
-            mDatabase.query(TABLE_USER, USER_COLUMNS, KEY_USER_ID + " = ?", new String[]{String.valueOf(id)},
-                null, null, null, null);
-
-        if ((cursor != null) && cursor.moveToFirst()) {
-            String name = cursor.getString(cursor.getColumnIndex(KEY_NAME));
-            String phoneNumber = cursor.getString(cursor.getColumnIndex(KEY_NUMBER));
-            String email = cursor.getString(cursor.getColumnIndex(KEY_EMAIL));
-            long lastSeen = cursor.getLong(cursor.getColumnIndex(KEY_LASTSEEN));
-            double longitude = cursor.getDouble(cursor.getColumnIndex(KEY_LONGITUDE));
-            double latitude = cursor.getDouble(cursor.getColumnIndex(KEY_LATITUDE));
-            Location location = new Location("database");
-            location.setLongitude(longitude);
-            location.setLatitude(latitude);
-            location.setTime(lastSeen);
-            String locationString = cursor.getString(cursor.getColumnIndex(KEY_POSNAME));
-            Bitmap image = this.getPictureById(id);
-            boolean isBlocked = cursor.getInt(cursor.getColumnIndex(KEY_BLOCKED)) == 1;
-            int friendship = cursor.getInt(cursor.getColumnIndex(KEY_FRIENDSHIP));
-
-            cursor.close();
-
-            User.BlockStatus status = isBlocked ? User.BlockStatus.BLOCKED : User.BlockStatus.UNBLOCKED;
-            return new UserContainer(id, name, phoneNumber, email, location, locationString, image, status,
-                friendship);
-        }
-
-        return null;
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Participants and members are removed with their event or filter
+        db.setForeignKeyConstraintsEnabled(true);
     }
 
     @Override
@@ -759,6 +832,10 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         db.execSQL(CREATE_TABLE_EVENT_USER);
         db.execSQL(CREATE_TABLE_INVITATIONS);
         db.execSQL(CREATE_TABLE_PENDING);
+        db.execSQL(CREATE_TABLE_MUTATIONS);
+        for (String index : CREATE_INDEXES) {
+            db.execSQL(index);
+        }
     }
 
     @Override
@@ -770,11 +847,22 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENT_USER);
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_INVITATIONS);
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_PENDING);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MUTATIONS);
         this.onCreate(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion >= 12) {
+            // Keep the data of the previous version
+            if (oldVersion < 13) {
+                this.upgradeTo13(db);
+            }
+            this.onCreate(db);
+            return;
+        }
+
+        // Older versions are not migrated
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_USER);
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_FILTER);
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_FILTER_USER);
@@ -782,6 +870,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENT_USER);
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_INVITATIONS);
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_PENDING);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MUTATIONS);
         this.onCreate(db);
     }
 
@@ -791,20 +880,90 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
      */
     @Override
     public void setUserPicture(Bitmap picture, long userId) {
-        File file = new File(mContext.getFilesDir(), userId + ".png");
+        mStoredPictures.remove(userId);
+        mReadPictures.remove(userId);
+        mPictures.write(userId, picture);
+    }
 
-        if (file.exists()) {
-            file.delete();
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#storeAll(java.util.Collection,
+     * java.util.Collection, java.util.Collection, java.util.Collection)
+     */
+    @Override
+    public void storeAll(Collection<UserContainer> users, Collection<EventContainer> events,
+        Collection<FilterContainer> filters, Collection<InvitationContainer> invitations) {
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.delete(TABLE_USER, null, null);
+            mDatabase.delete(TABLE_FILTER, null, null);
+            mDatabase.delete(TABLE_FILTER_USER, null, null);
+            mDatabase.delete(TABLE_EVENT, null, null);
+            mDatabase.delete(TABLE_EVENT_USER, null, null);
+            mDatabase.delete(TABLE_INVITATIONS, null, null);
+
+            this.insertAll(users, events, filters, invitations);
+
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
         }
 
+        // Outside of the transaction, files are not part of it
+        for (UserContainer user : users) {
+            this.storePictureIfChanged(user.getId());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.database.DatabaseHelperInterface#storeChanges(java.util.Collection,
+     * java.util.Collection, java.util.Collection, java.util.Collection, java.util.Collection,
+     * java.util.Collection, java.util.Collection, java.util.Collection)
+     */
+    @Override
+    public void storeChanges(Collection<UserContainer> users, Collection<EventContainer> events,
+        Collection<FilterContainer> filters, Collection<InvitationContainer> invitations,
+        Collection<Long> removedUserIds, Collection<Long> removedEventIds, Collection<Long> removedFilterIds,
+        Collection<Long> removedInvitationIds) {
+        mDatabase.beginTransaction();
         try {
-            FileOutputStream out = mContext.openFileOutput(userId + ".png", Context.MODE_PRIVATE);
-            picture.compress(Bitmap.CompressFormat.PNG, IMAGE_QUALITY, out);
-            out.close();
-        } catch (FileNotFoundException e) {
-            Log.e("DatabaseHelper", "Exception in setUserPicture: " + e);
-        } catch (IOException e) {
-            Log.e("DatabaseHelper", "Exception in setUserPicture: " + e);
+            for (long id : removedUserIds) {
+                this.deleteUser(id);
+            }
+            for (long id : removedEventIds) {
+                this.deleteEvent(id);
+            }
+            for (long id : removedFilterIds) {
+                this.deleteFilter(id);
+            }
+            for (long id : removedInvitationIds) {
+                this.deleteInvitation(id);
+            }
+
+            // Participants and members of the rows that are written again are replaced
+            for (EventContainer event : events) {
+                this.deleteParticipants(event.getId());
+            }
+            for (InvitationContainer invitation : invitations) {
+                if (invitation.getEventInfos() != null) {
+                    this.deleteParticipants(invitation.getEventId());
+                }
+            }
+            for (FilterContainer filter : filters) {
+                mDatabase.delete(TABLE_FILTER_USER, KEY_FILTER_ID + " = ?",
+                    new String[]{String.valueOf(filter.getId())});
+            }
+
+            this.insertAll(users, events, filters, invitations);
+
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        for (UserContainer user : users) {
+            this.storePictureIfChanged(user.getId());
         }
     }
 
@@ -823,6 +982,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         values.put(KEY_USER_ID, event.getCreatorContainer().getId());
         values.put(KEY_LONGITUDE, event.getLocation().getLongitude());
         values.put(KEY_LATITUDE, event.getLocation().getLatitude());
+        values.put(KEY_CELL, cellOf(event.getLocation()));
         values.put(KEY_DATE, event.getStartDate().getTimeInMillis());
         values.put(KEY_ENDDATE, event.getEndDate().getTimeInMillis());
 
@@ -894,11 +1054,10 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         if (friend.getEmail() != Friend.NO_EMAIL) {
             values.put(KEY_EMAIL, friend.getEmail());
         }
-        if ((friend.getLocation() != null)
-            && ((friend.getLocation().getLatitude() != User.NO_LATITUDE) || (friend.getLocation()
-                .getLongitude() != User.NO_LONGITUDE))) {
+        if ((friend.getLocation() != null) && hasPosition(friend.getLocation())) {
             values.put(KEY_LONGITUDE, friend.getLocation().getLongitude());
             values.put(KEY_LATITUDE, friend.getLocation().getLatitude());
+            values.put(KEY_CELL, cellOf(friend.getLocation()));
         }
         if ((friend.getLocationString() != null)
             && !friend.getLocationString().equals(Friend.NO_LOCATION_STRING)) {
@@ -925,35 +1084,30 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
     public void updateFromCache() {
         Log.d(TAG, "Update Database from Cache");
 
-        mDatabase.delete(TABLE_USER, null, null);
-        mDatabase.delete(TABLE_FILTER, null, null);
-        mDatabase.delete(TABLE_FILTER_USER, null, null);
-        mDatabase.delete(TABLE_EVENT, null, null);
-        mDatabase.delete(TABLE_EVENT_USER, null, null);
-        mDatabase.delete(TABLE_INVITATIONS, null, null);
-
-        Set<User> users = ServiceContainer.getCache().getAllUsers();
-        Set<Event> events = ServiceContainer.getCache().getMyEvents();
-        events.addAll(ServiceContainer.getCache().getParticipatingEvents());
-        Set<Filter> filters = ServiceContainer.getCache().getAllFilters();
-        Set<Invitation> invitations = ServiceContainer.getCache().getAllInvitations();
+        Set<Event> cachedEvents = ServiceContainer.getCache().getMyEvents();
+        cachedEvents.addAll(ServiceContainer.getCache().getParticipatingEvents());
 
-        for (User user : users) {
-            Log.d(TAG, "Store user " + user.getId());
-            this.addUser(user.getContainerCopy());
+        List<UserContainer> users = new ArrayList<UserContainer>();
+        for (User user : ServiceContainer.getCache().getAllUsers()) {
+            users.add(user.getContainerCopy());
         }
-        for (Event event : events) {
-            Log.d(TAG, "Store event " + event.getId());
-            this.addEvent(event.getContainerCopy());
+        List<EventContainer> events = new ArrayList<EventContainer>();
+        for (Event event : cachedEvents) {
+            events.add(event.getContainerCopy());
         }
-        for (Filter filter : filters) {
-            Log.d(TAG, "Store filter " + filter.getId());
-            this.addFilter(filter.getContainerCopy());
+        List<FilterContainer> filters = new ArrayList<FilterContainer>();
+        for (Filter filter : ServiceContainer.getCache().getAllFilters()) {
+            filters.add(filter.getContainerCopy());
         }
-        for (Invitation invitation : invitations) {
-            Log.d(TAG, "Store invitation " + invitation.getId());
-            this.addInvitation(invitation.getContainerCopy());
+        List<InvitationContainer> invitations = new ArrayList<InvitationContainer>();
+        for (Invitation invitation : ServiceContainer.getCache().getAllInvitations()) {
+            invitations.add(invitation.getContainerCopy());
         }
+
+        long start = System.currentTimeMillis();
+        this.storeAll(users, events, filters, invitations);
+        Log.d(TAG, "Stored " + users.size() + " users and " + events.size() + " events in "
+            + (System.currentTimeMillis() - start) + "ms");
     }
 
     /*
@@ -977,4 +1131,532 @@ public class DatabaseHelper extends SQLiteOpenHelper implements DatabaseHelperIn
         return mDatabase.update(TABLE_INVITATIONS, values, KEY_ID + " = ?",
             new String[]{String.valueOf(invitation.getId())});
     }
+
+    /**
+     * Removes the event-user pairs of an event
+     */
+    private void deleteParticipants(long eventId) {
+        mDatabase.delete(TABLE_EVENT_USER, KEY_EVENT_ID + " = ?", new String[]{String.valueOf(eventId)});
+    }
+
+    /**
+     * Inserts the given rows with compiled statements, must be called in a transaction. Rows with the same
+     * id as an existing one replace it, and the users and events referenced by other rows are only inserted
+     * if they are absent.
+     */
+    private void insertAll(Collection<UserContainer> users, Collection<EventContainer> events,
+        Collection<FilterContainer> filters, Collection<InvitationContainer> invitations) {
+        SQLiteStatement insertUser = mDatabase.compileStatement(INSERT_USER);
+        SQLiteStatement insertUserIfAbsent = mDatabase.compileStatement(INSERT_USER_IF_ABSENT);
+        SQLiteStatement insertEvent = mDatabase.compileStatement(INSERT_EVENT);
+        SQLiteStatement insertEventUser = mDatabase.compileStatement(INSERT_EVENT_USER);
+        SQLiteStatement insertFilter = mDatabase.compileStatement(INSERT_FILTER);
+        SQLiteStatement insertFilterUser = mDatabase.compileStatement(INSERT_FILTER_USER);
+        SQLiteStatement insertInvitation = mDatabase.compileStatement(INSERT_INVITATION);
+        SQLiteStatement insertPending = mDatabase.compileStatement(INSERT_PENDING);
+
+        try {
+            for (UserContainer user : users) {
+                bindUser(insertUser, user);
+                insertUser.executeInsert();
+            }
+
+            // Events can also come with invitations, only write each of them once
+            Set<Long> storedEvents = new HashSet<Long>();
+            for (EventContainer event : events) {
+                this.storeEvent(event, storedEvents, insertUserIfAbsent, insertEvent, insertEventUser);
+            }
+
+            for (FilterContainer filter : filters) {
+                insertFilter.clearBindings();
+                insertFilter.bindLong(1, filter.getId());
+                bindString(insertFilter, 2, filter.getName());
+                insertFilter.bindLong(3, filter.isActive() ? 1 : 0);
+                long filterId = insertFilter.executeInsert();
+
+                for (long id : filter.getIds()) {
+                    insertFilterUser.bindLong(1, filterId);
+                    insertFilterUser.bindLong(2, id);
+                    insertFilterUser.executeInsert();
+                }
+            }
+
+            for (InvitationContainer invitation : invitations) {
+                if ((invitation.getUserInfos() == null) && (invitation.getEventInfos() == null)) {
+                    continue;
+                }
+                if (invitation.getUserInfos() != null) {
+                    // Already written with all its informations if it is in the users
+                    bindUser(insertUserIfAbsent, invitation.getUserInfos());
+                    insertUserIfAbsent.executeInsert();
+                }
+                if (invitation.getEventInfos() != null) {
+                    this.storeEvent(invitation.getEventInfos(), storedEvents, insertUserIfAbsent,
+                        insertEvent, insertEventUser);
+                }
+
+                insertInvitation.clearBindings();
+                // Keep the ids known by the Cache, so that it can still update its invitations
+                if (invitation.getId() != Invitation.NO_ID) {
+                    insertInvitation.bindLong(1, invitation.getId());
+                }
+                insertInvitation.bindLong(2, invitation.getUserId());
+                insertInvitation.bindLong(3, invitation.getEventId());
+                insertInvitation.bindLong(4, invitation.getStatus());
+                insertInvitation.bindLong(5, invitation.getTimeStamp());
+                insertInvitation.bindLong(6, invitation.getType());
+                insertInvitation.executeInsert();
+
+                if ((invitation.getType() == Invitation.FRIEND_INVITATION)
+                    && (invitation.getStatus() == Invitation.UNREAD)) {
+                    insertPending.bindLong(1, invitation.getUserId());
+                    insertPending.executeInsert();
+                }
+            }
+        } finally {
+            insertUser.close();
+            insertUserIfAbsent.close();
+            insertEvent.close();
+            insertEventUser.close();
+            insertFilter.close();
+            insertFilterUser.close();
+            insertInvitation.close();
+            insertPending.close();
+        }
+    }
+
+    /**
+     * Reads the event of the current row, without its participants
+     */
+    private EventContainer readEvent(Cursor cursor, Map<Long, UserContainer> users) {
+        GregorianCalendar startDate = new GregorianCalendar();
+        GregorianCalendar endDate = new GregorianCalendar();
+        startDate.setTimeInMillis(cursor.getLong(cursor.getColumnIndex(KEY_DATE)));
+        endDate.setTimeInMillis(cursor.getLong(cursor.getColumnIndex(KEY_ENDDATE)));
+
+        Location location = new Location(Displayable.PROVIDER_NAME);
+        location.setLongitude(cursor.getDouble(cursor.getColumnIndex(KEY_LONGITUDE)));
+        location.setLatitude(cursor.getDouble(cursor.getColumnIndex(KEY_LATITUDE)));
+        String locationString = cursor.getString(cursor.getColumnIndex(KEY_POSNAME));
+
+        long id = cursor.getLong(cursor.getColumnIndex(KEY_ID));
+        String name = cursor.getString(cursor.getColumnIndex(KEY_NAME));
+        String description = cursor.getString(cursor.getColumnIndex(KEY_EVTDESC));
+        long creatorId = cursor.getLong(cursor.getColumnIndex(KEY_USER_ID));
+
+        UserContainer creator = users.get(creatorId);
+        if (creator == null) {
+            creator = this.getUser(creatorId);
+        }
+
+        return new EventContainer(id, name, creator, description, startDate, endDate, location,
+            locationString, new HashSet<Long>());
+    }
+
+    /**
+     * Reads the events matching the selection with their participants, in a single query joining the
+     * event-user table. Rows come sorted by event, so each event is complete once the next one starts.
+     *
+     * @param selection
+     *            condition on the events, which are aliased as {@code e}, or {@code null} for all of them
+     * @param users
+     *            users to take the creators from, the ones that are missing are read with {@code getUser}
+     * @return the events by id
+     */
+    private Map<Long, EventContainer> readEvents(String selection, String[] selectionArgs,
+        Map<Long, UserContainer> users) {
+        Map<Long, EventContainer> events = new HashMap<Long, EventContainer>();
+
+        String query =
+            "SELECT e.*, p." + KEY_USER_ID + " AS " + KEY_PARTICIPANT_ID + " FROM " + TABLE_EVENT
+                + " e LEFT JOIN " + TABLE_EVENT_USER + " p ON p." + KEY_EVENT_ID + " = e." + KEY_ID
+                + ((selection != null) ? " WHERE " + selection : "") + " ORDER BY e." + KEY_ID;
+
+        Cursor cursor = mDatabase.rawQuery(query, selectionArgs);
+        if (cursor == null) {
+            return events;
+        }
+
+        try {
+            int idColumn = cursor.getColumnIndex(KEY_ID);
+            int participantColumn = cursor.getColumnIndex(KEY_PARTICIPANT_ID);
+            EventContainer event = null;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                if ((event == null) || (event.getId() != id)) {
+                    event = this.readEvent(cursor, users);
+                    events.put(id, event);
+                }
+                if (!cursor.isNull(participantColumn)) {
+                    event.getParticipantIds().add(cursor.getLong(participantColumn));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return events;
+    }
+
+    /**
+     * Reads the filters matching the selection with their members, in a single query joining the
+     * filter-user table
+     *
+     * @param selection
+     *            condition on the filters, which are aliased as {@code f}, or {@code null} for all of them
+     * @return the filters, sorted by id
+     */
+    private List<FilterContainer> readFilters(String selection, String[] selectionArgs) {
+        List<FilterContainer> filters = new ArrayList<FilterContainer>();
+
+        String query =
+            "SELECT f.*, m." + KEY_USER_ID + " AS " + KEY_MEMBER_ID + " FROM " + TABLE_FILTER
+                + " f LEFT JOIN " + TABLE_FILTER_USER + " m ON m." + KEY_FILTER_ID + " = f." + KEY_ID
+                + ((selection != null) ? " WHERE " + selection : "") + " ORDER BY f." + KEY_ID;
+
+        Cursor cursor = mDatabase.rawQuery(query, selectionArgs);
+        if (cursor == null) {
+            return filters;
+        }
+
+        try {
+            int idColumn = cursor.getColumnIndex(KEY_ID);
+            int nameColumn = cursor.getColumnIndex(KEY_NAME);
+            int activeColumn = cursor.getColumnIndex(KEY_ACTIVE);
+            int memberColumn = cursor.getColumnIndex(KEY_MEMBER_ID);
+            FilterContainer filter = null;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                if ((filter == null) || (filter.getId() != id)) {
+                    filter =
+                        new FilterContainer(id, cursor.getString(nameColumn), new HashSet<Long>(),
+                            cursor.getInt(activeColumn) == 1);
+                    filters.add(filter);
+                }
+                if (!cursor.isNull(memberColumn)) {
+                    filter.addId(cursor.getLong(memberColumn));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return filters;
+    }
+
+    /**
+     * @return the stored picture of an user, or {@code null} if there is none
+     */
+    private Bitmap readPicture(long userId) {
+        Bitmap pic = mPictures.decode(userId);
+        if (pic != null) {
+            mReadPictures.put(userId, new WeakReference<Bitmap>(pic));
+        }
+        return pic;
+    }
+
+    /**
+     * Reads the users matching the selection in a single query
+     *
+     * @param selection
+     *            condition on the users, or {@code null} for all of them
+     * @param withPictures
+     *            whether to give the stored pictures to the {@code ImageStore}, which decodes them only when
+     *            they are displayed. Users it already has a picture for keep it. The pictures of the
+     *            containers are always {@code null}, so that users take theirs from the store.
+     * @return the users by id
+     */
+    private Map<Long, UserContainer> readUsers(String selection, String[] selectionArgs,
+        boolean withPictures) {
+        ImageStore store = withPictures ? ServiceContainer.getImageStore() : null;
+        LongSet storedPictureIds = null;
+        Map<Long, UserContainer> users = new HashMap<Long, UserContainer>();
+
+        Cursor cursor = mDatabase.query(TABLE_USER, USER_COLUMNS, selection, selectionArgs, null, null, null);
+        if (cursor == null) {
+            return users;
+        }
+
+        try {
+            int idColumn = cursor.getColumnIndex(KEY_USER_ID);
+            int nameColumn = cursor.getColumnIndex(KEY_NAME);
+            int numberColumn = cursor.getColumnIndex(KEY_NUMBER);
+            int emailColumn = cursor.getColumnIndex(KEY_EMAIL);
+            int lastSeenColumn = cursor.getColumnIndex(KEY_LASTSEEN);
+            int longitudeColumn = cursor.getColumnIndex(KEY_LONGITUDE);
+            int latitudeColumn = cursor.getColumnIndex(KEY_LATITUDE);
+            int posNameColumn = cursor.getColumnIndex(KEY_POSNAME);
+            int blockedColumn = cursor.getColumnIndex(KEY_BLOCKED);
+            int friendshipColumn = cursor.getColumnIndex(KEY_FRIENDSHIP);
+
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                Location location = new Location("database");
+                location.setLongitude(cursor.getDouble(longitudeColumn));
+                location.setLatitude(cursor.getDouble(latitudeColumn));
+                location.setTime(cursor.getLong(lastSeenColumn));
+
+                if (store != null) {
+                    // Only list the files when reading several users
+                    boolean hasPicture;
+                    if (cursor.getCount() == 1) {
+                        hasPicture = mPictures.isStored(id);
+                    } else {
+                        if (storedPictureIds == null) {
+                            storedPictureIds = mPictures.listStored();
+                        }
+                        hasPicture = storedPictureIds.contains(id);
+                    }
+                    ImageStore.Handle picture = store.putStored(id, hasPicture ? mPictures : null);
+                    if ((picture != null) && hasPicture) {
+                        // Already in its file, not to be written again
+                        mStoredPictures.put(id, picture);
+                    }
+                }
+
+                boolean isBlocked = cursor.getInt(blockedColumn) == 1;
+                User.BlockStatus status = isBlocked ? User.BlockStatus.BLOCKED : User.BlockStatus.UNBLOCKED;
+                users.put(id, new UserContainer(id, cursor.getString(nameColumn),
+                    cursor.getString(numberColumn), cursor.getString(emailColumn), location,
+                    cursor.getString(posNameColumn), null, status, cursor.getInt(friendshipColumn)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return users;
+    }
+
+    /**
+     * Writes an event and its participants, unless it was already written. Its creator is only written if
+     * it is not in the database yet.
+     */
+    private void storeEvent(EventContainer event, Set<Long> storedEvents, SQLiteStatement insertUserIfAbsent,
+        SQLiteStatement insertEvent, SQLiteStatement insertEventUser) {
+        // Same conditions as addEvent
+        if ((event.getId() < 0) || (event.getCreatorContainer() == null)
+            || !storedEvents.add(event.getId())) {
+            return;
+        }
+
+        bindUser(insertUserIfAbsent, event.getCreatorContainer());
+        insertUserIfAbsent.executeInsert();
+
+        insertEvent.clearBindings();
+        insertEvent.bindLong(1, event.getId());
+        bindString(insertEvent, 2, event.getName());
+        bindString(insertEvent, 3, event.getDescription());
+        insertEvent.bindLong(4, event.getCreatorContainer().getId());
+        if (event.getLocation() != null) {
+            insertEvent.bindDouble(5, event.getLocation().getLongitude());
+            insertEvent.bindDouble(6, event.getLocation().getLatitude());
+            insertEvent.bindLong(11, cellOf(event.getLocation()));
+        }
+        if ((event.getStartDate() != null) && (event.getEndDate() != null)) {
+            insertEvent.bindLong(7, event.getStartDate().getTimeInMillis());
+            insertEvent.bindLong(8, event.getEndDate().getTimeInMillis());
+        }
+        bindString(insertEvent, 9, event.getLocationString());
+        insertEvent.executeInsert();
+
+        if (event.getParticipantIds() != null) {
+            for (long id : event.getParticipantIds()) {
+                insertEventUser.bindLong(1, event.getId());
+                insertEventUser.bindLong(2, id);
+                insertEventUser.executeInsert();
+            }
+        }
+    }
+
+    /**
+     * Writes the picture of an user to its file, unless the file already contains it. Encoding a picture
+     * costs much more than comparing handles.
+     */
+    private void storePictureIfChanged(long userId) {
+        ImageStore store = ServiceContainer.getImageStore();
+        ImageStore.Handle picture = (store != null) ? store.get(userId) : null;
+        if ((picture == null) || (picture == store.getDefaultHandle())
+            || (mStoredPictures.get(userId) == picture)) {
+            return;
+        }
+        Bitmap bitmap = picture.getBitmap();
+        WeakReference<Bitmap> read = mReadPictures.remove(userId);
+        // The store keeps the bitmap it was given, unless it had to evict it since
+        if ((read == null) || (read.get() != bitmap)) {
+            this.setUserPicture(bitmap, userId);
+        }
+        mStoredPictures.put(userId, picture);
+    }
+
+    /**
+     * Migrates a database of version 12. Users and events get the cell of their position, and the event-user
+     * and filter-user tables are rebuilt with their foreign keys, dropping the pairs of removed events and
+     * filters and the duplicate ones. Indexes are then created by {@code onCreate}.
+     */
+    private void upgradeTo13(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_USER + " ADD COLUMN " + KEY_CELL + " INTEGER");
+        db.execSQL("ALTER TABLE " + TABLE_EVENT + " ADD COLUMN " + KEY_CELL + " INTEGER");
+        updateCells(db, TABLE_USER, KEY_USER_ID, true);
+        updateCells(db, TABLE_EVENT, KEY_ID, false);
+
+        rebuildPairs(db, TABLE_EVENT_USER, CREATE_TABLE_EVENT_USER, KEY_EVENT_ID, TABLE_EVENT);
+        rebuildPairs(db, TABLE_FILTER_USER, CREATE_TABLE_FILTER_USER, KEY_FILTER_ID, TABLE_FILTER);
+    }
+
+    /**
+     * Binds a value that may be {@code null}, which {@code bindString} refuses
+     */
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * Binds the columns of the users table, in the order of {@code USER_COLUMNS}
+     */
+    private static void bindUser(SQLiteStatement statement, UserContainer user) {
+        statement.clearBindings();
+        statement.bindLong(1, user.getId());
+        bindString(statement, 2, user.getName());
+        bindString(statement, 3, user.getPhoneNumber());
+        bindString(statement, 4, user.getEmail());
+        if (user.getLocation() != null) {
+            statement.bindDouble(5, user.getLocation().getLongitude());
+            statement.bindDouble(6, user.getLocation().getLatitude());
+            statement.bindLong(8, user.getLocation().getTime());
+            if (hasPosition(user.getLocation())) {
+                // Otherwise the cell stays NULL, so that near queries do not find users without a position
+                statement.bindLong(11, cellOf(user.getLocation()));
+            }
+        } else {
+            statement.bindDouble(5, User.NO_LONGITUDE);
+            statement.bindDouble(6, User.NO_LATITUDE);
+            statement.bindLong(8, 0);
+        }
+        bindString(statement, 7, user.getLocationString());
+        statement.bindLong(9, (user.isBlocked() == User.BlockStatus.BLOCKED) ? 1 : 0);
+        statement.bindLong(10, user.getFriendship());
+    }
+
+    /**
+     * @return whether a location of a user is an actual position, and not {@code NO_LATITUDE} and
+     *         {@code NO_LONGITUDE}
+     */
+    private static boolean hasPosition(Location location) {
+        return (location.getLatitude() != User.NO_LATITUDE) || (location.getLongitude() != User.NO_LONGITUDE);
+    }
+
+    /**
+     * @return the cell of a position in the grid of {@code GRID}
+     */
+    private static long cellOf(Location location) {
+        return GRID.getCell(location.getLatitude(), location.getLongitude());
+    }
+
+    /**
+     * @return a condition on the given cell column, true for the cells that may contain positions at most
+     *         {@code radius} meters away from the center
+     */
+    private static String cellSelection(String column, double latitude, double longitude, double radius) {
+        List<long[]> ranges = GRID.getCellRangesWithin(latitude, longitude, radius);
+        if (ranges.size() > MAX_CELL_RANGES) {
+            // Keys are sorted by row, so the first and last ones bound all the others
+            long first = ranges.get(0)[0];
+            long last = ranges.get(ranges.size() - 1)[1];
+            ranges = Collections.singletonList(new long[]{first, last});
+        }
+
+        StringBuilder selection = new StringBuilder("(");
+        for (long[] range : ranges) {
+            if (selection.length() > 1) {
+                selection.append(" OR ");
+            }
+            selection.append(column).append(" BETWEEN ").append(range[0]).append(" AND ").append(range[1]);
+        }
+        return selection.append(")").toString();
+    }
+
+    /**
+     * @return a statement creating an index on a column, unless it exists
+     */
+    private static String createIndex(String table, String column) {
+        return "CREATE INDEX IF NOT EXISTS " + table + "_" + column + " ON " + table + "(" + column + ")";
+    }
+
+    /**
+     * @return {@code true} if the location is at most {@code radius} meters away from the center
+     */
+    private static boolean isWithin(Location location, double latitude, double longitude, double radius) {
+        return (location != null)
+            && (SpatialIndex.distance(latitude, longitude, location.getLatitude(), location.getLongitude())
+                <= radius);
+    }
+
+    /**
+     * @return an insert statement with the given conflict clause, for all the given columns
+     */
+    private static String insertInto(String conflict, String table, String[] columns) {
+        StringBuilder statement =
+            new StringBuilder("INSERT OR ").append(conflict).append(" INTO ").append(table).append("(");
+        StringBuilder values = new StringBuilder(" VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                statement.append(",");
+                values.append(",");
+            }
+            statement.append(columns[i]);
+            values.append("?");
+        }
+        return statement.append(")").append(values).append(")").toString();
+    }
+
+    /**
+     * Replaces a table of pairs by a new one created with the given statement, keeping the pairs whose
+     * parent row exists
+     */
+    private static void rebuildPairs(SQLiteDatabase db, String table, String createTable, String parentKey,
+        String parentTable) {
+        String oldTable = table + "_old";
+        db.execSQL("ALTER TABLE " + table + " RENAME TO " + oldTable);
+        db.execSQL(createTable);
+        db.execSQL("INSERT OR IGNORE INTO " + table + "(" + parentKey + "," + KEY_USER_ID + ") SELECT "
+            + parentKey + "," + KEY_USER_ID + " FROM " + oldTable + " WHERE " + parentKey + " IN (SELECT "
+            + KEY_ID + " FROM " + parentTable + ")");
+        db.execSQL("DROP TABLE " + oldTable);
+    }
+
+    /**
+     * Computes the cell of every row of a table from its coordinates
+     *
+     * @param skipNoPosition
+     *            whether rows at {@code NO_LATITUDE} and {@code NO_LONGITUDE} have no position, and keep a
+     *            NULL cell
+     */
+    private static void updateCells(SQLiteDatabase db, String table, String idColumn,
+        boolean skipNoPosition) {
+        String selection = KEY_LATITUDE + " IS NOT NULL AND " + KEY_LONGITUDE + " IS NOT NULL";
+        if (skipNoPosition) {
+            selection +=
+                " AND NOT (" + KEY_LATITUDE + " = " + User.NO_LATITUDE + " AND " + KEY_LONGITUDE + " = "
+                    + User.NO_LONGITUDE + ")";
+        }
+        Cursor cursor =
+            db.query(table, new String[]{idColumn, KEY_LATITUDE, KEY_LONGITUDE}, selection, null, null, null,
+                null);
+        SQLiteStatement update =
+            db.compileStatement("UPDATE " + table + " SET " + KEY_CELL + " = ? WHERE " + idColumn + " = ?");
+        try {
+            while (cursor.moveToNext()) {
+                update.bindLong(1, GRID.getCell(cursor.getDouble(1), cursor.getDouble(2)));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package ch.epfl.smartmap.database;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -9,6 +10,7 @@ import ch.epfl.smartmap.cache.EventContainer;
 import ch.epfl.smartmap.cache.FilterContainer;
 import ch.epfl.smartmap.cache.InvitationContainer;
 import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.Mutation;
 
 /**
  * @author jfperren
@@ -43,6 +45,15 @@ public interface DatabaseHelperInterface {
      */
     long addInvitation(InvitationContainer invitation);
 
+    /**
+     * Appends a mutation made offline to the log of mutations to send
+     * 
+     * @param mutation
+     *            The mutation to store
+     * @return The ID of the mutation in the database
+     */
+    long addMutation(Mutation mutation);
+
     /**
      * Adds a pending friend who invited the user to the database.
      * 
@@ -90,6 +101,25 @@ public interface DatabaseHelperInterface {
      */
     void deleteInvitation(long id);
 
+    /**
+     * Deletes mutations from the log, in a single transaction
+     * 
+     * @param ids
+     *            The database IDs of the mutations that were sent or dropped
+     */
+    void deleteMutations(Collection<Long> ids);
+
+    /**
+     * Deletes mutations from the log and rewrites others, in a single transaction
+     * 
+     * @param ids
+     *            The database IDs of the mutations that were sent or dropped
+     * @param rewrittenMutations
+     *            Mutations still to send whose target and parameters changed, for example because the
+     *            server gave its id to the event they change
+     */
+    void deleteMutations(Collection<Long> ids, Collection<Mutation> rewrittenMutations);
+
     /**
      * Deletes a pending friend request from the database
      * 
@@ -124,6 +154,14 @@ public interface DatabaseHelperInterface {
     Set<InvitationContainer> getAllInvitations();
 
     /**
+     * @return The mutations that were not sent yet, in the order they were made
+     */
+    List<Mutation> getAllMutations();
+
+    /**
+     * Reads all users without their pictures. The stored pictures are given to the {@code ImageStore}
+     * instead, which only decodes them when they are displayed.
+     *
      * @return the {@code Set} of all users
      */
     Set<UserContainer> getAllUsers();
@@ -135,6 +173,19 @@ public interface DatabaseHelperInterface {
      */
     EventContainer getEvent(long id);
 
+    /**
+     * Finds the events around a point, using the cell of each event instead of reading all of them
+     *
+     * @param latitude
+     *            latitude of the center
+     * @param longitude
+     *            longitude of the center
+     * @param radius
+     *            radius of the searched area, in meters
+     * @return the events located at most {@code radius} meters away from the center
+     */
+    Set<EventContainer> getEventsNear(double latitude, double longitude, double radius);
+
     /**
      * Gets a specific filter by its id
      * 
@@ -154,6 +205,19 @@ public interface DatabaseHelperInterface {
      */
     List<Long> getFriendIds();
 
+    /**
+     * Finds the friends around a point, using the cell of their last known position
+     *
+     * @param latitude
+     *            latitude of the center
+     * @param longitude
+     *            longitude of the center
+     * @param radius
+     *            radius of the searched area, in meters
+     * @return the friends last seen at most {@code radius} meters away from the center
+     */
+    Set<UserContainer> getFriendsNear(double latitude, double longitude, double radius);
+
     /**
      * Returns a list of all pending friends
      * 
@@ -172,7 +236,7 @@ public interface DatabaseHelperInterface {
     Bitmap getPictureById(long userId);
 
     /**
-     * Gets a user from the database
+     * Gets a user from the database, without its picture, see {@code getAllUsers}
      * 
      * @param id
      *            The user's unique ID
@@ -187,7 +251,7 @@ public interface DatabaseHelperInterface {
     void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
 
     /**
-     * Stores a profile picture
+     * Stores a profile picture in a compact lossy format, with a small thumbnail for lists and markers
      * 
      * @param picture
      *            The picture to store
@@ -196,6 +260,49 @@ public interface DatabaseHelperInterface {
      */
     void setUserPicture(Bitmap picture, long userId);
 
+    /**
+     * Replaces the users, events, filters and invitations of the database by the given ones, in a single
+     * transaction. Profile pictures are taken from the {@code ImageStore}, and only written when they
+     * changed since they were last stored.
+     *
+     * @param users
+     *            The users to store
+     * @param events
+     *            The events to store
+     * @param filters
+     *            The filters to store
+     * @param invitations
+     *            The invitations to store, with the users and events they reference
+     */
+    void storeAll(Collection<UserContainer> users, Collection<EventContainer> events,
+        Collection<FilterContainer> filters, Collection<InvitationContainer> invitations);
+
+    /**
+     * Writes the users, events, filters and invitations that changed, and removes the ones that were
+     * removed, in a single transaction. Other rows are left as they are.
+     *
+     * @param users
+     *            The users to add or replace
+     * @param events
+     *            The events to add or replace, with their participants
+     * @param filters
+     *            The filters to add or replace, with their members
+     * @param invitations
+     *            The invitations to add or replace
+     * @param removedUserIds
+     *            The ids of the users to remove
+     * @param removedEventIds
+     *            The ids of the events to remove
+     * @param removedFilterIds
+     *            The ids of the filters to remove
+     * @param removedInvitationIds
+     *            The ids of the invitations to remove
+     */
+    void storeChanges(Collection<UserContainer> users, Collection<EventContainer> events,
+        Collection<FilterContainer> filters, Collection<InvitationContainer> invitations,
+        Collection<Long> removedUserIds, Collection<Long> removedEventIds, Collection<Long> removedFilterIds,
+        Collection<Long> removedInvitationIds);
+
     /**
      * Updates an event
      * 
@@ -223,7 +330,7 @@ public interface DatabaseHelperInterface {
     int updateFriend(UserContainer friend);
 
     /**
-     * Updates the database contents to be up-to-date with the cache
+     * Updates the database contents to be up-to-date with the cache, see {@code storeAll}
      */
     void updateFromCache();
 
@@ -0,0 +1,250 @@
+package ch.epfl.smartmap.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import ch.epfl.smartmap.cache.ImageStore;
+import ch.epfl.smartmap.cache.LongSet;
+
+/**
+ * Profile pictures stored in the files of the application. Each picture is written in a lossy format, with a
+ * thumbnail of at most {@code ImageStore.THUMBNAIL_SIZE} pixels next to it, so that list rows and markers
+ * can be drawn without decoding the full size picture. Pictures written as PNG by older versions are still
+ * read, and get their thumbnail the first time it is needed. It is written by a background thread, since
+ * thumbnails are decoded on the UI thread.
+ *
+ * @author jfperren
+ */
+final class PictureFiles implements ImageStore.PictureSource {
+
+    private static final String TAG = PictureFiles.class.getSimpleName();
+
+    private static final String EXTENSION = ".webp";
+    private static final String THUMBNAIL_SUFFIX = "_thumb";
+    private static final String LEGACY_EXTENSION = ".png";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    // In seconds
+    private static final long KEEP_ALIVE = 10;
+
+    private final Context mContext;
+    private final ThreadPoolExecutor mThumbnailWriter;
+    // Users whose thumbnail is waiting to be written, guarded by itself
+    private final Set<Long> mPendingThumbnails;
+
+    /**
+     * Constructor
+     *
+     * @param context
+     *            used to access the files of the application
+     */
+    PictureFiles(Context context) {
+        mContext = context;
+        mThumbnailWriter =
+            new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mThumbnailWriter.allowCoreThreadTimeOut(true);
+        mPendingThumbnails = new HashSet<Long>();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.ImageStore.PictureSource#decode(long)
+     */
+    @Override
+    public Bitmap decode(long userId) {
+        File file = this.getPictureFile(userId);
+        return (file != null) ? BitmapFactory.decodeFile(file.getAbsolutePath()) : null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.cache.ImageStore.PictureSource#decodeThumbnail(long)
+     */
+    @Override
+    public Bitmap decodeThumbnail(long userId) {
+        File thumbnail = this.getFile(userId + THUMBNAIL_SUFFIX + EXTENSION);
+        if (thumbnail.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getAbsolutePath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        // Picture written without thumbnail, decode it at a reduced size
+        File file = this.getPictureFile(userId);
+        if (file == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        Bitmap sampled = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (sampled == null) {
+            return null;
+        }
+        Bitmap bitmap = toThumbnail(sampled);
+        this.writeThumbnailInBackground(userId, thumbnail, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * @return whether a picture of the user is stored, to avoid listing all files for a single user
+     */
+    boolean isStored(long userId) {
+        return this.getPictureFile(userId) != null;
+    }
+
+    /**
+     * Lists the files once, instead of checking {@code exists} for each user
+     *
+     * @return the ids of the users who have a picture stored
+     */
+    LongSet listStored() {
+        LongSet ids = new LongSet();
+        String[] names = mContext.getFilesDir().list();
+        if (names == null) {
+            return ids;
+        }
+        for (String name : names) {
+            String id;
+            if (name.endsWith(EXTENSION)) {
+                id = name.substring(0, name.length() - EXTENSION.length());
+            } else if (name.endsWith(LEGACY_EXTENSION)) {
+                id = name.substring(0, name.length() - LEGACY_EXTENSION.length());
+            } else {
+                continue;
+            }
+            try {
+                ids.add(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                // A thumbnail or another file
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Stores the picture of an user with its thumbnail, replacing the previous ones
+     *
+     * @param userId
+     * @param picture
+     */
+    void write(long userId, Bitmap picture) {
+        // Thumbnail first, since it is only read when the picture exists
+        this.write(this.getFile(userId + THUMBNAIL_SUFFIX + EXTENSION), toThumbnail(picture));
+        if (this.write(this.getFile(userId + EXTENSION), picture)) {
+            this.getFile(userId + LEGACY_EXTENSION).delete();
+        }
+    }
+
+    private File getFile(String name) {
+        return new File(mContext.getFilesDir(), name);
+    }
+
+    /**
+     * @return the file of the picture of an user, or {@code null} if there is none
+     */
+    private File getPictureFile(long userId) {
+        File file = this.getFile(userId + EXTENSION);
+        if (file.exists()) {
+            return file;
+        }
+        File legacy = this.getFile(userId + LEGACY_EXTENSION);
+        return legacy.exists() ? legacy : null;
+    }
+
+    /**
+     * Writes to a temporary file first, so that a picture is never read while partially written
+     *
+     * @return {@code true} if the picture was written
+     */
+    private boolean write(File file, Bitmap picture) {
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                picture.compress(Bitmap.CompressFormat.WEBP, DatabaseHelper.IMAGE_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file.getName() + ": " + e);
+            temporary.delete();
+            return false;
+        }
+        return temporary.renameTo(file);
+    }
+
+    /**
+     * Writes a thumbnail missing from a picture written by an older version, once per user at a time
+     */
+    private void writeThumbnailInBackground(final long userId, final File thumbnail, final Bitmap bitmap) {
+        synchronized (mPendingThumbnails) {
+            if (!mPendingThumbnails.add(userId)) {
+                return;
+            }
+        }
+        mThumbnailWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Unless a new picture was written with its thumbnail in the meantime
+                    if (!thumbnail.exists()) {
+                        PictureFiles.this.write(thumbnail, bitmap);
+                    }
+                } finally {
+                    synchronized (mPendingThumbnails) {
+                        mPendingThumbnails.remove(userId);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the largest power of two by which the picture can be subsampled while staying larger than a
+     *         thumbnail
+     */
+    private static int sampleSize(int width, int height) {
+        int sampleSize = 1;
+        while ((Math.max(width, height) / (sampleSize * 2)) >= ImageStore.THUMBNAIL_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return the picture scaled down to fit in a thumbnail, or itself if it is already small enough
+     */
+    private static Bitmap toThumbnail(Bitmap picture) {
+        int width = picture.getWidth();
+        int height = picture.getHeight();
+        if ((width <= ImageStore.THUMBNAIL_SIZE) && (height <= ImageStore.THUMBNAIL_SIZE)) {
+            return picture;
+        }
+        float scale = (float) ImageStore.THUMBNAIL_SIZE / Math.max(width, height);
+        return Bitmap.createScaledBitmap(picture, Math.max(1, Math.round(width * scale)),
+            Math.max(1, Math.round(height * scale)), true);
+    }
+}
@@ -11,6 +11,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import ch.epfl.smartmap.R;
 import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.cache.ImageStore;
 import ch.epfl.smartmap.cache.Invitation;
 
 /**
@@ -75,7 +76,8 @@ public class FriendInvitationListItemAdapter extends ArrayAdapter<Invitation> {
         if (invitation != null) {
             viewHolder.getUserName().setText(invitation.getUser().getName());
             viewHolder.getPicture().setImageBitmap(
-                ServiceContainer.getCache().getUser(invitation.getUser().getId()).getActionImage());
+                ServiceContainer.getCache().getUser(invitation.getUser().getId()).getImageHandle()
+                    .getVariant(ImageStore.LIST_ROW_SIZE));
         }
 
         return newConvertView;
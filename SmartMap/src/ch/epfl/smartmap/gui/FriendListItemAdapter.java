@@ -10,6 +10,7 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 import ch.epfl.smartmap.R;
+import ch.epfl.smartmap.cache.ImageStore;
 import ch.epfl.smartmap.cache.User;
 
 /**
@@ -75,7 +76,7 @@ public class FriendListItemAdapter extends ArrayAdapter<User> {
         // Set fields with user attributes
         if (user != null) {
             viewHolder.getName().setText(user.getName());
-            viewHolder.getPicture().setImageBitmap(user.getActionImage());
+            viewHolder.getPicture().setImageBitmap(user.getImageHandle().getVariant(ImageStore.LIST_ROW_SIZE));
             viewHolder.getLastSeen().setText(user.getSubtitle());
         }
 
@@ -10,6 +10,7 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 import ch.epfl.smartmap.R;
+import ch.epfl.smartmap.cache.ImageStore;
 import ch.epfl.smartmap.cache.User;
 
 /**
@@ -58,7 +59,7 @@ public class FriendPickerListAdapter extends ArrayAdapter<User> {
         }
 
         viewHolder.mName.setText(user.getName());
-        viewHolder.mPicture.setImageBitmap(user.getActionImage());
+        viewHolder.mPicture.setImageBitmap(user.getImageHandle().getVariant(ImageStore.LIST_ROW_SIZE));
         viewHolder.setId(user.getId());
         newConvertView.setTag(viewHolder);
 
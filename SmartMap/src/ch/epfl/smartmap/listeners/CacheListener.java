@@ -1,5 +1,9 @@
 package ch.epfl.smartmap.listeners;
 
+import java.util.Set;
+
+import ch.epfl.smartmap.cache.CacheDelta;
+
 /**
  * Interface that describes how a class that wants to listener to value update in the Cache should be doing
  * so.
@@ -8,6 +12,15 @@ package ch.epfl.smartmap.listeners;
  */
 public interface CacheListener {
 
+    /**
+     * Called once after each modification of the {@code Cache}, after the list callbacks below, with the
+     * ids and fields that changed. Use it to only update what changed instead of reloading whole lists.
+     * 
+     * @param delta
+     *            changes made during the modification
+     */
+    void onCacheUpdate(CacheDelta delta);
+
     /**
      * Called when an {@code Event} is added, removed or updated in the {@code Cache}.
      */
@@ -23,6 +36,17 @@ public interface CacheListener {
      */
     void onInvitationListUpdate();
 
+    /**
+     * Called exactly when {@code Event}s in the {@code Cache} start or end, and when a modification of their
+     * dates changes their live status. Called before {@code onCacheUpdate}.
+     * 
+     * @param startedIds
+     *            ids of the Events that became live
+     * @param endedIds
+     *            ids of the Events that are not live anymore
+     */
+    void onLiveEventsUpdate(Set<Long> startedIds, Set<Long> endedIds);
+
     /**
      * Called when an {@code User} is added, removed or updated in the {@code Cache}.
      */
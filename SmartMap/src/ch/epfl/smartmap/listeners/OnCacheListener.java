@@ -1,5 +1,9 @@
 package ch.epfl.smartmap.listeners;
 
+import java.util.Set;
+
+import ch.epfl.smartmap.cache.CacheDelta;
+
 /**
  * Basic implementation of {@code CacheListener} that does nothing on any notify call. Use it as a superclass
  * to avoid needing to implement all methods if not needed.
@@ -8,6 +12,15 @@ package ch.epfl.smartmap.listeners;
  */
 public class OnCacheListener implements CacheListener {
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.listeners.CacheListener#onCacheUpdate(ch.epfl.smartmap.cache.CacheDelta)
+     */
+    @Override
+    public void onCacheUpdate(CacheDelta delta) {
+        // Nothing
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.listeners.CacheListener#onEventListUpdate()
@@ -31,6 +44,15 @@ public class OnCacheListener implements CacheListener {
         // Nothing
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.listeners.CacheListener#onLiveEventsUpdate(java.util.Set, java.util.Set)
+     */
+    @Override
+    public void onLiveEventsUpdate(Set<Long> startedIds, Set<Long> endedIds) {
+        // Nothing
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.listeners.CacheListener#onFriendListUpdate()
@@ -21,7 +21,7 @@ import android.graphics.Rect;
 import ch.epfl.smartmap.R;
 import ch.epfl.smartmap.background.ServiceContainer;
 import ch.epfl.smartmap.cache.Friend;
-import ch.epfl.smartmap.cache.User;
+import ch.epfl.smartmap.cache.ImageStore;
 import ch.epfl.smartmap.util.Utils;
 
 /**
@@ -162,7 +162,8 @@ public class CircularMarkerIconMaker implements MarkerIconMaker {
      */
     private void initializeDefaultProfilePicture() {
         mDefaultProfilePicture =
-            Bitmap.createScaledBitmap(User.NO_IMAGE, BASE_MARKER_SHAPE.getWidth() - SHAPE_BORDER_WIDTH,
+            Bitmap.createScaledBitmap(ServiceContainer.getImageStore().getDefaultHandle()
+                .getVariant(ImageStore.MARKER_SIZE), BASE_MARKER_SHAPE.getWidth() - SHAPE_BORDER_WIDTH,
                 BASE_MARKER_SHAPE.getWidth() - SHAPE_BORDER_WIDTH, true);
 
         mDefaultProfilePicture = this.cropCircle(mDefaultProfilePicture, mDefaultProfilePicture.getWidth());
@@ -219,8 +220,9 @@ public class CircularMarkerIconMaker implements MarkerIconMaker {
     private void initializeProfilePicture() {
 
         mProfilePicture =
-            Bitmap.createScaledBitmap(mFriend.getActionImage(), BASE_MARKER_SHAPE.getWidth()
-                - SHAPE_BORDER_WIDTH, BASE_MARKER_SHAPE.getWidth() - SHAPE_BORDER_WIDTH, true);
+            Bitmap.createScaledBitmap(mFriend.getImageHandle().getVariant(ImageStore.MARKER_SIZE),
+                BASE_MARKER_SHAPE.getWidth() - SHAPE_BORDER_WIDTH, BASE_MARKER_SHAPE.getWidth()
+                    - SHAPE_BORDER_WIDTH, true);
 
         mProfilePicture = this.cropCircle(mProfilePicture, mProfilePicture.getWidth());
 
@@ -8,7 +8,6 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
 
@@ -54,6 +53,10 @@ public class DefaultMarkerManager implements MarkerManager {
      * A map that maps each marker with its id
      */
     private final Map<String, Marker> mDictionnaryMarkers;
+    /**
+     * A map that maps the id of each displayed item with the id of its marker
+     */
+    private final Map<Long, String> mMarkerIdsByItemId;
     private static final String DISPLAYABLE_ITEM = "Displayable item";
     private static final String CONTEXT_STRING = "context";
 
@@ -67,6 +70,7 @@ public class DefaultMarkerManager implements MarkerManager {
         mGoogleMap = googleMap;
         mDisplayedItems = new HashMap<String, Displayable>();
         mDictionnaryMarkers = new HashMap<String, Marker>();
+        mMarkerIdsByItemId = new HashMap<Long, String>();
     }
 
     /*
@@ -83,6 +87,7 @@ public class DefaultMarkerManager implements MarkerManager {
                 .icon(item.getMarkerIcon(context)).anchor(MARKER_ANCHOR_X, MARKER_ANCHOR_Y));
         mDisplayedItems.put(marker.getId(), item);
         mDictionnaryMarkers.put(marker.getId(), marker);
+        mMarkerIdsByItemId.put(item.getId(), marker.getId());
         marker.setSnippet(MarkerColor.ORANGE.toString());
         return marker;
     }
@@ -126,10 +131,9 @@ public class DefaultMarkerManager implements MarkerManager {
     @Override
     public Marker getMarkerForItem(Displayable item) {
         this.checkNonNull(item, DISPLAYABLE_ITEM);
-        for (Entry<String, Displayable> entry : mDisplayedItems.entrySet()) {
-            if (entry.getValue().equals(item)) {
-                return mDictionnaryMarkers.get(entry.getKey());
-            }
+        String markerId = mMarkerIdsByItemId.get(item.getId());
+        if ((markerId != null) && item.equals(mDisplayedItems.get(markerId))) {
+            return mDictionnaryMarkers.get(markerId);
         }
         return null;
     }
@@ -143,7 +147,7 @@ public class DefaultMarkerManager implements MarkerManager {
     @Override
     public boolean isDisplayedItem(Displayable item) {
         this.checkNonNull(item, "Displayable item");
-        return mDisplayedItems.containsValue(item);
+        return this.getMarkerForItem(item) != null;
     }
 
     /*
@@ -158,6 +162,41 @@ public class DefaultMarkerManager implements MarkerManager {
         return mDisplayedItems.containsKey(marker.getId());
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.map.MarkerManager#patchMarkers(android.content.Context, java.util.Set,
+     * java.util.Set)
+     */
+    @Override
+    public void patchMarkers(Context context, Set<Displayable> itemsToUpdate, Set<Long> idsToRemove) {
+        this.checkNonNull(context, CONTEXT_STRING);
+        this.checkNonNull(itemsToUpdate, "items to update");
+        this.checkNonNull(idsToRemove, "ids to remove");
+
+        for (long id : idsToRemove) {
+            String markerId = mMarkerIdsByItemId.get(id);
+            if (markerId != null) {
+                this.removeMarker(mDisplayedItems.get(markerId));
+            }
+        }
+
+        for (Displayable item : itemsToUpdate) {
+            Marker marker = this.getMarkerForItem(item);
+            if (marker == null) {
+                this.addMarker(item, context);
+            } else {
+                // Item already displayed, only refresh its marker
+                mDisplayedItems.put(marker.getId(), item);
+                if ((marker.getPosition().latitude != item.getLatLng().latitude)
+                    || (marker.getPosition().longitude != item.getLatLng().longitude)) {
+                    this.animateMarker(marker, item.getLatLng());
+                }
+                marker.setTitle(item.getTitle());
+                marker.setIcon(item.getMarkerIcon(context));
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see
@@ -170,6 +209,7 @@ public class DefaultMarkerManager implements MarkerManager {
         Marker marker = this.getMarkerForItem(item);
         mDisplayedItems.remove(marker.getId());
         mDictionnaryMarkers.remove(marker.getId());
+        mMarkerIdsByItemId.remove(item.getId());
         marker.remove();
         return marker;
     }
@@ -61,6 +61,18 @@ public interface MarkerManager {
      */
     boolean isDisplayedMarker(Marker marker);
 
+    /**
+     * Updates only the markers of the given items, leaving all other markers untouched. Use it with the
+     * changes given by the {@code Cache} instead of {@code updateMarkers}, which goes through all items.
+     * 
+     * @param context
+     * @param itemsToUpdate
+     *            items that were added or modified, their markers are added or moved
+     * @param idsToRemove
+     *            ids of the items whose markers should be removed
+     */
+    void patchMarkers(Context context, Set<Displayable> itemsToUpdate, Set<Long> idsToRemove);
+
     /**
      * Remove a marker from the map
      * 
@@ -7,17 +7,19 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
-import android.os.AsyncTask;
 import android.util.Log;
 import ch.epfl.smartmap.background.ServiceContainer;
 import ch.epfl.smartmap.cache.Displayable;
 import ch.epfl.smartmap.cache.Event;
 import ch.epfl.smartmap.cache.EventContainer;
 import ch.epfl.smartmap.cache.FilterInterface;
+import ch.epfl.smartmap.cache.MetricsRegistry;
 import ch.epfl.smartmap.cache.User;
 import ch.epfl.smartmap.cache.UserContainer;
 import ch.epfl.smartmap.callbacks.SearchRequestCallback;
+import ch.epfl.smartmap.servercom.NetworkExecutor.Priority;
 import ch.epfl.smartmap.servercom.SmartMapClientException;
 
 /**
@@ -41,12 +43,12 @@ public final class CachedSearchEngine implements SearchEngineInterface {
 
     @Override
     public void findEventById(final long id, final SearchRequestCallback<Event> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        ServiceContainer.getNetworkExecutor().submit(Priority.INTERACTIVE, new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public Void call() {
                 return CachedSearchEngine.this.findEventByIdTaskInBackground(id, callback);
             }
-        }.execute();
+        }, null);
     }
 
     /**
@@ -61,6 +63,7 @@ public final class CachedSearchEngine implements SearchEngineInterface {
     private Void findEventByIdsTaskInBackground(Set<Long> ids, SearchRequestCallback<Set<Event>> callback) {
         Set<EventContainer> immutableResult = new HashSet<EventContainer>();
         Set<Event> result = new HashSet<Event>();
+        Set<Long> idsToFetch = new HashSet<Long>();
 
         for (long id : ids) {
             // Check for live instance
@@ -68,33 +71,44 @@ public final class CachedSearchEngine implements SearchEngineInterface {
 
             if (event != null) {
                 // Found in cache, add to set of live instances
+                this.count(MetricsRegistry.SEARCH_CACHE_HITS);
                 result.add(event);
             } else {
                 // If not found, check in database
-                EventContainer databaseResult = ServiceContainer.getDatabase().getEvent(id);
+                EventContainer databaseResult = this.getEventFromDatabase(id);
 
                 if (databaseResult != null) {
+                    this.count(MetricsRegistry.SEARCH_DATABASE_HITS);
                     immutableResult.add(databaseResult);
                 } else {
                     // If not found, check on the server
-                    EventContainer networkResult;
-                    try {
-                        Log.d(TAG, "Try to get event online");
-                        networkResult = ServiceContainer.getNetworkClient().getEventInfo(id);
-                        Log.d(TAG, "Successfull");
-                    } catch (SmartMapClientException e) {
-                        networkResult = null;
-                        Log.e(TAG, "Error while finding public events by Ids" + e);
-                    }
-
-                    if (networkResult != null) {
-                        // Match on server, put it in cache
-                        immutableResult.add(networkResult);
-                    }
+                    idsToFetch.add(id);
                 }
             }
         }
 
+        if (!idsToFetch.isEmpty()) {
+            // All missing events are fetched in a single request
+            List<EventContainer> networkResult;
+            MetricsRegistry.Timer networkTimer =
+                ServiceContainer.getMetrics().timer(MetricsRegistry.SEARCH_NETWORK_TIME);
+            long networkStart = networkTimer.start();
+            try {
+                networkResult = ServiceContainer.getNetworkClient().getEventsInfo(idsToFetch);
+            } catch (SmartMapClientException e) {
+                networkResult = new ArrayList<EventContainer>();
+                this.count(MetricsRegistry.SEARCH_NETWORK_ERRORS);
+                Log.e(TAG, "Error while finding public events by Ids" + e);
+            }
+            networkTimer.stop(networkStart);
+
+            // Matches on server, put them in cache
+            immutableResult.addAll(networkResult);
+            this.count(MetricsRegistry.SEARCH_NETWORK_HITS, networkResult.size());
+            this.count(MetricsRegistry.SEARCH_MISSES,
+                Math.max(0, idsToFetch.size() - networkResult.size()));
+        }
+
         // Get all results that weren't in cache and add them all at
         // once (Avoid to send multiple listener calls)
         ServiceContainer.getCache().putEvents(immutableResult);
@@ -123,16 +137,18 @@ public final class CachedSearchEngine implements SearchEngineInterface {
 
         if (event != null) {
             // Found in cache, return
+            this.count(MetricsRegistry.SEARCH_CACHE_HITS);
             if (callback != null) {
                 callback.onResult(event);
             }
             return null;
         } else {
             // If not found, check in database
-            EventContainer databaseResult = ServiceContainer.getDatabase().getEvent(id);
+            EventContainer databaseResult = this.getEventFromDatabase(id);
 
             if (databaseResult != null) {
                 // Match in database, put it in cache
+                this.count(MetricsRegistry.SEARCH_DATABASE_HITS);
                 ServiceContainer.getCache().putEvent(databaseResult);
                 if (callback != null) {
                     callback.onResult(ServiceContainer.getCache().getEvent(id));
@@ -141,15 +157,21 @@ public final class CachedSearchEngine implements SearchEngineInterface {
             } else {
                 // If not found, check on the server
                 EventContainer networkResult;
+                MetricsRegistry.Timer networkTimer =
+                    ServiceContainer.getMetrics().timer(MetricsRegistry.SEARCH_NETWORK_TIME);
+                long networkStart = networkTimer.start();
                 try {
                     networkResult = ServiceContainer.getNetworkClient().getEventInfo(id);
                 } catch (SmartMapClientException e) {
                     networkResult = null;
+                    this.count(MetricsRegistry.SEARCH_NETWORK_ERRORS);
                     Log.e(TAG, "Error while finding public events by Ids" + e);
                 }
+                networkTimer.stop(networkStart);
 
                 if (networkResult != null) {
                     // Match on server, put it in cache
+                    this.count(MetricsRegistry.SEARCH_NETWORK_HITS);
                     ServiceContainer.getCache().putEvent(networkResult);
                     if (callback != null) {
                         callback.onResult(ServiceContainer.getCache().getEvent(id));
@@ -157,6 +179,7 @@ public final class CachedSearchEngine implements SearchEngineInterface {
                     return null;
                 } else {
                     // No match anywhere
+                    this.count(MetricsRegistry.SEARCH_MISSES);
                     if (callback != null) {
                         callback.onNotFound();
                     }
@@ -168,24 +191,24 @@ public final class CachedSearchEngine implements SearchEngineInterface {
 
     @Override
     public void findEventsByIds(final Set<Long> ids, final SearchRequestCallback<Set<Event>> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        ServiceContainer.getNetworkExecutor().submit(Priority.INTERACTIVE, new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public Void call() {
                 return CachedSearchEngine.this.findEventByIdsTaskInBackground(ids, callback);
             }
 
-        }.execute();
+        }, null);
     }
 
     @Override
     public void findStrangersByName(final String query, final SearchRequestCallback<Set<User>> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        ServiceContainer.getNetworkExecutor().submit(Priority.INTERACTIVE, new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public Void call() {
                 return CachedSearchEngine.this.findStrangersByNameTaskInBackground(query, callback);
 
             }
-        }.execute();
+        }, null);
     }
 
     /**
@@ -239,12 +262,12 @@ public final class CachedSearchEngine implements SearchEngineInterface {
 
     @Override
     public void findUserById(final long id, final SearchRequestCallback<User> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        ServiceContainer.getNetworkExecutor().submit(Priority.INTERACTIVE, new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public Void call() {
                 return CachedSearchEngine.this.findUserByIdTaskInBackground(id, callback);
             }
-        }.execute();
+        }, null);
     }
 
     /**
@@ -262,16 +285,22 @@ public final class CachedSearchEngine implements SearchEngineInterface {
 
         if (user != null) {
             // Found in cache, return
+            this.count(MetricsRegistry.SEARCH_CACHE_HITS);
             if (callback != null) {
                 callback.onResult(user);
             }
             return null;
         } else {
             // If not found, check in database
+            MetricsRegistry.Timer databaseTimer =
+                ServiceContainer.getMetrics().timer(MetricsRegistry.SEARCH_DATABASE_TIME);
+            long databaseStart = databaseTimer.start();
             UserContainer databaseResult = ServiceContainer.getDatabase().getUser(id);
+            databaseTimer.stop(databaseStart);
 
             if (databaseResult != null) {
                 // Match in database, put it in cache
+                this.count(MetricsRegistry.SEARCH_DATABASE_HITS);
                 ServiceContainer.getCache().putUser(databaseResult);
                 if (callback != null) {
                     callback.onResult(ServiceContainer.getCache().getUser(id));
@@ -280,10 +309,15 @@ public final class CachedSearchEngine implements SearchEngineInterface {
             } else {
                 // If not found, check on the server
                 UserContainer networkResult;
+                MetricsRegistry.Timer networkTimer =
+                    ServiceContainer.getMetrics().timer(MetricsRegistry.SEARCH_NETWORK_TIME);
+                long networkStart = networkTimer.start();
                 try {
                     networkResult = ServiceContainer.getNetworkClient().getUserInfo(id);
+                    networkTimer.stop(networkStart);
                     if (networkResult != null) {
                         // Match on server, put it in cache
+                        this.count(MetricsRegistry.SEARCH_NETWORK_HITS);
                         ServiceContainer.getCache().putUser(networkResult);
                         if (callback != null) {
 
@@ -292,12 +326,15 @@ public final class CachedSearchEngine implements SearchEngineInterface {
                         return null;
                     } else {
                         // No match anywhere
+                        this.count(MetricsRegistry.SEARCH_MISSES);
                         if (callback != null) {
                             callback.onNotFound();
                         }
                         return null;
                     }
                 } catch (SmartMapClientException e) {
+                    networkTimer.stop(networkStart);
+                    this.count(MetricsRegistry.SEARCH_NETWORK_ERRORS);
                     Log.e(TAG, "Error while finding strangers by Ids" + e);
                     if (callback != null) {
                         callback.onNetworkError(e);
@@ -310,13 +347,13 @@ public final class CachedSearchEngine implements SearchEngineInterface {
 
     @Override
     public void findUsersByIds(final Set<Long> ids, final SearchRequestCallback<Set<User>> callback) {
-        new AsyncTask<Void, Void, Void>() {
+        ServiceContainer.getNetworkExecutor().submit(Priority.INTERACTIVE, new Callable<Void>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public Void call() {
                 return CachedSearchEngine.this.findUsersByIdTaskInBackground(ids, callback);
 
             }
-        }.execute();
+        }, null);
     }
 
     /**
@@ -331,6 +368,7 @@ public final class CachedSearchEngine implements SearchEngineInterface {
     private Void findUsersByIdTaskInBackground(Set<Long> ids, final SearchRequestCallback<Set<User>> callback) {
         Set<UserContainer> immutableResult = new HashSet<UserContainer>();
         Set<User> result = new HashSet<User>();
+        Set<Long> idsToFetch = new HashSet<Long>();
 
         for (long id : ids) {
             // Check for live instance
@@ -338,22 +376,34 @@ public final class CachedSearchEngine implements SearchEngineInterface {
 
             if (stranger != null) {
                 // Found in cache, add to set of live instances
+                this.count(MetricsRegistry.SEARCH_CACHE_HITS);
                 result.add(stranger);
             } else {
                 // If not found, check on the server
-                UserContainer networkResult;
-                try {
-                    networkResult = ServiceContainer.getNetworkClient().getUserInfo(id);
-                } catch (SmartMapClientException e) {
-                    Log.e(TAG, "Error while finding public users by Ids" + e);
-                    networkResult = null;
-                }
+                idsToFetch.add(id);
+            }
+        }
 
-                if (networkResult != null) {
-                    // Match on server, put it in cache
-                    immutableResult.add(networkResult);
-                }
+        if (!idsToFetch.isEmpty()) {
+            // All missing users are fetched in a single request
+            List<UserContainer> networkResult;
+            MetricsRegistry.Timer networkTimer =
+                ServiceContainer.getMetrics().timer(MetricsRegistry.SEARCH_NETWORK_TIME);
+            long networkStart = networkTimer.start();
+            try {
+                networkResult = ServiceContainer.getNetworkClient().getUsersInfo(idsToFetch);
+            } catch (SmartMapClientException e) {
+                Log.e(TAG, "Error while finding public users by Ids" + e);
+                this.count(MetricsRegistry.SEARCH_NETWORK_ERRORS);
+                networkResult = new ArrayList<UserContainer>();
             }
+            networkTimer.stop(networkStart);
+
+            // Matches on server, put them in cache
+            immutableResult.addAll(networkResult);
+            this.count(MetricsRegistry.SEARCH_NETWORK_HITS, networkResult.size());
+            this.count(MetricsRegistry.SEARCH_MISSES,
+                Math.max(0, idsToFetch.size() - networkResult.size()));
         }
 
         ServiceContainer.getCache().putUsers(immutableResult);
@@ -413,4 +463,29 @@ public final class CachedSearchEngine implements SearchEngineInterface {
         return results;
     }
 
+    /**
+     * Increments the given search counter
+     */
+    private void count(String counterName) {
+        this.count(counterName, 1);
+    }
+
+    /**
+     * Increases the given search counter by the given amount
+     */
+    private void count(String counterName, long amount) {
+        ServiceContainer.getMetrics().counter(counterName).increment(amount);
+    }
+
+    /**
+     * @return the Event from the database, and records the time it took
+     */
+    private EventContainer getEventFromDatabase(long id) {
+        MetricsRegistry.Timer databaseTimer =
+            ServiceContainer.getMetrics().timer(MetricsRegistry.SEARCH_DATABASE_TIME);
+        long databaseStart = databaseTimer.start();
+        EventContainer databaseResult = ServiceContainer.getDatabase().getEvent(id);
+        databaseTimer.stop(databaseStart);
+        return databaseResult;
+    }
 }
@@ -16,7 +16,7 @@ import ch.epfl.smartmap.callbacks.SearchRequestCallback;
 public interface SearchEngineInterface {
 
     /**
-     * Use an {@code AsyncTask} to look for the Event with given Id successively in Cache, Database and
+     * Look asynchronously for the Event with given Id successively in Cache, Database and
      * Server. If found, puts it in the {@code Cache} and give it to the {@code SearchRequestCallback}, and if
      * not, calls {@code SearchRequestCallback.onNotFound()}.
      * 
@@ -28,7 +28,7 @@ public interface SearchEngineInterface {
     void findEventById(final long id, final SearchRequestCallback<Event> callback);
 
     /**
-     * Use an {@code AsyncTask} to look for the Events with given Ids successively in Cache, Database and
+     * Look asynchronously for the Events with given Ids successively in Cache, Database and
      * Server. Those found will be put in the {@code Cache} and fed to the {@code SearchRequestCallback}
      * 
      * @param id
@@ -39,7 +39,7 @@ public interface SearchEngineInterface {
     void findEventsByIds(final Set<Long> ids, final SearchRequestCallback<Set<Event>> callback);
 
     /**
-     * Use an {@code AsyncTask} to look for the {@Stranger}s that match the query successively in
+     * Look asynchronously for the {@Stranger}s that match the query successively in
      * Cache, Database and Server. If found, puts it in the {@code Cache} and give it to the
      * {@code SearchRequestCallback}, and if not, calls {@code SearchRequestCallback.onNotFound()}.
      * 
@@ -51,7 +51,7 @@ public interface SearchEngineInterface {
     void findStrangersByName(final String query, final SearchRequestCallback<Set<User>> callback);
 
     /**
-     * Use an {@code AsyncTask} to look for the Event with given Id successively in Cache, Database and
+     * Look asynchronously for the Event with given Id successively in Cache, Database and
      * Server. If found, puts it in the {@code Cache} and give it to the {@code SearchRequestCallback}, and if
      * not, calls {@code SearchRequestCallback.onNotFound()}.
      * 
@@ -63,7 +63,7 @@ public interface SearchEngineInterface {
     void findUserById(final long id, final SearchRequestCallback<User> callback);
 
     /**
-     * Use an {@code AsyncTask} to look for the Users with given Ids successively in Cache, Database and
+     * Look asynchronously for the Users with given Ids successively in Cache, Database and
      * Server. Those found will be put in the {@code Cache} and fed to the {@code SearchRequestCallback}
      * 
      * @param id
@@ -0,0 +1,619 @@
+package ch.epfl.smartmap.servercom;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.callbacks.NetworkRequestCallback;
+import ch.epfl.smartmap.servercom.NetworkExecutor.Priority;
+
+/**
+ * Asynchronous version of a {@link SmartMapClient}: each request is sent by a {@link NetworkExecutor} and
+ * returns at once a {@code Future} of its result, which is also given to an optional callback.
+ * <p>
+ * Requests the user waits for, like accepting an invitation or looking for a user, are sent in the
+ * interactive lane, and synchronization, pictures and acknowledgements in the background one. Requests that
+ * fail give their {@code SmartMapClientException} to {@code onFailure}, or wrapped in an
+ * {@code ExecutionException} by {@code Future.get}.
+ *
+ * @author jfperren
+ */
+public final class AsyncSmartMapClient {
+
+    private final SmartMapClient mClient;
+    private final NetworkExecutor mExecutor;
+
+    /**
+     * Constructor
+     *
+     * @param client
+     *            the client that sends requests
+     * @param executor
+     *            on which requests are sent
+     */
+    public AsyncSmartMapClient(SmartMapClient client, NetworkExecutor executor) {
+        if ((client == null) || (executor == null)) {
+            throw new IllegalArgumentException("Client or executor is null");
+        }
+        mClient = client;
+        mExecutor = executor;
+    }
+
+    /**
+     * Sends {@link SmartMapClient#acceptInvitation(long)} in the interactive lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<UserContainer> acceptInvitation(final long id,
+        NetworkRequestCallback<UserContainer> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<UserContainer>() {
+            @Override
+            public UserContainer call() throws SmartMapClientException {
+                return mClient.acceptInvitation(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#ackAcceptedInvitation(long)} in the background lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> ackAcceptedInvitation(final long id, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.ackAcceptedInvitation(id);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#ackEventInvitation(long)} in the background lane
+     *
+     * @param eventId
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> ackEventInvitation(final long eventId, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.ackEventInvitation(eventId);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#ackRemovedFriend(long)} in the background lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> ackRemovedFriend(final long id, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.ackRemovedFriend(id);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#authServer(String, long, String)} in the interactive lane
+     *
+     * @param name
+     * @param facebookId
+     * @param fbAccessToken
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> authServer(final String name, final long facebookId, final String fbAccessToken,
+        NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.authServer(name, facebookId, fbAccessToken);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#blockFriend(long)} in the interactive lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> blockFriend(final long id, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.blockFriend(id);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#createPublicEvent(EventContainer)} in the interactive lane
+     *
+     * @param event
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Long> createPublicEvent(final EventContainer event, NetworkRequestCallback<Long> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Long>() {
+            @Override
+            public Long call() throws SmartMapClientException {
+                return mClient.createPublicEvent(event);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#declineInvitation(long)} in the interactive lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> declineInvitation(final long id, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.declineInvitation(id);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#findUsers(String)} in the interactive lane
+     *
+     * @param text
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<List<UserContainer>> findUsers(final String text,
+        NetworkRequestCallback<List<UserContainer>> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> call() throws SmartMapClientException {
+                return mClient.findUsers(text);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getEventInfo(long)} in the interactive lane
+     *
+     * @param eventId
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<EventContainer> getEventInfo(final long eventId,
+        NetworkRequestCallback<EventContainer> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<EventContainer>() {
+            @Override
+            public EventContainer call() throws SmartMapClientException {
+                return mClient.getEventInfo(eventId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getEventsInfo(Collection)} in the background lane
+     *
+     * @param eventIds
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<List<EventContainer>> getEventsInfo(final Collection<Long> eventIds,
+        NetworkRequestCallback<List<EventContainer>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<List<EventContainer>>() {
+            @Override
+            public List<EventContainer> call() throws SmartMapClientException {
+                return mClient.getEventsInfo(eventIds);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getEventInvitations()} in the background lane
+     *
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<InvitationBag> getEventInvitations(NetworkRequestCallback<InvitationBag> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<InvitationBag>() {
+            @Override
+            public InvitationBag call() throws SmartMapClientException {
+                return mClient.getEventInvitations();
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getEventInvitationsSince(String)} in the background lane
+     *
+     * @param cursor
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<ChangeSet<InvitationBag>> getEventInvitationsSince(final String cursor,
+        NetworkRequestCallback<ChangeSet<InvitationBag>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<ChangeSet<InvitationBag>>() {
+            @Override
+            public ChangeSet<InvitationBag> call() throws SmartMapClientException {
+                return mClient.getEventInvitationsSince(cursor);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getFriendInvitations()} in the background lane
+     *
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<InvitationBag> getFriendInvitations(NetworkRequestCallback<InvitationBag> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<InvitationBag>() {
+            @Override
+            public InvitationBag call() throws SmartMapClientException {
+                return mClient.getFriendInvitations();
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getFriendInvitationsSince(String)} in the background lane
+     *
+     * @param cursor
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<ChangeSet<InvitationBag>> getFriendInvitationsSince(final String cursor,
+        NetworkRequestCallback<ChangeSet<InvitationBag>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<ChangeSet<InvitationBag>>() {
+            @Override
+            public ChangeSet<InvitationBag> call() throws SmartMapClientException {
+                return mClient.getFriendInvitationsSince(cursor);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getFriendsIds()} in the background lane
+     *
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<List<Long>> getFriendsIds(NetworkRequestCallback<List<Long>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() throws SmartMapClientException {
+                return mClient.getFriendsIds();
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getProfilePicture(long)} in the background lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Bitmap> getProfilePicture(final long id, NetworkRequestCallback<Bitmap> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws SmartMapClientException {
+                return mClient.getProfilePicture(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getProfilePictureIfModified(long)} in the background lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Bitmap> getProfilePictureIfModified(final long id,
+        NetworkRequestCallback<Bitmap> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws SmartMapClientException {
+                return mClient.getProfilePictureIfModified(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getProfilePictures(Collection)} in the background lane
+     *
+     * @param ids
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Map<Long, Bitmap>> getProfilePictures(final Collection<Long> ids,
+        NetworkRequestCallback<Map<Long, Bitmap>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<Map<Long, Bitmap>>() {
+            @Override
+            public Map<Long, Bitmap> call() throws SmartMapClientException {
+                return mClient.getProfilePictures(ids);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getPublicEvents(double, double, double)} in the background lane
+     *
+     * @param latitude
+     * @param longitude
+     * @param radius
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<List<Long>> getPublicEvents(final double latitude, final double longitude,
+        final double radius, NetworkRequestCallback<List<Long>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() throws SmartMapClientException {
+                return mClient.getPublicEvents(latitude, longitude, radius);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getUserInfo(long)} in the interactive lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<UserContainer> getUserInfo(final long id, NetworkRequestCallback<UserContainer> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<UserContainer>() {
+            @Override
+            public UserContainer call() throws SmartMapClientException {
+                return mClient.getUserInfo(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#getUsersInfo(Collection)} in the background lane
+     *
+     * @param ids
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<List<UserContainer>> getUsersInfo(final Collection<Long> ids,
+        NetworkRequestCallback<List<UserContainer>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> call() throws SmartMapClientException {
+                return mClient.getUsersInfo(ids);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#inviteFriend(long)} in the interactive lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> inviteFriend(final long id, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.inviteFriend(id);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#inviteUsersToEvent(long, List)} in the interactive lane
+     *
+     * @param eventId
+     * @param friendsIds
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> inviteUsersToEvent(final long eventId, final List<Long> friendsIds,
+        NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.inviteUsersToEvent(eventId, friendsIds);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#joinEvent(long)} in the interactive lane
+     *
+     * @param eventId
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> joinEvent(final long eventId, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.joinEvent(eventId);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#leaveEvent(long)} in the interactive lane
+     *
+     * @param eventId
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> leaveEvent(final long eventId, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.leaveEvent(eventId);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#listFriendsPos()} in the background lane
+     *
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<List<UserContainer>> listFriendsPos(NetworkRequestCallback<List<UserContainer>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> call() throws SmartMapClientException {
+                return mClient.listFriendsPos();
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#listFriendsPosSince(String)} in the background lane
+     *
+     * @param cursor
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<ChangeSet<List<UserContainer>>> listFriendsPosSince(final String cursor,
+        NetworkRequestCallback<ChangeSet<List<UserContainer>>> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<ChangeSet<List<UserContainer>>>() {
+            @Override
+            public ChangeSet<List<UserContainer>> call() throws SmartMapClientException {
+                return mClient.listFriendsPosSince(cursor);
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#removeFriend(long)} in the interactive lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> removeFriend(final long id, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.removeFriend(id);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#unblockFriend(long)} in the interactive lane
+     *
+     * @param id
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> unblockFriend(final long id, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.unblockFriend(id);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#updateEvent(EventContainer)} in the interactive lane
+     *
+     * @param event
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> updateEvent(final EventContainer event, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.updateEvent(event);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Sends {@link SmartMapClient#updatePos(Location)} in the background lane
+     *
+     * @param location
+     * @param callback
+     *            given the result, may be {@code null}
+     * @return a future to wait for or cancel the request
+     */
+    public Future<Void> updatePos(final Location location, NetworkRequestCallback<Void> callback) {
+        return mExecutor.submit(Priority.BACKGROUND, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                mClient.updatePos(location);
+                return null;
+            }
+        }, callback);
+    }
+}
@@ -0,0 +1,437 @@
+package ch.epfl.smartmap.servercom;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.UserContainer;
+
+/**
+ * A {@link StreamingSmartMapParser} for the compact binary format, that the server sends instead of Json for
+ * responses made mostly of numbers (lists of ids, positions and events) to clients accepting
+ * {@code SmartMapParserFactory.BINARY_CONTENT_TYPE}.
+ * <p>
+ * A response starts with the bytes {@code 'S' 'M'} and the version of the format, followed by its status
+ * (one of {@code STATUS_OK}, {@code STATUS_ERROR} or {@code STATUS_FEEDBACK}), its message and the kind of
+ * its content (one of the {@code CONTENT_} constants). Integers are varints, 7 bits per byte with the least
+ * significant group first, and signed integers are zigzag encoded before. Strings are their length in bytes
+ * followed by their UTF-8 encoding, and lists are their size followed by their elements.
+ * <p>
+ * In lists, ids, coordinates (in millionths of degree) and dates (in seconds, see {@code toDate}) are sent
+ * as the difference with the same field of the previous element, so that sorted ids or positions and dates
+ * close to each other take one or two bytes. An event is sent as its id, the id and name of its creator, its
+ * starting date, its duration in seconds, its latitude and longitude, the name of its position, its name,
+ * its description and the ids of its participants.
+ * <p>
+ * Containers are validated and built by a {@link JsonSmartMapParser}, so that both formats accept the same
+ * data. A binary response cannot be held in a {@code String}, so this parser only reads streams.
+ *
+ * @author jfperren
+ */
+public final class BinarySmartMapParser implements StreamingSmartMapParser {
+
+    public static final int VERSION = 1;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int STATUS_FEEDBACK = 2;
+
+    public static final int CONTENT_NONE = 0;
+    public static final int CONTENT_IDS = 1;
+    public static final int CONTENT_POSITIONS = 2;
+    public static final int CONTENT_EVENTS = 3;
+
+    // Coordinates are sent in millionths of degree, about 10 centimeters
+    public static final double COORDINATE_SCALE = 1e6;
+
+    private static final int[] MAGIC = {'S', 'M'};
+
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+    private static final int VARINT_BITS = 7;
+    private static final int MAX_VARINT_SHIFT = 63;
+    private static final int VARINT_MASK = 0x7F;
+    private static final int VARINT_CONTINUATION = 0x80;
+    private static final int MILLIS_PER_SECOND = 1000;
+
+    // Bounds on sizes read from the response, so that a corrupted one cannot exhaust the memory
+    private static final int MAX_LIST_SIZE = 1 << 20;
+    private static final int MAX_STRING_LENGTH = 1 << 16;
+
+    private static final String ONLY_STREAMS = "Binary responses can only be read from a stream";
+
+    private final JsonSmartMapParser mValidator = new JsonSmartMapParser();
+
+    /**
+     * Converts a date of the binary format to a calendar, same as {@code JsonSmartMapParser} would parse it
+     *
+     * @param seconds
+     *            the date in server time, in seconds since 1970-01-01 00:00:00
+     * @return the date
+     */
+    public static GregorianCalendar toDate(long seconds) {
+        GregorianCalendar date = new GregorianCalendar(JsonSmartMapParser.SERVER_TIME_ZONE);
+        date.setTimeInMillis((seconds * MILLIS_PER_SECOND)
+            - JsonSmartMapParser.SERVER_TIME_ZONE.getRawOffset());
+        return date;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#checkServerError(java.lang.String)
+     */
+    @Override
+    public void checkServerError(String s) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseCursor(java.lang.String)
+     */
+    @Override
+    public String parseCursor(String s) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseEvent(java.lang.String)
+     */
+    @Override
+    public EventContainer parseEvent(String s) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parseEventList(java.io.InputStream)
+     */
+    @Override
+    public List<EventContainer> parseEventList(InputStream in) throws SmartMapParseException,
+        SmartMapClientException {
+        return this.parseResponse(in, CONTENT_EVENTS, new ContentReader<List<EventContainer>>() {
+            @Override
+            public List<EventContainer> read(InputStream in) throws IOException, SmartMapParseException {
+                return BinarySmartMapParser.this.readEvents(in);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseEventList(java.lang.String)
+     */
+    @Override
+    public List<EventContainer> parseEventList(String s) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseFriend(java.lang.String)
+     */
+    @Override
+    public UserContainer parseFriend(String s) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parseFriendList(java.io.InputStream,
+     * java.lang.String)
+     */
+    @Override
+    public List<UserContainer> parseFriendList(InputStream in, String key) throws SmartMapParseException {
+        // Mostly names, the server always sends them in Json
+        throw new SmartMapParseException("Friends are not sent in binary format");
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseFriendList(java.lang.String, java.lang.String)
+     */
+    @Override
+    public List<UserContainer> parseFriendList(String s, String key) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseId(java.lang.String)
+     */
+    @Override
+    public Long parseId(String s) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parseIdList(java.io.InputStream,
+     * java.lang.String)
+     */
+    @Override
+    public List<Long> parseIdList(InputStream in, String key) throws SmartMapParseException,
+        SmartMapClientException {
+        // A binary response has a single content, the key is not needed
+        return this.parseResponse(in, CONTENT_IDS, new ContentReader<List<Long>>() {
+            @Override
+            public List<Long> read(InputStream in) throws IOException, SmartMapParseException {
+                return BinarySmartMapParser.this.readIds(in);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseIdList(java.lang.String, java.lang.String)
+     */
+    @Override
+    public List<Long> parseIdList(String s, String key) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseMutationResults(java.lang.String)
+     */
+    @Override
+    public List<Mutation.Result> parseMutationResults(String s) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parsePictures(java.io.InputStream,
+     * java.lang.String)
+     */
+    @Override
+    public Map<Long, byte[]> parsePictures(InputStream in, String key) throws SmartMapParseException {
+        // Already compressed, the server always sends them in Json
+        throw new SmartMapParseException("Pictures are not sent in binary format");
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parsePictures(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Map<Long, byte[]> parsePictures(String s, String key) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parsePositions(java.io.InputStream)
+     */
+    @Override
+    public List<UserContainer> parsePositions(InputStream in) throws SmartMapParseException,
+        SmartMapClientException {
+        return this.parseResponse(in, CONTENT_POSITIONS, new ContentReader<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> read(InputStream in) throws IOException, SmartMapParseException {
+                return BinarySmartMapParser.this.readPositions(in);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parsePositions(java.lang.String)
+     */
+    @Override
+    public List<UserContainer> parsePositions(String s) throws SmartMapParseException {
+        throw new SmartMapParseException(ONLY_STREAMS);
+    }
+
+    /**
+     * Reads a whole response of the server, checking its status before its content
+     *
+     * @param in
+     *            the response
+     * @param expectedContent
+     *            kind of content the response must have if its status is {@code STATUS_OK}
+     * @param contentReader
+     *            reads the content
+     * @return the content
+     * @throws SmartMapParseException
+     *             if the response is not valid or does not have the expected content
+     * @throws SmartMapClientException
+     *             if the server returned an error
+     */
+    private <T> T parseResponse(InputStream in, int expectedContent, ContentReader<T> contentReader)
+        throws SmartMapParseException, SmartMapClientException {
+        try {
+            // Values are read byte by byte
+            InputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+
+            for (int expected : MAGIC) {
+                if (this.readByte(buffered) != expected) {
+                    throw new SmartMapParseException("Not a binary SmartMap response");
+                }
+            }
+            int version = this.readByte(buffered);
+            if (version != VERSION) {
+                throw new SmartMapParseException("Unsupported binary format version " + version);
+            }
+
+            int status = this.readByte(buffered);
+            String message = this.readString(buffered);
+            if (status == STATUS_ERROR) {
+                throw new SmartMapClientException(message);
+            } else if (status == STATUS_FEEDBACK) {
+                throw new ServerFeedbackException(message);
+            } else if (status != STATUS_OK) {
+                throw new SmartMapParseException("Unknown status " + status);
+            }
+
+            int content = this.readByte(buffered);
+            if (content != expectedContent) {
+                throw new SmartMapParseException("Unexpected content " + content);
+            }
+            T value = contentReader.read(buffered);
+            if (buffered.read() != -1) {
+                throw new SmartMapParseException("Unexpected data after the content");
+            }
+            return value;
+        } catch (IOException e) {
+            // Also thrown for truncated responses
+            throw new SmartMapParseException(e);
+        }
+    }
+
+    private int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private double readCoordinateDelta(InputStream in) throws IOException, SmartMapParseException {
+        return this.readSignedVarint(in) / COORDINATE_SCALE;
+    }
+
+    private List<EventContainer> readEvents(InputStream in) throws IOException, SmartMapParseException {
+        int size = this.readSize(in);
+        List<EventContainer> events = new ArrayList<EventContainer>(size);
+
+        long id = 0;
+        long creatorId = 0;
+        long startingDate = 0;
+        long latitude = 0;
+        long longitude = 0;
+        for (int i = 0; i < size; i++) {
+            id += this.readSignedVarint(in);
+            creatorId += this.readSignedVarint(in);
+            String creatorName = this.readString(in);
+            startingDate += this.readSignedVarint(in);
+            long endDate = startingDate + this.readSignedVarint(in);
+            latitude += this.readSignedVarint(in);
+            longitude += this.readSignedVarint(in);
+            String positionName = this.readString(in);
+            String name = this.readString(in);
+            String description = this.readString(in);
+            List<Long> participants = this.readIds(in);
+
+            // Same as a creator read from Json, without location
+            UserContainer creator =
+                mValidator.createFriend(creatorId, creatorName, JsonSmartMapParser.UNITIALIZED_LATITUDE,
+                    JsonSmartMapParser.UNITIALIZED_LONGITUDE, null, 0);
+            events.add(mValidator.createEvent(id, creator, toDate(startingDate), toDate(endDate), latitude
+                / COORDINATE_SCALE, longitude / COORDINATE_SCALE, positionName, name, description,
+                participants));
+        }
+        return events;
+    }
+
+    private List<Long> readIds(InputStream in) throws IOException, SmartMapParseException {
+        int size = this.readSize(in);
+        List<Long> ids = new ArrayList<Long>(size);
+
+        long id = 0;
+        for (int i = 0; i < size; i++) {
+            id += this.readSignedVarint(in);
+            mValidator.checkId(id);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private List<UserContainer> readPositions(InputStream in) throws IOException, SmartMapParseException {
+        int size = this.readSize(in);
+        List<UserContainer> users = new ArrayList<UserContainer>(size);
+
+        long id = 0;
+        long latitude = 0;
+        long longitude = 0;
+        long lastUpdate = 0;
+        for (int i = 0; i < size; i++) {
+            id += this.readSignedVarint(in);
+            latitude += this.readSignedVarint(in);
+            longitude += this.readSignedVarint(in);
+            lastUpdate += this.readSignedVarint(in);
+
+            users.add(mValidator.createPosition(id, latitude / COORDINATE_SCALE, longitude / COORDINATE_SCALE,
+                toDate(lastUpdate)));
+        }
+        return users;
+    }
+
+    private long readSignedVarint(InputStream in) throws IOException, SmartMapParseException {
+        long zigzag = this.readVarint(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private int readSize(InputStream in) throws IOException, SmartMapParseException {
+        long size = this.readVarint(in);
+        if (size > MAX_LIST_SIZE) {
+            throw new SmartMapParseException("List too long: " + size);
+        }
+        return (int) size;
+    }
+
+    private String readString(InputStream in) throws IOException, SmartMapParseException {
+        long length = this.readVarint(in);
+        if (length > MAX_STRING_LENGTH) {
+            throw new SmartMapParseException("String too long: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(bytes, read, bytes.length - read);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return new String(bytes, CHARSET);
+    }
+
+    private long readVarint(InputStream in) throws IOException, SmartMapParseException {
+        long value = 0;
+        for (int shift = 0; shift <= MAX_VARINT_SHIFT; shift += VARINT_BITS) {
+            int b = this.readByte(in);
+            value |= (long) (b & VARINT_MASK) << shift;
+            if ((b & VARINT_CONTINUATION) == 0) {
+                return value;
+            }
+        }
+        throw new SmartMapParseException("Varint too long");
+    }
+
+    /**
+     * Reads the content of a response
+     *
+     * @author jfperren
+     */
+    private interface ContentReader<T> {
+        T read(InputStream in) throws IOException, SmartMapParseException;
+    }
+}
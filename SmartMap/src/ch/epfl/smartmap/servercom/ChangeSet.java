@@ -0,0 +1,50 @@
+package ch.epfl.smartmap.servercom;
+
+/**
+ * What changed on the server since a previous request, and the cursor to send with the next one. Requests
+ * for changes are made with the cursor of the previous response, or with {@code null} to get everything.
+ *
+ * @param <T>
+ *            type of the changes
+ * @author jfperren
+ */
+public final class ChangeSet<T> {
+
+    private final T mChanges;
+    private final String mCursor;
+
+    /**
+     * Constructor
+     *
+     * @param changes
+     *            what changed, or {@code null} if nothing changed
+     * @param cursor
+     *            to send with the next request, or {@code null} if the server does not support cursors
+     */
+    public ChangeSet(T changes, String cursor) {
+        mChanges = changes;
+        mCursor = cursor;
+    }
+
+    /**
+     * @return what changed, {@code null} if nothing changed
+     */
+    public T getChanges() {
+        return mChanges;
+    }
+
+    /**
+     * @return the cursor to send with the next request, {@code null} if the server does not support
+     *         cursors, in which case changes are everything
+     */
+    public String getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * @return whether nothing changed since the previous request
+     */
+    public boolean isUnchanged() {
+        return mChanges == null;
+    }
+}
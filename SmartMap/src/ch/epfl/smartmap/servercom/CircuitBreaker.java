@@ -0,0 +1,168 @@
+package ch.epfl.smartmap.servercom;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests to a server that keeps failing, so that it can recover instead of receiving the
+ * requests of all clients at every refresh.
+ * <ul>
+ * <li>{@code CLOSED}: requests are sent. After {@code failureThreshold} failures in a row, the breaker
+ * opens.</li>
+ * <li>{@code OPEN}: requests are refused until the open time is elapsed, then a single trial request is
+ * let through.</li>
+ * <li>{@code HALF_OPEN}: the trial request is running. If it succeeds the breaker closes, otherwise it opens
+ * again for twice as long, up to {@code maxOpenTime}.</li>
+ * </ul>
+ *
+ * @author jfperren
+ */
+public final class CircuitBreaker {
+
+    /**
+     * States of a breaker
+     *
+     * @author jfperren
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    // In milliseconds
+    public static final long DEFAULT_OPEN_TIME = 5000;
+    public static final long DEFAULT_MAX_OPEN_TIME = 5 * 60 * 1000;
+
+    private final int mFailureThreshold;
+    private final long mMinOpenTime;
+    private final long mMaxOpenTime;
+
+    private State mState;
+    private int mFailures;
+    // In milliseconds, doubled each time the trial request fails
+    private long mOpenTime;
+    // In nanoseconds, as given by System.nanoTime
+    private long mOpenUntil;
+
+    /**
+     * Constructor, uses {@code DEFAULT_FAILURE_THRESHOLD}, {@code DEFAULT_OPEN_TIME} and
+     * {@code DEFAULT_MAX_OPEN_TIME}
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME, DEFAULT_MAX_OPEN_TIME);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param failureThreshold
+     *            number of failures in a row after which the breaker opens
+     * @param openTime
+     *            how long the breaker stays open the first time, in milliseconds
+     * @param maxOpenTime
+     *            how long the breaker stays open at most, in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openTime, long maxOpenTime) {
+        if ((failureThreshold < 1) || (openTime < 0) || (maxOpenTime < openTime)) {
+            throw new IllegalArgumentException("Invalid circuit breaker " + failureThreshold + ", " + openTime
+                + ", " + maxOpenTime);
+        }
+        mFailureThreshold = failureThreshold;
+        mMinOpenTime = openTime;
+        mMaxOpenTime = maxOpenTime;
+        mState = State.CLOSED;
+        mOpenTime = openTime;
+    }
+
+    /**
+     * Must be called before sending a request, which must then be followed by a call to {@code onSuccess},
+     * {@code onFailure} or {@code onIgnored}
+     *
+     * @return whether the request can be sent
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - mOpenUntil >= 0) {
+                    // Trial request
+                    mState = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // Wait for the result of the trial request
+                return false;
+        }
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @return how long requests will still be refused, in milliseconds, {@code 0} if they are not or if it
+     *         depends on a trial request
+     */
+    public synchronized long getRemainingOpenTime() {
+        if (mState != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(mOpenUntil - System.nanoTime()));
+    }
+
+    /**
+     * @return whether a request sent now would be allowed
+     */
+    public synchronized boolean isAvailable() {
+        return (mState == State.CLOSED) || ((mState == State.OPEN) && (System.nanoTime() - mOpenUntil >= 0));
+    }
+
+    /**
+     * Records that the server could not answer a request
+     */
+    public synchronized void onFailure() {
+        if (mState == State.HALF_OPEN) {
+            this.open(Math.min(mMaxOpenTime, mOpenTime * 2));
+        } else if (mState == State.CLOSED) {
+            mFailures++;
+            if (mFailures >= mFailureThreshold) {
+                this.open(mMinOpenTime);
+            }
+        }
+    }
+
+    /**
+     * Records that a request ended without telling anything about the server, for example because it was
+     * cancelled
+     */
+    public synchronized void onIgnored() {
+        if (mState == State.HALF_OPEN) {
+            // Let another request try now
+            mState = State.OPEN;
+            mOpenUntil = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records that the server answered a request, even with an error message
+     */
+    public synchronized void onSuccess() {
+        mState = State.CLOSED;
+        mFailures = 0;
+        mOpenTime = mMinOpenTime;
+    }
+
+    private void open(long openTime) {
+        mState = State.OPEN;
+        mOpenTime = openTime;
+        mOpenUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openTime);
+        mFailures = 0;
+    }
+}
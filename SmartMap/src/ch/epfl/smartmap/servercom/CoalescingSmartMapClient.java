@@ -0,0 +1,513 @@
+package ch.epfl.smartmap.servercom;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.MetricsRegistry;
+import ch.epfl.smartmap.cache.UserContainer;
+
+/**
+ * A {@link SmartMapClient} that avoids sending the same read request several times at once. The same user or
+ * event is often asked for concurrently by the {@code Cache}, the search engine and invitation handling, each
+ * from its own task: with this client, concurrent calls to {@code getUserInfo}, {@code getEventInfo} or
+ * {@code getProfilePicture} with the same id share a single request and its result. Results can also be kept
+ * for a few seconds, in which case they are forgotten as soon as a request of this client modifies them, and
+ * again once it completed, so that a read sent while it was in flight is not kept either.
+ * <p>
+ * All other requests are simply forwarded. Callers get their own copy of the shared containers, so they can
+ * modify them as before.
+ *
+ * @author jfperren
+ */
+public final class CoalescingSmartMapClient implements SmartMapClient {
+
+    // Long enough to absorb bursts of identical requests, short enough not to hide changes
+    public static final long DEFAULT_RESULT_TTL = 3000;
+
+    private final SmartMapClient mClient;
+    private final MetricsRegistry mMetrics;
+
+    private final RequestCoalescer<Long, UserContainer> mUserInfos;
+    private final RequestCoalescer<Long, EventContainer> mEventInfos;
+    private final RequestCoalescer<Long, Bitmap> mPictures;
+    private final RequestCoalescer.Listener mListener;
+
+    /**
+     * Constructor
+     *
+     * @param client
+     *            the client that sends requests
+     * @param resultTtl
+     *            how long results are kept, in milliseconds, {@code 0} to only share concurrent requests
+     * @param metrics
+     *            where to count avoided requests, may be {@code null}
+     */
+    public CoalescingSmartMapClient(SmartMapClient client, long resultTtl, final MetricsRegistry metrics) {
+        if (client == null) {
+            throw new IllegalArgumentException("Client is null");
+        }
+        mClient = client;
+        mMetrics = metrics;
+        mUserInfos = new RequestCoalescer<Long, UserContainer>(resultTtl);
+        mEventInfos = new RequestCoalescer<Long, EventContainer>(resultTtl);
+        mPictures = new RequestCoalescer<Long, Bitmap>(resultTtl);
+        mListener = new RequestCoalescer.Listener() {
+            @Override
+            public void onKeptResult() {
+                if (mMetrics != null) {
+                    mMetrics.counter(MetricsRegistry.NETWORK_KEPT_RESULTS).increment();
+                }
+            }
+
+            @Override
+            public void onSharedRequest() {
+                if (mMetrics != null) {
+                    mMetrics.counter(MetricsRegistry.NETWORK_SHARED_REQUESTS).increment();
+                }
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#acceptInvitation(long)
+     */
+    @Override
+    public UserContainer acceptInvitation(long id) throws SmartMapClientException {
+        mUserInfos.invalidate(id);
+        try {
+            return mClient.acceptInvitation(id);
+        } finally {
+            mUserInfos.invalidate(id);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#ackAcceptedInvitation(long)
+     */
+    @Override
+    public void ackAcceptedInvitation(long id) throws SmartMapClientException {
+        mClient.ackAcceptedInvitation(id);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#ackEventInvitation(long)
+     */
+    @Override
+    public void ackEventInvitation(long eventId) throws SmartMapClientException {
+        mClient.ackEventInvitation(eventId);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#ackRemovedFriend(long)
+     */
+    @Override
+    public void ackRemovedFriend(long id) throws SmartMapClientException {
+        mClient.ackRemovedFriend(id);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#authServer(java.lang.String, long, java.lang.String)
+     */
+    @Override
+    public void authServer(String name, long facebookId, String fbAccessToken)
+        throws SmartMapClientException {
+        // What users see depends on who is logged in
+        this.clear();
+        mClient.authServer(name, facebookId, fbAccessToken);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#blockFriend(long)
+     */
+    @Override
+    public void blockFriend(long id) throws SmartMapClientException {
+        mUserInfos.invalidate(id);
+        try {
+            mClient.blockFriend(id);
+        } finally {
+            mUserInfos.invalidate(id);
+        }
+    }
+
+    /**
+     * Forgets all kept results
+     */
+    public void clear() {
+        mUserInfos.clear();
+        mEventInfos.clear();
+        mPictures.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#createPublicEvent(ch.epfl.smartmap.cache.EventContainer)
+     */
+    @Override
+    public long createPublicEvent(EventContainer event) throws SmartMapClientException {
+        return mClient.createPublicEvent(event);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#declineInvitation(long)
+     */
+    @Override
+    public void declineInvitation(long id) throws SmartMapClientException {
+        mUserInfos.invalidate(id);
+        try {
+            mClient.declineInvitation(id);
+        } finally {
+            mUserInfos.invalidate(id);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#findUsers(java.lang.String)
+     */
+    @Override
+    public List<UserContainer> findUsers(String text) throws SmartMapClientException {
+        return mClient.findUsers(text);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventInfo(long)
+     */
+    @Override
+    public EventContainer getEventInfo(final long eventId) throws SmartMapClientException {
+        EventContainer event = mEventInfos.execute(eventId, new RequestCoalescer.Request<EventContainer>() {
+            @Override
+            public EventContainer execute() throws SmartMapClientException {
+                return mClient.getEventInfo(eventId);
+            }
+        }, mListener);
+        return copy(event);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventsInfo(java.util.Collection)
+     */
+    @Override
+    public List<EventContainer> getEventsInfo(Collection<Long> eventIds) throws SmartMapClientException {
+        return mClient.getEventsInfo(eventIds);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventInvitations()
+     */
+    @Override
+    public InvitationBag getEventInvitations() throws SmartMapClientException {
+        return mClient.getEventInvitations();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventInvitationsSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<InvitationBag> getEventInvitationsSince(String cursor) throws SmartMapClientException {
+        return mClient.getEventInvitationsSince(cursor);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getFriendInvitations()
+     */
+    @Override
+    public InvitationBag getFriendInvitations() throws SmartMapClientException {
+        return mClient.getFriendInvitations();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getFriendInvitationsSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<InvitationBag> getFriendInvitationsSince(String cursor) throws SmartMapClientException {
+        return mClient.getFriendInvitationsSince(cursor);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getFriendsIds()
+     */
+    @Override
+    public List<Long> getFriendsIds() throws SmartMapClientException {
+        return mClient.getFriendsIds();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getProfilePicture(long)
+     */
+    @Override
+    public Bitmap getProfilePicture(final long id) throws SmartMapClientException {
+        // Pictures are never modified once decoded, they can be shared
+        return mPictures.execute(id, new RequestCoalescer.Request<Bitmap>() {
+            @Override
+            public Bitmap execute() throws SmartMapClientException {
+                return mClient.getProfilePicture(id);
+            }
+        }, mListener);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getProfilePictureIfModified(long)
+     */
+    @Override
+    public Bitmap getProfilePictureIfModified(long id) throws SmartMapClientException {
+        Bitmap picture = mClient.getProfilePictureIfModified(id);
+        if (picture != null) {
+            mPictures.invalidate(id);
+        }
+        return picture;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getProfilePictures(java.util.Collection)
+     */
+    @Override
+    public Map<Long, Bitmap> getProfilePictures(Collection<Long> ids) throws SmartMapClientException {
+        return mClient.getProfilePictures(ids);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getPublicEvents(double, double, double)
+     */
+    @Override
+    public List<Long> getPublicEvents(double latitude, double longitude, double radius)
+        throws SmartMapClientException {
+        return mClient.getPublicEvents(latitude, longitude, radius);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getUserInfo(long)
+     */
+    @Override
+    public UserContainer getUserInfo(final long id) throws SmartMapClientException {
+        UserContainer user = mUserInfos.execute(id, new RequestCoalescer.Request<UserContainer>() {
+            @Override
+            public UserContainer execute() throws SmartMapClientException {
+                return mClient.getUserInfo(id);
+            }
+        }, mListener);
+        return copy(user);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getUsersInfo(java.util.Collection)
+     */
+    @Override
+    public List<UserContainer> getUsersInfo(Collection<Long> ids) throws SmartMapClientException {
+        return mClient.getUsersInfo(ids);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#inviteFriend(long)
+     */
+    @Override
+    public void inviteFriend(long id) throws SmartMapClientException {
+        mUserInfos.invalidate(id);
+        try {
+            mClient.inviteFriend(id);
+        } finally {
+            mUserInfos.invalidate(id);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#inviteUsersToEvent(long, java.util.List)
+     */
+    @Override
+    public void inviteUsersToEvent(long eventId, List<Long> friendsIds) throws SmartMapClientException {
+        mEventInfos.invalidate(eventId);
+        try {
+            mClient.inviteUsersToEvent(eventId, friendsIds);
+        } finally {
+            mEventInfos.invalidate(eventId);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#joinEvent(long)
+     */
+    @Override
+    public void joinEvent(long eventId) throws SmartMapClientException {
+        mEventInfos.invalidate(eventId);
+        try {
+            mClient.joinEvent(eventId);
+        } finally {
+            mEventInfos.invalidate(eventId);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#leaveEvent(long)
+     */
+    @Override
+    public void leaveEvent(long eventId) throws SmartMapClientException {
+        mEventInfos.invalidate(eventId);
+        try {
+            mClient.leaveEvent(eventId);
+        } finally {
+            mEventInfos.invalidate(eventId);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#listFriendsPos()
+     */
+    @Override
+    public List<UserContainer> listFriendsPos() throws SmartMapClientException {
+        return mClient.listFriendsPos();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#listFriendsPosSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<List<UserContainer>> listFriendsPosSince(String cursor) throws SmartMapClientException {
+        return mClient.listFriendsPosSince(cursor);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#removeFriend(long)
+     */
+    @Override
+    public void removeFriend(long id) throws SmartMapClientException {
+        mUserInfos.invalidate(id);
+        try {
+            mClient.removeFriend(id);
+        } finally {
+            mUserInfos.invalidate(id);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#replayMutations(java.util.List)
+     */
+    @Override
+    public List<Mutation.Result> replayMutations(List<Mutation> mutations) throws SmartMapClientException {
+        this.invalidate(mutations);
+        try {
+            return mClient.replayMutations(mutations);
+        } finally {
+            this.invalidate(mutations);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#unblockFriend(long)
+     */
+    @Override
+    public void unblockFriend(long id) throws SmartMapClientException {
+        mUserInfos.invalidate(id);
+        try {
+            mClient.unblockFriend(id);
+        } finally {
+            mUserInfos.invalidate(id);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#updateEvent(ch.epfl.smartmap.cache.EventContainer)
+     */
+    @Override
+    public void updateEvent(EventContainer event) throws SmartMapClientException {
+        mEventInfos.invalidate(event.getId());
+        try {
+            mClient.updateEvent(event);
+        } finally {
+            mEventInfos.invalidate(event.getId());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#updatePos(android.location.Location)
+     */
+    @Override
+    public void updatePos(Location location) throws SmartMapClientException {
+        mClient.updatePos(location);
+    }
+
+    /**
+     * Forgets the kept results modified by mutations
+     */
+    private void invalidate(List<Mutation> mutations) {
+        for (Mutation mutation : mutations) {
+            switch (mutation.getType()) {
+                case CREATE_EVENT:
+                    // The event has no id on the server yet
+                    break;
+                case JOIN_EVENT:
+                case LEAVE_EVENT:
+                case UPDATE_EVENT:
+                    mEventInfos.invalidate(mutation.getTargetId());
+                    break;
+                default:
+                    mUserInfos.invalidate(mutation.getTargetId());
+                    break;
+            }
+        }
+    }
+
+    private static Calendar copy(Calendar calendar) {
+        return (calendar != null) ? (Calendar) calendar.clone() : null;
+    }
+
+    private static EventContainer copy(EventContainer event) {
+        if (event == null) {
+            return null;
+        }
+        EventContainer copy =
+            new EventContainer(event.getId(), event.getName(), copy(event.getCreatorContainer()),
+                event.getDescription(), copy(event.getStartDate()), copy(event.getEndDate()),
+                copy(event.getLocation()), event.getLocationString(),
+                (event.getParticipantIds() != null) ? new HashSet<Long>(event.getParticipantIds()) : null);
+        return copy.setCreator(event.getCreator());
+    }
+
+    private static Location copy(Location location) {
+        return (location != null) ? new Location(location) : null;
+    }
+
+    private static UserContainer copy(UserContainer user) {
+        if (user == null) {
+            return null;
+        }
+        return new UserContainer(user.getId(), user.getName(), user.getPhoneNumber(), user.getEmail(),
+            copy(user.getLocation()), user.getLocationString(), user.getImage(), user.isBlocked(),
+            user.getFriendship()).setImageHandle(user.getImageHandle());
+    }
+}
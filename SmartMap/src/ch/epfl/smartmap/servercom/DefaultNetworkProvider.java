@@ -1,6 +1,8 @@
 package ch.epfl.smartmap.servercom;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
@@ -28,4 +30,36 @@ public class DefaultNetworkProvider implements NetworkProvider {
         return (HttpURLConnection) url.openConnection();
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.NetworkProvider#getResponseStream(java.net.HttpURLConnection)
+     */
+    @Override
+    public InputStream getResponseStream(HttpURLConnection connection) throws IOException {
+        return connection.getInputStream();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.NetworkProvider#releaseConnection(java.net.HttpURLConnection)
+     */
+    @Override
+    public void releaseConnection(HttpURLConnection connection) {
+        // The socket is closed, a new one is opened for each request
+        connection.disconnect();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.NetworkProvider#writeRequestBody(java.net.HttpURLConnection, byte[])
+     */
+    @Override
+    public void writeRequestBody(HttpURLConnection connection, byte[] body) throws IOException {
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(body);
+        out.flush();
+        out.close();
+    }
+
 }
\ No newline at end of file
@@ -1,9 +1,12 @@
 package ch.epfl.smartmap.servercom;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.json.JSONArray;
@@ -11,6 +14,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.location.Location;
+import android.util.Base64;
 import android.util.Log;
 import ch.epfl.smartmap.cache.EventContainer;
 import ch.epfl.smartmap.cache.User;
@@ -27,8 +31,8 @@ import ch.epfl.smartmap.util.Utils;
 
 public class JsonSmartMapParser implements SmartMapParser {
 
-    private static final String ERROR_STATUS = "error";
-    private static final String FEEDBACK_STATUS = "feedback";
+    protected static final String ERROR_STATUS = "error";
+    protected static final String FEEDBACK_STATUS = "feedback";
 
     private static final int DATETIME_FORMAT_PARTS = 2;
     private static final int DATE_FORMAT_PARTS = 3;
@@ -40,8 +44,8 @@ public class JsonSmartMapParser implements SmartMapParser {
     private static final int MAX_MINUTES_NUMBER = 59;
     private static final int MAX_SECONDS_NUMBER = 59;
 
-    private static final int UNITIALIZED_LATITUDE = -200;
-    private static final int UNITIALIZED_LONGITUDE = -200;
+    protected static final int UNITIALIZED_LATITUDE = -200;
+    protected static final int UNITIALIZED_LONGITUDE = -200;
     private static final int MIN_LATITUDE = -90;
     private static final int MAX_LATITUDE = 90;
     private static final int MIN_LONGITUDE = -180;
@@ -50,10 +54,13 @@ public class JsonSmartMapParser implements SmartMapParser {
     private static final int MIN_NAME_LENGTH = 2;
     private static final int MAX_EVENT_DESCRIPTION_LENGTH = 255;
 
-    private static final String LATITUDE_STRING = "latitude";
-    private static final String LONGITUDE_STRING = "longitude";
+    protected static final String LATITUDE_STRING = "latitude";
+    protected static final String LONGITUDE_STRING = "longitude";
     private static final String SMART_MAP_SERVER = "SmartMapServers";
 
+    // Server time is in GMT+01:00
+    protected static final TimeZone SERVER_TIME_ZONE = TimeZone.getTimeZone("GMT+01:00");
+
     /*
      * (non-Javadoc)
      * @see
@@ -80,6 +87,23 @@ public class JsonSmartMapParser implements SmartMapParser {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseCursor(java.lang.String)
+     */
+    @Override
+    public String parseCursor(String s) throws SmartMapParseException {
+        try {
+            JSONObject jsonObject = new JSONObject(s);
+            if (jsonObject.isNull("cursor")) {
+                return null;
+            }
+            return jsonObject.getString("cursor");
+        } catch (JSONException e) {
+            throw new SmartMapParseException(e);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.servercom.SmartMapParser#parseEvent(java.lang.String)
@@ -210,6 +234,64 @@ public class JsonSmartMapParser implements SmartMapParser {
         return ids;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parseMutationResults(java.lang.String)
+     */
+    @Override
+    public List<Mutation.Result> parseMutationResults(String s) throws SmartMapParseException {
+        List<Mutation.Result> results = new ArrayList<Mutation.Result>();
+
+        try {
+            JSONObject jsonObject = new JSONObject(s);
+
+            JSONArray resultsArray = jsonObject.getJSONArray("results");
+
+            for (int i = 0; i < resultsArray.length(); i++) {
+                JSONObject result = resultsArray.getJSONObject(i);
+                long id = result.optLong("id", Mutation.NO_ID);
+                if (id != Mutation.NO_ID) {
+                    this.checkId(id);
+                }
+                results.add(new Mutation.Result(result.getString("key"), result.getString("status"), result
+                    .getString("message"), id));
+            }
+
+        } catch (JSONException e) {
+            throw new SmartMapParseException(e);
+        }
+        return results;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapParser#parsePictures(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Map<Long, byte[]> parsePictures(String s, String key) throws SmartMapParseException {
+        Map<Long, byte[]> pictures = new HashMap<Long, byte[]>();
+
+        try {
+            JSONObject jsonObject = new JSONObject(s);
+
+            JSONArray picturesArray = jsonObject.getJSONArray(key);
+
+            for (int i = 0; i < picturesArray.length(); i++) {
+                JSONObject pictureJSON = picturesArray.getJSONObject(i);
+                long id = pictureJSON.getLong("id");
+                this.checkId(id);
+                // Pictures are sent in base 64 since JSON cannot hold binary data
+                pictures.put(id, Base64.decode(pictureJSON.getString("picture"), Base64.DEFAULT));
+            }
+        } catch (JSONException e) {
+            throw new SmartMapParseException(e);
+        } catch (IllegalArgumentException e) {
+            throw new SmartMapParseException(e);
+        }
+
+        return pictures;
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.servercom.SmartMapParser#parsePositions(java.lang.String)
@@ -229,23 +311,9 @@ public class JsonSmartMapParser implements SmartMapParser {
                 long userId = position.getLong("id");
                 double latitude = position.getDouble(LATITUDE_STRING);
                 double longitude = position.getDouble(LONGITUDE_STRING);
-                GregorianCalendar lastSeen = this.parseDate(position.getString("lastUpdate"));
-
-                this.checkId(userId);
-                this.checkLatitude(latitude);
-                this.checkLongitude(longitude);
-
-                Location location = new Location(SMART_MAP_SERVER);
-                location.setTime(lastSeen.getTimeInMillis());
-                location.setLatitude(latitude);
-                location.setLongitude(longitude);
-                String locationString = Utils.getCityFromLocation(location);
+                String lastUpdate = position.getString("lastUpdate");
 
-                UserContainer user =
-                    new UserContainer(userId, null, null, null, location, locationString, null,
-                        User.BlockStatus.NOT_SET, -1);
-
-                users.add(user);
+                users.add(this.createPosition(userId, latitude, longitude, lastUpdate));
             }
         } catch (JSONException e) {
             throw new SmartMapParseException(e);
@@ -321,7 +389,7 @@ public class JsonSmartMapParser implements SmartMapParser {
      * @throws SmartMapParseException
      *             if invalid id
      */
-    private void checkId(long id) throws SmartMapParseException {
+    protected void checkId(long id) throws SmartMapParseException {
         if (id <= 0) {
             throw new SmartMapParseException("negative id");
         }
@@ -430,7 +498,7 @@ public class JsonSmartMapParser implements SmartMapParser {
      * @throws SmartMapParseException
      *             in case of invalid JSON format or invalid data
      */
-    private GregorianCalendar parseDate(String date) throws SmartMapParseException {
+    protected GregorianCalendar parseDate(String date) throws SmartMapParseException {
 
         String[] dateTime = date.split(" ");
 
@@ -462,10 +530,11 @@ public class JsonSmartMapParser implements SmartMapParser {
         // As GregorianCalendar does not check arguments, we need to to it.
         this.checkDateParams(day, month, hour, minutes, seconds);
 
-        // Server time is in GMT+01:00
-        GregorianCalendar g = new GregorianCalendar(TimeZone.getTimeZone("GMT+01:00"));
+        GregorianCalendar g = new GregorianCalendar(SERVER_TIME_ZONE);
 
         g.set(year, month, day, hour, minutes, seconds);
+        // Otherwise keeps the milliseconds of the current time
+        g.set(Calendar.MILLISECOND, 0);
 
         return g;
     }
@@ -505,23 +574,8 @@ public class JsonSmartMapParser implements SmartMapParser {
             throw new SmartMapParseException(e);
         }
 
-        this.checkId(id);
-        this.checkStartingAndEndDate(startingDate, endDate);
-        this.checkLatitude(latitude);
-        this.checkLongitude(longitude);
-        this.checkName(positionName);
-        this.checkName(name);
-        this.checkEventDescription(description);
-        for (long participantId : participants) {
-            this.checkId(participantId);
-        }
-        Location location = new Location(SMART_MAP_SERVER);
-        location.setLatitude(latitude);
-        location.setLongitude(longitude);
-
-        return new EventContainer(id, name, creator, description, startingDate, endDate, location,
-            positionName, new HashSet<Long>(participants));
-
+        return this.createEvent(id, creator, startingDate, endDate, latitude, longitude, positionName, name,
+            description, participants);
     }
 
     /**
@@ -551,6 +605,52 @@ public class JsonSmartMapParser implements SmartMapParser {
             throw new SmartMapParseException(e);
         }
 
+        return this.createFriend(id, name, latitude, longitude, lastSeenString, friendship);
+    }
+
+    /**
+     * Checks the fields of an event and builds it
+     * 
+     * @return the event, encapsulated in an {@link EventContainer} Object
+     * @throws SmartMapParseException
+     *             in case of invalid data
+     */
+    protected EventContainer createEvent(long id, UserContainer creator, GregorianCalendar startingDate,
+        GregorianCalendar endDate, double latitude, double longitude, String positionName, String name,
+        String description, List<Long> participants) throws SmartMapParseException {
+        this.checkId(id);
+        this.checkStartingAndEndDate(startingDate, endDate);
+        this.checkLatitude(latitude);
+        this.checkLongitude(longitude);
+        this.checkName(positionName);
+        this.checkName(name);
+        this.checkEventDescription(description);
+        for (long participantId : participants) {
+            this.checkId(participantId);
+        }
+        Location location = new Location(SMART_MAP_SERVER);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+
+        return new EventContainer(id, name, creator, description, startingDate, endDate, location,
+            positionName, new HashSet<Long>(participants));
+    }
+
+    /**
+     * Checks the fields of a friend and builds it
+     * 
+     * @param latitude
+     *            {@code UNITIALIZED_LATITUDE} if unknown
+     * @param longitude
+     *            {@code UNITIALIZED_LONGITUDE} if unknown
+     * @param lastSeenString
+     *            {@code null} if unknown, then the friend has no location
+     * @return a friend
+     * @throws SmartMapParseException
+     *             in case of invalid data
+     */
+    protected UserContainer createFriend(long id, String name, double latitude, double longitude,
+        String lastSeenString, int friendship) throws SmartMapParseException {
         this.checkId(id);
         this.checkName(name);
 
@@ -576,4 +676,39 @@ public class JsonSmartMapParser implements SmartMapParser {
         return new UserContainer(id, name, null, null, location, null, null, User.BlockStatus.NOT_SET,
             friendship);
     }
+
+    /**
+     * Checks the fields of a position and builds the user it belongs to
+     * 
+     * @return an user with only an id and a location
+     * @throws SmartMapParseException
+     *             in case of invalid data
+     */
+    protected UserContainer createPosition(long userId, double latitude, double longitude, String lastUpdate)
+        throws SmartMapParseException {
+        return this.createPosition(userId, latitude, longitude, this.parseDate(lastUpdate));
+    }
+
+    /**
+     * Checks the fields of a position and builds the user it belongs to
+     * 
+     * @return an user with only an id and a location
+     * @throws SmartMapParseException
+     *             in case of invalid data
+     */
+    protected UserContainer createPosition(long userId, double latitude, double longitude,
+        GregorianCalendar lastSeen) throws SmartMapParseException {
+        this.checkId(userId);
+        this.checkLatitude(latitude);
+        this.checkLongitude(longitude);
+
+        Location location = new Location(SMART_MAP_SERVER);
+        location.setTime(lastSeen.getTimeInMillis());
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        String locationString = Utils.getCityFromLocation(location);
+
+        return new UserContainer(userId, null, null, null, location, locationString, null,
+            User.BlockStatus.NOT_SET, -1);
+    }
 }
\ No newline at end of file
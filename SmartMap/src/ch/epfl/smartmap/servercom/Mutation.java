@@ -0,0 +1,425 @@
+package ch.epfl.smartmap.servercom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import ch.epfl.smartmap.cache.EventContainer;
+
+/**
+ * A request that changes the state of the server, recorded while offline to be sent later with
+ * {@link SmartMapClient#replayMutations(List)}. Each mutation has a unique key, with which the server ignores
+ * a mutation it already applied, so that a batch can be sent again when its response was lost.
+ * <p>
+ * Events created offline get a local id, from {@code FIRST_LOCAL_ID}, until the server gives them theirs.
+ * Mutations of such an event are sent with the id given by the server, see {@code withTargetId}.
+ *
+ * @author jfperren
+ */
+public final class Mutation {
+
+    /**
+     * Kinds of mutations that can be recorded, with the uri of the request that applies them and the
+     * parameter holding the id of their target
+     *
+     * @author jfperren
+     */
+    public enum Type {
+        ACCEPT_INVITATION("/acceptInvitation", NetworkSmartMapClient.PARAM_FRIEND_ID),
+        BLOCK_FRIEND("/blockFriend", NetworkSmartMapClient.PARAM_FRIEND_ID),
+        CREATE_EVENT("/createEvent", null),
+        DECLINE_INVITATION("/declineInvitation", NetworkSmartMapClient.PARAM_FRIEND_ID),
+        INVITE_FRIEND("/inviteFriend", NetworkSmartMapClient.PARAM_FRIEND_ID),
+        JOIN_EVENT("/joinEvent", NetworkSmartMapClient.PARAM_EVENT_ID),
+        LEAVE_EVENT("/leaveEvent", NetworkSmartMapClient.PARAM_EVENT_ID),
+        UNBLOCK_FRIEND("/unblockFriend", NetworkSmartMapClient.PARAM_FRIEND_ID),
+        UPDATE_EVENT("/updateEvent", NetworkSmartMapClient.PARAM_UPDATED_EVENT_ID);
+
+        private final String mUri;
+        private final String mTargetParam;
+
+        private Type(String uri, String targetParam) {
+            mUri = uri;
+            mTargetParam = targetParam;
+        }
+
+        /**
+         * @return uri of the request, for example "/blockFriend"
+         */
+        public String getUri() {
+            return mUri;
+        }
+
+        /**
+         * @return whether the target of these mutations is an event
+         */
+        public boolean isOnEvent() {
+            return (this == CREATE_EVENT) || (this == JOIN_EVENT) || (this == LEAVE_EVENT)
+                || (this == UPDATE_EVENT);
+        }
+    }
+
+    public static final long NO_ID = -1;
+
+    // Maximum number of mutations sent in a single request, must match the server's limit
+    public static final int MAX_BATCH_SIZE = 50;
+
+    // Far above the ids given by the server
+    public static final long FIRST_LOCAL_ID = 1L << 62;
+
+    private final long mId;
+    private final Type mType;
+    private final long mTargetId;
+    private final Map<String, String> mParams;
+    private final String mKey;
+    private final long mCreationTime;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     *            id of the mutation in the database, {@code NO_ID} if it is not stored yet
+     * @param type
+     * @param targetId
+     *            id of the user or event that is changed, the local id for {@code CREATE_EVENT}
+     * @param params
+     *            POST parameters of the request
+     * @param key
+     *            unique key of the mutation
+     * @param creationTime
+     *            in milliseconds
+     */
+    public Mutation(long id, Type type, long targetId, Map<String, String> params, String key,
+        long creationTime) {
+        if ((type == null) || (params == null) || (key == null)) {
+            throw new IllegalArgumentException("Invalid mutation");
+        }
+        mId = id;
+        mType = type;
+        mTargetId = targetId;
+        mParams = Collections.unmodifiableMap(new HashMap<String, String>(params));
+        mKey = key;
+        mCreationTime = creationTime;
+    }
+
+    /**
+     * @param friendId
+     *            id of the user whose invitation is accepted
+     * @return a new mutation
+     */
+    public static Mutation acceptInvitation(long friendId) {
+        return newMutation(Type.ACCEPT_INVITATION, friendId,
+            idParams(NetworkSmartMapClient.PARAM_FRIEND_ID, friendId));
+    }
+
+    /**
+     * @param friendId
+     * @return a new mutation
+     */
+    public static Mutation blockFriend(long friendId) {
+        return newMutation(Type.BLOCK_FRIEND, friendId,
+            idParams(NetworkSmartMapClient.PARAM_FRIEND_ID, friendId));
+    }
+
+    /**
+     * Makes the list of mutations to send, in the same order, without those whose effect is cancelled or
+     * repeated by another one:
+     * <ul>
+     * <li>only the last block or unblock of a user is kept, and the last join or leave of an event</li>
+     * <li>a mutation made several times is kept once, at the position of its last occurrence</li>
+     * <li>invitations sent to users whose invitation is accepted are dropped, they become friends anyway</li>
+     * </ul>
+     *
+     * @param mutations
+     *            in the order they were made
+     * @return the mutations to send
+     */
+    public static List<Mutation> collapse(List<Mutation> mutations) {
+        Set<Long> acceptedIds = new HashSet<Long>();
+        for (Mutation mutation : mutations) {
+            if (mutation.getType() == Type.ACCEPT_INVITATION) {
+                acceptedIds.add(mutation.getTargetId());
+            }
+        }
+
+        // From the last one, so that later mutations win
+        Set<String> seen = new HashSet<String>();
+        LinkedList<Mutation> collapsed = new LinkedList<Mutation>();
+        for (int i = mutations.size() - 1; i >= 0; i--) {
+            Mutation mutation = mutations.get(i);
+            String slot;
+            switch (mutation.getType()) {
+                case BLOCK_FRIEND:
+                case UNBLOCK_FRIEND:
+                    slot = "block " + mutation.getTargetId();
+                    break;
+                case CREATE_EVENT:
+                    slot = mutation.getKey();
+                    break;
+                case JOIN_EVENT:
+                case LEAVE_EVENT:
+                    slot = "participation " + mutation.getTargetId();
+                    break;
+                case INVITE_FRIEND:
+                    if (acceptedIds.contains(mutation.getTargetId())) {
+                        continue;
+                    }
+                    slot = mutation.getType() + " " + mutation.getTargetId();
+                    break;
+                default:
+                    slot = mutation.getType() + " " + mutation.getTargetId();
+                    break;
+            }
+            if (seen.add(slot)) {
+                collapsed.addFirst(mutation);
+            }
+        }
+        return new ArrayList<Mutation>(collapsed);
+    }
+
+    /**
+     * @param localId
+     *            id given to the event until the server gives it its own, see {@code FIRST_LOCAL_ID}
+     * @param event
+     * @return a new mutation
+     */
+    public static Mutation createEvent(long localId, EventContainer event) {
+        return newMutation(Type.CREATE_EVENT, localId, NetworkSmartMapClient.getParamsForEvent(event));
+    }
+
+    /**
+     * @param friendId
+     *            id of the user whose invitation is declined
+     * @return a new mutation
+     */
+    public static Mutation declineInvitation(long friendId) {
+        return newMutation(Type.DECLINE_INVITATION, friendId,
+            idParams(NetworkSmartMapClient.PARAM_FRIEND_ID, friendId));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object other) {
+        // Keys are unique, copies made by withId or withTargetId are the same mutation
+        return (other instanceof Mutation) && mKey.equals(((Mutation) other).mKey);
+    }
+
+    /**
+     * @return time at which the mutation was made, in milliseconds
+     */
+    public long getCreationTime() {
+        return mCreationTime;
+    }
+
+    /**
+     * @return id in the database, {@code NO_ID} if not stored yet
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * @return unique key, with which the server recognizes a mutation it already applied
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return POST parameters of the request
+     */
+    public Map<String, String> getParams() {
+        return mParams;
+    }
+
+    /**
+     * @return id of the user or event that is changed, the local id for {@code CREATE_EVENT}
+     */
+    public long getTargetId() {
+        return mTargetId;
+    }
+
+    /**
+     * @return the type
+     */
+    public Type getType() {
+        return mType;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return mKey.hashCode();
+    }
+
+    /**
+     * @param friendId
+     * @return a new mutation
+     */
+    public static Mutation inviteFriend(long friendId) {
+        return newMutation(Type.INVITE_FRIEND, friendId,
+            idParams(NetworkSmartMapClient.PARAM_FRIEND_ID, friendId));
+    }
+
+    /**
+     * @param id
+     *            an event id
+     * @return whether it was given to an event created offline, which the server does not know yet
+     */
+    public static boolean isLocalId(long id) {
+        return id >= FIRST_LOCAL_ID;
+    }
+
+    /**
+     * @param eventId
+     * @return a new mutation
+     */
+    public static Mutation joinEvent(long eventId) {
+        return newMutation(Type.JOIN_EVENT, eventId, idParams(NetworkSmartMapClient.PARAM_EVENT_ID, eventId));
+    }
+
+    /**
+     * @param eventId
+     * @return a new mutation
+     */
+    public static Mutation leaveEvent(long eventId) {
+        return newMutation(Type.LEAVE_EVENT, eventId,
+            idParams(NetworkSmartMapClient.PARAM_EVENT_ID, eventId));
+    }
+
+    /**
+     * @param friendId
+     * @return a new mutation
+     */
+    public static Mutation unblockFriend(long friendId) {
+        return newMutation(Type.UNBLOCK_FRIEND, friendId,
+            idParams(NetworkSmartMapClient.PARAM_FRIEND_ID, friendId));
+    }
+
+    /**
+     * @param event
+     *            the event with its new values
+     * @return a new mutation
+     */
+    public static Mutation updateEvent(EventContainer event) {
+        Map<String, String> params = NetworkSmartMapClient.getParamsForEvent(event);
+        params.put(NetworkSmartMapClient.PARAM_UPDATED_EVENT_ID, Long.toString(event.getId()));
+        return newMutation(Type.UPDATE_EVENT, event.getId(), params);
+    }
+
+    /**
+     * @param id
+     *            id in the database
+     * @return a copy of this mutation with the given id
+     */
+    public Mutation withId(long id) {
+        return new Mutation(id, mType, mTargetId, mParams, mKey, mCreationTime);
+    }
+
+    /**
+     * @param targetId
+     *            id given by the server to the event created offline that this mutation changes
+     * @return a copy of this mutation sent to the given event
+     */
+    public Mutation withTargetId(long targetId) {
+        if (mType.mTargetParam == null) {
+            throw new IllegalStateException("Mutation " + this + " has no target parameter");
+        }
+        Map<String, String> params = new HashMap<String, String>(mParams);
+        params.put(mType.mTargetParam, Long.toString(targetId));
+        return new Mutation(mId, mType, targetId, params, mKey, mCreationTime);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return mType + "(" + mTargetId + ", " + mKey + ")";
+    }
+
+    private static Map<String, String> idParams(String name, long id) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(name, Long.toString(id));
+        return params;
+    }
+
+    private static Mutation newMutation(Type type, long targetId, Map<String, String> params) {
+        return new Mutation(NO_ID, type, targetId, params, UUID.randomUUID().toString(),
+            System.currentTimeMillis());
+    }
+
+    /**
+     * What the server answered to a mutation of a batch
+     *
+     * @author jfperren
+     */
+    public static final class Result {
+
+        private static final String OK_STATUS = "Ok";
+
+        private final String mKey;
+        private final String mStatus;
+        private final String mMessage;
+        private final long mId;
+
+        /**
+         * Constructor
+         *
+         * @param key
+         *            key of the mutation
+         * @param status
+         *            "Ok", "error" or "feedback", as for a single request
+         * @param message
+         * @param id
+         *            id of the created event, {@code NO_ID} for other mutations
+         */
+        public Result(String key, String status, String message, long id) {
+            mKey = key;
+            mStatus = status;
+            mMessage = message;
+            mId = id;
+        }
+
+        /**
+         * @return id of the created event, {@code NO_ID} for other mutations
+         */
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * @return key of the mutation
+         */
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return message of the server
+         */
+        public String getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * @return whether the mutation was applied. If not, it was refused and must not be sent again.
+         */
+        public boolean isSuccess() {
+            return OK_STATUS.equals(mStatus);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package ch.epfl.smartmap.servercom;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Process;
+import ch.epfl.smartmap.callbacks.NetworkRequestCallback;
+
+/**
+ * Runs network work outside of the main thread, replacing {@code AsyncTask}s which all share a single serial
+ * executor. Work is submitted in one of two lanes, each with its own threads:
+ * <ul>
+ * <li>{@code INTERACTIVE}: actions the user is waiting for, like accepting an invitation or searching</li>
+ * <li>{@code BACKGROUND}: synchronization, acknowledgements and prefetching, on threads of lower
+ * priority</li>
+ * </ul>
+ * A long synchronization therefore never delays an interactive action. Threads of the interactive lane can
+ * also use the connections that {@link PooledNetworkProvider} reserves for them.
+ * <p>
+ * Each task has a timeout, counted from its submission, after which it is cancelled and its callback gets a
+ * {@link TimeoutException}. Callbacks are called on the thread that ran the task, or that cancelled it, and
+ * not at all if the task was cancelled with {@code Future.cancel}.
+ *
+ * @author jfperren
+ */
+public final class NetworkExecutor {
+
+    /**
+     * Lanes in which tasks run
+     *
+     * @author jfperren
+     */
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    public static final int DEFAULT_INTERACTIVE_THREADS = 2;
+    public static final int DEFAULT_BACKGROUND_THREADS = 2;
+
+    // In milliseconds
+    public static final long INTERACTIVE_TIMEOUT = 30000;
+    public static final long BACKGROUND_TIMEOUT = 120000;
+
+    private static final String TAG = NetworkExecutor.class.getSimpleName();
+
+    // Idle threads are stopped after this delay, in seconds
+    private static final long KEEP_ALIVE = 30;
+
+    private final ThreadPoolExecutor mInteractive;
+    private final ThreadPoolExecutor mBackground;
+    private final ScheduledExecutorService mTimeouts;
+
+    /**
+     * Constructor, uses {@code DEFAULT_INTERACTIVE_THREADS} and {@code DEFAULT_BACKGROUND_THREADS}
+     */
+    public NetworkExecutor() {
+        this(DEFAULT_INTERACTIVE_THREADS, DEFAULT_BACKGROUND_THREADS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param interactiveThreads
+     *            maximum number of interactive tasks running at the same time
+     * @param backgroundThreads
+     *            maximum number of background tasks running at the same time
+     */
+    public NetworkExecutor(int interactiveThreads, int backgroundThreads) {
+        if ((interactiveThreads < 1) || (backgroundThreads < 1)) {
+            throw new IllegalArgumentException("Invalid number of threads " + interactiveThreads + ", "
+                + backgroundThreads);
+        }
+        mInteractive = createLane(Priority.INTERACTIVE, interactiveThreads);
+        mBackground = createLane(Priority.BACKGROUND, backgroundThreads);
+        ScheduledThreadPoolExecutor timeouts =
+            new ScheduledThreadPoolExecutor(1, new LaneThreadFactory(Priority.BACKGROUND, TAG + "-timeouts"));
+        timeouts.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        timeouts.allowCoreThreadTimeOut(true);
+        mTimeouts = timeouts;
+    }
+
+    /**
+     * @param threads
+     *            new maximum number of background tasks running at the same time
+     */
+    public synchronized void setBackgroundThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads " + threads);
+        }
+        // The core size can never be above the maximum size
+        if (threads > mBackground.getMaximumPoolSize()) {
+            mBackground.setMaximumPoolSize(threads);
+            mBackground.setCorePoolSize(threads);
+        } else {
+            mBackground.setCorePoolSize(threads);
+            mBackground.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Stops accepting tasks and cancels the running ones, for example on logout
+     */
+    public void shutdown() {
+        mInteractive.shutdownNow();
+        mBackground.shutdownNow();
+        mTimeouts.shutdownNow();
+    }
+
+    /**
+     * Runs a task with the default timeout of its lane
+     *
+     * @param priority
+     *            lane in which the task runs
+     * @param task
+     * @param callback
+     *            given the result of the task, may be {@code null}
+     * @return a future to wait for or cancel the task
+     */
+    public <T> Future<T> submit(Priority priority, Callable<T> task, NetworkRequestCallback<T> callback) {
+        long timeout = (priority == Priority.INTERACTIVE) ? INTERACTIVE_TIMEOUT : BACKGROUND_TIMEOUT;
+        return this.submit(priority, task, timeout, callback);
+    }
+
+    /**
+     * Runs a task
+     *
+     * @param priority
+     *            lane in which the task runs
+     * @param task
+     * @param timeout
+     *            in milliseconds, from now, after which the task is cancelled, or {@code 0} for no timeout
+     * @param callback
+     *            given the result of the task, may be {@code null}
+     * @return a future to wait for or cancel the task
+     */
+    public <T> Future<T> submit(Priority priority, Callable<T> task, long timeout,
+        NetworkRequestCallback<T> callback) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid timeout " + timeout);
+        }
+        CallbackTask<T> future = new CallbackTask<T>(task, callback);
+        if (timeout > 0) {
+            future.mTimeout = mTimeouts.schedule(new Timeout(future), timeout, TimeUnit.MILLISECONDS);
+        }
+        if (priority == Priority.INTERACTIVE) {
+            mInteractive.execute(future);
+        } else {
+            mBackground.execute(future);
+        }
+        return future;
+    }
+
+    /**
+     * @return whether the current thread runs background tasks of a {@code NetworkExecutor}
+     */
+    public static boolean isBackgroundThread() {
+        Thread thread = Thread.currentThread();
+        return (thread instanceof LaneThread) && (((LaneThread) thread).mPriority == Priority.BACKGROUND);
+    }
+
+    /**
+     * @return whether the current thread runs interactive tasks of a {@code NetworkExecutor}
+     */
+    public static boolean isInteractiveThread() {
+        Thread thread = Thread.currentThread();
+        return (thread instanceof LaneThread) && (((LaneThread) thread).mPriority == Priority.INTERACTIVE);
+    }
+
+    private static ThreadPoolExecutor createLane(Priority priority, int threads) {
+        ThreadPoolExecutor lane =
+            new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new LaneThreadFactory(priority, TAG + "-"
+                    + priority.name().toLowerCase(Locale.US)));
+        lane.allowCoreThreadTimeOut(true);
+        return lane;
+    }
+
+    /**
+     * A task that gives its result to a callback when it is done
+     *
+     * @author jfperren
+     */
+    private static final class CallbackTask<T> extends FutureTask<T> {
+
+        private final NetworkRequestCallback<T> mCallback;
+
+        private volatile ScheduledFuture<?> mTimeout;
+        private volatile boolean mIsTimedOut;
+
+        private CallbackTask(Callable<T> task, NetworkRequestCallback<T> callback) {
+            super(task);
+            mCallback = callback;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.FutureTask#done()
+         */
+        @Override
+        protected void done() {
+            ScheduledFuture<?> timeout = mTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (mCallback == null) {
+                return;
+            }
+            if (this.isCancelled()) {
+                if (mIsTimedOut) {
+                    mCallback.onFailure(new TimeoutException("Network request timed out"));
+                }
+                return;
+            }
+            T result;
+            try {
+                result = this.get();
+            } catch (InterruptedException e) {
+                // Cannot happen, the task is done
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                mCallback.onFailure((cause instanceof Exception) ? (Exception) cause : e);
+                return;
+            }
+            mCallback.onSuccess(result);
+        }
+    }
+
+    /**
+     * A thread of a lane
+     *
+     * @author jfperren
+     */
+    private static final class LaneThread extends Thread {
+
+        private final Priority mPriority;
+
+        private LaneThread(Runnable runnable, String name, Priority priority) {
+            super(runnable, name);
+            mPriority = priority;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Thread#run()
+         */
+        @Override
+        public void run() {
+            if (mPriority == Priority.BACKGROUND) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+            super.run();
+        }
+    }
+
+    /**
+     * Creates the threads of a lane
+     *
+     * @author jfperren
+     */
+    private static final class LaneThreadFactory implements ThreadFactory {
+
+        private final Priority mPriority;
+        private final String mName;
+
+        private LaneThreadFactory(Priority priority, String name) {
+            mPriority = priority;
+            mName = name;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+         */
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new LaneThread(runnable, mName, mPriority);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Cancels a task that took too long
+     *
+     * @author jfperren
+     */
+    private static final class Timeout implements Runnable {
+
+        private final CallbackTask<?> mTask;
+
+        private Timeout(CallbackTask<?> task) {
+            mTask = task;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            if (!mTask.isDone()) {
+                mTask.mIsTimedOut = true;
+                mTask.cancel(true);
+            }
+        }
+    }
+}
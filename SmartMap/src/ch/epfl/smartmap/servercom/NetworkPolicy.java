@@ -0,0 +1,258 @@
+package ch.epfl.smartmap.servercom;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.epfl.smartmap.cache.MetricsRegistry;
+
+/**
+ * How requests to the server are sent when it is slow or down:
+ * <ul>
+ * <li>each endpoint has its own read timeout, short for small requests and longer for batches and
+ * pictures</li>
+ * <li>requests that can safely be sent twice are retried after a {@link ServerUnavailableException}, with a
+ * jittered exponential backoff, as long as the shared {@link RetryBudget} allows it</li>
+ * <li>a {@link CircuitBreaker} refuses all requests for a while when the server keeps failing. Background
+ * loops should also wait for {@code getRemainingUnavailableTime} before their next refresh.</li>
+ * </ul>
+ * A policy is shared by all clients of a server.
+ *
+ * @author jfperren
+ */
+public final class NetworkPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    // In milliseconds
+    public static final long DEFAULT_BASE_BACKOFF = 500;
+    public static final int CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 15000;
+
+    // Backoffs never exceed this many times the base backoff
+    private static final int MAX_BACKOFF_FACTOR = 16;
+
+    // Read timeouts of endpoints whose responses are slow to produce or large, in milliseconds
+    private static final Map<String, Integer> LONG_READ_TIMEOUTS = new HashMap<String, Integer>();
+    static {
+        LONG_READ_TIMEOUTS.put("/getEventsInfo", 30000);
+        LONG_READ_TIMEOUTS.put("/getProfilePicture", 30000);
+        LONG_READ_TIMEOUTS.put("/getProfilePictures", 45000);
+        LONG_READ_TIMEOUTS.put("/getUsersInfo", 30000);
+    }
+
+    // Random is thread safe
+    private static final Random RANDOM = new Random();
+
+    private final CircuitBreaker mBreaker;
+    private final RetryBudget mBudget;
+    private final int mMaxAttempts;
+    private final long mBaseBackoff;
+    private final MetricsRegistry mMetrics;
+    private final ConcurrentMap<String, Integer> mReadTimeouts;
+
+    /**
+     * Constructor with the default breaker, budget and backoff
+     *
+     * @param metrics
+     *            where to count retries and refused requests, may be {@code null}
+     */
+    public NetworkPolicy(MetricsRegistry metrics) {
+        this(new CircuitBreaker(), new RetryBudget(), DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_BACKOFF, metrics);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param breaker
+     * @param budget
+     * @param maxAttempts
+     *            number of times a request is sent at most, {@code 1} for no retry
+     * @param baseBackoff
+     *            delay before the first retry, in milliseconds, doubled for each following retry
+     * @param metrics
+     *            where to count retries and refused requests, may be {@code null}
+     */
+    public NetworkPolicy(CircuitBreaker breaker, RetryBudget budget, int maxAttempts, long baseBackoff,
+        MetricsRegistry metrics) {
+        if ((breaker == null) || (budget == null) || (maxAttempts < 1) || (baseBackoff < 0)) {
+            throw new IllegalArgumentException("Invalid network policy");
+        }
+        mBreaker = breaker;
+        mBudget = budget;
+        mMaxAttempts = maxAttempts;
+        mBaseBackoff = baseBackoff;
+        mMetrics = metrics;
+        mReadTimeouts = new ConcurrentHashMap<String, Integer>(LONG_READ_TIMEOUTS);
+    }
+
+    /**
+     * Computes a jittered exponential backoff: the delay doubles with each attempt, up to a maximum, and
+     * only its first half is fixed so that clients that failed at the same time do not retry at the same
+     * time.
+     *
+     * @param attempt
+     *            number of attempts that already failed, from {@code 0}
+     * @param base
+     *            delay after the first failure, in milliseconds
+     * @param max
+     *            maximum delay, in milliseconds
+     * @return the delay before the next attempt, in milliseconds
+     */
+    public static long backoff(int attempt, long base, long max) {
+        long delay = base;
+        for (int i = 0; (i < attempt) && (delay < max); i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, max);
+        long half = delay / 2;
+        return half + (long) (RANDOM.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Sends a request through the circuit breaker, and retries it if allowed
+     *
+     * @param request
+     *            sends the request, throws {@link ServerUnavailableException} if the server could not answer
+     * @param canRetry
+     *            whether sending the request twice has no other effect than sending it once
+     * @return the result of the request
+     * @throws SmartMapClientException
+     *             {@link ServerUnavailableException} if the breaker is open or the last attempt failed
+     */
+    public <T> T execute(Request<T> request, boolean canRetry) throws SmartMapClientException {
+        mBudget.onRequest();
+        int attempt = 0;
+        while (true) {
+            if (!mBreaker.allowRequest()) {
+                this.count(MetricsRegistry.NETWORK_REFUSED_REQUESTS);
+                throw new ServerUnavailableException("Server unavailable, requests are refused for "
+                    + mBreaker.getRemainingOpenTime() + " ms");
+            }
+            boolean isRecorded = false;
+            try {
+                T result = request.send();
+                mBreaker.onSuccess();
+                isRecorded = true;
+                return result;
+            } catch (ServerUnavailableException e) {
+                mBreaker.onFailure();
+                isRecorded = true;
+                attempt++;
+                if (!canRetry || (attempt >= mMaxAttempts) || !mBudget.tryRetry()) {
+                    throw e;
+                }
+                this.count(MetricsRegistry.NETWORK_RETRIES);
+                try {
+                    Thread.sleep(backoff(attempt - 1, mBaseBackoff, mBaseBackoff * MAX_BACKOFF_FACTOR));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            } catch (SmartMapClientException e) {
+                if (!isInterruption(e)) {
+                    // The server answered, even if with an error
+                    mBreaker.onSuccess();
+                    isRecorded = true;
+                }
+                throw e;
+            } finally {
+                if (!isRecorded) {
+                    mBreaker.onIgnored();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the breaker through which requests are sent
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return mBreaker;
+    }
+
+    /**
+     * @return connect timeout of all endpoints, in milliseconds
+     */
+    public int getConnectTimeout() {
+        return CONNECT_TIMEOUT;
+    }
+
+    /**
+     * @param uri
+     *            for example "/getUsersInfo"
+     * @return read timeout of this endpoint, in milliseconds
+     */
+    public int getReadTimeout(String uri) {
+        Integer timeout = mReadTimeouts.get(uri);
+        return (timeout != null) ? timeout : DEFAULT_READ_TIMEOUT;
+    }
+
+    /**
+     * @return how long requests will still be refused, in milliseconds, {@code 0} if they are not
+     */
+    public long getRemainingUnavailableTime() {
+        return mBreaker.getRemainingOpenTime();
+    }
+
+    /**
+     * @return the budget from which retries are taken
+     */
+    public RetryBudget getRetryBudget() {
+        return mBudget;
+    }
+
+    /**
+     * @return whether a request sent now would be allowed, background loops should skip their work
+     *         otherwise
+     */
+    public boolean isServerAvailable() {
+        return mBreaker.isAvailable();
+    }
+
+    /**
+     * @param uri
+     *            for example "/getUsersInfo"
+     * @param timeout
+     *            read timeout of this endpoint, in milliseconds, {@code 0} for no timeout
+     */
+    public void setReadTimeout(String uri, int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid timeout " + timeout);
+        }
+        mReadTimeouts.put(uri, timeout);
+    }
+
+    private void count(String counter) {
+        if (mMetrics != null) {
+            mMetrics.counter(counter).increment();
+        }
+    }
+
+    /**
+     * @return whether the request failed because its thread was interrupted, which says nothing about the
+     *         server
+     */
+    private static boolean isInterruption(SmartMapClientException e) {
+        Throwable cause = e.getCause();
+        return (cause instanceof InterruptedIOException) && !(cause instanceof SocketTimeoutException);
+    }
+
+    /**
+     * A request to send
+     *
+     * @author jfperren
+     */
+    public interface Request<T> {
+        /**
+         * @return the result of the request
+         * @throws SmartMapClientException
+         *             {@link ServerUnavailableException} if it can be sent again later
+         */
+        T send() throws SmartMapClientException;
+    }
+}
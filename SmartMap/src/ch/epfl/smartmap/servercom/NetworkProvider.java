@@ -1,6 +1,7 @@
 package ch.epfl.smartmap.servercom;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
@@ -25,4 +26,37 @@ public interface NetworkProvider {
      */
     HttpURLConnection getConnection(URL url) throws IOException;
 
+    /**
+     * Returns the body of the response received on a connection obtained with {@link getConnection}, already
+     * decoded if the provider asked the server for a compressed response.
+     * 
+     * @param connection
+     *            a connection obtained with {@link getConnection}
+     * @return a stream on the decoded body
+     * @throws IOException
+     *             if the response could not be read
+     */
+    InputStream getResponseStream(HttpURLConnection connection) throws IOException;
+
+    /**
+     * Must be called once the response of a connection obtained with {@link getConnection} was read, or if
+     * the request failed. The provider may then reuse the underlying socket for another request.
+     * 
+     * @param connection
+     *            a connection obtained with {@link getConnection}
+     */
+    void releaseConnection(HttpURLConnection connection);
+
+    /**
+     * Sends the body of a request on a connection obtained with {@link getConnection}, the provider may
+     * compress it.
+     * 
+     * @param connection
+     *            a connection obtained with {@link getConnection}
+     * @param body
+     *            the body to send
+     * @throws IOException
+     *             if the body could not be sent
+     */
+    void writeRequestBody(HttpURLConnection connection, byte[] body) throws IOException;
 }
\ No newline at end of file
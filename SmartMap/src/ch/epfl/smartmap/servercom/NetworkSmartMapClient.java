@@ -1,27 +1,34 @@
 package ch.epfl.smartmap.servercom;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.location.Location;
 import android.util.Log;
 import ch.epfl.smartmap.background.ServiceContainer;
@@ -59,21 +66,69 @@ public class NetworkSmartMapClient implements SmartMapClient {
     private static final String TAG = NetworkSmartMapClient.class.getSimpleName();
 
     private static final String SERVER_URL = "http://smartmap.ddns.net";
-    private static final NetworkProvider NETWORK_PROVIDER = new DefaultNetworkProvider();
+    // Shared by all clients, so that they share its connections and its limit of concurrent requests
+    private static final NetworkProvider DEFAULT_NETWORK_PROVIDER = new PooledNetworkProvider();
 
     private static final int HTTP_SUCCESS_START = 200;
     private static final int HTTP_SUCCESS_END = 299;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_SERVER_ERROR_START = 500;
+
+    // Pictures are decoded downsampled to about this size, in pixels, the largest they are displayed
+    private static final int PROFILE_PICTURE_SIZE = 512;
+    private static final int BUFFER_SIZE = 4096;
 
     private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
-    private static final String PARAM_FRIEND_ID = "friend_id";
-    private static final String PARAM_EVENT_ID = "event_id";
+    static final String PARAM_FRIEND_ID = "friend_id";
+    static final String PARAM_EVENT_ID = "event_id";
+    static final String PARAM_UPDATED_EVENT_ID = "eventId";
     private static final String PARAM_LATITUDE = "latitude";
     private static final String PARAM_LONGITUDE = "longitude";
+    private static final String PARAM_SINCE = "since";
+    // Also sent in this header, since the compact format has no cursor
+    private static final String CURSOR_HEADER = "X-SmartMap-Cursor";
+
+    // Maximum number of ids sent in a single batched request, must match the server's limits
+    private static final int MAX_BATCH_SIZE = 50;
+    private static final int MAX_PICTURES_BATCH_SIZE = 10;
+
+    // Asked for responses made mostly of numbers, the server answers in Json when it has no binary encoding
+    private static final String COMPACT_FORMAT_ACCEPT = SmartMapParserFactory.BINARY_CONTENT_TYPE + ", "
+        + SmartMapParserFactory.JSON_CONTENT_TYPE + ";q=0.5";
 
     private static CookieManager mCookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
 
+    private final String mServerUrl;
+    private final NetworkProvider mNetworkProvider;
+    private volatile ProfilePictureCache mPictureCache;
+    private volatile NetworkPolicy mPolicy;
+
     public NetworkSmartMapClient() {
+        this(SERVER_URL);
+    }
+
+    /**
+     * Constructor for a client of another server than the SmartMap one, for example a local server in tests
+     * 
+     * @param serverUrl
+     *            base url of the server, without trailing slash
+     */
+    public NetworkSmartMapClient(String serverUrl) {
+        this(serverUrl, DEFAULT_NETWORK_PROVIDER);
+    }
 
+    /**
+     * Constructor for a client of another server than the SmartMap one, using the given
+     * {@link NetworkProvider}
+     * 
+     * @param serverUrl
+     *            base url of the server, without trailing slash
+     * @param networkProvider
+     *            gives the connections to the server
+     */
+    public NetworkSmartMapClient(String serverUrl, NetworkProvider networkProvider) {
+        mServerUrl = serverUrl;
+        mNetworkProvider = networkProvider;
         CookieHandler.setDefault(mCookieManager);
     }
 
@@ -209,7 +264,7 @@ public class NetworkSmartMapClient implements SmartMapClient {
     @Override
     public long createPublicEvent(EventContainer event) throws SmartMapClientException {
 
-        Map<String, String> params = this.getParamsForEvent(event);
+        Map<String, String> params = getParamsForEvent(event);
         HttpURLConnection conn = this.getHttpURLConnection("/createEvent");
         String response = this.sendViaPost(params, conn);
 
@@ -249,18 +304,13 @@ public class NetworkSmartMapClient implements SmartMapClient {
         Map<String, String> params = new HashMap<String, String>();
         params.put("search_text", text);
         HttpURLConnection conn = this.getHttpURLConnection("/findUsers");
-        String response = this.sendViaPost(params, conn);
-
-        SmartMapParser parser = this.getParser(conn.getContentType());
-        this.checkServerErrorFromParser(parser, response);
-        List<UserContainer> friends = null;
-        try {
-            friends = parser.parseFriendList(response, "list");
-        } catch (SmartMapParseException e) {
-            throw new SmartMapClientException(e);
-        }
-
-        return friends;
+        return this.sendViaPost(params, conn, new ResponseReader<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> read(StreamingSmartMapParser parser, InputStream in)
+                throws SmartMapParseException, SmartMapClientException {
+                return parser.parseFriendList(in, "list");
+            }
+        });
     }
 
     /*
@@ -286,6 +336,29 @@ public class NetworkSmartMapClient implements SmartMapClient {
 
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventsInfo(java.util.Collection)
+     */
+    @Override
+    public List<EventContainer> getEventsInfo(Collection<Long> eventIds) throws SmartMapClientException {
+        List<EventContainer> events = new ArrayList<EventContainer>();
+        for (List<Long> batch : this.splitInBatches(eventIds, MAX_BATCH_SIZE)) {
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("event_ids", this.longListToString(batch));
+            HttpURLConnection conn = this.getHttpURLConnection("/getEventsInfo");
+            this.acceptCompactFormat(conn);
+            events.addAll(this.sendViaPost(params, conn, new ResponseReader<List<EventContainer>>() {
+                @Override
+                public List<EventContainer> read(StreamingSmartMapParser parser, InputStream in)
+                    throws SmartMapParseException, SmartMapClientException {
+                    return parser.parseEventList(in);
+                }
+            }));
+        }
+        return events;
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventInvitations()
@@ -296,18 +369,28 @@ public class NetworkSmartMapClient implements SmartMapClient {
         HttpURLConnection conn = this.getHttpURLConnection("/getEventInvitations");
         String response = this.sendViaPost(new HashMap<String, String>(), conn);
 
-        List<EventContainer> eventInvitations = new ArrayList<EventContainer>();
+        SmartMapParser parser = this.getParser(conn.getContentType());
+        this.checkServerErrorFromParser(parser, response);
+        return this.parseEventInvitations(parser, response);
+    }
 
-        try {
-            SmartMapParser parser = this.getParser(conn.getContentType());
-            this.checkServerErrorFromParser(parser, response);
-            eventInvitations = parser.parseEventList(response);
-            Log.d(TAG, "event size :" + eventInvitations.size());
-        } catch (SmartMapParseException e) {
-            throw new SmartMapClientException(e);
-        }
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventInvitationsSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<InvitationBag> getEventInvitationsSince(String cursor) throws SmartMapClientException {
 
-        return new NetworkEventInvitationBag(new HashSet<EventContainer>(eventInvitations));
+        HttpURLConnection conn = this.getHttpURLConnection("/getEventInvitations");
+        String response = this.sendViaPost(this.getParamsForCursor(cursor), conn);
+
+        SmartMapParser parser = this.getParser(conn.getContentType());
+        this.checkServerErrorFromParser(parser, response);
+        String newCursor = this.parseCursor(parser, response);
+        if ((cursor != null) && cursor.equals(newCursor)) {
+            return new ChangeSet<InvitationBag>(null, newCursor);
+        }
+        return new ChangeSet<InvitationBag>(this.parseEventInvitations(parser, response), newCursor);
     }
 
     /*
@@ -322,20 +405,26 @@ public class NetworkSmartMapClient implements SmartMapClient {
 
         SmartMapParser parser = this.getParser(conn.getContentType());
         this.checkServerErrorFromParser(parser, response);
-        List<UserContainer> inviters = null;
-        List<UserContainer> newFriends = null;
-        List<Long> removedFriends = null;
+        return this.parseFriendInvitations(parser, response);
+    }
 
-        try {
-            inviters = parser.parseFriendList(response, "invitations");
-            newFriends = parser.parseFriendList(response, "newFriends");
-            removedFriends = parser.parseIdList(response, "removedFriends");
-        } catch (SmartMapParseException e) {
-            throw new SmartMapClientException(e);
-        }
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getFriendInvitationsSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<InvitationBag> getFriendInvitationsSince(String cursor) throws SmartMapClientException {
 
-        return new NetworkFriendInvitationBag(inviters, newFriends, removedFriends);
+        HttpURLConnection conn = this.getHttpURLConnection("/getInvitations");
+        String response = this.sendViaPost(this.getParamsForCursor(cursor), conn);
 
+        SmartMapParser parser = this.getParser(conn.getContentType());
+        this.checkServerErrorFromParser(parser, response);
+        String newCursor = this.parseCursor(parser, response);
+        if ((cursor != null) && cursor.equals(newCursor)) {
+            return new ChangeSet<InvitationBag>(null, newCursor);
+        }
+        return new ChangeSet<InvitationBag>(this.parseFriendInvitations(parser, response), newCursor);
     }
 
     /*
@@ -345,19 +434,15 @@ public class NetworkSmartMapClient implements SmartMapClient {
     @Override
     public List<Long> getFriendsIds() throws SmartMapClientException {
 
-        List<Long> ids = new ArrayList<Long>();
         HttpURLConnection conn = this.getHttpURLConnection("/getFriendsIds");
-        String response = this.sendViaPost(new HashMap<String, String>(), conn);
-
-        try {
-            SmartMapParser parser = this.getParser(conn.getContentType());
-            this.checkServerErrorFromParser(parser, response);
-            ids = parser.parseIdList(response, "friends");
-        } catch (SmartMapParseException e) {
-            throw new SmartMapClientException(e);
-        }
-
-        return ids;
+        this.acceptCompactFormat(conn);
+        return this.sendViaPost(new HashMap<String, String>(), conn, new ResponseReader<List<Long>>() {
+            @Override
+            public List<Long> read(StreamingSmartMapParser parser, InputStream in)
+                throws SmartMapParseException, SmartMapClientException {
+                return parser.parseIdList(in, "friends");
+            }
+        });
     }
 
     /*
@@ -366,24 +451,50 @@ public class NetworkSmartMapClient implements SmartMapClient {
      */
     @Override
     public Bitmap getProfilePicture(long id) throws SmartMapClientException {
-        Bitmap profilePicture = null;
-        HttpURLConnection conn = null;
-        try {
+        return this.fetchProfilePicture(id, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getProfilePictureIfModified(long)
+     */
+    @Override
+    public Bitmap getProfilePictureIfModified(long id) throws SmartMapClientException {
+        return this.fetchProfilePicture(id, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getProfilePictures(java.util.Collection)
+     */
+    @SuppressLint("UseSparseArrays")
+    @Override
+    public Map<Long, Bitmap> getProfilePictures(Collection<Long> ids) throws SmartMapClientException {
+        Map<Long, Bitmap> pictures = new HashMap<Long, Bitmap>();
+        for (List<Long> batch : this.splitInBatches(ids, MAX_PICTURES_BATCH_SIZE)) {
             Map<String, String> params = new HashMap<String, String>();
-            params.put("user_id", Long.toString(id));
-            conn = this.getHttpURLConnection("/getProfilePicture");
-            this.sendRequestWithParams(params, conn);
-            this.checkResponseCode(conn);
-            profilePicture = BitmapFactory.decodeStream(conn.getInputStream());
-        } catch (IOException e) {
-            throw new SmartMapClientException(e);
-        } finally {
-            conn.disconnect();
-        }
-        if (profilePicture == null) {
-            throw new SmartMapClientException("Error : the image data could not be decoded");
+            params.put("user_ids", this.longListToString(batch));
+            HttpURLConnection conn = this.getHttpURLConnection("/getProfilePictures");
+            Map<Long, byte[]> encodedPictures =
+                this.sendViaPost(params, conn, new ResponseReader<Map<Long, byte[]>>() {
+                    @Override
+                    public Map<Long, byte[]> read(StreamingSmartMapParser parser, InputStream in)
+                        throws SmartMapParseException, SmartMapClientException {
+                        return parser.parsePictures(in, "pictures");
+                    }
+                });
+
+            for (Map.Entry<Long, byte[]> entry : encodedPictures.entrySet()) {
+                byte[] data = entry.getValue();
+                Bitmap picture = ProfilePictureCache.decode(data, PROFILE_PICTURE_SIZE);
+                if (picture == null) {
+                    throw new SmartMapClientException("Error : the image data of user " + entry.getKey()
+                        + " could not be decoded");
+                }
+                pictures.put(entry.getKey(), picture);
+            }
         }
-        return profilePicture;
+        return pictures;
     }
 
     /*
@@ -400,19 +511,14 @@ public class NetworkSmartMapClient implements SmartMapClient {
         params.put("radius", Double.toString(radius));
 
         HttpURLConnection conn = this.getHttpURLConnection("/getPublicEvents");
-        String response = this.sendViaPost(params, conn);
-
-        List<Long> publicEvents = new ArrayList<Long>();
-
-        try {
-            SmartMapParser parser = this.getParser(conn.getContentType());
-            this.checkServerErrorFromParser(parser, response);
-            publicEvents = parser.parseIdList(response, "events");
-        } catch (SmartMapParseException e) {
-            throw new SmartMapClientException(e);
-        }
-
-        return publicEvents;
+        this.acceptCompactFormat(conn);
+        return this.sendViaPost(params, conn, new ResponseReader<List<Long>>() {
+            @Override
+            public List<Long> read(StreamingSmartMapParser parser, InputStream in)
+                throws SmartMapParseException, SmartMapClientException {
+                return parser.parseIdList(in, "events");
+            }
+        });
     }
 
     /*
@@ -439,6 +545,28 @@ public class NetworkSmartMapClient implements SmartMapClient {
         return friend;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getUsersInfo(java.util.Collection)
+     */
+    @Override
+    public List<UserContainer> getUsersInfo(Collection<Long> ids) throws SmartMapClientException {
+        List<UserContainer> users = new ArrayList<UserContainer>();
+        for (List<Long> batch : this.splitInBatches(ids, MAX_BATCH_SIZE)) {
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("user_ids", this.longListToString(batch));
+            HttpURLConnection conn = this.getHttpURLConnection("/getUsersInfo");
+            users.addAll(this.sendViaPost(params, conn, new ResponseReader<List<UserContainer>>() {
+                @Override
+                public List<UserContainer> read(StreamingSmartMapParser parser, InputStream in)
+                    throws SmartMapParseException, SmartMapClientException {
+                    return parser.parseFriendList(in, "users");
+                }
+            }));
+        }
+        return users;
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.servercom.SmartMapClient#inviteFriend(int)
@@ -514,16 +642,15 @@ public class NetworkSmartMapClient implements SmartMapClient {
     public List<UserContainer> listFriendsPos() throws SmartMapClientException {
 
         HttpURLConnection conn = this.getHttpURLConnection("/listFriendsPos");
-        String response = this.sendViaPost(new HashMap<String, String>(), conn);
-
-        SmartMapParser parser = this.getParser(conn.getContentType());
-        this.checkServerErrorFromParser(parser, response);
-        List<UserContainer> users = new ArrayList<UserContainer>();
-        try {
-            users = parser.parsePositions(response);
-        } catch (SmartMapParseException e) {
-            throw new SmartMapClientException(e);
-        }
+        this.acceptCompactFormat(conn);
+        List<UserContainer> users =
+            this.sendViaPost(new HashMap<String, String>(), conn, new ResponseReader<List<UserContainer>>() {
+                @Override
+                public List<UserContainer> read(StreamingSmartMapParser parser, InputStream in)
+                    throws SmartMapParseException, SmartMapClientException {
+                    return parser.parsePositions(in);
+                }
+            });
 
         for (UserContainer user : users) {
             user.setFriendship(User.FRIEND);
@@ -532,6 +659,29 @@ public class NetworkSmartMapClient implements SmartMapClient {
         return users;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#listFriendsPosSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<List<UserContainer>> listFriendsPosSince(String cursor) throws SmartMapClientException {
+
+        final HttpURLConnection conn = this.getHttpURLConnection("/listFriendsPos");
+        this.acceptCompactFormat(conn);
+        return this.sendViaPost(this.getParamsForCursor(cursor), conn,
+            new ResponseReader<ChangeSet<List<UserContainer>>>() {
+                @Override
+                public ChangeSet<List<UserContainer>> read(StreamingSmartMapParser parser, InputStream in)
+                    throws SmartMapParseException, SmartMapClientException {
+                    List<UserContainer> users = parser.parsePositions(in);
+                    for (UserContainer user : users) {
+                        user.setFriendship(User.FRIEND);
+                    }
+                    return new ChangeSet<List<UserContainer>>(users, conn.getHeaderField(CURSOR_HEADER));
+                }
+            });
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.servercom.SmartMapClient#removeFriend(long)
@@ -548,6 +698,64 @@ public class NetworkSmartMapClient implements SmartMapClient {
 
     }
 
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#replayMutations(java.util.List)
+     */
+    @Override
+    public List<Mutation.Result> replayMutations(List<Mutation> mutations) throws SmartMapClientException {
+        if (mutations.size() > Mutation.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Too many mutations in a batch: " + mutations.size());
+        }
+        JSONArray batch = new JSONArray();
+        try {
+            for (Mutation mutation : mutations) {
+                JSONObject jsonMutation = new JSONObject();
+                jsonMutation.put("key", mutation.getKey());
+                jsonMutation.put("uri", mutation.getType().getUri());
+                jsonMutation.put("params", new JSONObject(mutation.getParams()));
+                batch.put(jsonMutation);
+            }
+        } catch (JSONException e) {
+            throw new SmartMapClientException(e);
+        }
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("mutations", batch.toString());
+        HttpURLConnection conn = this.getHttpURLConnection("/replayMutations");
+        String response = this.sendViaPost(params, conn);
+
+        SmartMapParser parser = this.getParser(conn.getContentType());
+        this.checkServerErrorFromParser(parser, response);
+        try {
+            return parser.parseMutationResults(response);
+        } catch (SmartMapParseException e) {
+            throw new SmartMapClientException(e);
+        }
+    }
+
+    /**
+     * Sets the timeouts of each endpoint. Retries and the circuit breaker of the policy are applied by a
+     * {@link ResilientSmartMapClient} wrapping this client.
+     * 
+     * @param policy
+     *            the policy, or {@code null} to keep the timeouts of the {@link NetworkProvider}
+     */
+    public void setNetworkPolicy(NetworkPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Sets where profile pictures are stored, so that they are only downloaded again when they changed on
+     * the server
+     * 
+     * @param pictureCache
+     *            the cache, or {@code null} to always download pictures
+     */
+    public void setPictureCache(ProfilePictureCache pictureCache) {
+        mPictureCache = pictureCache;
+    }
+
     /*
      * (non-Javadoc)
      * @see ch.epfl.smartmap.severcom.SmartMapFriendsClient#disallowFriend(int)
@@ -571,8 +779,8 @@ public class NetworkSmartMapClient implements SmartMapClient {
     @Override
     public void updateEvent(EventContainer event) throws SmartMapClientException {
 
-        Map<String, String> params = this.getParamsForEvent(event);
-        params.put("eventId", Long.toString(event.getId()));
+        Map<String, String> params = getParamsForEvent(event);
+        params.put(PARAM_UPDATED_EVENT_ID, Long.toString(event.getId()));
         HttpURLConnection conn = this.getHttpURLConnection("/updateEvent");
 
         String response = this.sendViaPost(params, conn);
@@ -601,6 +809,15 @@ public class NetworkSmartMapClient implements SmartMapClient {
 
     }
 
+    /**
+     * Asks the server to send the response in the compact binary format if it can
+     * 
+     * @param connection
+     */
+    private void acceptCompactFormat(HttpURLConnection connection) {
+        connection.setRequestProperty("Accept", COMPACT_FORMAT_ACCEPT);
+    }
+
     /**
      * Checks the HTTP response code
      * 
@@ -612,12 +829,16 @@ public class NetworkSmartMapClient implements SmartMapClient {
     private void checkResponseCode(HttpURLConnection connection) throws SmartMapClientException {
         try {
             int responseCode = connection.getResponseCode();
+            if (responseCode >= HTTP_SERVER_ERROR_START) {
+                throw new ServerUnavailableException("HTTP error with code " + responseCode
+                    + " during communication with client.");
+            }
             if ((responseCode < HTTP_SUCCESS_START) || (responseCode > HTTP_SUCCESS_END)) {
                 throw new SmartMapClientException("HTTP error with code " + connection.getResponseCode()
                     + " during communication with client.");
             }
         } catch (IOException e) {
-            throw new SmartMapClientException(e);
+            throw this.networkError(e);
         }
     }
 
@@ -639,6 +860,73 @@ public class NetworkSmartMapClient implements SmartMapClient {
         }
     }
 
+    /**
+     * Gets a profile picture, with a conditional request if it is stored in the picture cache
+     * 
+     * @param id
+     *            the id of the user whose profile picture is needed
+     * @param decodeIfNotModified
+     *            if {@code false}, returns {@code null} when the stored picture is still up to date
+     * @return the decoded profile picture
+     * @throws SmartMapClientException
+     *             in case the request failed or the picture could not be decoded
+     */
+    private Bitmap fetchProfilePicture(long id, boolean decodeIfNotModified) throws SmartMapClientException {
+        ProfilePictureCache pictureCache = mPictureCache;
+        ProfilePictureCache.Entry stored = (pictureCache != null) ? pictureCache.get(id) : null;
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("user_id", Long.toString(id));
+        HttpURLConnection conn = this.getHttpURLConnection("/getProfilePicture");
+        if (stored != null) {
+            if (stored.getETag() != null) {
+                conn.setRequestProperty("If-None-Match", stored.getETag());
+            }
+            if (stored.getLastModified() != null) {
+                conn.setRequestProperty("If-Modified-Since", stored.getLastModified());
+            }
+        }
+
+        byte[] data;
+        try {
+            this.sendRequestWithParams(params, conn);
+            boolean isNotModified = (stored != null) && (conn.getResponseCode() == HTTP_NOT_MODIFIED);
+            if (!isNotModified) {
+                this.checkResponseCode(conn);
+            }
+            InputStream in = mNetworkProvider.getResponseStream(conn);
+            try {
+                if (isNotModified) {
+                    if (!decodeIfNotModified) {
+                        return null;
+                    }
+                    data = stored.getData();
+                } else {
+                    data = this.readFully(in);
+                    if (pictureCache != null) {
+                        pictureCache.put(id, data, conn.getHeaderField("ETag"),
+                            conn.getHeaderField("Last-Modified"));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw this.networkError(e);
+        } finally {
+            mNetworkProvider.releaseConnection(conn);
+        }
+
+        Bitmap profilePicture = ProfilePictureCache.decode(data, PROFILE_PICTURE_SIZE);
+        if (profilePicture == null) {
+            if (pictureCache != null) {
+                pictureCache.remove(id);
+            }
+            throw new SmartMapClientException("Error : the image data could not be decoded");
+        }
+        return profilePicture;
+    }
+
     /**
      * Return a {@link HttpURLConnection} object for the given uri. The connection is obtained by a
      * {@link NetworkProvider} object
@@ -654,17 +942,36 @@ public class NetworkSmartMapClient implements SmartMapClient {
         URL serverURL = null;
         HttpURLConnection connection = null;
         try {
-            serverURL = new URL(SERVER_URL + uri);
-            connection = NETWORK_PROVIDER.getConnection(serverURL);
+            serverURL = new URL(mServerUrl + uri);
+            connection = mNetworkProvider.getConnection(serverURL);
+            NetworkPolicy policy = mPolicy;
+            if (policy != null) {
+                connection.setConnectTimeout(policy.getConnectTimeout());
+                connection.setReadTimeout(policy.getReadTimeout(uri));
+            }
         } catch (MalformedURLException e1) {
             Log.e(NetworkSmartMapClient.class.getSimpleName(), e1.getMessage());
             throw new IllegalArgumentException();
         } catch (IOException e) {
-            throw new SmartMapClientException(e);
+            throw this.networkError(e);
         }
         return connection;
     }
 
+    /**
+     * Prepare the parameters of a request for changes
+     * 
+     * @param cursor
+     *            the cursor of the previous response, or {@code null} to get everything
+     * @return a map of strings to strings which represents the parameters to send
+     */
+    private Map<String, String> getParamsForCursor(String cursor) {
+        Map<String, String> params = new HashMap<String, String>();
+        // An empty cursor asks for everything, and for a cursor
+        params.put(PARAM_SINCE, (cursor != null) ? cursor : "");
+        return params;
+    }
+
     /**
      * Prepare the parameters to send to the server for the given {@link EventContainer} object
      * 
@@ -672,7 +979,7 @@ public class NetworkSmartMapClient implements SmartMapClient {
      *            the event for which parameters need to be prepared
      * @return a map of strings to strings which represents the parameters to send
      */
-    private Map<String, String> getParamsForEvent(EventContainer event) {
+    static Map<String, String> getParamsForEvent(EventContainer event) {
         Map<String, String> params = new HashMap<String, String>();
 
         SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
@@ -730,7 +1037,7 @@ public class NetworkSmartMapClient implements SmartMapClient {
             response = new StringBuilder();
             BufferedReader in;
 
-            in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+            in = new BufferedReader(new InputStreamReader(mNetworkProvider.getResponseStream(connection)));
 
             while ((inputLine = in.readLine()) != null) {
                 response.append(inputLine);
@@ -738,11 +1045,27 @@ public class NetworkSmartMapClient implements SmartMapClient {
 
             in.close();
         } catch (IOException e) {
-            throw new SmartMapClientException(e);
+            throw this.networkError(e);
         }
         return response.toString();
     }
 
+    /**
+     * Return a {@code StreamingSmartMapParser} for the given content type
+     * 
+     * @param contentType
+     * @return a {@code StreamingSmartMapParser} for the given content type
+     * @throws SmartMapClientException
+     *             in case the content type is not supported
+     */
+    private StreamingSmartMapParser getStreamingParser(String contentType) throws SmartMapClientException {
+        try {
+            return SmartMapParserFactory.streamingParserForContentType(contentType);
+        } catch (NoSuchFormatException e) {
+            throw new SmartMapClientException(e);
+        }
+    }
+
     /**
      * Converts a list of long to a string to match with the parameters format required by the SmartMap server
      * 
@@ -760,6 +1083,121 @@ public class NetworkSmartMapClient implements SmartMapClient {
         return listString;
     }
 
+    /**
+     * Wraps an exception of the network layer, failures that may go away become
+     * {@link ServerUnavailableException}s
+     * 
+     * @param e
+     * @return the exception to throw
+     */
+    private SmartMapClientException networkError(IOException e) {
+        if ((e instanceof InterruptedIOException) && !(e instanceof SocketTimeoutException)) {
+            // The request was cancelled, the server is not to blame
+            return new SmartMapClientException(e);
+        }
+        return new ServerUnavailableException(e);
+    }
+
+    /**
+     * Splits ids in batches small enough to be sent in a single request, duplicates are removed
+     * 
+     * @param ids
+     * @param batchSize
+     *            maximum number of ids in a batch
+     * @return the batches, empty if there is no id
+     */
+    private List<List<Long>> splitInBatches(Collection<Long> ids, int batchSize) {
+        List<List<Long>> batches = new ArrayList<List<Long>>();
+        List<Long> batch = new ArrayList<Long>();
+        for (long id : new HashSet<Long>(ids)) {
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<Long>();
+            }
+            batch.add(id);
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * @param parser
+     * @param response
+     *            the response to a request for changes
+     * @return the cursor of the response, {@code null} if the server sent none
+     * @throws SmartMapClientException
+     */
+    private String parseCursor(SmartMapParser parser, String response) throws SmartMapClientException {
+        try {
+            return parser.parseCursor(response);
+        } catch (SmartMapParseException e) {
+            throw new SmartMapClientException(e);
+        }
+    }
+
+    /**
+     * @param parser
+     * @param response
+     *            the response to a request for event invitations
+     * @return the invitations of the response
+     * @throws SmartMapClientException
+     */
+    private InvitationBag parseEventInvitations(SmartMapParser parser, String response)
+        throws SmartMapClientException {
+        List<EventContainer> eventInvitations = null;
+        try {
+            eventInvitations = parser.parseEventList(response);
+            Log.d(TAG, "event size :" + eventInvitations.size());
+        } catch (SmartMapParseException e) {
+            throw new SmartMapClientException(e);
+        }
+
+        return new NetworkEventInvitationBag(new HashSet<EventContainer>(eventInvitations));
+    }
+
+    /**
+     * @param parser
+     * @param response
+     *            the response to a request for friend invitations
+     * @return the invitations, new friends and removed friends of the response
+     * @throws SmartMapClientException
+     */
+    private InvitationBag parseFriendInvitations(SmartMapParser parser, String response)
+        throws SmartMapClientException {
+        List<UserContainer> inviters = null;
+        List<UserContainer> newFriends = null;
+        List<Long> removedFriends = null;
+
+        try {
+            inviters = parser.parseFriendList(response, "invitations");
+            newFriends = parser.parseFriendList(response, "newFriends");
+            removedFriends = parser.parseIdList(response, "removedFriends");
+        } catch (SmartMapParseException e) {
+            throw new SmartMapClientException(e);
+        }
+
+        return new NetworkFriendInvitationBag(inviters, newFriends, removedFriends);
+    }
+
+    /**
+     * Reads a stream until its end, without closing it
+     * 
+     * @param in
+     * @return the bytes read
+     * @throws IOException
+     */
+    private byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
     /**
      * Sends a request to the server with the given parameters, and via the gven {@link HttpURLConnection}
      * object
@@ -787,17 +1225,10 @@ public class NetworkSmartMapClient implements SmartMapClient {
 
             }
 
-            // To be able to send data
-            connection.setDoOutput(true);
-
-            // Send post request
-            DataOutputStream wr;
-            wr = new DataOutputStream(connection.getOutputStream());
-            wr.writeBytes(postData.toString());
-            wr.flush();
-            wr.close();
+            // Send post request, the provider may compress it
+            mNetworkProvider.writeRequestBody(connection, postData.toString().getBytes("UTF-8"));
         } catch (IOException e) {
-            throw new SmartMapClientException(e);
+            throw this.networkError(e);
         }
     }
 
@@ -831,8 +1262,58 @@ public class NetworkSmartMapClient implements SmartMapClient {
             throw new SmartMapClientException(e);
 
         } finally {
-            connection.disconnect();
+            mNetworkProvider.releaseConnection(connection);
         }
         return response;
     }
+
+    /**
+     * Sends a POST request to the server and reads its response directly from the network stream, in a
+     * single pass
+     * 
+     * @param params
+     *            the parameters to send to the server
+     * @param connection
+     * @param responseReader
+     *            reads the response
+     * @return the value read from the response
+     * @throws SmartMapClientException
+     *             in case the response could not be retrieved or parsed, or the server returned an error
+     */
+    private <T> T sendViaPost(Map<String, String> params, HttpURLConnection connection,
+        ResponseReader<T> responseReader) throws SmartMapClientException {
+        try {
+            connection.setRequestMethod("POST");
+
+            if (!params.isEmpty()) {
+                this.sendRequestWithParams(params, connection);
+            }
+
+            this.checkResponseCode(connection);
+
+            StreamingSmartMapParser parser = this.getStreamingParser(connection.getContentType());
+            InputStream in = mNetworkProvider.getResponseStream(connection);
+            try {
+                return responseReader.read(parser, in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw this.networkError(e);
+        } catch (SmartMapParseException e) {
+            throw new SmartMapClientException(e);
+        } finally {
+            mNetworkProvider.releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Reads a response of the server from the network stream
+     * 
+     * @author jfperren
+     */
+    private interface ResponseReader<T> {
+        T read(StreamingSmartMapParser parser, InputStream in) throws SmartMapParseException,
+            SmartMapClientException;
+    }
 }
\ No newline at end of file
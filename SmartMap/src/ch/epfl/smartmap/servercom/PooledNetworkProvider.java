@@ -0,0 +1,249 @@
+package ch.epfl.smartmap.servercom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link NetworkProvider} that keeps connections to the server alive, asks for compressed responses,
+ * compresses large request bodies and limits the number of requests sent at the same time.
+ * <p>
+ * Sockets are pooled by the platform as long as the body of each response is read entirely and its
+ * connection is not disconnected. The stream given by {@code getResponseStream} reads the rest of the body
+ * when it is closed, and {@code releaseConnection} only disconnects connections whose body was not consumed,
+ * for example after an HTTP error.
+ * <p>
+ * A request holds one of the {@code maxConcurrentRequests} permits from {@code getConnection} to
+ * {@code releaseConnection}, other requests wait for a permit. The same instance should therefore be shared
+ * by all clients of a server.
+ * <p>
+ * {@code RESERVED_INTERACTIVE_REQUESTS} more permits are reserved to the interactive threads of
+ * {@link NetworkExecutor}, which use them when all the others are taken, so that a user action never waits
+ * for the end of background requests.
+ *
+ * @author jfperren
+ */
+public class PooledNetworkProvider implements NetworkProvider {
+
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    public static final int RESERVED_INTERACTIVE_REQUESTS = 1;
+
+    // Smaller request bodies are not compressed, in bytes
+    public static final int MIN_COMPRESSED_SIZE = 1024;
+
+    // In milliseconds
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Semaphore mPermits;
+    private final Semaphore mInteractivePermits;
+    private final int mMaxConcurrentRequests;
+
+    // Connections given by getConnection and not released yet
+    private final ConcurrentMap<HttpURLConnection, ResponseStream> mActiveConnections;
+
+    /**
+     * Constructor, uses {@code DEFAULT_MAX_CONCURRENT_REQUESTS}
+     */
+    public PooledNetworkProvider() {
+        this(DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxConcurrentRequests
+     *            maximum number of requests sent at the same time
+     */
+    public PooledNetworkProvider(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("Invalid maximum of concurrent requests "
+                + maxConcurrentRequests);
+        }
+        mMaxConcurrentRequests = maxConcurrentRequests;
+        mPermits = new Semaphore(maxConcurrentRequests, true);
+        mInteractivePermits = new Semaphore(RESERVED_INTERACTIVE_REQUESTS, true);
+        mActiveConnections = new ConcurrentHashMap<HttpURLConnection, ResponseStream>();
+
+        // Read by the platform when its pool is created, keep at least one idle socket per permit
+        System.setProperty("http.keepAlive", "true");
+        String maxConnections = System.getProperty("http.maxConnections");
+        int connections = maxConcurrentRequests + RESERVED_INTERACTIVE_REQUESTS;
+        if ((maxConnections == null) || (Integer.parseInt(maxConnections) < connections)) {
+            System.setProperty("http.maxConnections", Integer.toString(connections));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.NetworkProvider#getConnection(java.net.URL)
+     */
+    @Override
+    public HttpURLConnection getConnection(URL url) throws IOException {
+        Semaphore permits = this.acquirePermit();
+
+        boolean success = false;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            // Setting it disables transparent decompression, done by getResponseStream instead
+            connection.setRequestProperty("Accept-Encoding", GZIP);
+            connection.setRequestProperty("Connection", "keep-alive");
+            mActiveConnections.put(connection, new ResponseStream(permits));
+            success = true;
+            return connection;
+        } finally {
+            if (!success) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * @return maximum number of requests sent at the same time, not counting the reserved ones
+     */
+    public int getMaxConcurrentRequests() {
+        return mMaxConcurrentRequests;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.NetworkProvider#getResponseStream(java.net.HttpURLConnection)
+     */
+    @Override
+    public InputStream getResponseStream(HttpURLConnection connection) throws IOException {
+        ResponseStream stream = mActiveConnections.get(connection);
+        if (stream == null) {
+            throw new IllegalStateException("Connection was not given by this provider or already released");
+        }
+        stream.open(connection.getInputStream());
+        if (GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+            return new GZIPInputStream(stream);
+        }
+        return stream;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.NetworkProvider#releaseConnection(java.net.HttpURLConnection)
+     */
+    @Override
+    public void releaseConnection(HttpURLConnection connection) {
+        ResponseStream stream = mActiveConnections.remove(connection);
+        if (stream == null) {
+            // Already released
+            return;
+        }
+        try {
+            if (!stream.isConsumed()) {
+                // The socket is in an unknown state, it cannot be reused
+                connection.disconnect();
+            }
+        } finally {
+            stream.mPermits.release();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.NetworkProvider#writeRequestBody(java.net.HttpURLConnection, byte[])
+     */
+    @Override
+    public void writeRequestBody(HttpURLConnection connection, byte[] body) throws IOException {
+        byte[] data = body;
+        if (body.length >= MIN_COMPRESSED_SIZE) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(body);
+            gzip.close();
+            if (compressed.size() < body.length) {
+                data = compressed.toByteArray();
+                connection.setRequestProperty("Content-Encoding", GZIP);
+            }
+        }
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(data.length);
+        OutputStream out = connection.getOutputStream();
+        out.write(data);
+        out.close();
+    }
+
+    /**
+     * Waits for a permit to send a request
+     *
+     * @return the semaphore from which the permit was taken
+     * @throws InterruptedIOException
+     *             if the thread was interrupted while waiting
+     */
+    private Semaphore acquirePermit() throws InterruptedIOException {
+        try {
+            if (NetworkExecutor.isInteractiveThread() && !mPermits.tryAcquire()) {
+                mInteractivePermits.acquire();
+                return mInteractivePermits;
+            }
+            mPermits.acquire();
+            return mPermits;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+    }
+
+    /**
+     * Wraps the raw body of a response, and reads what remains of it when closed so that the socket can be
+     * reused
+     *
+     * @author jfperren
+     */
+    private static final class ResponseStream extends FilterInputStream {
+
+        // From which the permit of the request was taken
+        private final Semaphore mPermits;
+
+        private volatile boolean mIsConsumed;
+
+        private ResponseStream(Semaphore permits) {
+            super(null);
+            mPermits = permits;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.io.FilterInputStream#close()
+         */
+        @Override
+        public void close() throws IOException {
+            if (in == null) {
+                return;
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // Discard the rest of the body
+            }
+            in.close();
+            mIsConsumed = true;
+        }
+
+        private boolean isConsumed() {
+            return mIsConsumed;
+        }
+
+        private void open(InputStream raw) {
+            in = raw;
+        }
+    }
+}
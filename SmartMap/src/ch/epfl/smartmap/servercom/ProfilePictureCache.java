@@ -0,0 +1,326 @@
+package ch.epfl.smartmap.servercom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Keeps the profile pictures received from the server on disk, as they were sent (encoded), together with
+ * the ETag and Last-Modified headers of their response. {@link NetworkSmartMapClient} uses them to send
+ * conditional requests, so that a picture that did not change costs a 304 Not Modified instead of a full
+ * download, and only decodes a picture when it is really needed.
+ * <p>
+ * Each picture is a single file, written atomically, and the least recently used pictures are deleted when
+ * the cache grows larger than its budget. This class is thread-safe.
+ *
+ * @author jfperren
+ */
+public final class ProfilePictureCache {
+
+    private static final String TAG = ProfilePictureCache.class.getSimpleName();
+
+    // By default, at most 4 MB of pictures
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+
+    private static final String EXTENSION = ".pic";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    // Written first in each file, to detect files of another format
+    private static final int FORMAT_VERSION = 1;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // Total size of the files, -1 until the directory is first scanned
+    private long mSize = -1;
+
+    /**
+     * Constructor, uses {@code DEFAULT_MAX_BYTES}
+     *
+     * @param directory
+     *            where pictures are stored, created if needed
+     */
+    public ProfilePictureCache(File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            where pictures are stored, created if needed
+     * @param maxBytes
+     *            maximum size of all stored pictures
+     */
+    public ProfilePictureCache(File directory, long maxBytes) {
+        if (directory == null) {
+            throw new IllegalArgumentException("No directory given");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid maximum size " + maxBytes);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Deletes all stored pictures
+     */
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+            }
+        }
+        mSize = 0;
+    }
+
+    /**
+     * @param userId
+     * @return the stored picture of this user, or {@code null} if there is none
+     */
+    public synchronized Entry get(long userId) {
+        File file = this.fileFor(userId);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Unknown format");
+                }
+                String eTag = in.readUTF();
+                String lastModified = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                // Marks it as recently used
+                file.setLastModified(System.currentTimeMillis());
+                return new Entry(data, eTag.isEmpty() ? null : eTag, lastModified.isEmpty() ? null
+                    : lastModified);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Corrupted picture for user " + userId + " : " + e);
+            this.remove(userId);
+            return null;
+        }
+    }
+
+    /**
+     * @return maximum size of all stored pictures, in bytes
+     */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Stores the picture of an user, replacing the previous one. Pictures without any validator are not
+     * stored, since they could never be revalidated.
+     *
+     * @param userId
+     * @param data
+     *            the encoded picture
+     * @param eTag
+     *            ETag header of the response, or {@code null}
+     * @param lastModified
+     *            Last-Modified header of the response, or {@code null}
+     */
+    public synchronized void put(long userId, byte[] data, String eTag, String lastModified) {
+        if ((eTag == null) && (lastModified == null)) {
+            return;
+        }
+        this.ensureScanned();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + mDirectory);
+            return;
+        }
+
+        File file = this.fileFor(userId);
+        File temporary = new File(mDirectory, userId + TEMPORARY_EXTENSION);
+        try {
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF((eTag != null) ? eTag : "");
+                out.writeUTF((lastModified != null) ? lastModified : "");
+                out.writeInt(data.length);
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            long previousLength = file.length();
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Could not rename " + temporary);
+            }
+            mSize += file.length() - previousLength;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store picture for user " + userId + " : " + e);
+            if (!temporary.delete()) {
+                Log.w(TAG, "Could not delete " + temporary);
+            }
+            return;
+        }
+        this.trim();
+    }
+
+    /**
+     * Deletes the picture of an user
+     *
+     * @param userId
+     */
+    public synchronized void remove(long userId) {
+        File file = this.fileFor(userId);
+        long length = file.length();
+        if (file.delete() && (mSize >= 0)) {
+            mSize -= length;
+        }
+    }
+
+    /**
+     * @return total size of stored pictures, in bytes
+     */
+    public synchronized long size() {
+        this.ensureScanned();
+        return mSize;
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private void ensureScanned() {
+        if (mSize >= 0) {
+            return;
+        }
+        mSize = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                mSize += file.length();
+            }
+        }
+    }
+
+    private File fileFor(long userId) {
+        return new File(mDirectory, userId + EXTENSION);
+    }
+
+    /**
+     * Deletes the least recently used pictures until the cache fits in its budget, must be called with the
+     * lock held
+     */
+    private void trim() {
+        if (mSize <= mMaxBytes) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> sortedFiles = new ArrayList<File>();
+        Collections.addAll(sortedFiles, files);
+        Collections.sort(sortedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long firstModified = first.lastModified();
+                long secondModified = second.lastModified();
+                return (firstModified < secondModified) ? -1 : ((firstModified == secondModified) ? 0 : 1);
+            }
+        });
+        for (File file : sortedFiles) {
+            if (mSize <= mMaxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                mSize -= length;
+            }
+        }
+    }
+
+    /**
+     * Decodes an encoded picture, downsampled so that it is at most about twice the given size
+     *
+     * @param data
+     *            the encoded picture
+     * @param maxSize
+     *            target width and height, in pixels
+     * @return the decoded picture, or {@code null} if it could not be decoded
+     */
+    public static Bitmap decode(byte[] data, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid size " + maxSize);
+        }
+        // Only read the dimensions first, to avoid decoding pixels that would be thrown away
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while ((Math.max(options.outWidth, options.outHeight) / (sampleSize * 2)) >= maxSize) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * A stored picture and the validators of the response it came from
+     *
+     * @author jfperren
+     */
+    public static final class Entry {
+        private final byte[] mData;
+        private final String mETag;
+        private final String mLastModified;
+
+        private Entry(byte[] data, String eTag, String lastModified) {
+            mData = data;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * @return the encoded picture
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * @return ETag header of the response, or {@code null}
+         */
+        public String getETag() {
+            return mETag;
+        }
+
+        /**
+         * @return Last-Modified header of the response, or {@code null}
+         */
+        public String getLastModified() {
+            return mLastModified;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package ch.epfl.smartmap.servercom;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes concurrent identical requests share a single call to the server: the first caller for a key executes
+ * the request, and callers arriving while it is in flight wait for it and get the same result, or the same
+ * exception. Optionally, successful results are also kept for a short time and returned to later callers
+ * without any request.
+ * <p>
+ * Results are shared between callers, so they should not be modified. This class is thread-safe.
+ *
+ * @param <K>
+ *            type of the keys identifying requests, for example ids
+ * @param <V>
+ *            type of the results
+ * @author jfperren
+ */
+public final class RequestCoalescer<K, V> {
+
+    private final ConcurrentMap<K, Call<V>> mInFlight;
+    private final ConcurrentMap<K, Call<V>> mResults;
+    private final long mResultTtl;
+
+    // Incremented when results are invalidated, so that a request started before is not kept
+    private final AtomicLong mGeneration;
+
+    /**
+     * Constructor
+     *
+     * @param resultTtl
+     *            how long successful results are kept, in milliseconds, or {@code 0} to only share results
+     *            between concurrent callers
+     */
+    public RequestCoalescer(long resultTtl) {
+        if (resultTtl < 0) {
+            throw new IllegalArgumentException("Invalid time to live " + resultTtl);
+        }
+        mInFlight = new ConcurrentHashMap<K, Call<V>>();
+        mResults = new ConcurrentHashMap<K, Call<V>>();
+        mResultTtl = TimeUnit.MILLISECONDS.toNanos(resultTtl);
+        mGeneration = new AtomicLong();
+    }
+
+    /**
+     * Forgets all kept results. Requests in flight are not affected.
+     */
+    public void clear() {
+        mGeneration.incrementAndGet();
+        mResults.clear();
+    }
+
+    /**
+     * Executes a request, or waits for the identical one in flight, or returns a recent result
+     *
+     * @param key
+     *            identifies the request
+     * @param request
+     *            executed if no identical request is in flight and no recent result is kept
+     * @param listener
+     *            told how the result was obtained, may be {@code null}
+     * @return the result of the request
+     * @throws SmartMapClientException
+     *             thrown by the request, to every caller sharing it
+     */
+    public V execute(K key, Request<V> request, Listener listener) throws SmartMapClientException {
+        Call<V> kept = mResults.get(key);
+        if (kept != null) {
+            if ((System.nanoTime() - kept.mCompletionTime) < mResultTtl) {
+                if (listener != null) {
+                    listener.onKeptResult();
+                }
+                return kept.mResult;
+            }
+            mResults.remove(key, kept);
+        }
+
+        Call<V> call = new Call<V>();
+        Call<V> inFlight = mInFlight.putIfAbsent(key, call);
+        if (inFlight != null) {
+            if (listener != null) {
+                listener.onSharedRequest();
+            }
+            return inFlight.await();
+        }
+
+        long generation = mGeneration.get();
+        try {
+            call.mResult = request.execute();
+            call.mCompletionTime = System.nanoTime();
+            if ((mResultTtl > 0) && (mGeneration.get() == generation)) {
+                mResults.put(key, call);
+            }
+            return call.mResult;
+        } catch (SmartMapClientException e) {
+            call.mThrowable = e;
+            throw e;
+        } catch (RuntimeException e) {
+            call.mThrowable = e;
+            throw e;
+        } catch (Error e) {
+            call.mThrowable = e;
+            throw e;
+        } finally {
+            // Callers arriving from now on execute a new request
+            mInFlight.remove(key, call);
+            call.mDone.countDown();
+        }
+    }
+
+    /**
+     * Forgets the kept result of a request, for example because the data it returned was modified. A
+     * request already in flight is still shared.
+     *
+     * @param key
+     */
+    public void invalidate(K key) {
+        mGeneration.incrementAndGet();
+        mResults.remove(key);
+    }
+
+    /**
+     * A request to the server
+     *
+     * @param <V>
+     *            type of the result
+     * @author jfperren
+     */
+    public interface Request<V> {
+        V execute() throws SmartMapClientException;
+    }
+
+    /**
+     * Told whether a request was avoided
+     *
+     * @author jfperren
+     */
+    public interface Listener {
+        /**
+         * Called when a recent result is returned without any request
+         */
+        void onKeptResult();
+
+        /**
+         * Called when the caller waits for an identical request in flight
+         */
+        void onSharedRequest();
+    }
+
+    /**
+     * A request in flight or completed
+     */
+    private static final class Call<V> {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        // Written before mDone is counted down, then only read
+        private V mResult;
+        private Throwable mThrowable;
+        private long mCompletionTime;
+
+        private V await() throws SmartMapClientException {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SmartMapClientException(e);
+            }
+            if (mThrowable instanceof SmartMapClientException) {
+                throw (SmartMapClientException) mThrowable;
+            } else if (mThrowable instanceof RuntimeException) {
+                throw (RuntimeException) mThrowable;
+            } else if (mThrowable != null) {
+                throw (Error) mThrowable;
+            }
+            return mResult;
+        }
+    }
+}
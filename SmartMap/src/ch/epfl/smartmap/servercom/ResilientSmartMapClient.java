@@ -0,0 +1,527 @@
+package ch.epfl.smartmap.servercom;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.UserContainer;
+
+/**
+ * A {@link SmartMapClient} that sends requests through a {@link NetworkPolicy}: requests are refused while
+ * its circuit breaker is open, and requests that can safely be sent twice, like reads, acknowledgements or
+ * position updates, are retried when the server could not answer them. Requests that create something or
+ * depend on the state of the server, like invitations or new events, are only sent once, unless they are
+ * replayed as {@link Mutation}s whose keys let the server ignore duplicates.
+ *
+ * @author jfperren
+ */
+public final class ResilientSmartMapClient implements SmartMapClient {
+
+    private final SmartMapClient mClient;
+    private final NetworkPolicy mPolicy;
+
+    /**
+     * Constructor
+     *
+     * @param client
+     *            the client that sends requests, should throw {@link ServerUnavailableException}s for
+     *            failures that may go away
+     * @param policy
+     *            shared by all clients of the server
+     */
+    public ResilientSmartMapClient(SmartMapClient client, NetworkPolicy policy) {
+        if ((client == null) || (policy == null)) {
+            throw new IllegalArgumentException("Client or policy is null");
+        }
+        mClient = client;
+        mPolicy = policy;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#acceptInvitation(long)
+     */
+    @Override
+    public UserContainer acceptInvitation(final long id) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<UserContainer>() {
+            @Override
+            public UserContainer send() throws SmartMapClientException {
+                return mClient.acceptInvitation(id);
+            }
+        }, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#ackAcceptedInvitation(long)
+     */
+    @Override
+    public void ackAcceptedInvitation(final long id) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.ackAcceptedInvitation(id);
+                return null;
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#ackEventInvitation(long)
+     */
+    @Override
+    public void ackEventInvitation(final long eventId) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.ackEventInvitation(eventId);
+                return null;
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#ackRemovedFriend(long)
+     */
+    @Override
+    public void ackRemovedFriend(final long id) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.ackRemovedFriend(id);
+                return null;
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#authServer(java.lang.String, long, java.lang.String)
+     */
+    @Override
+    public void authServer(final String name, final long facebookId, final String fbAccessToken)
+        throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.authServer(name, facebookId, fbAccessToken);
+                return null;
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#blockFriend(long)
+     */
+    @Override
+    public void blockFriend(final long id) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.blockFriend(id);
+                return null;
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#createPublicEvent(ch.epfl.smartmap.cache.EventContainer)
+     */
+    @Override
+    public long createPublicEvent(final EventContainer event) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<Long>() {
+            @Override
+            public Long send() throws SmartMapClientException {
+                return mClient.createPublicEvent(event);
+            }
+        }, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#declineInvitation(long)
+     */
+    @Override
+    public void declineInvitation(final long id) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.declineInvitation(id);
+                return null;
+            }
+        }, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#findUsers(java.lang.String)
+     */
+    @Override
+    public List<UserContainer> findUsers(final String text) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> send() throws SmartMapClientException {
+                return mClient.findUsers(text);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventInfo(long)
+     */
+    @Override
+    public EventContainer getEventInfo(final long eventId) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<EventContainer>() {
+            @Override
+            public EventContainer send() throws SmartMapClientException {
+                return mClient.getEventInfo(eventId);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventsInfo(java.util.Collection)
+     */
+    @Override
+    public List<EventContainer> getEventsInfo(final Collection<Long> eventIds)
+        throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<List<EventContainer>>() {
+            @Override
+            public List<EventContainer> send() throws SmartMapClientException {
+                return mClient.getEventsInfo(eventIds);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventInvitations()
+     */
+    @Override
+    public InvitationBag getEventInvitations() throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<InvitationBag>() {
+            @Override
+            public InvitationBag send() throws SmartMapClientException {
+                return mClient.getEventInvitations();
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getEventInvitationsSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<InvitationBag> getEventInvitationsSince(final String cursor)
+        throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<ChangeSet<InvitationBag>>() {
+            @Override
+            public ChangeSet<InvitationBag> send() throws SmartMapClientException {
+                return mClient.getEventInvitationsSince(cursor);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getFriendInvitations()
+     */
+    @Override
+    public InvitationBag getFriendInvitations() throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<InvitationBag>() {
+            @Override
+            public InvitationBag send() throws SmartMapClientException {
+                return mClient.getFriendInvitations();
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getFriendInvitationsSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<InvitationBag> getFriendInvitationsSince(final String cursor)
+        throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<ChangeSet<InvitationBag>>() {
+            @Override
+            public ChangeSet<InvitationBag> send() throws SmartMapClientException {
+                return mClient.getFriendInvitationsSince(cursor);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getFriendsIds()
+     */
+    @Override
+    public List<Long> getFriendsIds() throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<List<Long>>() {
+            @Override
+            public List<Long> send() throws SmartMapClientException {
+                return mClient.getFriendsIds();
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getProfilePicture(long)
+     */
+    @Override
+    public Bitmap getProfilePicture(final long id) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<Bitmap>() {
+            @Override
+            public Bitmap send() throws SmartMapClientException {
+                return mClient.getProfilePicture(id);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getProfilePictureIfModified(long)
+     */
+    @Override
+    public Bitmap getProfilePictureIfModified(final long id) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<Bitmap>() {
+            @Override
+            public Bitmap send() throws SmartMapClientException {
+                return mClient.getProfilePictureIfModified(id);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getProfilePictures(java.util.Collection)
+     */
+    @Override
+    public Map<Long, Bitmap> getProfilePictures(final Collection<Long> ids) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<Map<Long, Bitmap>>() {
+            @Override
+            public Map<Long, Bitmap> send() throws SmartMapClientException {
+                return mClient.getProfilePictures(ids);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getPublicEvents(double, double, double)
+     */
+    @Override
+    public List<Long> getPublicEvents(final double latitude, final double longitude, final double radius)
+        throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<List<Long>>() {
+            @Override
+            public List<Long> send() throws SmartMapClientException {
+                return mClient.getPublicEvents(latitude, longitude, radius);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getUserInfo(long)
+     */
+    @Override
+    public UserContainer getUserInfo(final long id) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<UserContainer>() {
+            @Override
+            public UserContainer send() throws SmartMapClientException {
+                return mClient.getUserInfo(id);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#getUsersInfo(java.util.Collection)
+     */
+    @Override
+    public List<UserContainer> getUsersInfo(final Collection<Long> ids) throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> send() throws SmartMapClientException {
+                return mClient.getUsersInfo(ids);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#inviteFriend(long)
+     */
+    @Override
+    public void inviteFriend(final long id) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.inviteFriend(id);
+                return null;
+            }
+        }, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#inviteUsersToEvent(long, java.util.List)
+     */
+    @Override
+    public void inviteUsersToEvent(final long eventId, final List<Long> friendsIds)
+        throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.inviteUsersToEvent(eventId, friendsIds);
+                return null;
+            }
+        }, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#joinEvent(long)
+     */
+    @Override
+    public void joinEvent(final long eventId) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.joinEvent(eventId);
+                return null;
+            }
+        }, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#leaveEvent(long)
+     */
+    @Override
+    public void leaveEvent(final long eventId) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.leaveEvent(eventId);
+                return null;
+            }
+        }, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#listFriendsPos()
+     */
+    @Override
+    public List<UserContainer> listFriendsPos() throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> send() throws SmartMapClientException {
+                return mClient.listFriendsPos();
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#listFriendsPosSince(java.lang.String)
+     */
+    @Override
+    public ChangeSet<List<UserContainer>> listFriendsPosSince(final String cursor)
+        throws SmartMapClientException {
+        return mPolicy.execute(new NetworkPolicy.Request<ChangeSet<List<UserContainer>>>() {
+            @Override
+            public ChangeSet<List<UserContainer>> send() throws SmartMapClientException {
+                return mClient.listFriendsPosSince(cursor);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#removeFriend(long)
+     */
+    @Override
+    public void removeFriend(final long id) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.removeFriend(id);
+                return null;
+            }
+        }, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#replayMutations(java.util.List)
+     */
+    @Override
+    public List<Mutation.Result> replayMutations(final List<Mutation> mutations)
+        throws SmartMapClientException {
+        // The server ignores mutations whose key it already knows, sending them twice is harmless
+        return mPolicy.execute(new NetworkPolicy.Request<List<Mutation.Result>>() {
+            @Override
+            public List<Mutation.Result> send() throws SmartMapClientException {
+                return mClient.replayMutations(mutations);
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#unblockFriend(long)
+     */
+    @Override
+    public void unblockFriend(final long id) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.unblockFriend(id);
+                return null;
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#updateEvent(ch.epfl.smartmap.cache.EventContainer)
+     */
+    @Override
+    public void updateEvent(final EventContainer event) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.updateEvent(event);
+                return null;
+            }
+        }, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.SmartMapClient#updatePos(android.location.Location)
+     */
+    @Override
+    public void updatePos(final Location location) throws SmartMapClientException {
+        mPolicy.execute(new NetworkPolicy.Request<Void>() {
+            @Override
+            public Void send() throws SmartMapClientException {
+                mClient.updatePos(location);
+                return null;
+            }
+        }, true);
+    }
+}
@@ -0,0 +1,71 @@
+package ch.epfl.smartmap.servercom;
+
+/**
+ * Limits retries to a fraction of the requests, shared by all requests of a client. Retrying each failed
+ * request a few times is harmless when failures are rare, but multiplies the load of a server that is
+ * already struggling: with a budget, retries stop when most requests fail.
+ * <p>
+ * The budget holds tokens, up to {@code maxTokens}. Each request adds {@code tokensPerRequest} of them and
+ * each retry takes one.
+ *
+ * @author jfperren
+ */
+public final class RetryBudget {
+
+    public static final double DEFAULT_MAX_TOKENS = 10;
+    public static final double DEFAULT_TOKENS_PER_REQUEST = 0.2;
+
+    private final double mMaxTokens;
+    private final double mTokensPerRequest;
+
+    private double mTokens;
+
+    /**
+     * Constructor, uses {@code DEFAULT_MAX_TOKENS} and {@code DEFAULT_TOKENS_PER_REQUEST}
+     */
+    public RetryBudget() {
+        this(DEFAULT_MAX_TOKENS, DEFAULT_TOKENS_PER_REQUEST);
+    }
+
+    /**
+     * Constructor, the budget starts full
+     *
+     * @param maxTokens
+     *            maximum number of retries that can be made in a row
+     * @param tokensPerRequest
+     *            retries allowed for each request in the long run
+     */
+    public RetryBudget(double maxTokens, double tokensPerRequest) {
+        if ((maxTokens < 0) || (tokensPerRequest < 0)) {
+            throw new IllegalArgumentException("Invalid retry budget " + maxTokens + ", " + tokensPerRequest);
+        }
+        mMaxTokens = maxTokens;
+        mTokensPerRequest = tokensPerRequest;
+        mTokens = maxTokens;
+    }
+
+    /**
+     * @return number of retries that can be made now
+     */
+    public synchronized int getAvailableRetries() {
+        return (int) mTokens;
+    }
+
+    /**
+     * Records a new request, not a retry
+     */
+    public synchronized void onRequest() {
+        mTokens = Math.min(mMaxTokens, mTokens + mTokensPerRequest);
+    }
+
+    /**
+     * @return whether a retry can be made, in which case it is taken from the budget
+     */
+    public synchronized boolean tryRetry() {
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+}
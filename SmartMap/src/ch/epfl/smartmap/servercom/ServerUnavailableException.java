@@ -0,0 +1,21 @@
+package ch.epfl.smartmap.servercom;
+
+/**
+ * Thrown when the server could not be reached, did not answer in time or answered with an error of its own
+ * (HTTP 5xx), or when requests are not sent at all because it failed too often recently. Unlike other
+ * {@link SmartMapClientException}s, sending the same request later may succeed.
+ *
+ * @author jfperren
+ */
+public class ServerUnavailableException extends SmartMapClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServerUnavailableException(String message) {
+        super(message);
+    }
+
+    public ServerUnavailableException(Throwable throwable) {
+        super(throwable);
+    }
+}
@@ -1,6 +1,8 @@
 package ch.epfl.smartmap.servercom;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import android.graphics.Bitmap;
 import android.location.Location;
@@ -137,6 +139,18 @@ public interface SmartMapClient {
      */
     EventContainer getEventInfo(long eventId) throws SmartMapClientException;
 
+    /**
+     * Asks the server for the detailed informations about several events in a single request
+     * 
+     * @param eventIds
+     *            the ids of the events for which informations are wanted
+     * @return the events that exist on the server, in no particular order. Unknown ids are ignored.
+     * @throws SmartMapClientException
+     *             in case the request could not be sent for any reason
+     *             external to the application (network failure etc.)
+     */
+    List<EventContainer> getEventsInfo(Collection<Long> eventIds) throws SmartMapClientException;
+
     /**
      * @return an object of type {@link InvitationBag} that encapsulates the received informations
      *         For each retrieved invitation, must call {@link ackEventInvitation}
@@ -146,6 +160,18 @@ public interface SmartMapClient {
      */
     InvitationBag getEventInvitations() throws SmartMapClientException;
 
+    /**
+     * Like {@link getEventInvitations}, but only if they changed since a previous request
+     * 
+     * @param cursor
+     *            the cursor of the previous response, or {@code null} to get all invitations
+     * @return the invitations, or no changes if they did not change
+     * @throws SmartMapClientException
+     *             in case the request could not be sent for any reason
+     *             external to the application (network failure etc.)
+     */
+    ChangeSet<InvitationBag> getEventInvitationsSince(String cursor) throws SmartMapClientException;
+
     /**
      * Retrieve the friend invitations from the server, and also the list of users that
      * accepted an invitation from us, and the list of users that removed us
@@ -160,6 +186,18 @@ public interface SmartMapClient {
      */
     InvitationBag getFriendInvitations() throws SmartMapClientException;
 
+    /**
+     * Like {@link getFriendInvitations}, but only if they changed since a previous request
+     * 
+     * @param cursor
+     *            the cursor of the previous response, or {@code null} to get all invitations
+     * @return the invitations, or no changes if they did not change
+     * @throws SmartMapClientException
+     *             in case the request could not be sent for any reason
+     *             external to the application (network failure etc.)
+     */
+    ChangeSet<InvitationBag> getFriendInvitationsSince(String cursor) throws SmartMapClientException;
+
     /**
      * @return the list of the friends ids
      * @throws SmartMapClientException
@@ -180,6 +218,31 @@ public interface SmartMapClient {
      */
     Bitmap getProfilePicture(long id) throws SmartMapClientException;
 
+    /**
+     * Return the profile picture of the user with the given id, only if it changed since it was last
+     * received. Implementations that do not remember pictures always return it.
+     *
+     * @param id
+     *            the id of the user whose profile picture is needed
+     * @return the profile picture, or {@code null} if the last received one is still up to date
+     * @throws SmartMapClientException
+     *             in case the request could not be sent for any reason
+     *             external to the application (network failure etc.)
+     */
+    Bitmap getProfilePictureIfModified(long id) throws SmartMapClientException;
+
+    /**
+     * Return the profile pictures of several users in a single request
+     * 
+     * @param ids
+     *            the ids of the users whose profile pictures are needed
+     * @return the profile pictures, by user id. Unknown ids are not in the map.
+     * @throws SmartMapClientException
+     *             in case the request could not be sent for any reason
+     *             external to the application (network failure etc.)
+     */
+    Map<Long, Bitmap> getProfilePictures(Collection<Long> ids) throws SmartMapClientException;
+
     /**
      * Retrieve all the public events in the given area
      * 
@@ -206,6 +269,19 @@ public interface SmartMapClient {
      */
     UserContainer getUserInfo(long id) throws SmartMapClientException;
 
+    /**
+     * Retrieve informations about several users in a single request
+     * 
+     * @param ids
+     *            the ids of the users whose informations are needed
+     * @return the informations about the users that exist on the server, in no particular order. Unknown ids
+     *         are ignored.
+     * @throws SmartMapClientException
+     *             in case the request could not be sent for any reason
+     *             external to the application (network failure etc.)
+     */
+    List<UserContainer> getUsersInfo(Collection<Long> ids) throws SmartMapClientException;
+
     /**
      * Sends an invitation to the server for the user with the given id
      * 
@@ -264,6 +340,19 @@ public interface SmartMapClient {
 
     List<UserContainer> listFriendsPos() throws SmartMapClientException;
 
+    /**
+     * Asks to the server the positions of friends that changed since a previous request. Friends who became
+     * visible without moving are only sent when asking for all positions.
+     * 
+     * @param cursor
+     *            the cursor of the previous response, or {@code null} to get all positions
+     * @return the friends whose position changed, encapsulated in {@link UserContainer} objects
+     * @throws SmartMapClientException
+     *             in case the request could not be sent for any reason
+     *             external to the application (network failure etc.)
+     */
+    ChangeSet<List<UserContainer>> listFriendsPosSince(String cursor) throws SmartMapClientException;
+
     /**
      * Asks the server to remove the given friend from the user's list of friends
      * 
@@ -275,6 +364,20 @@ public interface SmartMapClient {
      */
     void removeFriend(long id) throws SmartMapClientException;
 
+    /**
+     * Sends mutations recorded offline in a single request. The server applies them in order and ignores
+     * those whose key it already knows, so the same batch can be sent again safely.
+     *
+     * @param mutations
+     *            at most {@code Mutation.MAX_BATCH_SIZE}, in the order they were made
+     * @return the results of the mutations that the server processed, a prefix of the batch. The others
+     *         must be sent again later.
+     * @throws SmartMapClientException
+     *             in case the request could not be sent for any reason
+     *             external to the application (network failure etc.)
+     */
+    List<Mutation.Result> replayMutations(List<Mutation> mutations) throws SmartMapClientException;
+
     /**
      * Asks the server to unblock the friend with the given id, so we can see its position and he can see ours
      * 
@@ -1,6 +1,7 @@
 package ch.epfl.smartmap.servercom;
 
 import java.util.List;
+import java.util.Map;
 
 import ch.epfl.smartmap.cache.EventContainer;
 import ch.epfl.smartmap.cache.UserContainer;
@@ -32,6 +33,16 @@ public interface SmartMapParser {
      */
     void checkServerError(String s) throws SmartMapParseException, SmartMapClientException;
 
+    /**
+     * Parses some text, and returns the sync cursor to send with the next request for changes
+     * 
+     * @param s
+     *            the text to parse, representing a response to a request for changes
+     * @return the cursor, or {@code null} if the server did not send any
+     * @throws SmartMapParseException
+     */
+    String parseCursor(String s) throws SmartMapParseException;
+
     /**
      * Parses some text, and returns an event
      * 
@@ -98,6 +109,30 @@ public interface SmartMapParser {
      */
     List<Long> parseIdList(String s, String key) throws SmartMapParseException;
 
+    /**
+     * Parses some text, and returns the results of a batch of mutations
+     * 
+     * @param s
+     *            the text to parse, representing a response to a batch of mutations
+     * @return the results, in the order the mutations were applied
+     * @throws SmartMapParseException
+     */
+    List<Mutation.Result> parseMutationResults(String s) throws SmartMapParseException;
+
+    /**
+     * Parses some text, and returns encoded pictures
+     * 
+     * @param s
+     *            the text to parse, representing a list of pictures
+     * @param key
+     *            the key word for the list to parse, if there is one
+     * @return the encoded pictures (for example JPEG data), by user id
+     * @throws SmartMapParseException
+     *             if s does not represent a valid list of pictures (according
+     *             to the format that the parser supports)
+     */
+    Map<Long, byte[]> parsePictures(String s, String key) throws SmartMapParseException;
+
     /**
      * Parses some text, and returns a map that maps id to positions
      * 
@@ -9,6 +9,7 @@ package ch.epfl.smartmap.servercom;
 public final class SmartMapParserFactory {
 
     public static final String JSON_CONTENT_TYPE = "application/json";
+    public static final String BINARY_CONTENT_TYPE = "application/vnd.smartmap";
 
     /**
      * Constructor
@@ -37,4 +38,28 @@ public final class SmartMapParserFactory {
         }
     }
 
+    /**
+     * Obtains a parser for the given MIME type, that can read responses directly from the network stream.
+     * 
+     * @param contentType
+     *            The MIME type that the parser should understand, e.g.,
+     *            "application/json"
+     * @return A streaming parser for the given contentType
+     * @throws NoSuchFormatException
+     *             If no known parser supports this content type
+     */
+    public static StreamingSmartMapParser streamingParserForContentType(String contentType)
+        throws NoSuchFormatException {
+
+        if (contentType.equals(JSON_CONTENT_TYPE)) {
+            return new StreamingJsonSmartMapParser();
+
+        } else if (contentType.equals(BINARY_CONTENT_TYPE)) {
+            return new BinarySmartMapParser();
+
+        } else {
+            throw new NoSuchFormatException();
+        }
+    }
+
 }
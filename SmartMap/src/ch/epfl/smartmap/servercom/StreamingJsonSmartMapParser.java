@@ -0,0 +1,391 @@
+package ch.epfl.smartmap.servercom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.annotation.SuppressLint;
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.UserContainer;
+
+/**
+ * A {@link StreamingSmartMapParser} for the Json format. Responses are read token by token with a
+ * {@link JsonReader}, and containers are validated and built as soon as their fields are read, so neither
+ * the text of the response nor a tree of {@code JSONObject}s is ever built. If the server returned an error,
+ * reading stops as soon as its status and message are known.
+ * <p>
+ * Parsing text is inherited from {@link JsonSmartMapParser}, and both accept and reject the same data.
+ *
+ * @author jfperren
+ */
+public class StreamingJsonSmartMapParser extends JsonSmartMapParser implements StreamingSmartMapParser {
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final String STATUS = "status";
+    private static final String MESSAGE = "message";
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parseEventList(java.io.InputStream)
+     */
+    @Override
+    public List<EventContainer> parseEventList(InputStream in) throws SmartMapParseException,
+        SmartMapClientException {
+        return this.parseResponse(in, "events", new ValueReader<List<EventContainer>>() {
+            @Override
+            public List<EventContainer> read(JsonReader reader) throws IOException, SmartMapParseException {
+                List<EventContainer> events = new ArrayList<EventContainer>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    events.add(StreamingJsonSmartMapParser.this.readEvent(reader));
+                }
+                reader.endArray();
+                return events;
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parseFriendList(java.io.InputStream,
+     * java.lang.String)
+     */
+    @Override
+    public List<UserContainer> parseFriendList(InputStream in, String key) throws SmartMapParseException,
+        SmartMapClientException {
+        return this.parseResponse(in, key, new ValueReader<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> read(JsonReader reader) throws IOException, SmartMapParseException {
+                List<UserContainer> friends = new ArrayList<UserContainer>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    friends.add(StreamingJsonSmartMapParser.this.readFriend(reader));
+                }
+                reader.endArray();
+                return friends;
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parseIdList(java.io.InputStream,
+     * java.lang.String)
+     */
+    @Override
+    public List<Long> parseIdList(InputStream in, String key) throws SmartMapParseException,
+        SmartMapClientException {
+        return this.parseResponse(in, key, new ValueReader<List<Long>>() {
+            @Override
+            public List<Long> read(JsonReader reader) throws IOException, SmartMapParseException {
+                return StreamingJsonSmartMapParser.this.readIds(reader);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parsePictures(java.io.InputStream,
+     * java.lang.String)
+     */
+    @Override
+    public Map<Long, byte[]> parsePictures(InputStream in, String key) throws SmartMapParseException,
+        SmartMapClientException {
+        return this.parseResponse(in, key, new ValueReader<Map<Long, byte[]>>() {
+            @SuppressLint("UseSparseArrays")
+            @Override
+            public Map<Long, byte[]> read(JsonReader reader) throws IOException, SmartMapParseException {
+                Map<Long, byte[]> pictures = new HashMap<Long, byte[]>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    long id = 0;
+                    String picture = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (name.equals("id")) {
+                            id = reader.nextLong();
+                        } else if (name.equals("picture")) {
+                            picture = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    if (picture == null) {
+                        throw new SmartMapParseException("Missing picture");
+                    }
+                    StreamingJsonSmartMapParser.this.checkId(id);
+                    // Pictures are sent in base 64 since JSON cannot hold binary data
+                    pictures.put(id, Base64.decode(picture, Base64.DEFAULT));
+                }
+                reader.endArray();
+                return pictures;
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ch.epfl.smartmap.servercom.StreamingSmartMapParser#parsePositions(java.io.InputStream)
+     */
+    @Override
+    public List<UserContainer> parsePositions(InputStream in) throws SmartMapParseException,
+        SmartMapClientException {
+        return this.parseResponse(in, "positions", new ValueReader<List<UserContainer>>() {
+            @Override
+            public List<UserContainer> read(JsonReader reader) throws IOException, SmartMapParseException {
+                List<UserContainer> users = new ArrayList<UserContainer>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    users.add(StreamingJsonSmartMapParser.this.readPosition(reader));
+                }
+                reader.endArray();
+                return users;
+            }
+        });
+    }
+
+    /**
+     * Throws the exception matching the status of a response, if any
+     */
+    private void checkStatus(String status, String message) throws SmartMapClientException {
+        if (status.equals(ERROR_STATUS)) {
+            throw new SmartMapClientException(message);
+        }
+        if (status.equals(FEEDBACK_STATUS)) {
+            throw new ServerFeedbackException(message);
+        }
+    }
+
+    /**
+     * Reads a whole response of the server, checking its status
+     *
+     * @param in
+     *            the response
+     * @param key
+     *            key of the value to read
+     * @param valueReader
+     *            reads the value
+     * @return the value
+     * @throws SmartMapParseException
+     *             if the response is not valid or the value is missing
+     * @throws SmartMapClientException
+     *             if the server returned an error
+     */
+    private <T> T parseResponse(InputStream in, String key, ValueReader<T> valueReader)
+        throws SmartMapParseException, SmartMapClientException {
+        String status = null;
+        String message = null;
+        T value = null;
+        boolean hasValue = false;
+
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, CHARSET));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(STATUS)) {
+                    status = reader.nextString();
+                } else if (name.equals(MESSAGE)) {
+                    message = reader.nextString();
+                } else if (name.equals(key) && !hasValue) {
+                    value = valueReader.read(reader);
+                    hasValue = true;
+                } else {
+                    reader.skipValue();
+                }
+                if ((status != null) && (message != null)) {
+                    // Do not read the rest of the response if it is an error
+                    this.checkStatus(status, message);
+                }
+            }
+            reader.endObject();
+        } catch (IOException e) {
+            // Also thrown for malformed Json
+            throw new SmartMapParseException(e);
+        } catch (IllegalStateException e) {
+            // Thrown by JsonReader when a value has an unexpected type
+            throw new SmartMapParseException(e);
+        } catch (IllegalArgumentException e) {
+            // Invalid number or base 64
+            throw new SmartMapParseException(e);
+        }
+
+        if ((status == null) || (message == null)) {
+            throw new SmartMapParseException("Missing status or message");
+        }
+        this.checkStatus(status, message);
+        if (!hasValue) {
+            throw new SmartMapParseException("Missing " + key);
+        }
+        return value;
+    }
+
+    /**
+     * @return the next value, or {@code defaultValue} if it is null
+     */
+    private double readDouble(JsonReader reader, double defaultValue) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return defaultValue;
+        }
+        return reader.nextDouble();
+    }
+
+    private EventContainer readEvent(JsonReader reader) throws IOException, SmartMapParseException {
+        Long id = null;
+        UserContainer creator = null;
+        GregorianCalendar startingDate = null;
+        GregorianCalendar endDate = null;
+        Double latitude = null;
+        Double longitude = null;
+        String positionName = null;
+        String name = null;
+        String description = null;
+        List<Long> participants = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (field.equals("id")) {
+                id = reader.nextLong();
+            } else if (field.equals("creator")) {
+                creator = this.readFriend(reader);
+            } else if (field.equals("startingDate")) {
+                startingDate = this.parseDate(reader.nextString());
+            } else if (field.equals("endingDate")) {
+                endDate = this.parseDate(reader.nextString());
+            } else if (field.equals(LATITUDE_STRING)) {
+                latitude = reader.nextDouble();
+            } else if (field.equals(LONGITUDE_STRING)) {
+                longitude = reader.nextDouble();
+            } else if (field.equals("positionName")) {
+                positionName = reader.nextString();
+            } else if (field.equals("name")) {
+                name = reader.nextString();
+            } else if (field.equals("description")) {
+                description = reader.nextString();
+            } else if (field.equals("participants")) {
+                participants = this.readIds(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if ((id == null) || (creator == null) || (startingDate == null) || (endDate == null)
+            || (latitude == null) || (longitude == null) || (positionName == null) || (name == null)
+            || (description == null) || (participants == null)) {
+            throw new SmartMapParseException("Missing field in event");
+        }
+        return this.createEvent(id, creator, startingDate, endDate, latitude, longitude, positionName, name,
+            description, participants);
+    }
+
+    private UserContainer readFriend(JsonReader reader) throws IOException, SmartMapParseException {
+        Long id = null;
+        String name = null;
+        double latitude = UNITIALIZED_LATITUDE;
+        double longitude = UNITIALIZED_LONGITUDE;
+        String lastSeenString = null;
+        // Same default as JSONObject.optInt
+        int friendship = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (field.equals("id")) {
+                id = reader.nextLong();
+            } else if (field.equals("name")) {
+                name = reader.nextString();
+            } else if (field.equals(LATITUDE_STRING)) {
+                latitude = this.readDouble(reader, UNITIALIZED_LATITUDE);
+            } else if (field.equals(LONGITUDE_STRING)) {
+                longitude = this.readDouble(reader, UNITIALIZED_LONGITUDE);
+            } else if (field.equals("lastUpdate")) {
+                lastSeenString = this.readString(reader);
+            } else if (field.equals("isFriend")) {
+                friendship = (int) this.readDouble(reader, 0);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if ((id == null) || (name == null)) {
+            throw new SmartMapParseException("Missing id or name of user");
+        }
+        return this.createFriend(id, name, latitude, longitude, lastSeenString, friendship);
+    }
+
+    private List<Long> readIds(JsonReader reader) throws IOException, SmartMapParseException {
+        List<Long> ids = new ArrayList<Long>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            long id = reader.nextLong();
+            this.checkId(id);
+            ids.add(id);
+        }
+        reader.endArray();
+        return ids;
+    }
+
+    private UserContainer readPosition(JsonReader reader) throws IOException, SmartMapParseException {
+        Long userId = null;
+        Double latitude = null;
+        Double longitude = null;
+        String lastUpdate = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (field.equals("id")) {
+                userId = reader.nextLong();
+            } else if (field.equals(LATITUDE_STRING)) {
+                latitude = reader.nextDouble();
+            } else if (field.equals(LONGITUDE_STRING)) {
+                longitude = reader.nextDouble();
+            } else if (field.equals("lastUpdate")) {
+                lastUpdate = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if ((userId == null) || (latitude == null) || (longitude == null) || (lastUpdate == null)) {
+            throw new SmartMapParseException("Missing field in position");
+        }
+        return this.createPosition(userId, latitude, longitude, lastUpdate);
+    }
+
+    /**
+     * @return the next value, or {@code null} if it is null
+     */
+    private String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * Reads the value of a field of a response
+     *
+     * @author jfperren
+     */
+    private interface ValueReader<T> {
+        T read(JsonReader reader) throws IOException, SmartMapParseException;
+    }
+}
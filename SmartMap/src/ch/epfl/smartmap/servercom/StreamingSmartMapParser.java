@@ -0,0 +1,92 @@
+package ch.epfl.smartmap.servercom;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.UserContainer;
+
+/**
+ * A {@link SmartMapParser} that can also read a whole response of the server directly from the network
+ * stream. The status of the response is checked while its content is parsed, in a single pass and without
+ * keeping the response in memory.
+ *
+ * @author jfperren
+ */
+public interface StreamingSmartMapParser extends SmartMapParser {
+
+    /**
+     * Reads a response containing a list of events
+     *
+     * @param in
+     *            the response, not closed by this method
+     * @return the list of events
+     * @throws SmartMapParseException
+     *             if the response is not valid
+     * @throws SmartMapClientException
+     *             if the server returned an error
+     */
+    List<EventContainer> parseEventList(InputStream in) throws SmartMapParseException,
+        SmartMapClientException;
+
+    /**
+     * Reads a response containing a list of friends
+     *
+     * @param in
+     *            the response, not closed by this method
+     * @param key
+     *            the key word for the list to parse
+     * @return the list of friends
+     * @throws SmartMapParseException
+     *             if the response is not valid
+     * @throws SmartMapClientException
+     *             if the server returned an error
+     */
+    List<UserContainer> parseFriendList(InputStream in, String key) throws SmartMapParseException,
+        SmartMapClientException;
+
+    /**
+     * Reads a response containing a list of ids
+     *
+     * @param in
+     *            the response, not closed by this method
+     * @param key
+     *            the key word for the list to parse
+     * @return the list of ids
+     * @throws SmartMapParseException
+     *             if the response is not valid
+     * @throws SmartMapClientException
+     *             if the server returned an error
+     */
+    List<Long> parseIdList(InputStream in, String key) throws SmartMapParseException, SmartMapClientException;
+
+    /**
+     * Reads a response containing encoded pictures
+     *
+     * @param in
+     *            the response, not closed by this method
+     * @param key
+     *            the key word for the list to parse
+     * @return the encoded pictures, by user id
+     * @throws SmartMapParseException
+     *             if the response is not valid
+     * @throws SmartMapClientException
+     *             if the server returned an error
+     */
+    Map<Long, byte[]> parsePictures(InputStream in, String key) throws SmartMapParseException,
+        SmartMapClientException;
+
+    /**
+     * Reads a response containing positions
+     *
+     * @param in
+     *            the response, not closed by this method
+     * @return the users' positions
+     * @throws SmartMapParseException
+     *             if the response is not valid
+     * @throws SmartMapClientException
+     *             if the server returned an error
+     */
+    List<UserContainer> parsePositions(InputStream in) throws SmartMapParseException, SmartMapClientException;
+}
@@ -16,16 +16,24 @@ import ch.epfl.smartmap.background.ServiceContainer;
 import ch.epfl.smartmap.background.SettingsManager;
 import ch.epfl.smartmap.cache.Cache;
 import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.ChangeSet;
+import ch.epfl.smartmap.servercom.NetworkPolicy;
 import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
 
 public class FriendsPositionsThreadTest extends AndroidTestCase {
 
+    private static final String FIRST_CURSOR = "2014-11-12 23:59:00";
+    private static final String SECOND_CURSOR = "2014-11-13 00:00:10";
+    private static final int SHORT_REFRESH = 100;
+
     private Cache cache = null;
     private SmartMapClient client = null;
     private SettingsManager settings = null;
 
     private final UserContainer user = new UserContainer(1337, null, null, null, null, null, null, null, 1);
+    private List<UserContainer> posList;
     private Set<UserContainer> posSet;
 
     @Override
@@ -41,14 +49,52 @@ public class FriendsPositionsThreadTest extends AndroidTestCase {
         ServiceContainer.setCache(cache);
 
         client = Mockito.mock(NetworkSmartMapClient.class);
-        List<UserContainer> posList = new ArrayList<UserContainer>();
+        posList = new ArrayList<UserContainer>();
         posList.add(user);
         posSet = new HashSet<UserContainer>(posList);
         Mockito.when(client.listFriendsPos()).thenReturn(posList);
+        // Everything first, then nothing changes
+        Mockito.when(client.listFriendsPosSince(null)).thenReturn(
+            new ChangeSet<List<UserContainer>>(posList, FIRST_CURSOR));
+        Mockito.when(client.listFriendsPosSince(FIRST_CURSOR)).thenReturn(
+            new ChangeSet<List<UserContainer>>(new ArrayList<UserContainer>(), FIRST_CURSOR));
         ServiceContainer.setNetworkClient(client);
+        // A fresh policy, so that the server is available
+        ServiceContainer.setNetworkPolicy(new NetworkPolicy(null));
     }
 
     public void testFriendsPositions() {
+        this.runThread();
+        Mockito.verify(cache, Mockito.atLeastOnce()).putUsers(Mockito.argThat(isSame(posSet)));
+    }
+
+    public void testCursorMovesForward() throws SmartMapClientException {
+        Mockito.when(settings.getRefreshFrequency()).thenReturn(SHORT_REFRESH);
+        Mockito.when(client.listFriendsPosSince(FIRST_CURSOR)).thenReturn(
+            new ChangeSet<List<UserContainer>>(posList, SECOND_CURSOR));
+        Mockito.when(client.listFriendsPosSince(SECOND_CURSOR)).thenReturn(
+            new ChangeSet<List<UserContainer>>(new ArrayList<UserContainer>(), SECOND_CURSOR));
+
+        this.runThread();
+
+        Mockito.verify(client, Mockito.times(1)).listFriendsPosSince(null);
+        Mockito.verify(client, Mockito.times(1)).listFriendsPosSince(FIRST_CURSOR);
+        Mockito.verify(client, Mockito.atLeastOnce()).listFriendsPosSince(SECOND_CURSOR);
+        Mockito.verify(cache, Mockito.times(2)).putUsers(Mockito.argThat(isSame(posSet)));
+    }
+
+    public void testUnchangedCursorPutsNothing() throws SmartMapClientException {
+        Mockito.when(settings.getRefreshFrequency()).thenReturn(SHORT_REFRESH);
+
+        this.runThread();
+
+        // The cursor is kept, so everything is only asked for once
+        Mockito.verify(client, Mockito.times(1)).listFriendsPosSince(null);
+        Mockito.verify(client, Mockito.atLeast(2)).listFriendsPosSince(FIRST_CURSOR);
+        Mockito.verify(cache, Mockito.times(1)).putUsers(Mockito.argThat(isSame(posSet)));
+    }
+
+    private void runThread() {
         FriendsPositionsThread thread = new FriendsPositionsThread();
         thread.start();
         try {
@@ -57,7 +103,6 @@ public class FriendsPositionsThreadTest extends AndroidTestCase {
             Log.e(FriendsPositionsThreadTest.class.getSimpleName(), "Thread interrupted: " + e);
         }
         thread.disable();
-        Mockito.verify(cache, Mockito.atLeastOnce()).putUsers(Mockito.argThat(isSame(posSet)));
     }
 
     public static ArgumentMatcher<Set<UserContainer>> isSame(final Set<UserContainer> expectedUser) {
@@ -19,14 +19,21 @@ import ch.epfl.smartmap.cache.EventContainer;
 import ch.epfl.smartmap.cache.InvitationContainer;
 import ch.epfl.smartmap.cache.UserContainer;
 import ch.epfl.smartmap.database.DatabaseHelper;
+import ch.epfl.smartmap.servercom.ChangeSet;
 import ch.epfl.smartmap.servercom.InvitationBag;
 import ch.epfl.smartmap.servercom.NetworkEventInvitationBag;
 import ch.epfl.smartmap.servercom.NetworkFriendInvitationBag;
+import ch.epfl.smartmap.servercom.NetworkPolicy;
 import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClientException;
 
 public class InvitationsServiceTest extends ServiceTestCase<InvitationsService> {
+
+    private static final String FRIENDS_CURSOR = "f1";
+    private static final String NEW_FRIENDS_CURSOR = "f2";
+    private static final String EVENTS_CURSOR = "e1";
+
     private Intent testIntent;
     private final Location mLocation = new Location("gps");
     private InvitationBag invitations = null;
@@ -64,22 +71,50 @@ public class InvitationsServiceTest extends ServiceTestCase<InvitationsService>
         client = Mockito.mock(NetworkSmartMapClient.class);
         Mockito.when(client.getFriendInvitations()).thenReturn(invitations);
         Mockito.when(client.getEventInvitations()).thenReturn(eventInvitations);
+        // Everything first, then nothing changes
+        Mockito.when(client.getFriendInvitationsSince(null)).thenReturn(
+            new ChangeSet<InvitationBag>(invitations, FRIENDS_CURSOR));
+        Mockito.when(client.getFriendInvitationsSince(FRIENDS_CURSOR)).thenReturn(
+            new ChangeSet<InvitationBag>(null, FRIENDS_CURSOR));
+        Mockito.when(client.getEventInvitationsSince(null)).thenReturn(
+            new ChangeSet<InvitationBag>(eventInvitations, EVENTS_CURSOR));
+        Mockito.when(client.getEventInvitationsSince(EVENTS_CURSOR)).thenReturn(
+            new ChangeSet<InvitationBag>(null, EVENTS_CURSOR));
         ServiceContainer.setNetworkClient(client);
+        // A fresh policy, so that the server is available
+        ServiceContainer.setNetworkPolicy(new NetworkPolicy(null));
 
         cache = Mockito.mock(Cache.class);
         ServiceContainer.setCache(cache);
     }
 
+    @Override
+    public void tearDown() throws Exception {
+        // Otherwise the next test would get a service that already has cursors
+        this.getContext().stopService(new Intent(this.getContext(), InvitationsService.class));
+        super.tearDown();
+    }
+
     @Test
-    public void testInvitRetrieval() throws SmartMapClientException {
-        testIntent = new Intent(this.getContext(), InvitationsService.class);
-        this.getContext().startService(testIntent);
-        // Just to make sure the service has enough time to call the method since it's in an AsyncTask
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            Log.e(InvitationsServiceTest.class.getSimpleName(), "Thread interrupted: " + e);
+    public void testCursorMovesForward() throws SmartMapClientException {
+        Mockito.when(client.getFriendInvitationsSince(FRIENDS_CURSOR)).thenReturn(
+            new ChangeSet<InvitationBag>(invitations, NEW_FRIENDS_CURSOR));
+        Mockito.when(client.getFriendInvitationsSince(NEW_FRIENDS_CURSOR)).thenReturn(
+            new ChangeSet<InvitationBag>(null, NEW_FRIENDS_CURSOR));
+
+        // Each start fetches invitations again
+        for (int i = 0; i < 3; i++) {
+            this.startAndWait();
         }
+
+        Mockito.verify(client, Mockito.times(1)).getFriendInvitationsSince(FRIENDS_CURSOR);
+        Mockito.verify(client, Mockito.atLeastOnce()).getFriendInvitationsSince(NEW_FRIENDS_CURSOR);
+        Mockito.verify(client, Mockito.times(2)).ackRemovedFriend(1337);
+    }
+
+    @Test
+    public void testInvitRetrieval() throws SmartMapClientException {
+        this.startAndWait();
         Mockito.verify(client, Mockito.atLeastOnce()).ackRemovedFriend(1337);
         Mockito.verify(cache, Mockito.never()).putInvitations(Mockito.anySetOf(InvitationContainer.class));
     }
@@ -107,4 +142,27 @@ public class InvitationsServiceTest extends ServiceTestCase<InvitationsService>
         this.getContext().startService(testIntent);
         assertTrue(this.getContext().stopService(testIntent));
     }
+
+    @Test
+    public void testUnchangedCursorIsNotProcessed() throws SmartMapClientException {
+        this.startAndWait();
+        this.startAndWait();
+
+        // The cursors are kept, so everything is only asked for once
+        Mockito.verify(client, Mockito.times(1)).getFriendInvitationsSince(null);
+        Mockito.verify(client, Mockito.times(1)).getEventInvitationsSince(null);
+        Mockito.verify(client, Mockito.atLeastOnce()).getFriendInvitationsSince(FRIENDS_CURSOR);
+        Mockito.verify(client, Mockito.times(1)).ackRemovedFriend(1337);
+    }
+
+    private void startAndWait() {
+        testIntent = new Intent(this.getContext(), InvitationsService.class);
+        this.getContext().startService(testIntent);
+        // Just to make sure the service has enough time to call the method since it's in an AsyncTask
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Log.e(InvitationsServiceTest.class.getSimpleName(), "Thread interrupted: " + e);
+        }
+    }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package ch.epfl.smartmap.test.background;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -18,6 +19,7 @@ import ch.epfl.smartmap.background.ServiceContainer;
 import ch.epfl.smartmap.background.SettingsManager;
 import ch.epfl.smartmap.cache.Cache;
 import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.servercom.NetworkPolicy;
 import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClient;
 
@@ -43,8 +45,10 @@ public class NearEventsThreadTest extends AndroidTestCase {
         evtSet.add(event);
         Mockito.when(client.getPublicEvents(Mockito.anyDouble(), Mockito.anyDouble(), Mockito.anyDouble()))
             .thenReturn(events);
-        Mockito.when(client.getEventInfo(123)).thenReturn(event);
+        Mockito.when(client.getEventsInfo(events)).thenReturn(Arrays.asList(event));
         ServiceContainer.setNetworkClient(client);
+        // A fresh policy, so that the server is available
+        ServiceContainer.setNetworkPolicy(new NetworkPolicy(null));
 
         settings = Mockito.mock(SettingsManager.class);
         Mockito.when(settings.getLocation()).thenReturn(loc);
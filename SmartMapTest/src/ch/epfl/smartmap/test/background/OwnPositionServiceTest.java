@@ -10,6 +10,7 @@ import android.util.Log;
 import ch.epfl.smartmap.background.OwnPositionService;
 import ch.epfl.smartmap.background.ServiceContainer;
 import ch.epfl.smartmap.background.SettingsManager;
+import ch.epfl.smartmap.servercom.NetworkPolicy;
 import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
 import ch.epfl.smartmap.servercom.SmartMapClient;
 
@@ -32,6 +33,8 @@ public class OwnPositionServiceTest extends ServiceTestCase<OwnPositionService>
 
         SmartMapClient client = Mockito.mock(NetworkSmartMapClient.class);
         ServiceContainer.setNetworkClient(client);
+        // A fresh policy, so that the server is available
+        ServiceContainer.setNetworkPolicy(new NetworkPolicy(null));
     }
 
     @Test
@@ -12,14 +12,20 @@ import static ch.epfl.smartmap.test.database.MockContainers.ROBIN_FRIEND_INVITAT
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -27,7 +33,12 @@ import android.test.AndroidTestCase;
 import ch.epfl.smartmap.background.ServiceContainer;
 import ch.epfl.smartmap.background.SettingsManager;
 import ch.epfl.smartmap.cache.Cache;
+import ch.epfl.smartmap.cache.CacheDelta;
+import ch.epfl.smartmap.cache.CacheSnapshot;
+import ch.epfl.smartmap.cache.EventContainer;
 import ch.epfl.smartmap.cache.Filter;
+import ch.epfl.smartmap.cache.FilterContainer;
+import ch.epfl.smartmap.cache.ImageStore;
 import ch.epfl.smartmap.cache.Invitation;
 import ch.epfl.smartmap.cache.InvitationContainer;
 import ch.epfl.smartmap.cache.User;
@@ -82,6 +93,19 @@ public class CacheTest extends AndroidTestCase {
 		Mockito.doReturn(ALAIN_CONTAINER).when(clientForUsers).getUserInfo(ALAIN_CONTAINER.getId());
 		Mockito.doReturn(JULIEN_CONTAINER).when(clientForUsers).getUserInfo(JULIEN_CONTAINER.getId());
 		Mockito.doReturn(ROBIN_CONTAINER).when(clientForUsers).getUserInfo(ROBIN_CONTAINER.getId());
+		Mockito.doAnswer(new Answer<List<UserContainer>>() {
+			@Override
+			public List<UserContainer> answer(InvocationOnMock invocation) {
+				Collection<?> ids = (Collection<?>) invocation.getArguments()[0];
+				List<UserContainer> users = new ArrayList<UserContainer>();
+				for (UserContainer user : Arrays.asList(ALAIN_CONTAINER, JULIEN_CONTAINER, ROBIN_CONTAINER)) {
+					if (ids.contains(user.getId())) {
+						users.add(user);
+					}
+				}
+				return users;
+			}
+		}).when(clientForUsers).getUsersInfo(Mockito.anyCollectionOf(Long.class));
 		Mockito
 		.doReturn(
 				Arrays.asList(UserContainer.newEmptyContainer().setLocation(ALAIN_CONTAINER.getLocation())
@@ -90,6 +114,9 @@ public class CacheTest extends AndroidTestCase {
 		// Return own profile picture (otherwise NullPointers)
 		Mockito.doReturn(Bitmap.createBitmap(1, 2, Config.ALPHA_8)).when(clientForUsers)
 		.getProfilePicture(JULIEN_CONTAINER.getId());
+		Mockito.doReturn(
+			Collections.singletonMap(JULIEN_CONTAINER.getId(), Bitmap.createBitmap(1, 2, Config.ALPHA_8)))
+		.when(clientForUsers).getProfilePictures(Mockito.anyCollectionOf(Long.class));
 		// Return no events
 		Mockito.doReturn(new ArrayList<Long>()).when(clientForUsers)
 		.getPublicEvents(Mockito.anyLong(), Mockito.anyLong(), Mockito.anyLong());
@@ -108,6 +135,8 @@ public class CacheTest extends AndroidTestCase {
 		Mockito.doReturn(POLYLAN_CONTAINER).when(clientForEvents).getEventInfo(POLYLAN_CONTAINER.getId());
 		Mockito.doReturn(FOOTBALL_TOURNAMENT_CONTAINER).when(clientForEvents)
 		.getEventInfo(FOOTBALL_TOURNAMENT_CONTAINER.getId());
+		Mockito.doReturn(Arrays.asList(POLYLAN_CONTAINER, FOOTBALL_TOURNAMENT_CONTAINER)).when(clientForEvents)
+		.getEventsInfo(Mockito.anyCollectionOf(Long.class));
 
 		// DATABASE FOR USERS ONLY
 		databaseForUsers = Mockito.mock(DatabaseHelper.class);
@@ -170,6 +199,74 @@ public class CacheTest extends AndroidTestCase {
 		Thread.sleep(500);
 	}
 
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	@Test
+	public void testFlushToDatabaseGivesRemovedIds() {
+		DatabaseHelper database = Mockito.mock(DatabaseHelper.class);
+		ServiceContainer.setDatabaseHelper(database);
+		// The writer keeps the database in use when the Cache is created
+		cache = new Cache();
+		cache.putFilter(FAMILY_CONTAINER);
+		cache.flushToDatabase();
+		cache.removeFilter(FAMILY_CONTAINER.getId());
+		cache.flushToDatabase();
+
+		ArgumentCaptor<Collection> filters = ArgumentCaptor.forClass(Collection.class);
+		ArgumentCaptor<Collection> removedFilterIds = ArgumentCaptor.forClass(Collection.class);
+		Mockito.verify(database, Mockito.times(2)).storeChanges(Mockito.anyCollectionOf(UserContainer.class),
+				Mockito.anyCollectionOf(EventContainer.class), filters.capture(),
+				Mockito.anyCollectionOf(InvitationContainer.class), Mockito.anyCollectionOf(Long.class),
+				Mockito.anyCollectionOf(Long.class), removedFilterIds.capture(), Mockito.anyCollectionOf(Long.class));
+		assertEquals(1, filters.getAllValues().get(0).size());
+		assertTrue(removedFilterIds.getAllValues().get(0).isEmpty());
+		assertTrue(filters.getAllValues().get(1).isEmpty());
+		assertEquals(Sets.newHashSet(FAMILY_CONTAINER.getId()),
+				Sets.newHashSet(removedFilterIds.getAllValues().get(1)));
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	@Test
+	public void testFlushToDatabaseWritesModifiedUserOnce() {
+		DatabaseHelper database = Mockito.mock(DatabaseHelper.class);
+		ServiceContainer.setDatabaseHelper(database);
+		cache = new Cache();
+		cache.flushToDatabase();
+		Mockito.reset(database);
+		cache.putUser(ALAIN_CONTAINER);
+		cache.putUser(cache.getUser(ALAIN_CONTAINER.getId()).getContainerCopy().setName("Robert"));
+		cache.flushToDatabase();
+
+		ArgumentCaptor<Collection> users = ArgumentCaptor.forClass(Collection.class);
+		Mockito.verify(database).storeChanges(users.capture(), Mockito.anyCollectionOf(EventContainer.class),
+				Mockito.anyCollectionOf(FilterContainer.class), Mockito.anyCollectionOf(InvitationContainer.class),
+				Mockito.anyCollectionOf(Long.class), Mockito.anyCollectionOf(Long.class),
+				Mockito.anyCollectionOf(Long.class), Mockito.anyCollectionOf(Long.class));
+		assertEquals(1, users.getValue().size());
+		assertEquals("Robert", ((UserContainer) users.getValue().iterator().next()).getName());
+
+		// Nothing left to write
+		cache.flushToDatabase();
+		Mockito.verifyNoMoreInteractions(database);
+	}
+
+	@Test
+	public void testFlushToDatabaseInBackgroundDoesNotWaitForTheDelay() throws InterruptedException {
+		DatabaseHelper database = Mockito.mock(DatabaseHelper.class);
+		ServiceContainer.setDatabaseHelper(database);
+		cache = new Cache();
+		cache.putFilter(FAMILY_CONTAINER);
+		cache.flushToDatabaseInBackground();
+
+		// Well under the delay of the writer
+		Thread.sleep(500);
+
+		Mockito.verify(database).storeChanges(Mockito.anyCollectionOf(UserContainer.class),
+				Mockito.anyCollectionOf(EventContainer.class), Mockito.anyCollectionOf(FilterContainer.class),
+				Mockito.anyCollectionOf(InvitationContainer.class), Mockito.anyCollectionOf(Long.class),
+				Mockito.anyCollectionOf(Long.class), Mockito.anyCollectionOf(Long.class),
+				Mockito.anyCollectionOf(Long.class));
+	}
+
 	@Test
 	public void testGetExistingEventsReturnSetWithOnlyValidEvents() {
 		cache.putEvent(POLYLAN_CONTAINER);
@@ -198,6 +295,15 @@ public class CacheTest extends AndroidTestCase {
 		assertEquals(1, cache.getUsers(Sets.newHashSet(JULIEN_CONTAINER.getId(), User.NO_ID)).size());
 	}
 
+	@Test
+	public void testGetMyEventsFollowsPutAndRemove() {
+		cache.putEvents(Sets.newHashSet(POLYLAN_CONTAINER, FOOTBALL_TOURNAMENT_CONTAINER));
+		assertEquals(Sets.newHashSet(cache.getEvent(POLYLAN_CONTAINER.getId())), cache.getMyEvents());
+
+		cache.removeEvent(POLYLAN_CONTAINER.getId());
+		assertTrue(cache.getMyEvents().isEmpty());
+	}
+
 	@Test
 	public void testGetNonExistingEventReturnsNull() {
 		assertNull(cache.getEvent(3));
@@ -286,6 +392,20 @@ public class CacheTest extends AndroidTestCase {
 		assertNotNull(cache.getEvent(POLYLAN_CONTAINER.getId()));
 	}
 
+	@Test
+	public void testPutEventGivesAddedIdInDelta() {
+		CacheListener listener = Mockito.mock(OnCacheListener.class);
+		cache.addOnCacheListener(listener);
+		cache.putEvent(POLYLAN_CONTAINER);
+
+		ArgumentCaptor<CacheDelta> delta = ArgumentCaptor.forClass(CacheDelta.class);
+		Mockito.verify(listener).onCacheUpdate(delta.capture());
+		assertEquals(Sets.newHashSet(POLYLAN_CONTAINER.getId()), delta.getValue().getEventChanges()
+				.getAddedIds());
+		assertTrue(delta.getValue().getEventChanges().getModifiedIds().isEmpty());
+		assertTrue(delta.getValue().getEventChanges().getRemovedIds().isEmpty());
+	}
+
 	@Test
 	public void testPutEventOnlyCallListenersWhenNeeded() {
 		CacheListener listener = Mockito.mock(OnCacheListener.class);
@@ -385,6 +505,33 @@ public class CacheTest extends AndroidTestCase {
 		assertNotNull(cache.getUser(ALAIN_CONTAINER.getId()));
 	}
 
+	@Test
+	public void testPutUserNotifiesListenersWithoutWriteLock() throws InterruptedException {
+		final User[] readByOtherThread = new User[1];
+		CacheListener listener = Mockito.mock(OnCacheListener.class);
+		Mockito.doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws InterruptedException {
+				// Would wait forever if the write lock was still held
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						readByOtherThread[0] = cache.getUser(ROBIN_CONTAINER.getId());
+					}
+				});
+				reader.start();
+				reader.join(1000);
+				return null;
+			}
+		}).when(listener).onUserListUpdate();
+		cache.addOnCacheListener(listener);
+
+		cache.putUser(ROBIN_CONTAINER);
+
+		Mockito.verify(listener).onUserListUpdate();
+		assertNotNull(readByOtherThread[0]);
+	}
+
 	@Test
 	public void testPutUserOnlyCallListenersWhenNeeded() {
 		CacheListener listener = Mockito.mock(OnCacheListener.class);
@@ -402,6 +549,69 @@ public class CacheTest extends AndroidTestCase {
 		assertEquals(cache.getUser(ALAIN_CONTAINER.getId()).getName(), "Robert");
 	}
 
+	@Test
+	public void testPutUserWithExistingUserGivesChangedFieldsInDelta() {
+		cache.putUser(ALAIN_CONTAINER);
+		CacheListener listener = Mockito.mock(OnCacheListener.class);
+		cache.addOnCacheListener(listener);
+		cache.putUser(cache.getUser(ALAIN_CONTAINER.getId()).getContainerCopy().setName("Robert"));
+
+		ArgumentCaptor<CacheDelta> delta = ArgumentCaptor.forClass(CacheDelta.class);
+		Mockito.verify(listener).onCacheUpdate(delta.capture());
+		CacheDelta.ChangeSet changes = delta.getValue().getUserChanges();
+		assertEquals(Sets.newHashSet(ALAIN_CONTAINER.getId()), changes.getModifiedIds());
+		assertTrue(changes.hasChanged(ALAIN_CONTAINER.getId(), CacheDelta.NAME));
+		assertFalse(changes.hasChanged(ALAIN_CONTAINER.getId(), CacheDelta.LOCATION));
+	}
+
+	@Test
+	public void testPutUserWithNewTypeKeepsItsPicture() {
+		cache.putUser(ROBIN_CONTAINER);
+		ImageStore.Handle picture = ServiceContainer.getImageStore().get(ROBIN_CONTAINER.getId());
+		// As received from the network, without picture
+		cache.putUser(new UserContainer(ROBIN_CONTAINER.getId(), ROBIN_CONTAINER.getName(), ROBIN_CONTAINER
+				.getPhoneNumber(), ROBIN_CONTAINER.getEmail(), ROBIN_CONTAINER.getLocation(), ROBIN_CONTAINER
+				.getLocationString(), null, User.BlockStatus.UNBLOCKED, User.FRIEND));
+		assertEquals(User.FRIEND, cache.getUser(ROBIN_CONTAINER.getId()).getFriendship());
+		assertSame(picture, ServiceContainer.getImageStore().get(ROBIN_CONTAINER.getId()));
+	}
+
+	@Test
+	public void testRemoveEventGivesRemovedIdInDelta() {
+		cache.putEvent(POLYLAN_CONTAINER);
+		CacheListener listener = Mockito.mock(OnCacheListener.class);
+		cache.addOnCacheListener(listener);
+		cache.removeEvent(POLYLAN_CONTAINER.getId());
+
+		ArgumentCaptor<CacheDelta> delta = ArgumentCaptor.forClass(CacheDelta.class);
+		Mockito.verify(listener).onEventListUpdate();
+		Mockito.verify(listener).onCacheUpdate(delta.capture());
+		assertEquals(Sets.newHashSet(POLYLAN_CONTAINER.getId()), delta.getValue().getEventChanges()
+				.getRemovedIds());
+		assertTrue(delta.getValue().getUserChanges().isEmpty());
+	}
+
+	@Test
+	public void testRemoveUsersForgetsTheirPicture() {
+		cache.putUser(ROBIN_CONTAINER);
+		assertNotNull(ServiceContainer.getImageStore().get(ROBIN_CONTAINER.getId()));
+		cache.removeUsers(Sets.newHashSet(ROBIN_CONTAINER.getId()));
+		assertNull(ServiceContainer.getImageStore().get(ROBIN_CONTAINER.getId()));
+	}
+
+	@Test
+	public void testSnapshotIsSharedUntilNextModification() {
+		CacheSnapshot snapshot = cache.getSnapshot();
+		assertSame(snapshot, cache.getSnapshot());
+		assertEquals(cache.getGeneration(), snapshot.getGeneration());
+
+		cache.putEvent(POLYLAN_CONTAINER);
+		CacheSnapshot newSnapshot = cache.getSnapshot();
+		assertTrue(newSnapshot.getGeneration() > snapshot.getGeneration());
+		assertTrue(newSnapshot.getAllEvents().contains(cache.getEvent(POLYLAN_CONTAINER.getId())));
+		assertFalse(snapshot.getAllEvents().contains(cache.getEvent(POLYLAN_CONTAINER.getId())));
+	}
+
 	@Test
 	public void testUpdateFromNetworkWithCorrectUsers() throws SmartMapClientException {
 		ServiceContainer.setNetworkClient(clientForUsers);
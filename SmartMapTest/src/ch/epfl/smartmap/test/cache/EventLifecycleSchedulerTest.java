@@ -0,0 +1,97 @@
+package ch.epfl.smartmap.test.cache;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import ch.epfl.smartmap.cache.EventLifecycleScheduler;
+
+import com.google.common.collect.Sets;
+
+public class EventLifecycleSchedulerTest extends TestCase {
+
+	private static final long RETENTION = 100;
+	private static final long TIMEOUT = 2000;
+
+	private final Set<Long> startedIds = new HashSet<Long>();
+	private final Set<Long> endedIds = new HashSet<Long>();
+	private final Set<Long> expiredIds = new HashSet<Long>();
+
+	private CountDownLatch expiry;
+	private EventLifecycleScheduler scheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		expiry = new CountDownLatch(1);
+		scheduler = new EventLifecycleScheduler(new EventLifecycleScheduler.LifecycleListener() {
+			@Override
+			public void onLifecycleUpdate(Set<Long> started, Set<Long> ended, Set<Long> expired) {
+				synchronized (EventLifecycleSchedulerTest.this) {
+					startedIds.addAll(started);
+					endedIds.addAll(ended);
+					expiredIds.addAll(expired);
+				}
+				if (!expired.isEmpty()) {
+					expiry.countDown();
+				}
+			}
+		}, RETENTION);
+	}
+
+	@Test
+	public void testCancelledEventIsNotNotified() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		scheduler.schedule(1, now + 50, now + 100);
+		scheduler.cancel(1);
+		assertFalse(expiry.await(400, TimeUnit.MILLISECONDS));
+		synchronized (this) {
+			assertTrue(startedIds.isEmpty());
+			assertTrue(endedIds.isEmpty());
+		}
+	}
+
+	@Test
+	public void testEventStartsEndsAndExpires() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		scheduler.schedule(1, now + 50, now + 250);
+		assertTrue(scheduler.isScheduled(1));
+		assertTrue(expiry.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		synchronized (this) {
+			assertEquals(Sets.newHashSet(1L), startedIds);
+			assertEquals(Sets.newHashSet(1L), endedIds);
+			assertEquals(Sets.newHashSet(1L), expiredIds);
+		}
+		assertFalse(scheduler.isScheduled(1));
+	}
+
+	@Test
+	public void testPastEventOnlyExpires() throws InterruptedException {
+		scheduler.schedule(1, 0, 10);
+		assertTrue(expiry.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		synchronized (this) {
+			assertTrue(startedIds.isEmpty());
+			assertTrue(endedIds.isEmpty());
+			assertEquals(Sets.newHashSet(1L), expiredIds);
+		}
+	}
+
+	@Test
+	public void testRescheduledEventUsesNewDates() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		scheduler.schedule(1, now + 50, now + 100);
+		scheduler.schedule(1, now + 5000, now + 6000);
+		assertFalse(expiry.await(400, TimeUnit.MILLISECONDS));
+		synchronized (this) {
+			assertTrue(startedIds.isEmpty());
+		}
+		assertEquals(1, scheduler.size());
+		scheduler.clear();
+		assertEquals(0, scheduler.size());
+	}
+}
@@ -0,0 +1,121 @@
+package ch.epfl.smartmap.test.cache;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import ch.epfl.smartmap.cache.LongSet;
+
+import com.google.common.collect.Sets;
+
+public class LongSetTest extends TestCase {
+
+	@Test
+	public void testAddContainsRemove() {
+		LongSet set = new LongSet();
+		assertTrue(set.add(3));
+		assertFalse(set.add(3));
+		assertTrue(set.contains(3));
+		assertFalse(set.contains(4));
+		assertTrue(set.remove(3));
+		assertFalse(set.remove(3));
+		assertTrue(set.isEmpty());
+	}
+
+	@Test
+	public void testBehavesLikeHashSet() {
+		Random random = new Random(42);
+		LongSet set = new LongSet();
+		Set<Long> expected = new HashSet<Long>();
+		for (int i = 0; i < 20000; i++) {
+			// Small range so that removals often hit existing ids
+			long id = random.nextInt(500) - 10;
+			if (random.nextBoolean()) {
+				assertEquals(expected.add(id), set.add(id));
+			} else {
+				assertEquals(expected.remove(id), set.remove(id));
+			}
+			assertEquals(expected.size(), set.size());
+		}
+		assertEquals(expected, set);
+		assertEquals(set, expected);
+		assertEquals(expected.hashCode(), set.hashCode());
+	}
+
+	@Test
+	public void testBulkOperations() {
+		LongSet set = new LongSet(Sets.newHashSet(1L, 2L, 3L, 4L));
+		set.removeAll(Sets.newHashSet(1L, 5L));
+		assertEquals(Sets.newHashSet(2L, 3L, 4L), set);
+		set.retainAll(Sets.newHashSet(3L, 4L, 6L));
+		assertEquals(Sets.newHashSet(3L, 4L), set);
+		assertEquals(set, new LongSet(set));
+		assertEquals(2, set.toLongArray().length);
+	}
+
+	@Test
+	public void testExtremeValues() {
+		LongSet set = new LongSet();
+		set.add(Long.MIN_VALUE);
+		set.add(Long.MAX_VALUE);
+		set.add(0);
+		assertEquals(Sets.newHashSet(Long.MIN_VALUE, Long.MAX_VALUE, 0L), set);
+		assertTrue(set.remove(Long.MIN_VALUE));
+		assertFalse(set.contains(Long.MIN_VALUE));
+		assertEquals(2, set.size());
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		Random random = new Random(42);
+		LongSet set = new LongSet();
+		Set<Long> expected = new HashSet<Long>();
+		set.add(Long.MIN_VALUE);
+		for (int i = 0; i < 5000; i++) {
+			// Small range so that clusters are long
+			set.add((long) random.nextInt(20000));
+		}
+		Set<Long> visited = new HashSet<Long>();
+		Iterator<Long> iterator = set.iterator();
+		while (iterator.hasNext()) {
+			long id = iterator.next();
+			// Each id is returned exactly once, even when removals move ids back
+			assertTrue(visited.add(id));
+			if ((id % 3) == 0) {
+				iterator.remove();
+			} else {
+				expected.add(id);
+			}
+		}
+		assertEquals(expected, set);
+		for (long id : visited) {
+			assertEquals(expected.contains(id), set.contains(id));
+		}
+	}
+
+	@Test
+	public void testIteratorRemoveNeedsNext() {
+		LongSet set = new LongSet(Sets.newHashSet(1L));
+		Iterator<Long> iterator = set.iterator();
+		try {
+			iterator.remove();
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		iterator.next();
+		iterator.remove();
+		try {
+			iterator.remove();
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertTrue(set.isEmpty());
+	}
+}
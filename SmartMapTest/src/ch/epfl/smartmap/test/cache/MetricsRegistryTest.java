@@ -0,0 +1,83 @@
+package ch.epfl.smartmap.test.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import ch.epfl.smartmap.cache.MetricsRegistry;
+
+public class MetricsRegistryTest extends TestCase {
+
+	private MetricsRegistry metrics;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		metrics = new MetricsRegistry();
+	}
+
+	@Test
+	public void testCounterIsSharedByName() {
+		metrics.counter("hits").increment();
+		metrics.counter("hits").increment(2);
+		assertSame(metrics.counter("hits"), metrics.counter("hits"));
+		assertEquals(3, metrics.counter("hits").getCount());
+	}
+
+	@Test
+	public void testDisabledRegistryRecordsNothing() {
+		metrics.setEnabled(false);
+		metrics.counter("hits").increment();
+		metrics.histogram("sizes").record(5);
+		MetricsRegistry.Timer timer = metrics.timer("time");
+		timer.stop(timer.start());
+		assertEquals(0, metrics.counter("hits").getCount());
+		assertEquals(0, metrics.histogram("sizes").getCount());
+		assertEquals(0, timer.getDurations().getCount());
+	}
+
+	@Test
+	public void testDumpListsAllMetricsSortedByName() {
+		metrics.timer("b").record(3, TimeUnit.MILLISECONDS);
+		metrics.counter("a").increment();
+		metrics.histogram("c").record(1);
+		String dump = metrics.dump();
+		assertTrue(dump.startsWith("a count=1\nb "));
+		assertTrue(dump.contains("\nc count=1"));
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		MetricsRegistry.Histogram histogram = metrics.histogram("sizes");
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(100, histogram.getMax());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		// Precise up to a factor of two
+		assertTrue((histogram.getPercentile(50) >= 50) && (histogram.getPercentile(50) < 100));
+		assertEquals(100, histogram.getPercentile(100));
+		assertEquals(0, metrics.histogram("empty").getPercentile(99));
+	}
+
+	@Test
+	public void testResetClearsValues() {
+		metrics.counter("hits").increment();
+		metrics.timer("time").record(1, TimeUnit.SECONDS);
+		metrics.reset();
+		assertEquals(0, metrics.counter("hits").getCount());
+		assertEquals(0, metrics.timer("time").getDurations().getMax());
+	}
+
+	@Test
+	public void testTimerIgnoresShortDurationsWhenAsked() {
+		MetricsRegistry.Timer timer = metrics.timer("wait");
+		timer.stop(timer.start(), TimeUnit.SECONDS.toNanos(10));
+		assertEquals(0, timer.getDurations().getCount());
+		timer.stop(timer.start(), 0);
+		assertEquals(1, timer.getDurations().getCount());
+	}
+}
@@ -0,0 +1,137 @@
+package ch.epfl.smartmap.test.cache;
+
+import static ch.epfl.smartmap.test.database.MockContainers.JULIEN_CONTAINER;
+import static ch.epfl.smartmap.test.database.MockContainers.POLYLAN_DESCRIPTION;
+import static ch.epfl.smartmap.test.database.MockContainers.POLYLAN_END_DATE;
+import static ch.epfl.smartmap.test.database.MockContainers.POLYLAN_LOCATION;
+import static ch.epfl.smartmap.test.database.MockContainers.POLYLAN_LOCATION_STRING;
+import static ch.epfl.smartmap.test.database.MockContainers.POLYLAN_NAME;
+import static ch.epfl.smartmap.test.database.MockContainers.POLYLAN_START_DATE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.background.SettingsManager;
+import ch.epfl.smartmap.cache.Cache;
+import ch.epfl.smartmap.cache.Event;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.callbacks.NetworkRequestCallback;
+import ch.epfl.smartmap.database.DatabaseHelper;
+import ch.epfl.smartmap.servercom.Mutation;
+import ch.epfl.smartmap.servercom.SmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Tests that the mutations recorded by the {@link Cache} while offline survive a restart
+ *
+ * @author jfperren
+ */
+public class MutationQueueTest extends AndroidTestCase {
+
+    private static final long SELF_ID = 8;
+    private static final long CREATED_ID = 7;
+
+    private DatabaseHelper mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ServiceContainer.forceInitSmartMapServices(this.getContext());
+
+        SettingsManager settings = Mockito.mock(SettingsManager.class);
+        Mockito.when(settings.getUserId()).thenReturn(SELF_ID);
+        // Changes are queued, and not replayed in the background
+        Mockito.when(settings.isOffline()).thenReturn(true);
+        ServiceContainer.setSettingsManager(settings);
+
+        // To avoid erasing the actual database
+        mDatabase = new DatabaseHelper(new RenamingDelegatingContext(this.getContext(), "test_"));
+        mDatabase.clearAll();
+        ServiceContainer.setDatabaseHelper(mDatabase);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.clearAll();
+        super.tearDown();
+    }
+
+    @Test
+    public void testChangeOfCreatedEventIsSentAfterRestart() throws SmartMapClientException {
+        Cache cache = new Cache();
+        ServiceContainer.setCache(cache);
+        final List<Event> created = new ArrayList<Event>();
+        cache.createEvent(new EventContainer(Event.NO_ID, POLYLAN_NAME, JULIEN_CONTAINER, POLYLAN_DESCRIPTION,
+            POLYLAN_START_DATE, POLYLAN_END_DATE, POLYLAN_LOCATION, POLYLAN_LOCATION_STRING,
+            new HashSet<Long>()), new NetworkRequestCallback<Event>() {
+            @Override
+            public void onFailure(Exception e) {
+                fail();
+            }
+
+            @Override
+            public void onSuccess(Event result) {
+                created.add(result);
+            }
+        });
+        cache.addParticipantsToEvent(Collections.singleton(SELF_ID), created.get(0), null);
+
+        // The creation is processed, then the connection is lost before the join is sent
+        SmartMapClient failingClient = Mockito.mock(SmartMapClient.class);
+        Mockito.when(failingClient.replayMutations(Mockito.anyListOf(Mutation.class))).thenAnswer(
+            new Answer<List<Mutation.Result>>() {
+                @Override
+                public List<Mutation.Result> answer(InvocationOnMock invocation) throws Throwable {
+                    @SuppressWarnings("unchecked")
+                    List<Mutation> batch = (List<Mutation>) invocation.getArguments()[0];
+                    if (batch.get(0).getType() != Mutation.Type.CREATE_EVENT) {
+                        throw new SmartMapClientException("Connection lost");
+                    }
+                    return Collections.singletonList(new Mutation.Result(batch.get(0).getKey(), "Ok",
+                        "Created event.", CREATED_ID));
+                }
+            });
+        try {
+            cache.replayMutations(failingClient);
+            fail();
+        } catch (SmartMapClientException e) {
+            // Expected
+        }
+
+        // A new Cache reads the log from the database, as after a restart
+        cache = new Cache();
+        ServiceContainer.setCache(cache);
+        final List<Mutation> sent = new ArrayList<Mutation>();
+        SmartMapClient client = Mockito.mock(SmartMapClient.class);
+        Mockito.when(client.replayMutations(Mockito.anyListOf(Mutation.class))).thenAnswer(
+            new Answer<List<Mutation.Result>>() {
+                @Override
+                public List<Mutation.Result> answer(InvocationOnMock invocation) throws Throwable {
+                    @SuppressWarnings("unchecked")
+                    List<Mutation> batch = (List<Mutation>) invocation.getArguments()[0];
+                    List<Mutation.Result> results = new ArrayList<Mutation.Result>();
+                    for (Mutation mutation : batch) {
+                        sent.add(mutation);
+                        results.add(new Mutation.Result(mutation.getKey(), "Ok", "Done.", Mutation.NO_ID));
+                    }
+                    return results;
+                }
+            });
+
+        assertEquals(1, cache.replayMutations(client));
+        assertEquals(1, sent.size());
+        assertEquals(Mutation.Type.JOIN_EVENT, sent.get(0).getType());
+        assertEquals(CREATED_ID, sent.get(0).getTargetId());
+        assertEquals(String.valueOf(CREATED_ID), sent.get(0).getParams().get("event_id"));
+    }
+}
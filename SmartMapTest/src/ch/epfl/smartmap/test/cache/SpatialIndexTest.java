@@ -0,0 +1,110 @@
+package ch.epfl.smartmap.test.cache;
+
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import ch.epfl.smartmap.cache.SpatialIndex;
+
+import com.google.common.collect.Sets;
+
+public class SpatialIndexTest extends TestCase {
+
+	// EPFL, Lausanne
+	private static final double EPFL_LAT = 46.519056;
+	private static final double EPFL_LNG = 6.566758;
+	// Lausanne train station, roughly 4.5km away from EPFL
+	private static final double STATION_LAT = 46.516793;
+	private static final double STATION_LNG = 6.629112;
+	// Geneva, roughly 50km away from EPFL
+	private static final double GENEVA_LAT = 46.204391;
+	private static final double GENEVA_LNG = 6.143158;
+
+	private SpatialIndex index;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		index = new SpatialIndex();
+		index.put(1, EPFL_LAT, EPFL_LNG);
+		index.put(2, STATION_LAT, STATION_LNG);
+		index.put(3, GENEVA_LAT, GENEVA_LNG);
+	}
+
+	@Test
+	public void testAcrossAntimeridian() {
+		index.put(4, 0, 179.99);
+		index.put(5, 0, -179.99);
+		Set<Long> ids = index.getIdsInBounds(-1, 179, 1, -179);
+		assertEquals(Sets.newHashSet(4L, 5L), ids);
+		assertEquals(Sets.newHashSet(4L, 5L), index.getIdsWithin(0, 180, 5000));
+	}
+
+	@Test
+	public void testDistance() {
+		double distance = SpatialIndex.distance(EPFL_LAT, EPFL_LNG, STATION_LAT, STATION_LNG);
+		assertTrue((distance > 4700) && (distance < 4800));
+		assertEquals(0.0, SpatialIndex.distance(EPFL_LAT, EPFL_LNG, EPFL_LAT, EPFL_LNG));
+	}
+
+	@Test
+	public void testCellRangesContainCellsWithin() {
+		List<long[]> ranges = index.getCellRangesWithin(EPFL_LAT, EPFL_LNG, 10000);
+		assertTrue(isInRanges(index.getCell(EPFL_LAT, EPFL_LNG), ranges));
+		assertTrue(isInRanges(index.getCell(STATION_LAT, STATION_LNG), ranges));
+		assertFalse(isInRanges(index.getCell(GENEVA_LAT, GENEVA_LNG), ranges));
+		for (int i = 1; i < ranges.size(); i++) {
+			assertTrue(ranges.get(i - 1)[1] < ranges.get(i)[0]);
+		}
+	}
+
+	@Test
+	public void testCellRangesAcrossAntimeridian() {
+		List<long[]> ranges = index.getCellRangesWithin(0, 180, 5000);
+		assertTrue(isInRanges(index.getCell(0, 179.99), ranges));
+		assertTrue(isInRanges(index.getCell(0, -179.99), ranges));
+		assertFalse(isInRanges(index.getCell(0, 0), ranges));
+	}
+
+	@Test
+	public void testGetIdsInBounds() {
+		Set<Long> ids = index.getIdsInBounds(46.4, 6.5, 46.6, 6.7);
+		assertEquals(Sets.newHashSet(1L, 2L), ids);
+		assertTrue(index.getIdsInBounds(0, 0, 1, 1).isEmpty());
+	}
+
+	@Test
+	public void testGetIdsWithin() {
+		assertEquals(Sets.newHashSet(1L), index.getIdsWithin(EPFL_LAT, EPFL_LNG, 1000));
+		assertEquals(Sets.newHashSet(1L, 2L), index.getIdsWithin(EPFL_LAT, EPFL_LNG, 10000));
+		assertEquals(Sets.newHashSet(1L, 2L, 3L), index.getIdsWithin(EPFL_LAT, EPFL_LNG, 100000));
+		// The whole earth
+		assertEquals(3, index.getIdsWithin(EPFL_LAT, EPFL_LNG, 41000000).size());
+	}
+
+	@Test
+	public void testMoveAndRemove() {
+		index.put(1, GENEVA_LAT, GENEVA_LNG);
+		assertEquals(3, index.size());
+		assertEquals(Sets.newHashSet(1L, 3L), index.getIdsWithin(GENEVA_LAT, GENEVA_LNG, 1000));
+
+		index.remove(3);
+		assertFalse(index.contains(3));
+		assertEquals(Sets.newHashSet(1L), index.getIdsWithin(GENEVA_LAT, GENEVA_LNG, 1000));
+
+		index.clear();
+		assertEquals(0, index.size());
+	}
+
+	private static boolean isInRanges(long cell, List<long[]> ranges) {
+		for (long[] range : ranges) {
+			if ((cell >= range[0]) && (cell <= range[1])) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
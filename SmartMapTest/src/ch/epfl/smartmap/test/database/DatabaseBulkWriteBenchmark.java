@@ -0,0 +1,123 @@
+package ch.epfl.smartmap.test.database;
+
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.background.SettingsManager;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.FilterContainer;
+import ch.epfl.smartmap.cache.ImageStore;
+import ch.epfl.smartmap.cache.InvitationContainer;
+import ch.epfl.smartmap.cache.User;
+import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.database.DatabaseHelper;
+
+/**
+ * Compares the time needed to store 1000 friends and 5000 events row by row with the add methods, as
+ * {@code updateFromCache} did before, and with {@code storeAll}. Results are written to the log.
+ *
+ * @author jfperren
+ */
+public class DatabaseBulkWriteBenchmark extends AndroidTestCase {
+
+    private static final String TAG = DatabaseBulkWriteBenchmark.class.getSimpleName();
+
+    private static final int FRIENDS = 1000;
+    private static final int EVENTS = 5000;
+    private static final int PARTICIPANTS = 5;
+    private static final int PICTURE_SIZE = 64;
+
+    private DatabaseHelper mDatabase;
+    private List<UserContainer> mFriends;
+    private List<EventContainer> mEvents;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        SettingsManager manager = Mockito.mock(SettingsManager.class);
+        Mockito.when(manager.getUserId()).thenReturn((long) 8);
+        Mockito.when(manager.getContext()).thenReturn(this.getContext());
+        ServiceContainer.setSettingsManager(manager);
+        ServiceContainer.setImageStore(new ImageStore());
+
+        mDatabase = new DatabaseHelper(new RenamingDelegatingContext(this.getContext(), "benchmark_"));
+        mDatabase.clearAll();
+
+        mFriends = new ArrayList<UserContainer>();
+        for (int i = 1; i <= FRIENDS; i++) {
+            Location location = new Location("benchmark");
+            location.setLatitude(46 + ((i % 100) / 100.0));
+            location.setLongitude(6.56);
+            mFriends.add(new UserContainer(i, "Friend " + i, "0210000000", "friend" + i + "@epfl.ch",
+                location, "Lausanne", null, User.BlockStatus.UNBLOCKED, User.FRIEND));
+
+            Bitmap picture = Bitmap.createBitmap(PICTURE_SIZE, PICTURE_SIZE, Bitmap.Config.ARGB_8888);
+            picture.eraseColor(0xFF000000 | i);
+            ServiceContainer.getImageStore().put(i, picture);
+        }
+
+        mEvents = new ArrayList<EventContainer>();
+        for (int i = 1; i <= EVENTS; i++) {
+            Set<Long> participants = new HashSet<Long>();
+            for (int j = 0; j < PARTICIPANTS; j++) {
+                participants.add((long) (((i + j) % FRIENDS) + 1));
+            }
+            Location location = new Location("benchmark");
+            location.setLatitude(46.52);
+            location.setLongitude(6.56);
+            mEvents.add(new EventContainer(i, "Event " + i, mFriends.get(i % FRIENDS), "Description " + i,
+                new GregorianCalendar(), new GregorianCalendar(), location, "Lausanne", participants));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.clearAll();
+        super.tearDown();
+    }
+
+    @Test
+    public void testStoreFriendsAndEvents() {
+        long start = System.nanoTime();
+        for (UserContainer friend : mFriends) {
+            mDatabase.addUser(friend);
+        }
+        for (EventContainer event : mEvents) {
+            mDatabase.addEvent(event);
+        }
+        long rowByRow = System.nanoTime() - start;
+
+        List<FilterContainer> noFilters = new ArrayList<FilterContainer>();
+        List<InvitationContainer> noInvitations = new ArrayList<InvitationContainer>();
+
+        // First time, every picture is written
+        start = System.nanoTime();
+        mDatabase.storeAll(mFriends, mEvents, noFilters, noInvitations);
+        long firstBulk = System.nanoTime() - start;
+
+        // Then, pictures did not change
+        start = System.nanoTime();
+        mDatabase.storeAll(mFriends, mEvents, noFilters, noInvitations);
+        long secondBulk = System.nanoTime() - start;
+
+        assertEquals(FRIENDS, mDatabase.getAllUsers().size());
+        assertEquals(EVENTS, mDatabase.getAllEvents().size());
+
+        Log.i(TAG, FRIENDS + " friends and " + EVENTS + " events: row by row " + (rowByRow / 1000000)
+            + "ms without pictures; bulk " + (firstBulk / 1000000) + "ms with pictures, "
+            + (secondBulk / 1000000) + "ms with unchanged pictures");
+    }
+}
@@ -9,6 +9,8 @@ import java.util.Set;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.location.Location;
@@ -19,6 +21,7 @@ import ch.epfl.smartmap.background.ServiceContainer;
 import ch.epfl.smartmap.background.SettingsManager;
 import ch.epfl.smartmap.cache.EventContainer;
 import ch.epfl.smartmap.cache.FilterContainer;
+import ch.epfl.smartmap.cache.ImageStore;
 import ch.epfl.smartmap.cache.Invitation;
 import ch.epfl.smartmap.cache.InvitationContainer;
 import ch.epfl.smartmap.cache.User;
@@ -178,6 +181,27 @@ public class DatabaseHelperTest extends AndroidTestCase {
         assertTrue(dbh.getAllEvents().size() == 2);
     }
 
+    @Test
+    public void testGetAllEventsReadsCreatorsAndParticipants() {
+        dbh.addUser(b);
+        Set<Long> participants = new HashSet<Long>();
+        participants.add(b.getId());
+        participants.add(c.getId());
+        event.setParticipantIds(participants);
+        dbh.addEvent(event);
+        dbh.addEvent(event2);
+        for (EventContainer stored : dbh.getAllEvents()) {
+            if (stored.getId() == event.getId()) {
+                assertEquals(a.getId(), stored.getCreatorContainer().getId());
+                assertEquals(participants, stored.getParticipantIds());
+            } else {
+                assertEquals(b.getName(), stored.getCreatorContainer().getName());
+                assertTrue(stored.getParticipantIds().isEmpty());
+            }
+        }
+        assertEquals(a.getId(), dbh.getEvent(event.getId()).getCreatorContainer().getId());
+    }
+
     @Test
     public void testGetAllFilters() {
         dbh.addFilter(filter);
@@ -195,6 +219,23 @@ public class DatabaseHelperTest extends AndroidTestCase {
         assertTrue((set.size() == 3) && (dbh.getUser(c.getId()).getId() == c.getId()));
     }
 
+    @Test
+    public void testGetEventsNear() {
+        Location geneva = new Location("testprovider");
+        geneva.setLatitude(46.2);
+        geneva.setLongitude(6.14);
+        event2.setLocation(geneva);
+        dbh.addEvent(event);
+        dbh.addEvent(event2);
+
+        Set<EventContainer> near = dbh.getEventsNear(loc.getLatitude(), loc.getLongitude() + 0.01, 2000);
+        assertEquals(1, near.size());
+        assertEquals(event.getId(), near.iterator().next().getId());
+        assertEquals(event2.getId(), dbh.getEventsNear(46.2, 6.14, 1000).iterator().next().getId());
+        // Covers too many cells to look them up one row at a time
+        assertEquals(2, dbh.getEventsNear(46.2, 6.14, 5000000).size());
+    }
+
     @Test
     public void testGetFiltersIds() {
         dbh.addFilter(filter);
@@ -212,11 +253,136 @@ public class DatabaseHelperTest extends AndroidTestCase {
         assertTrue((ids.size() == 1) && ids.contains(b.getId()));
     }
 
+    @Test
+    public void testGetFriendsNear() {
+        b.getLocation().setLatitude(46.52);
+        b.getLocation().setLongitude(6.57);
+        c.getLocation().setLatitude(46.2);
+        c.getLocation().setLongitude(6.14);
+        a.getLocation().setLatitude(46.52);
+        a.getLocation().setLongitude(6.57);
+        dbh.addUser(a);
+        dbh.addUser(b);
+        dbh.addUser(c);
+
+        // a is near too, but isn't a friend
+        Set<UserContainer> near = dbh.getFriendsNear(46.519, 6.567, 5000);
+        assertEquals(1, near.size());
+        assertEquals(b.getId(), near.iterator().next().getId());
+    }
+
+    @Test
+    public void testGetFriendsNearIgnoresFriendsWithoutPosition() {
+        b.getLocation().setLatitude(User.NO_LATITUDE);
+        b.getLocation().setLongitude(User.NO_LONGITUDE);
+        dbh.addUser(b);
+
+        assertTrue(dbh.getFriendsNear(User.NO_LATITUDE, User.NO_LONGITUDE, 5000).isEmpty());
+    }
+
+    @Test
+    public void testGetNonExistingFilterReturnsNull() {
+        assertNull(dbh.getFilter(filter.getId()));
+    }
+
+    @Test
+    public void testGetUserLoadsPictureLazily() {
+        ImageStore store = new ImageStore();
+        ServiceContainer.setImageStore(store);
+        Bitmap pic = Bitmap.createBitmap(300, 200, Bitmap.Config.ARGB_8888);
+        pic.eraseColor(0xFF336699);
+        dbh.addUser(b);
+        dbh.setUserPicture(pic, b.getId());
+
+        assertNull(dbh.getUser(b.getId()).getImage());
+        ImageStore.Handle handle = store.get(b.getId());
+        assertNotNull(handle);
+        // Variants come from the thumbnail, the full size picture is not decoded
+        Bitmap variant = handle.getVariant(ImageStore.MARKER_SIZE);
+        assertEquals(ImageStore.MARKER_SIZE, variant.getWidth());
+        assertEquals(0, handle.getByteCount());
+
+        Bitmap full = handle.getBitmap();
+        assertEquals(pic.getWidth(), full.getWidth());
+        assertEquals(pic.getHeight(), full.getHeight());
+    }
+
     @Test
     public void testSetUserPicture() {
         Bitmap pic = BitmapFactory.decodeResource(this.getContext().getResources(), R.drawable.ic_default_user);
         dbh.setUserPicture(pic, 0);
-        assertTrue(dbh.getPictureById(0).sameAs(pic));
+        // Stored in a lossy format, so only the dimensions are kept exactly
+        Bitmap stored = dbh.getPictureById(0);
+        assertEquals(pic.getWidth(), stored.getWidth());
+        assertEquals(pic.getHeight(), stored.getHeight());
+    }
+
+    @Test
+    public void testStoreAll() {
+        dbh.addUser(c);
+        List<UserContainer> users = new ArrayList<UserContainer>();
+        users.add(a);
+        users.add(b);
+        List<EventContainer> events = new ArrayList<EventContainer>();
+        events.add(event);
+        events.add(event2);
+        List<FilterContainer> filters = new ArrayList<FilterContainer>();
+        filters.add(filter);
+        List<InvitationContainer> invitations = new ArrayList<InvitationContainer>();
+        invitations.add(invitA);
+
+        dbh.storeAll(users, events, filters, invitations);
+
+        // Replaces previous content
+        assertNull(dbh.getUser(c.getId()));
+        assertEquals(2, dbh.getAllUsers().size());
+        assertEquals(b.getName(), dbh.getUser(b.getId()).getName());
+        assertEquals(2, dbh.getAllEvents().size());
+        assertEquals(event.getLocation().getLatitude(), dbh.getEvent(event.getId()).getLocation()
+            .getLatitude());
+        assertTrue(dbh.getFilter(filter.getId()).getIds().contains(b.getId()));
+        InvitationContainer invit = (InvitationContainer) dbh.getAllInvitations().toArray()[0];
+        assertEquals(invitA.getId(), invit.getId());
+        assertTrue(dbh.getPendingFriends().contains(a.getId()));
+    }
+
+    @Test
+    public void testUpgradeFrom12KeepsData() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE users(userID INTEGER PRIMARY KEY, name TEXT, number TEXT, email TEXT,"
+            + " longitude DOUBLE, latitude DOUBLE, posName TEXT, lastSeen INTEGER, isBlocked INTEGER,"
+            + " friendStatus INTEGER)");
+        db.execSQL("CREATE TABLE filters(id INTEGER PRIMARY KEY, name TEXT, isActive INTEGER)");
+        db.execSQL("CREATE TABLE filter_users(id INTEGER PRIMARY KEY, filterID INTEGER, userID INTEGER)");
+        db.execSQL("CREATE TABLE events(id INTEGER PRIMARY KEY, name TEXT, eventDescription TEXT,"
+            + " userID INTEGER, longitude DOUBLE, latitude DOUBLE, date INTEGER, endDate INTEGER,"
+            + " posName TEXT, countryName TEXT)");
+        db.execSQL("CREATE TABLE event_users(id INTEGER PRIMARY KEY, eventID INTEGER, userID INTEGER)");
+        db.execSQL("CREATE TABLE invitations(id INTEGER PRIMARY KEY, userID INTEGER, eventID INTEGER,"
+            + " status INTEGER, date INTEGER, type INTEGER)");
+        db.execSQL("INSERT INTO users VALUES (678, 'friend', '', '', 6.57, 46.52, '', 0, 0, " + User.FRIEND
+            + ")");
+        db.execSQL("INSERT INTO events VALUES (123, 'event', '', 678, 6.57, 46.52, 0, 0, '', '')");
+        db.execSQL("INSERT INTO event_users(eventID, userID) VALUES (123, 678)");
+        db.execSQL("INSERT INTO event_users(eventID, userID) VALUES (123, 678)");
+        // Pair of an event that was removed
+        db.execSQL("INSERT INTO event_users(eventID, userID) VALUES (999, 678)");
+
+        db.beginTransaction();
+        dbh.onUpgrade(db, 12, 13);
+        db.setTransactionSuccessful();
+        db.endTransaction();
+
+        Cursor cursor = db.rawQuery("SELECT eventID FROM event_users", null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = db.rawQuery("SELECT cell FROM users WHERE cell IS NOT NULL", null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = db.rawQuery("SELECT cell FROM events WHERE cell IS NOT NULL", null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        db.close();
     }
 
     @Test
@@ -134,7 +134,8 @@ public class MockContainers {
 	public static final String POLYLAN_DESCRIPTION = "This is Polylan";
 	public static final long POLYLAN_START_TIME = 5809840;
 	public static final Calendar POLYLAN_START_DATE = GregorianCalendar.getInstance(TimeZone.getTimeZone("GMT+01:00"));
-	public static final long POLYLAN_END_TIME = 580985098;
+	// Far in the future, so that the Cache does not evict it
+	public static final long POLYLAN_END_TIME = 4102444800000L;
 	public static final Calendar POLYLAN_END_DATE = GregorianCalendar.getInstance(TimeZone.getTimeZone("GMT+01:00"));
 	public static final Location POLYLAN_LOCATION = new Location(User.PROVIDER_NAME);
 	public static final String POLYLAN_LOCATION_STRING = "Rolex";
@@ -159,7 +160,8 @@ public class MockContainers {
 	public static final long FOOTBALL_TOURNAMENT_START_TIME = 5809840;
 	public static final Calendar FOOTBALL_TOURNAMENT_START_DATE = GregorianCalendar.getInstance(TimeZone
 			.getTimeZone("GMT+01:00"));
-	public static final long FOOTBALL_TOURNAMENT_END_TIME = 580985098;
+	// Far in the future, so that the Cache does not evict it
+	public static final long FOOTBALL_TOURNAMENT_END_TIME = 4102444800000L;
 	public static final Calendar FOOTBALL_TOURNAMENT_END_DATE = GregorianCalendar.getInstance(TimeZone
 			.getTimeZone("GMT+01:00"));
 	public static final Location FOOTBALL_TOURNAMENT_LOCATION = new Location(User.PROVIDER_NAME);
@@ -60,6 +60,8 @@ public class CachedSearchEngineTest extends AndroidTestCase {
         Mockito.doReturn(MockContainers.ALAIN_CONTAINER).when(client).getUserInfo(MockContainers.ALAIN_ID);
         Mockito.doReturn(MockContainers.ROBIN_CONTAINER).when(client).getUserInfo(MockContainers.ROBIN_ID);
         Mockito.doReturn(MockContainers.JULIEN_CONTAINER).when(client).getUserInfo(MockContainers.JULIEN_ID);
+        Mockito.doReturn(Arrays.asList(MockContainers.ALAIN_CONTAINER)).when(client)
+            .getUsersInfo(Mockito.anyCollectionOf(Long.class));
         ServiceContainer.setNetworkClient(client);
 
         cache = Mockito.mock(Cache.class);
@@ -0,0 +1,158 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.util.Base64;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.User;
+import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Tests the batched requests of {@link NetworkSmartMapClient} against a {@link LocalSmartMapServer}
+ *
+ * @author jfperren
+ */
+public class BatchedRequestsTest extends AndroidTestCase {
+
+    private static final String USERS_JSON = "{\"status\" : \"Ok\", \"message\" : \"Fetched users info !\", "
+        + "\"users\" : [{\"id\" : 1, \"name\" : \"Alice\", \"isFriend\" : 1}, "
+        + "{\"id\" : 2, \"name\" : \"Bob\", \"isFriend\" : 0}]}";
+
+    private static final String EVENTS_JSON = "{\"status\" : \"Ok\", \"message\" : \"Fetched events.\", "
+        + "\"events\" : [{\"id\" : 13, \"creator\" : {\"id\" : 3, \"name\" : \"Georges\"}, "
+        + "\"startingDate\" : \"2014-10-23 05:07:54\", \"endingDate\" : \"2014-11-12 23:54:22\", "
+        + "\"longitude\" : 26.85, \"latitude\" : 20.03, \"participants\" : [3, 4], "
+        + "\"name\" : \"MyEvent\", \"description\" : \"description\", \"positionName\" : \"Tokyo\"}]}";
+
+    private static final String ERROR_JSON = "{\"status\" : \"error\", \"message\" : \"Too many ids.\"}";
+
+    private LocalSmartMapServer mServer;
+    private SmartMapClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSmartMapServer();
+        mClient = new NetworkSmartMapClient(mServer.getUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testEmptyBatchSendsNoRequest() throws SmartMapClientException {
+        assertTrue(mClient.getUsersInfo(Collections.<Long> emptyList()).isEmpty());
+        assertTrue(mClient.getEventsInfo(Collections.<Long> emptyList()).isEmpty());
+        assertTrue(mClient.getProfilePictures(Collections.<Long> emptyList()).isEmpty());
+        assertTrue(mServer.getRequests().isEmpty());
+    }
+
+    @Test
+    public void testGetEventsInfoSendsOneRequest() throws SmartMapClientException {
+        mServer.setResponse("/getEventsInfo", EVENTS_JSON);
+
+        List<EventContainer> events = mClient.getEventsInfo(Arrays.asList(13L, 14L));
+
+        assertEquals(1, events.size());
+        assertEquals(13, events.get(0).getId());
+        assertEquals(3, events.get(0).getCreatorContainer().getId());
+        assertEquals(1, mServer.getRequests().size());
+        assertEquals(new HashSet<String>(Arrays.asList("13", "14")),
+            this.sentIds(mServer.getRequests().get(0).getParam("event_ids")));
+    }
+
+    @Test
+    public void testGetProfilePicturesSendsOneRequest() throws SmartMapClientException {
+        Bitmap picture = Bitmap.createBitmap(4, 3, Bitmap.Config.ARGB_8888);
+        picture.eraseColor(Color.RED);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        picture.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        String encoded = Base64.encodeToString(stream.toByteArray(), Base64.NO_WRAP);
+        mServer.setResponse("/getProfilePictures", "{\"status\" : \"Ok\", \"message\" : \"Fetched pictures.\", "
+            + "\"pictures\" : [{\"id\" : 1, \"picture\" : \"" + encoded + "\"}, {\"id\" : 2, \"picture\" : \""
+            + encoded + "\"}]}");
+
+        Map<Long, Bitmap> pictures = mClient.getProfilePictures(Arrays.asList(1L, 2L));
+
+        assertEquals(2, pictures.size());
+        assertEquals(4, pictures.get(1L).getWidth());
+        assertEquals(3, pictures.get(2L).getHeight());
+        assertEquals(Color.RED, pictures.get(1L).getPixel(0, 0));
+        assertEquals(1, mServer.getRequests().size());
+        assertEquals("/getProfilePictures", mServer.getRequests().get(0).getUri());
+    }
+
+    @Test
+    public void testGetUsersInfoSendsOneRequest() throws SmartMapClientException {
+        mServer.setResponse("/getUsersInfo", USERS_JSON);
+
+        List<UserContainer> users = mClient.getUsersInfo(Arrays.asList(1L, 2L, 3L, 2L));
+
+        assertEquals(2, users.size());
+        assertEquals("Alice", users.get(0).getName());
+        assertEquals(User.FRIEND, users.get(0).getFriendship());
+        assertEquals(1, mServer.getRequests().size());
+        // Duplicates are not sent
+        assertEquals(new HashSet<String>(Arrays.asList("1", "2", "3")),
+            this.sentIds(mServer.getRequests().get(0).getParam("user_ids")));
+    }
+
+    @Test
+    public void testLargeBatchIsSplit() throws SmartMapClientException {
+        mServer.setResponse("/getUsersInfo", USERS_JSON);
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = 1; id <= 120; id++) {
+            ids.add(id);
+        }
+
+        mClient.getUsersInfo(ids);
+
+        assertEquals(3, mServer.getRequests().size());
+        Set<String> sentIds = new HashSet<String>();
+        for (LocalSmartMapServer.Request request : mServer.getRequests()) {
+            Set<String> batch = this.sentIds(request.getParam("user_ids"));
+            assertTrue(batch.size() <= 50);
+            sentIds.addAll(batch);
+        }
+        assertEquals(120, sentIds.size());
+    }
+
+    @Test
+    public void testServerErrorIsThrown() {
+        mServer.setResponse("/getUsersInfo", ERROR_JSON);
+        try {
+            mClient.getUsersInfo(Arrays.asList(1L, 2L));
+            fail();
+        } catch (SmartMapClientException e) {
+            // Expected
+        }
+    }
+
+    private Set<String> sentIds(String param) {
+        Set<String> ids = new HashSet<String>();
+        for (String id : param.split(",")) {
+            if (!id.isEmpty()) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+}
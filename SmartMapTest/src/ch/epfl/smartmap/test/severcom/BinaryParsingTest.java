@@ -0,0 +1,345 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.BinarySmartMapParser;
+import ch.epfl.smartmap.servercom.ChangeSet;
+import ch.epfl.smartmap.servercom.JsonSmartMapParser;
+import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.ServerFeedbackException;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+import ch.epfl.smartmap.servercom.SmartMapParseException;
+import ch.epfl.smartmap.servercom.SmartMapParserFactory;
+
+/**
+ * Tests {@link BinarySmartMapParser} against {@link JsonSmartMapParser}, and the content negotiation of
+ * {@link NetworkSmartMapClient}
+ *
+ * @author jfperren
+ */
+public class BinaryParsingTest extends AndroidTestCase {
+
+    private static final String POSITIONS_JSON = "{\"status\" : \"Ok\", \"message\" : \"Success!\", "
+        + "\"positions\" : [{\"id\" : 13, \"latitude\" : 46.519653, \"longitude\" : 6.632273, "
+        + "\"lastUpdate\" : \"2014-11-12 23:54:22\"}, {\"id\" : 4, \"latitude\" : 46.520001, "
+        + "\"longitude\" : 6.566, \"lastUpdate\" : \"2014-11-12 23:58:01\"}]}";
+
+    private static final String EVENTS_JSON = "{\"status\" : \"Ok\", \"message\" : \"Success!\", "
+        + "\"events\" : [{\"id\" : 13, \"creator\" : {\"id\" : 3, \"name\" : \"Georges\"}, "
+        + "\"startingDate\" : \"2014-10-23 05:07:54\", \"endingDate\" : \"2014-11-12 23:54:22\", "
+        + "\"longitude\" : 26.85, \"latitude\" : 20.03, \"participants\" : [3, 4, 1], "
+        + "\"name\" : \"MyEvent\", \"description\" : \"description\", \"positionName\" : \"Tokyo\"}]}";
+
+    private BinarySmartMapParser mParser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ServiceContainer.initSmartMapServices(this.getContext());
+        mParser = new BinarySmartMapParser();
+    }
+
+    @Test
+    public void testClientFallsBackToJson() throws Exception {
+        LocalSmartMapServer server = new LocalSmartMapServer();
+        try {
+            server.setResponse("/listFriendsPos", POSITIONS_JSON);
+
+            List<UserContainer> users = new NetworkSmartMapClient(server.getUrl()).listFriendsPos();
+
+            assertEquals(2, users.size());
+            assertEquals(13, users.get(0).getId());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testChangedPositionsKeepTheirCursor() throws Exception {
+        LocalSmartMapServer server = new LocalSmartMapServer();
+        try {
+            // The server sends the cursor of the Json response in a header
+            server.setChangesResponse("/listFriendsPos", "", "{\"status\" : \"Ok\", \"message\" : "
+                + "\"Success!\", \"positions\" : [], \"cursor\" : \"2014-11-12 23:59:00\"}");
+            server.setBinaryResponse("/listFriendsPos", this.positions(new long[] {7}));
+
+            ChangeSet<List<UserContainer>> changes =
+                new NetworkSmartMapClient(server.getUrl()).listFriendsPosSince(null);
+
+            assertEquals(1, changes.getChanges().size());
+            assertEquals(7, changes.getChanges().get(0).getId());
+            assertEquals("2014-11-12 23:59:00", changes.getCursor());
+            assertTrue(server.getRequests().get(0).getHeader("Accept")
+                .startsWith(SmartMapParserFactory.BINARY_CONTENT_TYPE));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testClientPrefersBinaryFormat() throws Exception {
+        LocalSmartMapServer server = new LocalSmartMapServer();
+        try {
+            server.setResponse("/listFriendsPos", POSITIONS_JSON);
+            server.setBinaryResponse("/listFriendsPos", this.positions(new long[] {7}));
+
+            List<UserContainer> users = new NetworkSmartMapClient(server.getUrl()).listFriendsPos();
+
+            assertEquals(1, users.size());
+            assertEquals(7, users.get(0).getId());
+            assertTrue(server.getRequests().get(0).getHeader("Accept")
+                .startsWith(SmartMapParserFactory.BINARY_CONTENT_TYPE));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testErrorStatusIsThrown() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_ERROR, "Wrong id.");
+        writer.write(BinarySmartMapParser.CONTENT_NONE);
+        try {
+            mParser.parsePositions(writer.stream());
+            fail("Did not throw the server's error");
+        } catch (SmartMapClientException e) {
+            assertEquals("Wrong id.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFeedbackStatusIsThrown() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_FEEDBACK, "Already friends.");
+        writer.write(BinarySmartMapParser.CONTENT_NONE);
+        try {
+            mParser.parseIdList(writer.stream(), "friends");
+            fail("Did not throw the server's feedback");
+        } catch (ServerFeedbackException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testIdsAreDeltaEncoded() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_OK, "");
+        writer.write(BinarySmartMapParser.CONTENT_IDS);
+        writer.varint(3).signed(300).signed(-299).signed(1);
+
+        List<Long> ids = mParser.parseIdList(writer.stream(), "friends");
+
+        assertEquals(3, ids.size());
+        assertEquals(300L, (long) ids.get(0));
+        assertEquals(1L, (long) ids.get(1));
+        assertEquals(2L, (long) ids.get(2));
+    }
+
+    @Test
+    public void testInvalidIdIsRejected() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_OK, "");
+        writer.write(BinarySmartMapParser.CONTENT_IDS);
+        writer.varint(1).signed(-4);
+        try {
+            mParser.parseIdList(writer.stream(), "friends");
+            fail("parsed negative id");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testParseEventsLikeJson() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_OK, "Success!");
+        writer.write(BinarySmartMapParser.CONTENT_EVENTS);
+        long startingDate = this.seconds(2014, 10, 23, 5, 7, 54);
+        long endDate = this.seconds(2014, 11, 12, 23, 54, 22);
+        writer.varint(1).signed(13).signed(3).string("Georges").signed(startingDate)
+            .signed(endDate - startingDate).signed(20030000).signed(26850000).string("Tokyo")
+            .string("MyEvent").string("description").varint(3).signed(3).signed(1).signed(-3);
+
+        EventContainer expected = new JsonSmartMapParser().parseEventList(EVENTS_JSON).get(0);
+        List<EventContainer> events = mParser.parseEventList(writer.stream());
+
+        assertEquals(1, events.size());
+        EventContainer event = events.get(0);
+        assertEquals(expected.getId(), event.getId());
+        assertEquals(expected.getName(), event.getName());
+        assertEquals(expected.getDescription(), event.getDescription());
+        assertEquals(expected.getLocationString(), event.getLocationString());
+        assertEquals(expected.getCreatorContainer().getId(), event.getCreatorContainer().getId());
+        assertEquals(expected.getCreatorContainer().getName(), event.getCreatorContainer().getName());
+        assertEquals(expected.getStartDate().getTimeInMillis(), event.getStartDate().getTimeInMillis());
+        assertEquals(expected.getEndDate().getTimeInMillis(), event.getEndDate().getTimeInMillis());
+        assertEquals(expected.getLocation().getLatitude(), event.getLocation().getLatitude(), 1e-9);
+        assertEquals(expected.getParticipantIds(), event.getParticipantIds());
+    }
+
+    @Test
+    public void testParsePositionsLikeJson() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_OK, "Success!");
+        writer.write(BinarySmartMapParser.CONTENT_POSITIONS);
+        long firstUpdate = this.seconds(2014, 11, 12, 23, 54, 22);
+        writer.varint(2).signed(13).signed(46519653).signed(6632273).signed(firstUpdate);
+        writer.signed(4 - 13).signed(46520001 - 46519653).signed(6566000 - 6632273)
+            .signed(this.seconds(2014, 11, 12, 23, 58, 1) - firstUpdate);
+
+        List<UserContainer> expected = new JsonSmartMapParser().parsePositions(POSITIONS_JSON);
+        List<UserContainer> users = mParser.parsePositions(writer.stream());
+
+        assertEquals(expected.size(), users.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), users.get(i).getId());
+            assertEquals(expected.get(i).getLocation().getLatitude(), users.get(i).getLocation()
+                .getLatitude(), 1e-9);
+            assertEquals(expected.get(i).getLocation().getLongitude(), users.get(i).getLocation()
+                .getLongitude(), 1e-9);
+            assertEquals(expected.get(i).getLocation().getTime(), users.get(i).getLocation().getTime());
+        }
+    }
+
+    @Test
+    public void testPositionsAreSmallerThanJson() throws Exception {
+        long[] ids = new long[100];
+        StringBuilder json = new StringBuilder("{\"status\" : \"Ok\", \"message\" : \"\", \"positions\" : [");
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i + 1;
+            json.append((i > 0) ? ", " : "").append("{\"id\" : ").append(ids[i])
+                .append(", \"latitude\" : 46.519653, \"longitude\" : 6.632273, ")
+                .append("\"lastUpdate\" : \"2014-11-12 23:54:22\"}");
+        }
+        json.append("]}");
+
+        byte[] binary = this.positions(ids);
+
+        assertEquals(ids.length, mParser.parsePositions(new ByteArrayInputStream(binary)).size());
+        assertTrue(binary.length * 10 < json.toString().getBytes("UTF-8").length);
+    }
+
+    @Test
+    public void testTrailingDataIsRejected() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_OK, "");
+        writer.write(BinarySmartMapParser.CONTENT_IDS);
+        writer.varint(1).signed(3).varint(1);
+        try {
+            mParser.parseIdList(writer.stream(), "friends");
+            fail("parsed response with trailing data");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testTruncatedResponseIsRejected() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_OK, "");
+        writer.write(BinarySmartMapParser.CONTENT_IDS);
+        writer.varint(2).signed(3);
+        try {
+            mParser.parseIdList(writer.stream(), "friends");
+            fail("parsed truncated response");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testUnexpectedContentIsRejected() throws Exception {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_OK, "");
+        writer.write(BinarySmartMapParser.CONTENT_IDS);
+        writer.varint(0);
+        try {
+            mParser.parsePositions(writer.stream());
+            fail("parsed ids as positions");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testWrongMagicIsRejected() throws Exception {
+        try {
+            byte[] json = "{\"status\" : \"Ok\"}".getBytes("UTF-8");
+            mParser.parseIdList(new ByteArrayInputStream(json), "friends");
+            fail("parsed Json as binary");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    /**
+     * @return a response with the positions of these users, all at the same place and time
+     */
+    private byte[] positions(long[] ids) throws UnsupportedEncodingException {
+        Writer writer = new Writer().header(BinarySmartMapParser.STATUS_OK, "");
+        writer.write(BinarySmartMapParser.CONTENT_POSITIONS);
+        writer.varint(ids.length);
+        long previous = 0;
+        for (int i = 0; i < ids.length; i++) {
+            writer.signed(ids[i] - previous);
+            if (i == 0) {
+                writer.signed(46519653).signed(6632273).signed(this.seconds(2014, 11, 12, 23, 54, 22));
+            } else {
+                writer.signed(0).signed(0).signed(0);
+            }
+            previous = ids[i];
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * @return the date in server time, as sent in the binary format
+     */
+    private long seconds(int year, int month, int day, int hour, int minutes, int seconds) {
+        GregorianCalendar date = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        date.clear();
+        date.set(year, month - 1, day, hour, minutes, seconds);
+        return date.getTimeInMillis() / 1000;
+    }
+
+    /**
+     * Writes responses in the binary format, like the server
+     */
+    private static class Writer extends ByteArrayOutputStream {
+
+        Writer header(int status, String message) throws UnsupportedEncodingException {
+            this.write('S');
+            this.write('M');
+            this.write(BinarySmartMapParser.VERSION);
+            this.write(status);
+            return this.string(message);
+        }
+
+        Writer signed(long value) {
+            return this.varint((value << 1) ^ (value >> (Long.SIZE - 1)));
+        }
+
+        ByteArrayInputStream stream() {
+            return new ByteArrayInputStream(this.toByteArray());
+        }
+
+        Writer string(String value) throws UnsupportedEncodingException {
+            byte[] bytes = value.getBytes("UTF-8");
+            this.varint(bytes.length);
+            this.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Writer varint(long value) {
+            long remaining = value;
+            while ((remaining & ~0x7FL) != 0) {
+                this.write((int) ((remaining & 0x7F) | 0x80));
+                remaining >>>= 7;
+            }
+            this.write((int) remaining);
+            return this;
+        }
+    }
+}
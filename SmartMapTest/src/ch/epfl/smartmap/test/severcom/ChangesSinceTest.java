@@ -0,0 +1,111 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.ChangeSet;
+import ch.epfl.smartmap.servercom.InvitationBag;
+import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Tests the requests for what changed since a cursor against a {@link LocalSmartMapServer}
+ *
+ * @author jfperren
+ */
+public class ChangesSinceTest extends AndroidTestCase {
+
+    private static final String FIRST_CURSOR = "2014-11-12 23:59:00";
+    private static final String SECOND_CURSOR = "2014-11-13 00:00:10";
+
+    private static final String ALL_POSITIONS_JSON = "{\"status\" : \"Ok\", \"message\" : \"Success!\", "
+        + "\"positions\" : [{\"id\" : 13, \"latitude\" : 46.519653, \"longitude\" : 6.632273, "
+        + "\"lastUpdate\" : \"2014-11-12 23:54:22\"}, {\"id\" : 4, \"latitude\" : 46.520001, "
+        + "\"longitude\" : 6.566, \"lastUpdate\" : \"2014-11-12 23:58:01\"}], \"cursor\" : \"" + FIRST_CURSOR
+        + "\"}";
+
+    private static final String CHANGED_POSITIONS_JSON = "{\"status\" : \"Ok\", \"message\" : \"Success!\", "
+        + "\"positions\" : [{\"id\" : 4, \"latitude\" : 46.53, \"longitude\" : 6.57, "
+        + "\"lastUpdate\" : \"2014-11-13 00:00:05\"}], \"cursor\" : \"" + SECOND_CURSOR + "\"}";
+
+    private static final String INVITATIONS_JSON = "{\"status\" : \"Ok\", \"message\" : \"Success!\", "
+        + "\"invitations\" : [{\"id\" : 2, \"name\" : \"Toto\", \"isFriend\" : 0}], \"newFriends\" : [], "
+        + "\"removedFriends\" : [], \"cursor\" : \"v1\"}";
+
+    private static final String UNCHANGED_INVITATIONS_JSON = "{\"status\" : \"Ok\", \"message\" : "
+        + "\"Success!\", \"invitations\" : [], \"newFriends\" : [], \"removedFriends\" : [], \"cursor\" : "
+        + "\"v1\"}";
+
+    private static final String POSITIONS_WITHOUT_CURSOR_JSON = "{\"status\" : \"Ok\", \"message\" : "
+        + "\"Success!\", \"positions\" : []}";
+
+    private LocalSmartMapServer mServer;
+    private NetworkSmartMapClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSmartMapServer();
+        mClient = new NetworkSmartMapClient(mServer.getUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testChangedInvitationsAreParsed() throws SmartMapClientException {
+        mServer.setChangesResponse("/getInvitations", "", INVITATIONS_JSON);
+
+        ChangeSet<InvitationBag> changes = mClient.getFriendInvitationsSince(null);
+
+        assertFalse(changes.isUnchanged());
+        assertEquals(1, changes.getChanges().getInvitations().size());
+        assertEquals("v1", changes.getCursor());
+    }
+
+    @Test
+    public void testOnlyChangedPositionsAreSent() throws SmartMapClientException {
+        mServer.setChangesResponse("/listFriendsPos", "", ALL_POSITIONS_JSON);
+        mServer.setChangesResponse("/listFriendsPos", FIRST_CURSOR, CHANGED_POSITIONS_JSON);
+
+        ChangeSet<List<UserContainer>> all = mClient.listFriendsPosSince(null);
+        ChangeSet<List<UserContainer>> changed = mClient.listFriendsPosSince(all.getCursor());
+
+        assertEquals(2, all.getChanges().size());
+        assertEquals(FIRST_CURSOR, all.getCursor());
+        assertEquals(1, changed.getChanges().size());
+        assertEquals(4, changed.getChanges().get(0).getId());
+        assertEquals(SECOND_CURSOR, changed.getCursor());
+
+        // A null cursor asks for everything
+        assertEquals("", mServer.getRequests().get(0).getParam("since"));
+        assertEquals(FIRST_CURSOR, mServer.getRequests().get(1).getParam("since"));
+    }
+
+    @Test
+    public void testResponseWithoutCursorHasAllChanges() throws SmartMapClientException {
+        mServer.setResponse("/listFriendsPos", POSITIONS_WITHOUT_CURSOR_JSON);
+
+        ChangeSet<List<UserContainer>> changes = mClient.listFriendsPosSince(FIRST_CURSOR);
+
+        assertFalse(changes.isUnchanged());
+        assertNull(changes.getCursor());
+    }
+
+    @Test
+    public void testUnchangedInvitationsAreNotParsed() throws SmartMapClientException {
+        mServer.setChangesResponse("/getInvitations", "v1", UNCHANGED_INVITATIONS_JSON);
+
+        ChangeSet<InvitationBag> changes = mClient.getFriendInvitationsSince("v1");
+
+        assertTrue(changes.isUnchanged());
+        assertNull(changes.getChanges());
+        assertEquals("v1", changes.getCursor());
+    }
+}
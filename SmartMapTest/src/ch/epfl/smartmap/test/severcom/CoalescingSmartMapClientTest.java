@@ -0,0 +1,175 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.cache.MetricsRegistry;
+import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.CoalescingSmartMapClient;
+import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Tests {@link CoalescingSmartMapClient} against a {@link LocalSmartMapServer}
+ *
+ * @author jfperren
+ */
+public class CoalescingSmartMapClientTest extends AndroidTestCase {
+
+    private static final String USER_JSON = "{\"status\" : \"Ok\", \"message\" : \"Fetched user info !\", "
+        + "\"id\" : 1, \"name\" : \"Alice\", \"isFriend\" : 1}";
+    private static final String OK_JSON = "{\"status\" : \"Ok\", \"message\" : \"Done.\"}";
+
+    private static final int CALLERS = 5;
+    private static final long LONG_TTL = 60000;
+
+    private LocalSmartMapServer mServer;
+    private MetricsRegistry mMetrics;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSmartMapServer();
+        mServer.setResponse("/getUserInfo", USER_JSON);
+        mMetrics = new MetricsRegistry();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testConcurrentCallsShareOneRequest() throws Exception {
+        mServer.setResponseDelay(300);
+        final SmartMapClient client = this.client(0);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        List<Future<UserContainer>> futures = new ArrayList<Future<UserContainer>>();
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(executor.submit(new Callable<UserContainer>() {
+                @Override
+                public UserContainer call() throws Exception {
+                    start.await();
+                    return client.getUserInfo(1);
+                }
+            }));
+        }
+        start.countDown();
+        List<UserContainer> users = new ArrayList<UserContainer>();
+        for (Future<UserContainer> future : futures) {
+            users.add(future.get());
+        }
+        executor.shutdown();
+
+        assertEquals(1, mServer.getRequests().size());
+        assertEquals(CALLERS - 1, mMetrics.counter(MetricsRegistry.NETWORK_SHARED_REQUESTS).getCount());
+        for (int i = 0; i < CALLERS; i++) {
+            assertEquals("Alice", users.get(i).getName());
+            // Each caller gets its own copy
+            for (int j = i + 1; j < CALLERS; j++) {
+                assertNotSame(users.get(i), users.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void testFailedResultIsNotKept() throws SmartMapClientException {
+        mServer.setResponse("/getUserInfo", "{\"status\" : \"error\", \"message\" : \"Unknown user.\"}");
+        SmartMapClient client = this.client(LONG_TTL);
+        try {
+            client.getUserInfo(1);
+            fail();
+        } catch (SmartMapClientException e) {
+            // Expected
+        }
+
+        mServer.setResponse("/getUserInfo", USER_JSON);
+
+        assertEquals("Alice", client.getUserInfo(1).getName());
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+    @Test
+    public void testKeptResultIsACopy() throws SmartMapClientException {
+        SmartMapClient client = this.client(LONG_TTL);
+
+        client.getUserInfo(1).setName("Bob");
+
+        assertEquals("Alice", client.getUserInfo(1).getName());
+    }
+
+    @Test
+    public void testKeptResultIsReused() throws SmartMapClientException {
+        SmartMapClient client = this.client(LONG_TTL);
+
+        client.getUserInfo(1);
+        client.getUserInfo(1);
+
+        assertEquals(1, mServer.getRequests().size());
+        assertEquals(1, mMetrics.counter(MetricsRegistry.NETWORK_KEPT_RESULTS).getCount());
+    }
+
+    @Test
+    public void testKeptResultIsInvalidatedByModification() throws SmartMapClientException {
+        mServer.setResponse("/blockFriend", OK_JSON);
+        SmartMapClient client = this.client(LONG_TTL);
+
+        client.getUserInfo(1);
+        client.blockFriend(1);
+        client.getUserInfo(1);
+
+        assertEquals(3, mServer.getRequests().size());
+        assertEquals("/getUserInfo", mServer.getRequests().get(2).getUri());
+    }
+
+    @Test
+    public void testResultReadDuringModificationIsNotKept() throws Exception {
+        mServer.setResponse("/blockFriend", OK_JSON);
+        mServer.setResponseDelay(300);
+        final SmartMapClient client = this.client(LONG_TTL);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Void> modification = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                client.blockFriend(1);
+                return null;
+            }
+        });
+        // Sent while the modification is in flight, may see the old data
+        Thread.sleep(100);
+        client.getUserInfo(1);
+        modification.get();
+        executor.shutdown();
+        client.getUserInfo(1);
+
+        assertEquals(3, mServer.getRequests().size());
+        assertEquals(0, mMetrics.counter(MetricsRegistry.NETWORK_KEPT_RESULTS).getCount());
+    }
+
+    @Test
+    public void testNoResultIsKeptWithoutTtl() throws SmartMapClientException {
+        SmartMapClient client = this.client(0);
+
+        client.getUserInfo(1);
+        client.getUserInfo(1);
+
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+    private SmartMapClient client(long resultTtl) {
+        return new CoalescingSmartMapClient(new NetworkSmartMapClient(mServer.getUrl()), resultTtl, mMetrics);
+    }
+}
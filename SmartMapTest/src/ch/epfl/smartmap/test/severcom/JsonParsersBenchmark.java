@@ -0,0 +1,186 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.Test;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.JsonSmartMapParser;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+import ch.epfl.smartmap.servercom.SmartMapParseException;
+import ch.epfl.smartmap.servercom.StreamingJsonSmartMapParser;
+
+/**
+ * Compares the latency and the allocations of reading large responses into a {@code String} before parsing
+ * them with {@link JsonSmartMapParser}, as done before, and of reading them directly with
+ * {@link StreamingJsonSmartMapParser}. Results are written to the log.
+ * <p>
+ * Note that both parsers look up the city of every position, which dominates the time spent on
+ * {@code listFriendsPos} responses.
+ *
+ * @author jfperren
+ */
+public class JsonParsersBenchmark extends AndroidTestCase {
+
+    private static final String TAG = JsonParsersBenchmark.class.getSimpleName();
+
+    private static final int FRIENDS = 1000;
+    private static final int EVENTS = 1000;
+    private static final int RUNS = 5;
+    private static final int BUFFER_SIZE = 4096;
+
+    private JsonSmartMapParser mTextParser;
+    private StreamingJsonSmartMapParser mStreamingParser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ServiceContainer.initSmartMapServices(this.getContext());
+        mTextParser = new JsonSmartMapParser();
+        mStreamingParser = new StreamingJsonSmartMapParser();
+    }
+
+    @Test
+    public void testPublicEvents() throws Exception {
+        final byte[] response = this.eventsResponse(EVENTS).getBytes("UTF-8");
+
+        List<EventContainer> fromText = mTextParser.parseEventList(this.readText(response));
+        List<EventContainer> streamed = mStreamingParser.parseEventList(new ByteArrayInputStream(response));
+        assertEquals(fromText.size(), streamed.size());
+        assertEquals(fromText.get(EVENTS - 1).getId(), streamed.get(EVENTS - 1).getId());
+
+        this.compare("getPublicEvents", response, new Parse() {
+            @Override
+            public int fromText(byte[] bytes) throws SmartMapParseException, SmartMapClientException,
+                IOException {
+                String text = JsonParsersBenchmark.this.readText(bytes);
+                mTextParser.checkServerError(text);
+                return mTextParser.parseEventList(text).size();
+            }
+
+            @Override
+            public int streamed(byte[] bytes) throws SmartMapParseException, SmartMapClientException {
+                return mStreamingParser.parseEventList(new ByteArrayInputStream(bytes)).size();
+            }
+        });
+    }
+
+    @Test
+    public void testFriendsPositions() throws Exception {
+        final byte[] response = this.positionsResponse(FRIENDS).getBytes("UTF-8");
+
+        List<UserContainer> fromText = mTextParser.parsePositions(this.readText(response));
+        List<UserContainer> streamed = mStreamingParser.parsePositions(new ByteArrayInputStream(response));
+        assertEquals(fromText.size(), streamed.size());
+        assertEquals(fromText.get(FRIENDS - 1).getLocation().getLatitude(), streamed.get(FRIENDS - 1)
+            .getLocation().getLatitude());
+
+        this.compare("listFriendsPos", response, new Parse() {
+            @Override
+            public int fromText(byte[] bytes) throws SmartMapParseException, SmartMapClientException,
+                IOException {
+                String text = JsonParsersBenchmark.this.readText(bytes);
+                mTextParser.checkServerError(text);
+                return mTextParser.parsePositions(text).size();
+            }
+
+            @Override
+            public int streamed(byte[] bytes) throws SmartMapParseException, SmartMapClientException {
+                return mStreamingParser.parsePositions(new ByteArrayInputStream(bytes)).size();
+            }
+        });
+    }
+
+    private void compare(String name, byte[] response, Parse parse) throws Exception {
+        long textTime = 0;
+        long textAllocated = 0;
+        long streamedTime = 0;
+        long streamedAllocated = 0;
+
+        for (int i = 0; i < RUNS; i++) {
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            parse.fromText(response);
+            textTime += System.nanoTime() - start;
+            Debug.stopAllocCounting();
+            textAllocated += Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            start = System.nanoTime();
+            parse.streamed(response);
+            streamedTime += System.nanoTime() - start;
+            Debug.stopAllocCounting();
+            streamedAllocated += Debug.getThreadAllocSize();
+        }
+
+        Log.i(TAG, name + " (" + response.length + " bytes): text " + (textTime / RUNS / 1000) + "us, "
+            + (textAllocated / RUNS) + " bytes allocated; streamed " + (streamedTime / RUNS / 1000) + "us, "
+            + (streamedAllocated / RUNS) + " bytes allocated");
+    }
+
+    private String eventsResponse(int count) {
+        StringBuilder builder =
+            new StringBuilder("{\"status\" : \"Ok\", \"message\" : \"Success!\", \"events\" : [");
+        for (int i = 1; i <= count; i++) {
+            if (i > 1) {
+                builder.append(',');
+            }
+            builder.append("{\"id\" : ").append(i).append(", \"creator\" : {\"id\" : ").append(i)
+                .append(", \"name\" : \"Creator ").append(i).append("\"}, ")
+                .append("\"startingDate\" : \"2014-10-23 05:07:54\", ")
+                .append("\"endingDate\" : \"2014-11-12 23:54:22\", ")
+                .append("\"longitude\" : 6.56, \"latitude\" : 46.52, \"participants\" : [1, 2, 3], ")
+                .append("\"name\" : \"Event ").append(i).append("\", ")
+                .append("\"description\" : \"Description of event ").append(i).append("\", ")
+                .append("\"positionName\" : \"Lausanne\"}");
+        }
+        return builder.append("]}").toString();
+    }
+
+    private String positionsResponse(int count) {
+        StringBuilder builder =
+            new StringBuilder("{\"status\" : \"Ok\", \"message\" : \"Success!\", \"positions\" : [");
+        for (int i = 1; i <= count; i++) {
+            if (i > 1) {
+                builder.append(',');
+            }
+            builder.append("{\"id\" : ").append(i).append(", \"latitude\" : ").append(46 + (i % 100) / 100.0)
+                .append(", \"longitude\" : 6.56, \"lastUpdate\" : \"2014-11-12 23:54:22\"}");
+        }
+        return builder.append("]}").toString();
+    }
+
+    /**
+     * Reads the response like {@code NetworkSmartMapClient} did before streaming
+     */
+    private String readText(byte[] bytes) throws IOException {
+        InputStream in = new ByteArrayInputStream(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * The two ways of parsing a response
+     */
+    private interface Parse {
+        int fromText(byte[] bytes) throws SmartMapParseException, SmartMapClientException, IOException;
+
+        int streamed(byte[] bytes) throws SmartMapParseException, SmartMapClientException;
+    }
+}
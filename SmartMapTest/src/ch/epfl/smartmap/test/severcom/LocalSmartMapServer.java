@@ -0,0 +1,624 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import ch.epfl.smartmap.servercom.SmartMapParserFactory;
+
+/**
+ * A minimal HTTP server running on the device, that stands in for the SmartMap server in tests. It answers
+ * POST requests with canned JSON responses and records every request it receives, so that tests can check
+ * how many round trips a client made and with which parameters.
+ * <p>
+ * Connections are kept alive until the client closes them, and the server counts connections and bytes on
+ * the wire so that tests can check that they are reused and that bodies are compressed. Gzip request bodies
+ * are decompressed, and large responses are compressed for clients that accept it, like the real server.
+ * <p>
+ * Faults can be injected: the next requests can be answered with an HTTP error, or their connection closed
+ * without any answer, to test how clients behave when the server is down.
+ *
+ * @author jfperren
+ */
+public class LocalSmartMapServer {
+
+    private static final String CHARSET = "UTF-8";
+    private static final String GZIP = "gzip";
+    private static final String PICTURE_CONTENT_TYPE = "image/png";
+    private static final String CURSOR_HEADER = "X-SmartMap-Cursor";
+
+    // Smaller responses are not compressed, same as the server, in bytes
+    private static final int MIN_COMPRESSED_SIZE = 1024;
+
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+
+    private final Map<String, String> mResponses;
+    private final Map<String, String> mChangesResponses;
+    private final Map<String, byte[]> mBinaryResponses;
+    private final Map<String, Picture> mPictures;
+    private final List<Request> mRequests;
+    private final Set<Socket> mSockets;
+
+    private final AtomicInteger mConnectionCount;
+    private final AtomicLong mBytesReceived;
+    private final AtomicLong mBytesSent;
+    private final AtomicInteger mConcurrentRequests;
+    private final AtomicInteger mMaxConcurrentRequests;
+
+    private final AtomicInteger mFailingRequests;
+    private final AtomicInteger mDroppedRequests;
+
+    private volatile long mResponseDelay;
+    private volatile int mFailureStatus;
+
+    /**
+     * Constructor, the server listens on a free local port until {@code stop} is called
+     *
+     * @throws IOException
+     *             if no port could be opened
+     */
+    public LocalSmartMapServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mResponses = new HashMap<String, String>();
+        mChangesResponses = new HashMap<String, String>();
+        mBinaryResponses = new HashMap<String, byte[]>();
+        mPictures = new HashMap<String, Picture>();
+        mRequests = new ArrayList<Request>();
+        mSockets = Collections.synchronizedSet(new HashSet<Socket>());
+        mConnectionCount = new AtomicInteger();
+        mBytesReceived = new AtomicLong();
+        mBytesSent = new AtomicLong();
+        mConcurrentRequests = new AtomicInteger();
+        mMaxConcurrentRequests = new AtomicInteger();
+        mFailingRequests = new AtomicInteger();
+        mDroppedRequests = new AtomicInteger();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LocalSmartMapServer.this.serve();
+            }
+        }, LocalSmartMapServer.class.getSimpleName());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Closes the connection of the next requests without answering them
+     *
+     * @param count
+     *            number of requests to drop
+     */
+    public void dropNextRequests(int count) {
+        mDroppedRequests.set(count);
+    }
+
+    /**
+     * Answers the next requests with an HTTP error and an empty body
+     *
+     * @param count
+     *            number of requests to fail
+     * @param status
+     *            for example 503
+     */
+    public void failNextRequests(int count, int status) {
+        mFailureStatus = status;
+        mFailingRequests.set(count);
+    }
+
+    /**
+     * @return number of bytes received so far, headers included
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /**
+     * @return number of bytes sent so far, headers included
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * @return number of TCP connections accepted so far
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * @return largest number of requests handled at the same time so far
+     */
+    public int getMaxConcurrentRequests() {
+        return mMaxConcurrentRequests.get();
+    }
+
+    /**
+     * @return all requests received so far, in order
+     */
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<Request>(mRequests);
+    }
+
+    /**
+     * @return base url of the server, to give to {@code NetworkSmartMapClient}
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @param uri
+     *            for example "/getUsersInfo"
+     * @param json
+     *            body of the response sent for every request on this uri. Other uris are answered with
+     *            404.
+     */
+    public synchronized void setResponse(String uri, String json) {
+        mResponses.put(uri, json);
+    }
+
+    /**
+     * @param uri
+     *            for example "/listFriendsPos"
+     * @param since
+     *            value of the "since" parameter of the requests to answer
+     * @param json
+     *            body of the response sent for requests on this uri with this parameter, instead of the one
+     *            given to {@code setResponse}
+     */
+    public synchronized void setChangesResponse(String uri, String since, String json) {
+        mChangesResponses.put(uri + "?since=" + since, json);
+    }
+
+    /**
+     * @param uri
+     *            for example "/listFriendsPos"
+     * @param body
+     *            body of the response sent for requests on this uri that accept the binary format, others
+     *            get the Json response
+     */
+    public synchronized void setBinaryResponse(String uri, byte[] body) {
+        mBinaryResponses.put(uri, body);
+    }
+
+    /**
+     * Answers requests on this uri with a picture, or with 304 Not Modified if the request has a matching
+     * If-None-Match header
+     *
+     * @param uri
+     *            for example "/getProfilePicture"
+     * @param data
+     *            the encoded picture
+     * @param eTag
+     *            ETag header of the response
+     */
+    public synchronized void setPicture(String uri, byte[] data, String eTag) {
+        mPictures.put(uri, new Picture(data, eTag));
+    }
+
+    /**
+     * @param delay
+     *            time to wait before answering each request, in milliseconds
+     */
+    public void setResponseDelay(long delay) {
+        mResponseDelay = delay;
+    }
+
+    /**
+     * Stops the server and closes all connections
+     */
+    public void stop() {
+        try {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) {
+                    socket.close();
+                }
+            }
+            mThread.join();
+        } catch (IOException e) {
+            // Already closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles one request of a connection
+     *
+     * @return {@code false} if the connection must be closed
+     */
+    private boolean handle(InputStream in, OutputStream out) throws IOException {
+        String requestLine = readLine(in);
+        String[] requestParts = requestLine.split(" ");
+        if (requestParts.length < 2) {
+            return false;
+        }
+        String uri = requestParts[1];
+
+        Map<String, String> headers = new HashMap<String, String>();
+        int contentLength = 0;
+        boolean isCompressed = false;
+        boolean acceptsCompression = false;
+        boolean keepAlive = true;
+        String header;
+        while (!(header = readLine(in)).isEmpty()) {
+            int separator = header.indexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+            String name = header.substring(0, separator).trim();
+            String value = header.substring(separator + 1).trim();
+            headers.put(name.toLowerCase(), value);
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Integer.parseInt(value);
+            } else if (name.equalsIgnoreCase("Content-Encoding")) {
+                isCompressed = value.equalsIgnoreCase(GZIP);
+            } else if (name.equalsIgnoreCase("Accept-Encoding")) {
+                acceptsCompression = value.toLowerCase().contains(GZIP);
+            } else if (name.equalsIgnoreCase("Connection")) {
+                keepAlive = !value.equalsIgnoreCase("close");
+            }
+        }
+
+        byte[] body = new byte[contentLength];
+        int read = 0;
+        while (read < contentLength) {
+            int count = in.read(body, read, contentLength - read);
+            if (count < 0) {
+                throw new IOException("Unexpected end of request");
+            }
+            read += count;
+        }
+        if (isCompressed) {
+            body = readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+        }
+
+        int concurrentRequests = mConcurrentRequests.incrementAndGet();
+        try {
+            int max = mMaxConcurrentRequests.get();
+            while ((concurrentRequests > max)
+                && !mMaxConcurrentRequests.compareAndSet(max, concurrentRequests)) {
+                max = mMaxConcurrentRequests.get();
+            }
+
+            Map<String, String> params = parseParams(new String(body, CHARSET));
+            if (takeFault(mDroppedRequests)) {
+                synchronized (this) {
+                    mRequests.add(new Request(uri, params, headers, 0));
+                }
+                return false;
+            }
+            boolean isFailing = takeFault(mFailingRequests);
+            String json;
+            byte[] binary;
+            Picture picture;
+            synchronized (this) {
+                json = mChangesResponses.get(uri + "?since=" + params.get("since"));
+                if (json == null) {
+                    json = mResponses.get(uri);
+                }
+                binary = mBinaryResponses.get(uri);
+                picture = mPictures.get(uri);
+            }
+            String accept = headers.get("accept");
+            if ((accept == null) || !accept.contains(SmartMapParserFactory.BINARY_CONTENT_TYPE)) {
+                binary = null;
+            }
+
+            if (mResponseDelay > 0) {
+                try {
+                    Thread.sleep(mResponseDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            int status = ((json != null) || (binary != null) || (picture != null)) ? 200 : 404;
+            String statusLine = (status == 200) ? "HTTP/1.1 200 OK" : "HTTP/1.1 404 Not Found";
+            if (isFailing) {
+                status = mFailureStatus;
+                statusLine = "HTTP/1.1 " + status + " Injected Failure";
+                json = null;
+                binary = null;
+                picture = null;
+            }
+            String contentType = SmartMapParserFactory.JSON_CONTENT_TYPE;
+            byte[] content = ((json != null) ? json : "").getBytes(CHARSET);
+            String extraHeaders = "";
+            String cursor = cursorOf(json);
+            if (cursor != null) {
+                // Like the server, so that it is not lost with the binary format
+                extraHeaders = "\r\n" + CURSOR_HEADER + ": " + cursor;
+            }
+            if (binary != null) {
+                contentType = SmartMapParserFactory.BINARY_CONTENT_TYPE;
+                content = binary;
+            }
+            if (picture != null) {
+                contentType = PICTURE_CONTENT_TYPE;
+                extraHeaders += "\r\nETag: " + picture.mETag;
+                if (picture.mETag.equals(headers.get("if-none-match"))) {
+                    status = 304;
+                    statusLine = "HTTP/1.1 304 Not Modified";
+                    content = new byte[0];
+                } else {
+                    statusLine = "HTTP/1.1 200 OK";
+                    content = picture.mData;
+                }
+            } else if (acceptsCompression && (content.length >= MIN_COMPRESSED_SIZE)) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(content);
+                gzip.close();
+                content = compressed.toByteArray();
+                extraHeaders += "\r\nContent-Encoding: " + GZIP;
+            }
+            synchronized (this) {
+                mRequests.add(new Request(uri, params, headers, status));
+            }
+
+            String responseHeaders =
+                statusLine + "\r\nContent-Type: " + contentType + "\r\nContent-Length: " + content.length
+                    + extraHeaders + "\r\nConnection: " + (keepAlive ? "keep-alive" : "close")
+                    + "\r\n\r\n";
+
+            out.write(responseHeaders.getBytes(CHARSET));
+            out.write(content);
+            out.flush();
+        } finally {
+            mConcurrentRequests.decrementAndGet();
+        }
+        return keepAlive;
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mSockets.add(socket);
+                Thread connectionThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        LocalSmartMapServer.this.serveConnection(socket);
+                    }
+                }, LocalSmartMapServer.class.getSimpleName() + "-" + mConnectionCount.get());
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            } catch (IOException e) {
+                // Socket closed by stop
+            }
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            InputStream in = new CountingInputStream(socket.getInputStream(), mBytesReceived);
+            OutputStream out = new CountingOutputStream(socket.getOutputStream(), mBytesSent);
+            while (this.handle(in, out)) {
+                // Next request on the same connection
+            }
+        } catch (IOException e) {
+            // Connection closed by the client or by stop, or broken request, ignore it
+        } finally {
+            mSockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * @return the cursor of a Json response, or {@code null} if it has none
+     */
+    private static String cursorOf(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            JSONObject response = new JSONObject(json);
+            return response.has("cursor") ? response.getString("cursor") : null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> parseParams(String body) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String param : body.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator > 0) {
+                params.put(URLDecoder.decode(param.substring(0, separator), CHARSET),
+                    URLDecoder.decode(param.substring(separator + 1), CHARSET));
+            }
+        }
+        return params;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    throw new IOException("Connection closed");
+                }
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(CHARSET);
+    }
+
+    /**
+     * @return whether a fault of this counter must be injected, in which case it is counted down
+     */
+    private static boolean takeFault(AtomicInteger faults) {
+        int remaining = faults.get();
+        while (remaining > 0) {
+            if (faults.compareAndSet(remaining, remaining - 1)) {
+                return true;
+            }
+            remaining = faults.get();
+        }
+        return false;
+    }
+
+    /**
+     * Counts bytes read from the wrapped stream
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mCount;
+
+        private CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            mCount = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                mCount.addAndGet(count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Counts bytes written to the wrapped stream
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong mCount;
+
+        private CountingOutputStream(OutputStream out, AtomicLong count) {
+            super(out);
+            mCount = count;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            mCount.addAndGet(length);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * A picture served by the server
+     */
+    private static final class Picture {
+        private final byte[] mData;
+        private final String mETag;
+
+        private Picture(byte[] data, String eTag) {
+            mData = data;
+            mETag = eTag;
+        }
+    }
+
+    /**
+     * A request received by the server
+     *
+     * @author jfperren
+     */
+    public static final class Request {
+        private final String mUri;
+        private final Map<String, String> mParams;
+        private final Map<String, String> mHeaders;
+        private final int mStatus;
+
+        private Request(String uri, Map<String, String> params, Map<String, String> headers, int status) {
+            mUri = uri;
+            mParams = params;
+            mHeaders = headers;
+            mStatus = status;
+        }
+
+        /**
+         * @param name
+         *            case insensitive
+         * @return value of this header, or {@code null} if it was not sent
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase());
+        }
+
+        /**
+         * @param name
+         * @return value of this POST parameter, or {@code null} if it was not sent
+         */
+        public String getParam(String name) {
+            return mParams.get(name);
+        }
+
+        /**
+         * @return status code of the response sent by the server
+         */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return uri of the request, for example "/getUsersInfo"
+         */
+        public String getUri() {
+            return mUri;
+        }
+    }
+}
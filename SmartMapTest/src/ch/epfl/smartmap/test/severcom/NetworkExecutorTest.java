@@ -0,0 +1,187 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.callbacks.NetworkRequestCallback;
+import ch.epfl.smartmap.servercom.NetworkExecutor;
+import ch.epfl.smartmap.servercom.NetworkExecutor.Priority;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Tests {@link NetworkExecutor}
+ *
+ * @author jfperren
+ */
+public class NetworkExecutorTest extends AndroidTestCase {
+
+    // In seconds
+    private static final long WAIT = 5;
+
+    private NetworkExecutor mExecutor;
+    private CountDownLatch mRelease;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new NetworkExecutor(1, 1);
+        mRelease = new CountDownLatch(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        mExecutor.shutdown();
+        super.tearDown();
+    }
+
+    @Test
+    public void testCallbackGetsFailure() throws InterruptedException {
+        RecordingCallback<Void> callback = new RecordingCallback<Void>();
+
+        mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws SmartMapClientException {
+                throw new SmartMapClientException("Failed");
+            }
+        }, callback);
+
+        assertTrue(callback.mDone.await(WAIT, TimeUnit.SECONDS));
+        assertTrue(callback.mFailure.get() instanceof SmartMapClientException);
+    }
+
+    @Test
+    public void testCallbackGetsResult() throws Exception {
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+
+        Future<String> future = mExecutor.submit(Priority.BACKGROUND, new Callable<String>() {
+            @Override
+            public String call() {
+                return "result";
+            }
+        }, callback);
+
+        assertEquals("result", future.get(WAIT, TimeUnit.SECONDS));
+        assertTrue(callback.mDone.await(WAIT, TimeUnit.SECONDS));
+        assertEquals("result", callback.mResult.get());
+    }
+
+    @Test
+    public void testCancelledTaskHasNoCallback() throws InterruptedException {
+        this.blockLane(Priority.BACKGROUND);
+        RecordingCallback<Void> callback = new RecordingCallback<Void>();
+
+        Future<Void> future = mExecutor.submit(Priority.BACKGROUND, new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }, callback);
+        future.cancel(true);
+        mRelease.countDown();
+
+        assertFalse(callback.mDone.await(1, TimeUnit.SECONDS));
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            // Expected
+        } catch (ExecutionException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testInteractiveTaskIsNotQueuedBehindBackgroundTasks() throws Exception {
+        this.blockLane(Priority.BACKGROUND);
+
+        Future<Boolean> future = mExecutor.submit(Priority.INTERACTIVE, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return NetworkExecutor.isInteractiveThread();
+            }
+        }, null);
+
+        assertTrue(future.get(WAIT, TimeUnit.SECONDS));
+        assertFalse(NetworkExecutor.isInteractiveThread());
+    }
+
+    @Test
+    public void testMoreBackgroundThreadsRunQueuedTasks() throws Exception {
+        this.blockLane(Priority.BACKGROUND);
+
+        Future<Boolean> future = mExecutor.submit(Priority.BACKGROUND, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return NetworkExecutor.isBackgroundThread();
+            }
+        }, null);
+        mExecutor.setBackgroundThreads(2);
+
+        assertTrue(future.get(WAIT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimedOutTaskFails() throws InterruptedException {
+        RecordingCallback<Void> callback = new RecordingCallback<Void>();
+
+        Future<Void> future = mExecutor.submit(Priority.INTERACTIVE, new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                mRelease.await();
+                return null;
+            }
+        }, 100, callback);
+
+        assertTrue(callback.mDone.await(WAIT, TimeUnit.SECONDS));
+        assertTrue(callback.mFailure.get() instanceof TimeoutException);
+        assertTrue(future.isCancelled());
+    }
+
+    /**
+     * Occupies the only thread of a lane until {@code mRelease} is counted down
+     */
+    private void blockLane(Priority priority) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        mExecutor.submit(priority, new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                started.countDown();
+                mRelease.await();
+                return null;
+            }
+        }, 0, null);
+        assertTrue(started.await(WAIT, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Records what it is given
+     */
+    private static final class RecordingCallback<T> implements NetworkRequestCallback<T> {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final AtomicReference<T> mResult = new AtomicReference<T>();
+        private final AtomicReference<Exception> mFailure = new AtomicReference<Exception>();
+
+        @Override
+        public void onFailure(Exception e) {
+            mFailure.set(e);
+            mDone.countDown();
+        }
+
+        @Override
+        public void onSuccess(T result) {
+            mResult.set(result);
+            mDone.countDown();
+        }
+    }
+}
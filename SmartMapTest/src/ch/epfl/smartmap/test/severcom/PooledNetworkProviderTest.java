@@ -0,0 +1,141 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.PooledNetworkProvider;
+import ch.epfl.smartmap.servercom.SmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Tests {@link PooledNetworkProvider} against a {@link LocalSmartMapServer}, by counting connections and
+ * bytes on the wire
+ *
+ * @author jfperren
+ */
+public class PooledNetworkProviderTest extends AndroidTestCase {
+
+    private static final String OK_JSON = "{\"status\" : \"Ok\", \"message\" : \"Done.\"}";
+
+    private static final int REQUESTS = 10;
+    private static final int LARGE_LIST_SIZE = 2000;
+
+    private LocalSmartMapServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSmartMapServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testConcurrentRequestsAreLimited() throws Exception {
+        mServer.setResponse("/getFriendsIds", this.friendsIdsJson(1));
+        mServer.setResponseDelay(100);
+        final SmartMapClient client =
+            new NetworkSmartMapClient(mServer.getUrl(), new PooledNetworkProvider(2));
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(executor.submit(new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() throws SmartMapClientException {
+                    return client.getFriendsIds();
+                }
+            }));
+        }
+        for (Future<List<Long>> future : futures) {
+            assertEquals(1, future.get().size());
+        }
+        executor.shutdown();
+
+        assertEquals(6, mServer.getRequests().size());
+        assertTrue(mServer.getMaxConcurrentRequests() <= 2);
+    }
+
+    @Test
+    public void testConnectionIsReused() throws SmartMapClientException {
+        mServer.setResponse("/getFriendsIds", this.friendsIdsJson(3));
+        SmartMapClient client = new NetworkSmartMapClient(mServer.getUrl(), new PooledNetworkProvider());
+
+        for (int i = 0; i < REQUESTS; i++) {
+            assertEquals(3, client.getFriendsIds().size());
+        }
+
+        assertEquals(REQUESTS, mServer.getRequests().size());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testConnectionIsReusedAfterHttpError() throws SmartMapClientException {
+        SmartMapClient client = new NetworkSmartMapClient(mServer.getUrl(), new PooledNetworkProvider(1));
+        try {
+            // Not found
+            client.getFriendsIds();
+            fail();
+        } catch (SmartMapClientException e) {
+            // Expected
+        }
+        mServer.setResponse("/getFriendsIds", this.friendsIdsJson(3));
+
+        // The only permit was given back
+        assertEquals(3, client.getFriendsIds().size());
+    }
+
+    @Test
+    public void testLargeRequestIsCompressed() throws SmartMapClientException {
+        mServer.setResponse("/inviteUsersToEvent", OK_JSON);
+        SmartMapClient client = new NetworkSmartMapClient(mServer.getUrl(), new PooledNetworkProvider());
+        List<Long> ids = new ArrayList<Long>();
+        StringBuilder expectedIds = new StringBuilder();
+        for (long id = 1; id <= LARGE_LIST_SIZE; id++) {
+            ids.add(id);
+            expectedIds.append(id).append(',');
+        }
+
+        client.inviteUsersToEvent(13, ids);
+
+        assertEquals(expectedIds.toString(), mServer.getRequests().get(0).getParam("users_ids"));
+        assertTrue(mServer.getBytesReceived() < (expectedIds.length() / 2));
+    }
+
+    @Test
+    public void testLargeResponseIsCompressed() throws SmartMapClientException {
+        String json = this.friendsIdsJson(LARGE_LIST_SIZE);
+        mServer.setResponse("/getFriendsIds", json);
+        SmartMapClient client = new NetworkSmartMapClient(mServer.getUrl(), new PooledNetworkProvider());
+
+        List<Long> ids = client.getFriendsIds();
+
+        assertEquals(LARGE_LIST_SIZE, ids.size());
+        assertEquals(LARGE_LIST_SIZE, ids.get(LARGE_LIST_SIZE - 1).longValue());
+        assertTrue(mServer.getBytesSent() < (json.length() / 2));
+    }
+
+    private String friendsIdsJson(int size) {
+        StringBuilder json = new StringBuilder("{\"status\" : \"Ok\", \"message\" : \"Fetched friends.\", ");
+        json.append("\"friends\" : [");
+        for (int id = 1; id <= size; id++) {
+            if (id > 1) {
+                json.append(", ");
+            }
+            json.append(id);
+        }
+        return json.append("]}").toString();
+    }
+}
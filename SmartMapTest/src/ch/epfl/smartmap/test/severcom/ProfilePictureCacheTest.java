@@ -0,0 +1,116 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.ProfilePictureCache;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Tests the conditional requests of {@link NetworkSmartMapClient} for profile pictures stored in a
+ * {@link ProfilePictureCache}, against a {@link LocalSmartMapServer}
+ *
+ * @author jfperren
+ */
+public class ProfilePictureCacheTest extends AndroidTestCase {
+
+    private static final String URI = "/getProfilePicture";
+
+    private LocalSmartMapServer mServer;
+    private ProfilePictureCache mPictureCache;
+    private NetworkSmartMapClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSmartMapServer();
+        mPictureCache = new ProfilePictureCache(new File(this.getContext().getCacheDir(), "test_pictures"));
+        mPictureCache.clear();
+        mClient = new NetworkSmartMapClient(mServer.getUrl());
+        mClient.setPictureCache(mPictureCache);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPictureCache.clear();
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testChangedPictureIsDownloadedAgain() throws SmartMapClientException {
+        mServer.setPicture(URI, this.encodedPicture(Color.RED, 8), "\"red\"");
+        mClient.getProfilePicture(1);
+        mServer.setPicture(URI, this.encodedPicture(Color.BLUE, 8), "\"blue\"");
+
+        Bitmap picture = mClient.getProfilePictureIfModified(1);
+
+        assertNotNull(picture);
+        assertEquals(Color.BLUE, picture.getPixel(0, 0));
+        assertEquals(200, mServer.getRequests().get(1).getStatus());
+        assertEquals("\"blue\"", mPictureCache.get(1).getETag());
+    }
+
+    @Test
+    public void testLargePictureIsDownsampled() throws SmartMapClientException {
+        mServer.setPicture(URI, this.encodedPicture(Color.RED, 2048), "\"large\"");
+
+        Bitmap picture = mClient.getProfilePicture(1);
+
+        assertTrue(picture.getWidth() < 2048);
+        assertTrue(picture.getWidth() >= 512);
+    }
+
+    @Test
+    public void testPictureIsStoredWithItsValidator() throws SmartMapClientException {
+        mServer.setPicture(URI, this.encodedPicture(Color.RED, 8), "\"red\"");
+
+        mClient.getProfilePicture(1);
+
+        assertNull(mServer.getRequests().get(0).getHeader("If-None-Match"));
+        assertEquals("\"red\"", mPictureCache.get(1).getETag());
+        assertTrue(mPictureCache.size() > 0);
+    }
+
+    @Test
+    public void testUnchangedPictureCostsNotModified() throws SmartMapClientException {
+        mServer.setPicture(URI, this.encodedPicture(Color.RED, 8), "\"red\"");
+        mClient.getProfilePicture(1);
+
+        Bitmap picture = mClient.getProfilePicture(1);
+
+        assertEquals(Color.RED, picture.getPixel(0, 0));
+        assertEquals("\"red\"", mServer.getRequests().get(1).getHeader("If-None-Match"));
+        assertEquals(304, mServer.getRequests().get(1).getStatus());
+        // Not even decoded if the caller already has it
+        assertNull(mClient.getProfilePictureIfModified(1));
+        assertEquals(304, mServer.getRequests().get(2).getStatus());
+    }
+
+    @Test
+    public void testWithoutCachePictureIsAlwaysDownloaded() throws SmartMapClientException {
+        mServer.setPicture(URI, this.encodedPicture(Color.RED, 8), "\"red\"");
+        mClient.setPictureCache(null);
+
+        mClient.getProfilePicture(1);
+        Bitmap picture = mClient.getProfilePictureIfModified(1);
+
+        assertEquals(Color.RED, picture.getPixel(0, 0));
+        assertNull(mServer.getRequests().get(1).getHeader("If-None-Match"));
+        assertEquals(200, mServer.getRequests().get(1).getStatus());
+    }
+
+    private byte[] encodedPicture(int color, int size) {
+        Bitmap picture = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        picture.eraseColor(color);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        picture.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        return stream.toByteArray();
+    }
+}
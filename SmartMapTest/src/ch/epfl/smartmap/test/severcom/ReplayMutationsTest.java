@@ -0,0 +1,170 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.servercom.CircuitBreaker;
+import ch.epfl.smartmap.servercom.Mutation;
+import ch.epfl.smartmap.servercom.NetworkPolicy;
+import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.ResilientSmartMapClient;
+import ch.epfl.smartmap.servercom.RetryBudget;
+import ch.epfl.smartmap.servercom.SmartMapClient;
+
+/**
+ * Tests how {@link Mutation}s recorded offline are collapsed, and sent to a {@link LocalSmartMapServer}
+ *
+ * @author jfperren
+ */
+public class ReplayMutationsTest extends AndroidTestCase {
+
+    private static final String RESULTS_JSON = "{\"status\" : \"Ok\", \"message\" : \"Replayed mutations.\", "
+        + "\"results\" : [{\"key\" : \"a\", \"status\" : \"Ok\", \"message\" : \"Blocked friend !\"}, "
+        + "{\"key\" : \"b\", \"status\" : \"Ok\", \"message\" : \"Created event.\", \"id\" : 7}, "
+        + "{\"key\" : \"c\", \"status\" : \"error\", \"message\" : \"No invitation.\"}]}";
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    // In milliseconds
+    private static final long BACKOFF = 10;
+
+    private LocalSmartMapServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSmartMapServer();
+        mServer.setResponse("/replayMutations", RESULTS_JSON);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testCollapseDropsInvitationOfAcceptedFriend() {
+        Mutation invite = Mutation.inviteFriend(3);
+        Mutation accept = Mutation.acceptInvitation(3);
+
+        assertEquals(Arrays.asList(accept), Mutation.collapse(Arrays.asList(invite, accept)));
+    }
+
+    @Test
+    public void testCollapseKeepsLastBlockStatus() {
+        Mutation block = Mutation.blockFriend(3);
+        Mutation invite = Mutation.inviteFriend(4);
+        Mutation unblock = Mutation.unblockFriend(3);
+        Mutation blockAgain = Mutation.blockFriend(3);
+
+        assertEquals(Arrays.asList(invite, blockAgain),
+            Mutation.collapse(Arrays.asList(block, invite, unblock, blockAgain)));
+    }
+
+    @Test
+    public void testCollapseKeepsRepeatedMutationOnce() {
+        Mutation join = Mutation.joinEvent(5);
+        Mutation invite = Mutation.inviteFriend(4);
+        Mutation joinAgain = Mutation.joinEvent(5);
+
+        assertEquals(Arrays.asList(invite, joinAgain),
+            Mutation.collapse(Arrays.asList(join, invite, joinAgain)));
+    }
+
+    @Test
+    public void testCollapseKeepsLastParticipation() {
+        Mutation join = Mutation.joinEvent(5);
+        Mutation decline = Mutation.declineInvitation(4);
+        Mutation leave = Mutation.leaveEvent(5);
+
+        assertEquals(Arrays.asList(decline, leave), Mutation.collapse(Arrays.asList(join, decline, leave)));
+    }
+
+    @Test
+    public void testLocalIds() {
+        assertTrue(Mutation.isLocalId(Mutation.FIRST_LOCAL_ID));
+        assertFalse(Mutation.isLocalId(7));
+    }
+
+    @Test
+    public void testLostResponseIsSentAgain() throws Exception {
+        NetworkSmartMapClient networkClient = new NetworkSmartMapClient(mServer.getUrl());
+        NetworkPolicy policy =
+            new NetworkPolicy(new CircuitBreaker(), new RetryBudget(), NetworkPolicy.DEFAULT_MAX_ATTEMPTS,
+                BACKOFF, null);
+        networkClient.setNetworkPolicy(policy);
+        SmartMapClient client = new ResilientSmartMapClient(networkClient, policy);
+        mServer.failNextRequests(1, SERVICE_UNAVAILABLE);
+
+        List<Mutation> batch = Arrays.asList(Mutation.blockFriend(3));
+        assertEquals(3, client.replayMutations(batch).size());
+
+        // Both requests carry the same key, the server applies it once
+        assertEquals(2, mServer.getRequests().size());
+        assertEquals(mServer.getRequests().get(0).getParam("mutations"), mServer.getRequests().get(1)
+            .getParam("mutations"));
+    }
+
+    @Test
+    public void testReplaySendsBatchInOrder() throws Exception {
+        NetworkSmartMapClient client = new NetworkSmartMapClient(mServer.getUrl());
+        List<Mutation> batch = new ArrayList<Mutation>();
+        batch.add(Mutation.blockFriend(3));
+        batch.add(Mutation.joinEvent(5));
+
+        List<Mutation.Result> results = client.replayMutations(batch);
+
+        assertEquals(1, mServer.getRequests().size());
+        JSONArray sent = new JSONArray(mServer.getRequests().get(0).getParam("mutations"));
+        assertEquals(2, sent.length());
+        for (int i = 0; i < batch.size(); i++) {
+            JSONObject mutation = sent.getJSONObject(i);
+            assertEquals(batch.get(i).getKey(), mutation.getString("key"));
+            assertEquals(batch.get(i).getType().getUri(), mutation.getString("uri"));
+        }
+        assertEquals("3", sent.getJSONObject(0).getJSONObject("params").getString("friend_id"));
+        assertEquals("5", sent.getJSONObject(1).getJSONObject("params").getString("event_id"));
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(Mutation.NO_ID, results.get(0).getId());
+        assertEquals(7, results.get(1).getId());
+        assertFalse(results.get(2).isSuccess());
+        assertEquals("No invitation.", results.get(2).getMessage());
+    }
+
+    @Test
+    public void testTargetOfLocalEventIsReplaced() {
+        Mutation leave = Mutation.leaveEvent(Mutation.FIRST_LOCAL_ID + 1);
+
+        Mutation sent = leave.withTargetId(7);
+
+        assertEquals(leave, sent);
+        assertEquals(7, sent.getTargetId());
+        assertEquals("7", sent.getParams().get("event_id"));
+    }
+
+    @Test
+    public void testTooLargeBatchIsRefused() throws Exception {
+        NetworkSmartMapClient client = new NetworkSmartMapClient(mServer.getUrl());
+        List<Mutation> batch = new ArrayList<Mutation>();
+        for (int i = 0; i <= Mutation.MAX_BATCH_SIZE; i++) {
+            batch.add(Mutation.inviteFriend(i + 1));
+        }
+
+        try {
+            client.replayMutations(batch);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(0, mServer.getRequests().size());
+    }
+}
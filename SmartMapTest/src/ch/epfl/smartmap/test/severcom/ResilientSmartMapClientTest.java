@@ -0,0 +1,193 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.cache.MetricsRegistry;
+import ch.epfl.smartmap.servercom.CircuitBreaker;
+import ch.epfl.smartmap.servercom.NetworkPolicy;
+import ch.epfl.smartmap.servercom.NetworkSmartMapClient;
+import ch.epfl.smartmap.servercom.ResilientSmartMapClient;
+import ch.epfl.smartmap.servercom.RetryBudget;
+import ch.epfl.smartmap.servercom.ServerUnavailableException;
+import ch.epfl.smartmap.servercom.SmartMapClient;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+
+/**
+ * Tests {@link ResilientSmartMapClient} and {@link NetworkPolicy} against a {@link LocalSmartMapServer}
+ * injecting faults
+ *
+ * @author jfperren
+ */
+public class ResilientSmartMapClientTest extends AndroidTestCase {
+
+    private static final String USER_JSON = "{\"status\" : \"Ok\", \"message\" : \"Fetched user info !\", "
+        + "\"id\" : 1, \"name\" : \"Alice\", \"isFriend\" : 1}";
+    private static final String OK_JSON = "{\"status\" : \"Ok\", \"message\" : \"Done.\"}";
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final int MANY = 100;
+
+    // In milliseconds
+    private static final long BACKOFF = 10;
+    private static final long LONG_OPEN_TIME = 60000;
+    private static final long SHORT_OPEN_TIME = 200;
+
+    private LocalSmartMapServer mServer;
+    private MetricsRegistry mMetrics;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalSmartMapServer();
+        mServer.setResponse("/getUserInfo", USER_JSON);
+        mServer.setResponse("/inviteFriend", OK_JSON);
+        mMetrics = new MetricsRegistry();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testBreakerClosesAfterSuccessfulTrial() throws Exception {
+        NetworkPolicy policy = this.policy(new CircuitBreaker(1, SHORT_OPEN_TIME, SHORT_OPEN_TIME), 1);
+        SmartMapClient client = this.client(policy);
+        mServer.failNextRequests(1, SERVICE_UNAVAILABLE);
+
+        this.assertUnavailable(client);
+        assertFalse(policy.isServerAvailable());
+        assertTrue(policy.getRemainingUnavailableTime() > 0);
+
+        Thread.sleep(SHORT_OPEN_TIME * 2);
+
+        assertTrue(policy.isServerAvailable());
+        assertEquals("Alice", client.getUserInfo(1).getName());
+        assertEquals(CircuitBreaker.State.CLOSED, policy.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testBreakerRefusesRequestsWhenOpen() throws SmartMapClientException {
+        NetworkPolicy policy = this.policy(new CircuitBreaker(2, LONG_OPEN_TIME, LONG_OPEN_TIME), 1);
+        SmartMapClient client = this.client(policy);
+        mServer.failNextRequests(MANY, SERVICE_UNAVAILABLE);
+
+        this.assertUnavailable(client);
+        this.assertUnavailable(client);
+        this.assertUnavailable(client);
+
+        // The third request was not sent
+        assertEquals(2, mServer.getRequests().size());
+        assertEquals(CircuitBreaker.State.OPEN, policy.getCircuitBreaker().getState());
+        assertFalse(policy.isServerAvailable());
+        assertEquals(1, mMetrics.counter(MetricsRegistry.NETWORK_REFUSED_REQUESTS).getCount());
+    }
+
+    @Test
+    public void testDroppedConnectionIsRetried() throws SmartMapClientException {
+        SmartMapClient client = this.client(this.policy(new CircuitBreaker(MANY, 0, 0), 3));
+        mServer.dropNextRequests(1);
+
+        assertEquals("Alice", client.getUserInfo(1).getName());
+    }
+
+    @Test
+    public void testRequestThatCannotBeRepeatedIsSentOnce() {
+        SmartMapClient client = this.client(this.policy(new CircuitBreaker(MANY, 0, 0), 3));
+        mServer.failNextRequests(1, SERVICE_UNAVAILABLE);
+
+        try {
+            client.inviteFriend(1);
+            fail();
+        } catch (ServerUnavailableException e) {
+            // Expected
+        } catch (SmartMapClientException e) {
+            fail();
+        }
+
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    @Test
+    public void testRetriesStopWhenBudgetIsSpent() {
+        NetworkPolicy policy =
+            new NetworkPolicy(new CircuitBreaker(MANY, 0, 0), new RetryBudget(1, 0), 3, BACKOFF, mMetrics);
+        SmartMapClient client = this.client(policy);
+        mServer.failNextRequests(MANY, SERVICE_UNAVAILABLE);
+
+        this.assertUnavailable(client);
+        assertEquals(2, mServer.getRequests().size());
+
+        this.assertUnavailable(client);
+        assertEquals(3, mServer.getRequests().size());
+        assertEquals(1, mMetrics.counter(MetricsRegistry.NETWORK_RETRIES).getCount());
+    }
+
+    @Test
+    public void testServerErrorIsRetried() throws SmartMapClientException {
+        SmartMapClient client = this.client(this.policy(new CircuitBreaker(MANY, 0, 0), 3));
+        mServer.failNextRequests(2, SERVICE_UNAVAILABLE);
+
+        assertEquals("Alice", client.getUserInfo(1).getName());
+        assertEquals(3, mServer.getRequests().size());
+        assertEquals(2, mMetrics.counter(MetricsRegistry.NETWORK_RETRIES).getCount());
+    }
+
+    @Test
+    public void testServerFeedbackIsNotRetried() {
+        NetworkPolicy policy = this.policy(new CircuitBreaker(1, LONG_OPEN_TIME, LONG_OPEN_TIME), 3);
+        SmartMapClient client = this.client(policy);
+        mServer.setResponse("/getUserInfo", "{\"status\" : \"error\", \"message\" : \"Unknown user.\"}");
+
+        try {
+            client.getUserInfo(1);
+            fail();
+        } catch (ServerUnavailableException e) {
+            fail();
+        } catch (SmartMapClientException e) {
+            // Expected
+        }
+
+        assertEquals(1, mServer.getRequests().size());
+        // The server answered, it is available
+        assertTrue(policy.isServerAvailable());
+    }
+
+    @Test
+    public void testSlowEndpointTimesOut() {
+        NetworkPolicy policy = this.policy(new CircuitBreaker(MANY, 0, 0), 1);
+        policy.setReadTimeout("/getUserInfo", 200);
+        SmartMapClient client = this.client(policy);
+        mServer.setResponseDelay(1000);
+
+        ServerUnavailableException failure = this.assertUnavailable(client);
+
+        assertTrue(failure.getCause() instanceof SocketTimeoutException);
+    }
+
+    private ServerUnavailableException assertUnavailable(SmartMapClient client) {
+        try {
+            client.getUserInfo(1);
+            fail();
+        } catch (ServerUnavailableException e) {
+            return e;
+        } catch (SmartMapClientException e) {
+            fail();
+        }
+        return null;
+    }
+
+    private SmartMapClient client(NetworkPolicy policy) {
+        NetworkSmartMapClient client = new NetworkSmartMapClient(mServer.getUrl());
+        client.setNetworkPolicy(policy);
+        return new ResilientSmartMapClient(client, policy);
+    }
+
+    private NetworkPolicy policy(CircuitBreaker breaker, int maxAttempts) {
+        return new NetworkPolicy(breaker, new RetryBudget(), maxAttempts, BACKOFF, mMetrics);
+    }
+}
@@ -4,6 +4,7 @@ import junit.framework.TestCase;
 
 import org.junit.Test;
 
+import ch.epfl.smartmap.servercom.BinarySmartMapParser;
 import ch.epfl.smartmap.servercom.NoSuchFormatException;
 import ch.epfl.smartmap.servercom.SmartMapParserFactory;
 
@@ -11,6 +12,7 @@ public class SmartMapParserFactoryTest extends TestCase {
 
 	private static final String JSON_CONTENT_TYPE = "application/json";
 	private static final String TEXT_CONTENT_TYPE = "text/plain";
+	private static final String BINARY_CONTENT_TYPE = "application/vnd.smartmap";
 
 	@Override
 	protected void setUp() throws Exception {
@@ -22,6 +24,18 @@ public class SmartMapParserFactoryTest extends TestCase {
 		SmartMapParserFactory.parserForContentType(JSON_CONTENT_TYPE);
 	}
 
+	@Test
+	public void testBinaryContentTypeIsStreamed() throws NoSuchFormatException {
+		assertTrue(SmartMapParserFactory.streamingParserForContentType(BINARY_CONTENT_TYPE)
+			instanceof BinarySmartMapParser);
+		try {
+			SmartMapParserFactory.parserForContentType(BINARY_CONTENT_TYPE);
+			fail("Text parser for binary format");
+		} catch (NoSuchFormatException e) {
+			// success
+		}
+	}
+
 	@Test
 	public void testUnsupportedContentType() {
 		try {
@@ -0,0 +1,181 @@
+package ch.epfl.smartmap.test.severcom;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import android.location.Location;
+import android.test.AndroidTestCase;
+import ch.epfl.smartmap.background.ServiceContainer;
+import ch.epfl.smartmap.cache.EventContainer;
+import ch.epfl.smartmap.cache.UserContainer;
+import ch.epfl.smartmap.servercom.JsonSmartMapParser;
+import ch.epfl.smartmap.servercom.ServerFeedbackException;
+import ch.epfl.smartmap.servercom.SmartMapClientException;
+import ch.epfl.smartmap.servercom.SmartMapParseException;
+import ch.epfl.smartmap.servercom.StreamingJsonSmartMapParser;
+import ch.epfl.smartmap.servercom.StreamingSmartMapParser;
+
+/**
+ * Tests that {@link StreamingJsonSmartMapParser} reads whole responses like {@link JsonSmartMapParser}
+ * parses their text
+ *
+ * @author jfperren
+ */
+public class StreamingJSONParsingTest extends AndroidTestCase {
+
+    private static final String OK = "\"status\" : \"Ok\", \"message\" : \"Success!\", ";
+
+    private static final String FRIEND_LIST_JSON = "{" + OK + "\"users\" : [{\"id\" : \"13\", "
+        + "\"name\" : \"Georges\", \"latitude\" : \"20.03\", \"longitude\" : 26.85, "
+        + "\"lastUpdate\" : \"2014-12-03 20:21:22\", \"isFriend\" : 1}, "
+        + "{\"id\" : 18, \"name\" : \"Alice\"}]}";
+
+    private static final String POSITIONS_JSON = "{" + OK + "\"positions\" : [{\"id\" : \"13\", "
+        + "\"latitude\" : \"20.03\", \"longitude\" : \"26.85\", \"lastUpdate\": \"2014-11-12 23:54:22\"}, "
+        + "{\"id\" : 18, \"latitude\" : 40.0, \"longitude\" : 3.0, "
+        + "\"lastUpdate\": \"2014-10-23 05:07:54\"}]}";
+
+    private static final String EVENT_LIST_JSON = "{" + OK + "\"events\" : [{\"id\" : \"13\", "
+        + "\"creator\" : {\"id\" : \"3\", \"name\" : \"Georges\"}, "
+        + "\"startingDate\" : \"2014-10-23 05:07:54\", "
+        + "\"endingDate\" : \"2014-11-12 23:54:22\", \"longitude\" : \"26.85\", \"latitude\" : \"20.03\", "
+        + "\"participants\" : [3, 4, 1], \"name\" : \"MyEvent\", \"description\" : \"description\", "
+        + "\"positionName\" : \"Tokyo\"}]}";
+
+    private static final String PICTURES_JSON = "{" + OK
+        + "\"pictures\" : [{\"id\" : 3, \"picture\" : \"AQID\"}]}";
+
+    private StreamingSmartMapParser mParser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ServiceContainer.initSmartMapServices(this.getContext());
+        mParser = new StreamingJsonSmartMapParser();
+    }
+
+    @Test
+    public void testErrorStatusIsThrownWithoutReadingTheRest() throws Exception {
+        try {
+            // The rest of the response is not even valid
+            String json = "{\"status\" : \"error\", \"message\" : \"Wrong id.\", \"friends\" : [-";
+            mParser.parseIdList(this.stream(json), "friends");
+            fail("Did not throw the server's error");
+        } catch (SmartMapClientException e) {
+            assertEquals("Wrong id.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFeedbackStatusIsThrown() throws Exception {
+        try {
+            String json = "{\"status\" : \"feedback\", \"message\" : \"Already friends.\"}";
+            mParser.parseIdList(this.stream(json), "friends");
+            fail("Did not throw the server's feedback");
+        } catch (ServerFeedbackException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testInvalidIdIsRejected() throws Exception {
+        try {
+            mParser.parseIdList(this.stream("{" + OK + "\"friends\" : [3, -4]}"), "friends");
+            fail("parsed negative id");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testMalformedJsonIsRejected() throws Exception {
+        try {
+            mParser.parseIdList(this.stream("{" + OK + "\"friends\" : [3, 4"), "friends");
+            fail("parsed truncated Json");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testMissingStatusIsRejected() throws Exception {
+        try {
+            mParser.parseIdList(this.stream("{\"friends\" : [3, 4]}"), "friends");
+            fail("parsed response without status");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testMissingValueIsRejected() throws Exception {
+        try {
+            mParser.parseIdList(this.stream("{" + OK + "\"others\" : [3, 4]}"), "friends");
+            fail("parsed response without value");
+        } catch (SmartMapParseException e) {
+            // success
+        }
+    }
+
+    @Test
+    public void testParseEventListLikeTextParser() throws Exception {
+        List<EventContainer> expected = new JsonSmartMapParser().parseEventList(EVENT_LIST_JSON);
+        List<EventContainer> events = mParser.parseEventList(this.stream(EVENT_LIST_JSON));
+
+        assertEquals(expected.size(), events.size());
+        EventContainer event = events.get(0);
+        assertEquals(expected.get(0).getId(), event.getId());
+        assertEquals(expected.get(0).getName(), event.getName());
+        assertEquals(expected.get(0).getCreatorContainer().getName(), event.getCreatorContainer().getName());
+        assertEquals(expected.get(0).getStartDate(), event.getStartDate());
+        assertEquals(expected.get(0).getParticipantIds(), event.getParticipantIds());
+        assertEquals(expected.get(0).getLocation().getLatitude(), event.getLocation().getLatitude());
+    }
+
+    @Test
+    public void testParseFriendListLikeTextParser() throws Exception {
+        List<UserContainer> expected = new JsonSmartMapParser().parseFriendList(FRIEND_LIST_JSON, "users");
+        List<UserContainer> friends = mParser.parseFriendList(this.stream(FRIEND_LIST_JSON), "users");
+
+        assertEquals(expected.size(), friends.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), friends.get(i).getId());
+            assertEquals(expected.get(i).getName(), friends.get(i).getName());
+            assertEquals(expected.get(i).getFriendship(), friends.get(i).getFriendship());
+        }
+        assertEquals(20.03, friends.get(0).getLocation().getLatitude());
+        assertNull(friends.get(1).getLocation());
+    }
+
+    @Test
+    public void testParsePicturesLikeTextParser() throws Exception {
+        Map<Long, byte[]> pictures = mParser.parsePictures(this.stream(PICTURES_JSON), "pictures");
+
+        assertEquals(1, pictures.size());
+        assertEquals(3, pictures.get(3L).length);
+        assertEquals(1, pictures.get(3L)[0]);
+    }
+
+    @Test
+    public void testParsePositionsLikeTextParser() throws Exception {
+        List<UserContainer> expected = new JsonSmartMapParser().parsePositions(POSITIONS_JSON);
+        List<UserContainer> users = mParser.parsePositions(this.stream(POSITIONS_JSON));
+
+        assertEquals(expected.size(), users.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), users.get(i).getId());
+            Location expectedLocation = expected.get(i).getLocation();
+            assertEquals(expectedLocation.getLatitude(), users.get(i).getLocation().getLatitude());
+            assertEquals(expectedLocation.getTime(), users.get(i).getLocation().getTime());
+        }
+    }
+
+    private InputStream stream(String json) throws UnsupportedEncodingException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,262 @@
+<?php
+
+namespace SmartMap\Control;
+
+use Symfony\Component\HttpFoundation\Request;
+use Symfony\Component\HttpFoundation\Response;
+
+/**
+ * This class contains static utility methods encoding the JSON responses
+ * made mostly of numbers (lists of ids, positions and events) in the compact
+ * binary format read by the client's BinarySmartMapParser. It is used as an
+ * after middleware of the application, for clients that accept this format.
+ *
+ * A response starts with 'SM', the version of the format, its status, its
+ * message and the kind of its content. Integers are varints, signed ones are
+ * zigzag encoded. Strings are their length followed by their UTF-8 bytes, and
+ * lists their size followed by their elements. In lists, ids, coordinates (in
+ * millionths of degree) and dates (in seconds, server time) are sent as the
+ * difference with the previous element.
+ *
+ * @package SmartMap\Control
+ *
+ * @author Pamoi
+ */
+class BinaryFormat
+{
+    public static $CONTENT_TYPE = 'application/vnd.smartmap';
+
+    public static $VERSION = 1;
+
+    public static $STATUS_OK = 0;
+    public static $STATUS_ERROR = 1;
+    public static $STATUS_FEEDBACK = 2;
+
+    public static $CONTENT_NONE = 0;
+    public static $CONTENT_IDS = 1;
+    public static $CONTENT_POSITIONS = 2;
+    public static $CONTENT_EVENTS = 3;
+
+    public static $COORDINATE_SCALE = 1000000;
+
+    // Content (one of the $CONTENT_ values) of the responses of each route
+    // that can be encoded, and its key in the JSON response.
+    private static $ROUTES = array(
+        '/getFriendsIds' => array(1, 'friends'),
+        '/getPublicEvents' => array(1, 'events'),
+        '/listFriendsPos' => array(2, 'positions'),
+        '/getEventsInfo' => array(3, 'events')
+    );
+
+    /**
+     * Replaces the JSON content of a response by its binary encoding if the
+     * client accepts it and the route has one. Does nothing otherwise.
+     *
+     * @param Request $request
+     * @param Response $response
+     */
+    public static function encodeResponse(Request $request, Response $response)
+    {
+        $path = $request->getPathInfo();
+
+        if (!isset(self::$ROUTES[$path])
+            OR !in_array(self::$CONTENT_TYPE, $request->getAcceptableContentTypes()))
+        {
+            return;
+        }
+
+        $data = json_decode($response->getContent(), true);
+
+        if (!is_array($data) OR !isset($data['status']) OR !isset($data['message']))
+        {
+            return;
+        }
+
+        $content = self::$ROUTES[$path][0];
+        $key = self::$ROUTES[$path][1];
+
+        if ($data['status'] == 'error')
+        {
+            $body = self::header(self::$STATUS_ERROR, $data['message'], self::$CONTENT_NONE);
+        }
+        else if ($data['status'] == 'feedback')
+        {
+            $body = self::header(self::$STATUS_FEEDBACK, $data['message'], self::$CONTENT_NONE);
+        }
+        else if (isset($data[$key]))
+        {
+            $body = self::header(self::$STATUS_OK, $data['message'], $content);
+
+            if ($content == self::$CONTENT_IDS)
+            {
+                $body .= self::ids($data[$key]);
+            }
+            else if ($content == self::$CONTENT_POSITIONS)
+            {
+                $body .= self::positions($data[$key]);
+            }
+            else
+            {
+                $body .= self::events($data[$key]);
+            }
+        }
+        else
+        {
+            return;
+        }
+
+        $response->setContent($body);
+        $response->headers->set('Content-Type', self::$CONTENT_TYPE);
+        $response->headers->set('Content-Length', strlen($body));
+        $response->headers->set('Vary', 'Accept', false);
+    }
+
+    /**
+     * Encodes an unsigned integer as a varint, 7 bits per byte with the least
+     * significant group first.
+     *
+     * @param int $value
+     * @return string
+     */
+    public static function varint($value)
+    {
+        $bytes = '';
+
+        while ($value >= 0x80 OR $value < 0)
+        {
+            $bytes .= chr(($value & 0x7F) | 0x80);
+            // Logical shift, so that negative values also end
+            $value = ($value >> 7) & (PHP_INT_MAX >> 6);
+        }
+
+        return $bytes . chr($value);
+    }
+
+    /**
+     * Encodes a signed integer as a zigzag varint.
+     *
+     * @param int $value
+     * @return string
+     */
+    public static function signedVarint($value)
+    {
+        $value = (int) $value;
+
+        return self::varint(($value << 1) ^ ($value >> (PHP_INT_SIZE * 8 - 1)));
+    }
+
+    /**
+     * Encodes a string as its length in bytes followed by its bytes.
+     *
+     * @param string $value
+     * @return string
+     */
+    public static function string($value)
+    {
+        return self::varint(strlen($value)) . $value;
+    }
+
+    /**
+     * Converts a date in format YYYY-MM-DD hh:mm:ss, in server time, into
+     * seconds since 1970-01-01 00:00:00 server time.
+     *
+     * @param string $date
+     * @return int
+     */
+    public static function date($date)
+    {
+        $dateTime = \DateTime::createFromFormat('Y-m-d H:i:s', $date, new \DateTimeZone('UTC'));
+
+        return $dateTime->getTimestamp();
+    }
+
+    /**
+     * Converts a coordinate in degrees into millionths of degree.
+     *
+     * @param float $coordinate
+     * @return int
+     */
+    public static function coordinate($coordinate)
+    {
+        return (int) round($coordinate * self::$COORDINATE_SCALE);
+    }
+
+    private static function header($status, $message, $content)
+    {
+        return 'SM' . chr(self::$VERSION) . chr($status) . self::string($message) . chr($content);
+    }
+
+    private static function ids($ids)
+    {
+        $bytes = self::varint(count($ids));
+
+        $previous = 0;
+        foreach ($ids as $id)
+        {
+            $id = (int) $id;
+            $bytes .= self::signedVarint($id - $previous);
+            $previous = $id;
+        }
+
+        return $bytes;
+    }
+
+    private static function positions($positions)
+    {
+        $bytes = self::varint(count($positions));
+
+        $previous = array(0, 0, 0, 0);
+        foreach ($positions as $position)
+        {
+            $values = array(
+                (int) $position['id'],
+                self::coordinate($position['latitude']),
+                self::coordinate($position['longitude']),
+                self::date($position['lastUpdate'])
+            );
+
+            for ($i = 0; $i < 4; $i++)
+            {
+                $bytes .= self::signedVarint($values[$i] - $previous[$i]);
+            }
+
+            $previous = $values;
+        }
+
+        return $bytes;
+    }
+
+    private static function events($events)
+    {
+        $bytes = self::varint(count($events));
+
+        $previous = array(0, 0, 0, 0, 0);
+        foreach ($events as $event)
+        {
+            $startingDate = self::date($event['startingDate']);
+            $values = array(
+                (int) $event['id'],
+                (int) $event['creator']['id'],
+                $startingDate,
+                self::coordinate($event['latitude']),
+                self::coordinate($event['longitude'])
+            );
+
+            $bytes .= self::signedVarint($values[0] - $previous[0]);
+            $bytes .= self::signedVarint($values[1] - $previous[1]);
+            $bytes .= self::string($event['creator']['name']);
+            $bytes .= self::signedVarint($values[2] - $previous[2]);
+            $bytes .= self::signedVarint(self::date($event['endingDate']) - $startingDate);
+            $bytes .= self::signedVarint($values[3] - $previous[3]);
+            $bytes .= self::signedVarint($values[4] - $previous[4]);
+            $bytes .= self::string($event['positionName']);
+            $bytes .= self::string($event['name']);
+            $bytes .= self::string($event['description']);
+            $bytes .= self::ids($event['participants']);
+
+            $previous = $values;
+        }
+
+        return $bytes;
+    }
+}
@@ -0,0 +1,76 @@
+<?php
+
+namespace SmartMap\Control;
+
+use Symfony\Component\HttpFoundation\Request;
+use Symfony\Component\HttpFoundation\Response;
+
+/**
+ * This class contains static utility methods handling gzip compression of
+ * request and response bodies. They are used as before and after middlewares
+ * of the application.
+ *
+ * @package SmartMap\Control
+ *
+ * @author Pamoi
+ */
+class CompressionUtils
+{
+    // Smaller responses are not compressed as it would not save anything.
+    public static $MIN_COMPRESSED_SIZE = 1024;
+
+    /**
+     * Replaces the post parameters of a request whose body was sent compressed
+     * with gzip by the decompressed ones. Does nothing for other requests.
+     *
+     * @param Request $request
+     * @throws InvalidRequestException
+     */
+    public static function decompressRequest(Request $request)
+    {
+        if (strtolower($request->headers->get('Content-Encoding')) != 'gzip')
+        {
+            return;
+        }
+
+        $body = @gzdecode($request->getContent());
+
+        if ($body === false)
+        {
+            throw new InvalidRequestException('Invalid compressed request body.');
+        }
+
+        $params = array();
+        parse_str($body, $params);
+        $request->request->replace($params);
+    }
+
+    /**
+     * Compresses the body of a response with gzip if the client accepts it
+     * and the body is big enough.
+     *
+     * @param Request $request
+     * @param Response $response
+     */
+    public static function compressResponse(Request $request, Response $response)
+    {
+        if (strpos($request->headers->get('Accept-Encoding'), 'gzip') === false
+            OR $response->headers->has('Content-Encoding'))
+        {
+            return;
+        }
+
+        // File responses have no content and are already compressed images.
+        $content = $response->getContent();
+
+        if ($content === false OR strlen($content) < self::$MIN_COMPRESSED_SIZE)
+        {
+            return;
+        }
+
+        $response->setContent(gzencode($content));
+        $response->headers->set('Content-Encoding', 'gzip');
+        $response->headers->set('Content-Length', strlen($response->getContent()));
+        $response->headers->set('Vary', 'Accept-Encoding', false);
+    }
+}
@@ -7,6 +7,7 @@ use Symfony\Component\HttpFoundation\JsonResponse;
 
 use SmartMap\DBInterface\UserRepositoryInterface;
 use SmartMap\DBInterface\DatabaseException;
+use SmartMap\DBInterface\User;
 
 /**
  * 
@@ -17,6 +18,9 @@ use SmartMap\DBInterface\DatabaseException;
  */
 class DataController implements DataControllerInterface
 {
+    // Maximum number of ids in a batched request
+    public static $MAX_BATCH_SIZE = 50;
+
     private $mRepo;
     
     function __construct(UserRepositoryInterface $repo)
@@ -83,6 +87,13 @@ class DataController implements DataControllerInterface
     public function listFriendsPos(Request $request)
     {
         $userId = RequestUtils::getIdFromRequest($request);
+
+        $since = SyncCursor::getCursor($request);
+
+        SyncCursor::checkDateCursor($since);
+
+        // Taken before reading positions, so that no update made during the request is missed next time
+        $cursor = date(User::$DATE_FORMAT);
         
         try
         {
@@ -103,6 +114,11 @@ class DataController implements DataControllerInterface
         if ($user->getVisibility() == 'VISIBLE')
         {
             foreach ($friends as $friend) {
+                if (!SyncCursor::isChangedSince($friend->getLastUpdate(), $since))
+                {
+                    continue;
+                }
+
                 $list[] = array(
                     'id' => $friend->getId(),
                     'longitude' => $friend->getLongitude(),
@@ -118,8 +134,19 @@ class DataController implements DataControllerInterface
             'message' => 'Fetched friends positions !',
             'positions' => $list
         );
-        
-        return new JsonResponse($response);
+
+        if ($since === null)
+        {
+            return new JsonResponse($response);
+        }
+
+        $response[SyncCursor::$FIELD] = $cursor;
+
+        $jsonResponse = new JsonResponse($response);
+        // Kept if the response is encoded in the binary format
+        $jsonResponse->headers->set(SyncCursor::$HEADER, $cursor);
+
+        return $jsonResponse;
     }
 
     /**
@@ -173,29 +200,66 @@ class DataController implements DataControllerInterface
             throw new ControlLogicException('Error in getUserInfo.', 2, $e);
         }
 
-        $isFriend = 0;
-
-        if (in_array($id, $friendsIds))
-        {
-            $isFriend = 1;
-        }
-        else if ($userId == $id)
-        {
-            $isFriend = 2;
-        }
-
         // We only send public data
         $response = array(
             'status' => 'Ok',
             'message' => 'Fetched user info !',
             'id' => $user->getId(),
             'name' => $user->getName(),
-            'isFriend' => $isFriend
+            'isFriend' => $this->friendshipStatus($userId, $id, $friendsIds)
         );
         
         return new JsonResponse($response);
     }
 
+    /**
+     * Gets the information for the users whose ids are given in user_ids POST parameter,
+     * as a list of numbers separated by commas. Ids for which there is no user are ignored.
+     *
+     * @param Request $request
+     * @return JsonResponse
+     * @throws ControlLogicException
+     * @throws InvalidRequestException
+     */
+    public function getUsersInfo(Request $request)
+    {
+        $userId = RequestUtils::getIdFromRequest($request);
+
+        $ids = RequestUtils::getIntArrayFromString(RequestUtils::getPostParam($request, 'user_ids'));
+
+        if (count($ids) > self::$MAX_BATCH_SIZE)
+        {
+            throw new InvalidRequestException('Too many ids, the maximum is ' . self::$MAX_BATCH_SIZE . '.');
+        }
+
+        try
+        {
+            $users = $this->mRepo->getUsers($ids);
+
+            $friendsIds = $this->mRepo->getFriendsIds($userId);
+        }
+        catch (DatabaseException $e)
+        {
+            throw new ControlLogicException('Error in getUsersInfo.', 2, $e);
+        }
+
+        $usersInfo = array();
+
+        foreach ($users as $user)
+        {
+            // We only send public data
+            $usersInfo[] = array(
+                'id' => $user->getId(),
+                'name' => $user->getName(),
+                'isFriend' => $this->friendshipStatus($userId, $user->getId(), $friendsIds)
+            );
+        }
+
+        $response = array('status' => 'Ok', 'message' => 'Fetched users info !', 'users' => $usersInfo);
+
+        return new JsonResponse($response);
+    }
+
     /**
      * Sends an invitation to the user with id in post parameter.
      *
@@ -305,6 +369,23 @@ class DataController implements DataControllerInterface
             'newFriends' => $friendsList,
             'removedFriends' => $removedIds
         );
+
+        $since = SyncCursor::getCursor($request);
+
+        if ($since !== null)
+        {
+            $cursor = SyncCursor::versionCursor(array($invitersList, $friendsList, $removedIds));
+
+            // Nothing changed, the client already has all of this
+            if ($cursor == $since)
+            {
+                $response['invitations'] = array();
+                $response['newFriends'] = array();
+                $response['removedFriends'] = array();
+            }
+
+            $response[SyncCursor::$FIELD] = $cursor;
+        }
         
         return new JsonResponse($response);
     }
@@ -527,4 +608,27 @@ class DataController implements DataControllerInterface
         
         return new JsonResponse($response);
     }
+
+    /**
+     * Utility function giving the value of the isFriend field sent with user information:
+     * 1 if the user is a friend, 2 if it is the current user himself, 0 otherwise.
+     *
+     * @param int $userId
+     * @param int $id
+     * @param array $friendsIds
+     * @return int
+     */
+    private function friendshipStatus($userId, $id, $friendsIds)
+    {
+        if (in_array($id, $friendsIds))
+        {
+            return 1;
+        }
+        else if ($userId == $id)
+        {
+            return 2;
+        }
+
+        return 0;
+    }
 }
@@ -30,7 +30,9 @@ interface DataControllerInterface
     public function updatePos(Request $request);
 
     /**
-     * Gets the position of followed friends allowing it.
+     * Gets the position of followed friends allowing it. If the POST parameter
+     * since is set, only the positions updated since this cursor are sent,
+     * with a new cursor (see SyncCursor).
      *
      * @param Request $request
      * @return JsonResponse
@@ -59,6 +61,17 @@ interface DataControllerInterface
      */
     public function getUserInfo(Request $request);
 
+    /**
+     * Gets the information for the users whose ids are given in user_ids POST parameter,
+     * as a list of numbers separated by commas. Ids for which there is no user are ignored.
+     *
+     * @param Request $request
+     * @return JsonResponse
+     * @throws ControlLogicException
+     * @throws InvalidRequestException
+     */
+    public function getUsersInfo(Request $request);
+
     /**
      * Sends an invitation to the user with id in post parameter.
      *
@@ -73,7 +86,9 @@ interface DataControllerInterface
     /**
      * Gets a list of the pending invitations, a list of the friends that
      * accepted the user's invitation and a list of the ids of the friends
-     * that removed the user.
+     * that removed the user. If the POST parameter since is set, the lists
+     * are empty when they did not change since this cursor, and a new cursor
+     * is sent (see SyncCursor).
      *
      * @param Request $request
      * @return JsonResponse
@@ -13,6 +13,8 @@ use Symfony\Component\HttpFoundation\Request;
 
 class EventController implements EventControllerInterface
 {
+    // Maximum number of ids in a batched request
+    public static $MAX_BATCH_SIZE = 50;
 
     private $mEventRepo;
     private $mUserRepo;
@@ -306,6 +308,21 @@ class EventController implements EventControllerInterface
 
         $response = array('status' => 'Ok', 'message' => 'Fetched events.', 'events' => $eventList);
 
+        $since = SyncCursor::getCursor($request);
+
+        if ($since !== null)
+        {
+            $cursor = SyncCursor::versionCursor($eventList);
+
+            // Nothing changed, the client already has all of this
+            if ($cursor == $since)
+            {
+                $response['events'] = array();
+            }
+
+            $response[SyncCursor::$FIELD] = $cursor;
+        }
+
         return new JsonResponse($response);
     }
 
@@ -371,6 +388,71 @@ class EventController implements EventControllerInterface
         return new JsonResponse($response);
     }
 
+    /**
+     * Get the information of the events whose ids are given in event_ids POST parameter,
+     * as a list of numbers separated by commas. Ids for which there is no event are ignored.
+     *
+     * @param Request $request
+     * @return JsonResponse
+     * @throws ControlLogicException
+     * @throws InvalidRequestException
+     */
+    public function getEventsInfo(Request $request)
+    {
+        RequestUtils::getIdFromRequest($request);
+
+        $eventsIds = RequestUtils::getIntArrayFromString(RequestUtils::getPostParam($request, 'event_ids'));
+
+        if (count($eventsIds) > self::$MAX_BATCH_SIZE)
+        {
+            throw new InvalidRequestException('Too many ids, the maximum is ' . self::$MAX_BATCH_SIZE . '.');
+        }
+
+        try
+        {
+            $events = $this->mEventRepo->getEvents($eventsIds);
+
+            // Creators and participants are fetched in a single query each
+            $creatorsIds = array();
+            $eventsFoundIds = array();
+            foreach ($events as $event)
+            {
+                $creatorsIds[] = $event->getCreatorId();
+                $eventsFoundIds[] = $event->getId();
+            }
+
+            $creators = array();
+            foreach ($this->mUserRepo->getUsers(array_values(array_unique($creatorsIds))) as $creator)
+            {
+                $creators[$creator->getId()] = $creator;
+            }
+
+            $participants = $this->mEventRepo->getEventsParticipants($eventsFoundIds);
+
+            $eventList = array();
+
+            foreach ($events as $event)
+            {
+                $creatorId = $event->getCreatorId();
+                if (!isset($creators[$creatorId]))
+                {
+                    throw new DatabaseException('No creator found with id ' . $creatorId . '.');
+                }
+
+                $eventList[] = $this->eventInfoArray($event, $creators[$creatorId],
+                    $participants[$event->getId()]);
+            }
+        }
+        catch (DatabaseException $e)
+        {
+            throw new ControlLogicException('Error in getEventsInfo.', 2, $e);
+        }
+
+        $response = array('status' => 'Ok', 'message' => 'Fetched events.', 'events' => $eventList);
+
+        return new JsonResponse($response);
+    }
+
     /**
      * Utility function generating an associative array from an event and
      * a list of participants to generate JSON.
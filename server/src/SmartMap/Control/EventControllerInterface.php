@@ -68,7 +68,9 @@ interface EventControllerInterface
     public function inviteUsersToEvent(Request $request);
 
     /**
-     * Get the events to which the user is invited.
+     * Get the events to which the user is invited. If the POST parameter since
+     * is set, the list is empty when it did not change since this cursor, and
+     * a new cursor is sent (see SyncCursor).
      *
      * @param Request $request
      * @return JsonResponse
@@ -96,4 +98,15 @@ interface EventControllerInterface
      * @throws InvalidRequestException
      */
     public function getEventInfo(Request $request);
+
+    /**
+     * Get the information of the events whose ids are given in event_ids POST parameter,
+     * as a list of numbers separated by commas. Ids for which there is no event are ignored.
+     *
+     * @param Request $request
+     * @return JsonResponse
+     * @throws ControlLogicException
+     * @throws InvalidRequestException
+     */
+    public function getEventsInfo(Request $request);
 }
\ No newline at end of file
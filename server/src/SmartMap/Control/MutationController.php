@@ -0,0 +1,211 @@
+<?php
+
+namespace SmartMap\Control;
+
+use Symfony\Component\HttpFoundation\JsonResponse;
+use Symfony\Component\HttpFoundation\Request;
+
+use SmartMap\DBInterface\MutationRepositoryInterface;
+use SmartMap\DBInterface\DatabaseException;
+
+/**
+ * Applies batches of mutations recorded by clients while they were offline.
+ * Each mutation is applied by the controller of its route, as if it was sent
+ * alone. The results are remembered in the database by user and key, so that
+ * a batch sent again after its response was lost is not applied twice, even
+ * from another session.
+ *
+ * @author Pamoi
+ */
+class MutationController implements MutationControllerInterface
+{
+    // Maximum number of mutations in a batch
+    public static $MAX_BATCH_SIZE = 50;
+
+    // Number of results remembered for each user
+    public static $MAX_REMEMBERED_KEYS = 500;
+
+    private $mRepo;
+    private $mDataController;
+    private $mAuthorizationController;
+    private $mEventController;
+
+    public function __construct(MutationRepositoryInterface $repo,
+                                DataControllerInterface $dataController,
+                                AuthorizationControllerInterface $authorizationController,
+                                EventControllerInterface $eventController)
+    {
+        $this->mRepo = $repo;
+        $this->mDataController = $dataController;
+        $this->mAuthorizationController = $authorizationController;
+        $this->mEventController = $eventController;
+    }
+
+    /**
+     * Applies a batch of mutations.
+     *
+     * @param Request $request
+     * @return JsonResponse
+     * @throws ControlLogicException
+     * @throws InvalidRequestException
+     */
+    public function replayMutations(Request $request)
+    {
+        $userId = RequestUtils::getIdFromRequest($request);
+
+        $mutations = json_decode(RequestUtils::getPostParam($request, 'mutations'), true);
+
+        if (!is_array($mutations))
+        {
+            throw new InvalidRequestException('Invalid mutations.');
+        }
+
+        if (count($mutations) > self::$MAX_BATCH_SIZE)
+        {
+            throw new InvalidRequestException('Too many mutations, the maximum is ' . self::$MAX_BATCH_SIZE . '.');
+        }
+
+        $keys = array();
+
+        foreach ($mutations as $mutation)
+        {
+            if (!isset($mutation['key']) OR !isset($mutation['uri']) OR !isset($mutation['params'])
+                OR !is_array($mutation['params']))
+            {
+                throw new InvalidRequestException('Invalid mutation.');
+            }
+
+            $keys[] = (string) $mutation['key'];
+        }
+
+        try
+        {
+            $remembered = $this->mRepo->getMutationResults($userId, $keys);
+        }
+        catch (DatabaseException $e)
+        {
+            throw new ControlLogicException('Error in replayMutations.', 2, $e);
+        }
+
+        $results = array();
+
+        foreach ($mutations as $mutation)
+        {
+            $key = (string) $mutation['key'];
+
+            if (isset($remembered[$key]))
+            {
+                $results[] = $remembered[$key];
+                continue;
+            }
+
+            try
+            {
+                $result = $this->apply($request, $mutation['uri'], $mutation['params']);
+            }
+            catch (ControlLogicException $e)
+            {
+                // The following mutations will be sent again
+                break;
+            }
+
+            $result['key'] = $key;
+
+            try
+            {
+                $this->mRepo->addMutationResult($userId, $key, $result);
+            }
+            catch (DatabaseException $e)
+            {
+                throw new ControlLogicException('Error in replayMutations.', 2, $e);
+            }
+
+            $remembered[$key] = $result;
+            $results[] = $result;
+        }
+
+        try
+        {
+            // Oldest results are forgotten first
+            $this->mRepo->removeOldMutationResults($userId, self::$MAX_REMEMBERED_KEYS);
+        }
+        catch (DatabaseException $e)
+        {
+            throw new ControlLogicException('Error in replayMutations.', 2, $e);
+        }
+
+        $response = array('status' => 'Ok', 'message' => 'Replayed mutations.', 'results' => $results);
+
+        return new JsonResponse($response);
+    }
+
+    /**
+     * Applies a single mutation.
+     *
+     * @param Request $request the request of the batch
+     * @param string $uri
+     * @param array $params
+     * @return array the status, message, and id if any of the result
+     * @throws ControlLogicException
+     */
+    private function apply(Request $request, $uri, array $params)
+    {
+        $mutationRequest = new Request($query = array(), $params);
+        $mutationRequest->setSession($request->getSession());
+
+        try
+        {
+            switch ($uri)
+            {
+                case '/acceptInvitation':
+                    $response = $this->mDataController->acceptInvitation($mutationRequest);
+                    break;
+                case '/blockFriend':
+                    $response = $this->mAuthorizationController->blockFriend($mutationRequest);
+                    break;
+                case '/createEvent':
+                    $response = $this->mEventController->createEvent($mutationRequest);
+                    break;
+                case '/declineInvitation':
+                    $response = $this->mDataController->declineInvitation($mutationRequest);
+                    break;
+                case '/inviteFriend':
+                    $response = $this->mDataController->inviteFriend($mutationRequest);
+                    break;
+                case '/joinEvent':
+                    $response = $this->mEventController->joinEvent($mutationRequest);
+                    break;
+                case '/leaveEvent':
+                    $response = $this->mEventController->leaveEvent($mutationRequest);
+                    break;
+                case '/unblockFriend':
+                    $response = $this->mAuthorizationController->unblockFriend($mutationRequest);
+                    break;
+                case '/updateEvent':
+                    $response = $this->mEventController->updateEvent($mutationRequest);
+                    break;
+                default:
+                    return array('status' => 'error', 'message' => 'Invalid mutation uri.');
+            }
+        }
+        catch (InvalidRequestException $e)
+        {
+            return array('status' => 'error', 'message' => $e->getMessage());
+        }
+        catch (ServerFeedbackException $e)
+        {
+            return array('status' => 'feedback', 'message' => $e->getMessage());
+        }
+
+        $data = json_decode($response->getContent(), true);
+
+        $result = array('status' => $data['status'], 'message' => $data['message']);
+
+        if (isset($data['id']))
+        {
+            $result['id'] = $data['id'];
+        }
+
+        return $result;
+    }
+}
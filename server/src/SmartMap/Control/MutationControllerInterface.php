@@ -0,0 +1,32 @@
+<?php
+
+namespace SmartMap\Control;
+
+use Symfony\Component\HttpFoundation\JsonResponse;
+use Symfony\Component\HttpFoundation\Request;
+
+/**
+ * This class applies batches of mutations that clients recorded while they
+ * were offline.
+ *
+ * @author Pamoi
+ */
+interface MutationControllerInterface
+{
+    /**
+     * Applies a batch of mutations, in order. The POST parameter 'mutations'
+     * is a JSON array of objects with a unique 'key', the 'uri' of the request
+     * to apply and its POST 'params'. Mutations whose key was already applied
+     * are not applied again, their previous result is sent instead.
+     *
+     * The response contains the field 'results', with for each processed
+     * mutation its 'key', 'status' and 'message', and the 'id' of the created
+     * event if any. If an internal error occurs, processing stops and the
+     * following mutations are not in the results.
+     *
+     * @param Request $request
+     * @return JsonResponse
+     * @throws InvalidRequestException
+     */
+    public function replayMutations(Request $request);
+}
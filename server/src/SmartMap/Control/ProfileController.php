@@ -4,15 +4,32 @@ namespace SmartMap\Control;
 
 use Silex\Application;
 
+use SmartMap\DBInterface\DatabaseException;
+use SmartMap\DBInterface\UserRepositoryInterface;
+
+use Symfony\Component\HttpFoundation\JsonResponse;
 use Symfony\Component\HttpFoundation\Request;
 
 class ProfileController implements ProfileControllerInterface
 {
     public static $PICTURES_PATH = '../pictures/';
 
+    // Maximum number of pictures in a batched request, they are much bigger than other data
+    public static $MAX_PICTURES_BATCH_SIZE = 10;
+
+    private $mUserRepo;
+
+    public function __construct(UserRepositoryInterface $userRepo)
+    {
+        $this->mUserRepo = $userRepo;
+    }
+
     /**
      * Get the profile picture of a user.
      *
+     * The response has ETag and Last-Modified headers, and is an empty 304 Not Modified if the client
+     * sends matching If-None-Match or If-Modified-Since headers.
+     *
      * @param Request $request
      * @param Application $app
      * @return \Symfony\Component\HttpFoundation\BinaryFileResponse
@@ -34,9 +51,74 @@ class ProfileController implements ProfileControllerInterface
             {
                 $app['monolog']->addWarning('Missing profile picture for user with id ' . $id . ' !');
             }
-            return $app->sendFile(self::$PICTURES_PATH . 'default.jpg');
+            $imagePath = self::$PICTURES_PATH . 'default.jpg';
         }
-        
-        return $app->sendFile($imagePath);
+
+        $response = $app->sendFile($imagePath);
+        $response->setAutoEtag();
+        $response->setAutoLastModified();
+        // Sets the status to 304 and removes the content if the client's copy is up to date
+        $response->isNotModified($request);
+
+        return $response;
+    }
+
+    /**
+     * Get the profile pictures of the users whose ids are given in user_ids POST parameter,
+     * as a list of numbers separated by commas. Pictures are encoded in base 64. Ids of unknown users
+     * are skipped.
+     *
+     * @param Request $request
+     * @param Application $app
+     * @return JsonResponse
+     * @throws ControlLogicException
+     * @throws InvalidRequestException
+     */
+    public function getProfilePictures(Request $request, Application $app)
+    {
+        // We check that we are authenticated.
+        RequestUtils::getIdFromRequest($request);
+
+        // Ids are converted to int, which avoids path injection
+        $ids = RequestUtils::getIntArrayFromString(RequestUtils::getPostParam($request, 'user_ids'));
+        $ids = array_unique($ids);
+
+        if (count($ids) > self::$MAX_PICTURES_BATCH_SIZE)
+        {
+            throw new InvalidRequestException('Too many ids, the maximum is '
+                . self::$MAX_PICTURES_BATCH_SIZE . '.');
+        }
+
+        try
+        {
+            $users = $this->mUserRepo->getUsers(array_values($ids));
+        }
+        catch (DatabaseException $e)
+        {
+            throw new ControlLogicException('Error in getProfilePictures.', 2, $e);
+        }
+
+        $pictures = array();
+
+        foreach ($users as $user)
+        {
+            $id = $user->getId();
+            $imagePath = self::$PICTURES_PATH . $id . '.jpg';
+            if (!file_exists($imagePath))
+            {
+                // This is should not happen in production !
+                if ($app['debug'] == false)
+                {
+                    $app['monolog']->addWarning('Missing profile picture for user with id ' . $id . ' !');
+                }
+                $imagePath = self::$PICTURES_PATH . 'default.jpg';
+            }
+
+            $pictures[] = array('id' => $id, 'picture' => base64_encode(file_get_contents($imagePath)));
+        }
+
+        $response = array('status' => 'Ok', 'message' => 'Fetched pictures.', 'pictures' => $pictures);
+
+        return new JsonResponse($response);
     }
-}
\ No newline at end of file
+}
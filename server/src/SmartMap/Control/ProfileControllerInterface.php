@@ -21,4 +21,17 @@ interface ProfileControllerInterface
      * @throws InvalidRequestException
      */
     public function getProfilePicture(Request $request, Application $app);
+
+    /**
+     * Get the profile pictures of the users whose ids are given in user_ids POST parameter,
+     * as a list of numbers separated by commas. Pictures are encoded in base 64. Ids of unknown users
+     * are skipped.
+     *
+     * @param Request $request
+     * @param Application $app
+     * @return \Symfony\Component\HttpFoundation\JsonResponse
+     * @throws ControlLogicException
+     * @throws InvalidRequestException
+     */
+    public function getProfilePictures(Request $request, Application $app);
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+<?php
+
+namespace SmartMap\Control;
+
+use SmartMap\DBInterface\User;
+use Symfony\Component\HttpFoundation\Request;
+
+/**
+ * This class contains static utility methods for routes that can send only
+ * what changed since a previous request. The client sends the cursor of the
+ * previous response in the POST parameter 'since', or an empty string to get
+ * everything, and gets a new cursor in the field 'cursor' of the response.
+ * Routes whose response can be sent in the binary format, which has no
+ * cursor, also send it in the header $HEADER.
+ *
+ * Two kinds of cursors are used:
+ * - date cursors, the server time of the previous request, for data that has
+ *   a last update date like positions,
+ * - version cursors, a hash of the previous response, for data that has none
+ *   like invitations. If nothing changed, the lists of the response are empty.
+ *
+ * Requests without the 'since' parameter get the full response without any
+ * cursor, as before.
+ *
+ * @package SmartMap\Control
+ *
+ * @author Pamoi
+ */
+class SyncCursor
+{
+    public static $PARAM = 'since';
+
+    public static $FIELD = 'cursor';
+
+    public static $HEADER = 'X-SmartMap-Cursor';
+
+    /**
+     * Get the cursor sent by the client.
+     *
+     * @param Request $request
+     * @return string|null null if the client did not send one, an empty
+     * string if it wants everything.
+     */
+    public static function getCursor(Request $request)
+    {
+        $cursor = RequestUtils::getPostParam($request, self::$PARAM, false);
+
+        return ($cursor === null) ? null : (string) $cursor;
+    }
+
+    /**
+     * Checks that a cursor is empty or a date in format User::$DATE_FORMAT,
+     * and throws an InvalidRequestException otherwise.
+     *
+     * @param string $cursor
+     * @throws InvalidRequestException
+     */
+    public static function checkDateCursor($cursor)
+    {
+        if ($cursor === null OR $cursor === '')
+        {
+            return;
+        }
+
+        $date = \DateTime::createFromFormat(User::$DATE_FORMAT, $cursor);
+
+        if (!$date OR $date->format(User::$DATE_FORMAT) != $cursor)
+        {
+            throw new InvalidRequestException('Invalid cursor.');
+        }
+    }
+
+    /**
+     * Tells whether a date is after a date cursor. Dates in format
+     * User::$DATE_FORMAT can be compared as strings. Equal dates are
+     * considered changed, as updates made in the same second as the previous
+     * request may have been missed by it.
+     *
+     * @param string $date
+     * @param string $cursor
+     * @return bool
+     */
+    public static function isChangedSince($date, $cursor)
+    {
+        return $cursor === null OR $cursor === '' OR strcmp($date, $cursor) >= 0;
+    }
+
+    /**
+     * Computes the version cursor of some data.
+     *
+     * @param array $data
+     * @return string
+     */
+    public static function versionCursor(array $data)
+    {
+        return md5(json_encode($data));
+    }
+}
@@ -117,26 +117,49 @@ class EventRepository implements EventRepositoryInterface
             throw new DatabaseException('No event found with id ' . $id . ' in method getEvent.');
         }
 
+        return $this->eventFromData($eventData);
+    }
+
+    /**
+     * Get several events from the database in a single query, given their ids.
+     * Ids for which there is no event are ignored.
+     *
+     * @param array $ids
+     * @return array
+     * @throws DatabaseException
+     */
+    public function getEvents($ids)
+    {
+        if (!is_array($ids))
+        {
+            throw new DatabaseException('Argument $ids must be an array.');
+        }
+
+        // If $ids is empty, we will find no event
+        if (count($ids) == 0)
+        {
+            return array();
+        }
+
+        $req = "SELECT * FROM " . self::$TABLE_EVENT . " WHERE id IN (?)";
+
         try
         {
-            $event = new Event(
-                (int) $eventData['id'],
-                (int) $eventData['creator_id'],
-                $eventData['starting_date'],
-                $eventData['ending_date'],
-                (double) $eventData['longitude'],
-                (double) $eventData['latitude'],
-                $eventData['position_name'],
-                $eventData['name'],
-                $eventData['description']
-            );
+            $stmt = $this->mDb->executeQuery($req, array($ids), array(Connection::PARAM_INT_ARRAY));
         }
-        catch (\InvalidArgumentException $e)
+        catch (\Exception $e)
         {
-            throw new DatabaseException('Event with invalid state in database with id ' . $id . '.', 1, $e);
+            throw new DatabaseException('Error in getEvents.', 1, $e);
         }
 
-        return $event;
+        $events = array();
+
+        while ($eventData = $stmt->fetch())
+        {
+            $events[] = $this->eventFromData($eventData);
+        }
+
+        return $events;
     }
 
     /**
@@ -350,6 +373,52 @@ class EventRepository implements EventRepositoryInterface
         return $users;
     }
 
+    /**
+     * Get the ids of users participating to several events, in a single query.
+     *
+     * @param array $eventsIds
+     * @return array the ids of the participants of each event, by event id, with an empty array for events
+     * without participants
+     * @throws DatabaseException
+     */
+    public function getEventsParticipants($eventsIds)
+    {
+        if (!is_array($eventsIds))
+        {
+            throw new DatabaseException('Argument $eventsIds must be an array.');
+        }
+
+        $participants = array();
+        foreach ($eventsIds as $eventId)
+        {
+            $participants[(int) $eventId] = array();
+        }
+
+        // If $eventsIds is empty, we will find no participant
+        if (count($eventsIds) == 0)
+        {
+            return $participants;
+        }
+
+        $req = "SELECT id_event, id_user FROM " . self::$TABLE_EVENT_PARTICIPANTS . " WHERE id_event IN (?)";
+
+        try
+        {
+            $stmt = $this->mDb->executeQuery($req, array($eventsIds), array(Connection::PARAM_INT_ARRAY));
+        }
+        catch (\Exception $e)
+        {
+            throw new DatabaseException('Error in getEventsParticipants.', 1, $e);
+        }
+
+        while ($row = $stmt->fetch())
+        {
+            $participants[(int) $row['id_event']][] = (int) $row['id_user'];
+        }
+
+        return $participants;
+    }
+
     /**
      * Get the ids of the events to which a user is invited.
      *
@@ -378,4 +447,34 @@ class EventRepository implements EventRepositoryInterface
 
         return $eventsIds;
     }
-}
\ No newline at end of file
+
+    /**
+     * Utility function creating an Event from a row of the events table.
+     *
+     * @param array $eventData
+     * @return Event
+     * @throws DatabaseException
+     */
+    private function eventFromData($eventData)
+    {
+        try
+        {
+            return new Event(
+                (int) $eventData['id'],
+                (int) $eventData['creator_id'],
+                $eventData['starting_date'],
+                $eventData['ending_date'],
+                (double) $eventData['longitude'],
+                (double) $eventData['latitude'],
+                $eventData['position_name'],
+                $eventData['name'],
+                $eventData['description']
+            );
+        }
+        catch (\InvalidArgumentException $e)
+        {
+            $id = $eventData['id'];
+            throw new DatabaseException('Event with invalid state in database with id ' . $id . '.', 1, $e);
+        }
+    }
+}
@@ -41,6 +41,16 @@ interface EventRepositoryInterface
      */
     public function getEvent($id);
 
+    /**
+     * Get several events from the database in a single query, given their ids.
+     * Ids for which there is no event are ignored.
+     *
+     * @param array $ids
+     * @return array
+     * @throws DatabaseException
+     */
+    public function getEvents($ids);
+
     /**
      * Gets the not finished yet events in a radius of $radius kilometers around position
      * given by $longitude and $latitude.
@@ -98,6 +108,16 @@ interface EventRepositoryInterface
      */
     public function getEventParticipants($eventId);
 
+    /**
+     * Get the ids of users participating to several events, in a single query.
+     *
+     * @param array $eventsIds
+     * @return array the ids of the participants of each event, by event id, with an empty array for events
+     * without participants
+     * @throws DatabaseException
+     */
+    public function getEventsParticipants($eventsIds);
+
     /**
      * Get the ids of the events to which a user is invited.
      *
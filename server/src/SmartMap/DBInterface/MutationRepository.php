@@ -0,0 +1,128 @@
+<?php
+
+namespace SmartMap\DBInterface;
+
+use Doctrine\DBAL\Connection;
+
+/**
+ * Models the repo of the results of mutations replayed by clients. Results
+ * are kept per user, so that a batch sent again from another session is not
+ * applied twice.
+ *
+ * @author Pamoi
+ */
+class MutationRepository implements MutationRepositoryInterface
+{
+    private static $TABLE_MUTATION_RESULTS = 'mutation_results';
+
+    private $mDb;
+
+    /**
+     * Constructs a MutationRepository with a Doctrine\DBAL\Connection object.
+     *
+     * @param Connection $db
+     */
+    function __construct(Connection $db)
+    {
+        $this->mDb = $db;
+    }
+
+    /**
+     * Gets the results of the mutations with the given keys that the user
+     * already applied.
+     *
+     * @param long $userId
+     * @param array $keys
+     * @return array the results, by key
+     * @throws DatabaseException
+     */
+    public function getMutationResults($userId, $keys)
+    {
+        if (!is_array($keys))
+        {
+            throw new DatabaseException('Argument $keys must be an array.');
+        }
+
+        $results = array();
+
+        // If $keys is empty, we will find no result
+        if (count($keys) == 0)
+        {
+            return $results;
+        }
+
+        $req = "SELECT mutation_key, result FROM " . self::$TABLE_MUTATION_RESULTS .
+            " WHERE id_user = ? AND mutation_key IN (?)";
+
+        try
+        {
+            $stmt = $this->mDb->executeQuery($req, array((int) $userId, array_values($keys)),
+                array(\PDO::PARAM_INT, Connection::PARAM_STR_ARRAY));
+        }
+        catch (\Exception $e)
+        {
+            throw new DatabaseException('Error in getMutationResults.', 1, $e);
+        }
+
+        while ($row = $stmt->fetch())
+        {
+            $results[$row['mutation_key']] = json_decode($row['result'], true);
+        }
+
+        return $results;
+    }
+
+    /**
+     * Remembers the result of a mutation applied by the user.
+     *
+     * @param long $userId
+     * @param string $key
+     * @param array $result
+     * @throws DatabaseException
+     */
+    public function addMutationResult($userId, $key, array $result)
+    {
+        try
+        {
+            $this->mDb->insert(self::$TABLE_MUTATION_RESULTS, array(
+                'id_user' => (int) $userId,
+                'mutation_key' => (string) $key,
+                'result' => json_encode($result)
+            ));
+        }
+        catch (\Exception $e)
+        {
+            throw new DatabaseException('Error in addMutationResult.', 1, $e);
+        }
+    }
+
+    /**
+     * Forgets the oldest results of the user, so that only the $count most
+     * recent ones are kept.
+     *
+     * @param long $userId
+     * @param int $count
+     * @throws DatabaseException
+     */
+    public function removeOldMutationResults($userId, $count)
+    {
+        // The id of the oldest result to keep
+        $req = "SELECT id FROM " . self::$TABLE_MUTATION_RESULTS .
+            " WHERE id_user = ? ORDER BY id DESC LIMIT 1 OFFSET " . ((int) $count - 1);
+
+        try
+        {
+            $oldestId = $this->mDb->fetchColumn($req, array((int) $userId), 0);
+
+            if ($oldestId !== false)
+            {
+                $this->mDb->executeUpdate("DELETE FROM " . self::$TABLE_MUTATION_RESULTS .
+                    " WHERE id_user = ? AND id < ?", array((int) $userId, (int) $oldestId));
+            }
+        }
+        catch (\Exception $e)
+        {
+            throw new DatabaseException('Error in removeOldMutationResults.', 1, $e);
+        }
+    }
+}
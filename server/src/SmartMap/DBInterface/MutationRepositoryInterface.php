@@ -0,0 +1,42 @@
+<?php
+
+namespace SmartMap\DBInterface;
+
+/**
+ * Models the repo of the results of mutations replayed by clients.
+ *
+ * @author Pamoi
+ */
+interface MutationRepositoryInterface
+{
+    /**
+     * Gets the results of the mutations with the given keys that the user
+     * already applied.
+     *
+     * @param long $userId
+     * @param array $keys
+     * @return array the results, by key
+     * @throws DatabaseException
+     */
+    public function getMutationResults($userId, $keys);
+
+    /**
+     * Remembers the result of a mutation applied by the user.
+     *
+     * @param long $userId
+     * @param string $key
+     * @param array $result
+     * @throws DatabaseException
+     */
+    public function addMutationResult($userId, $key, array $result);
+
+    /**
+     * Forgets the oldest results of the user, so that only the $count most
+     * recent ones are kept.
+     *
+     * @param long $userId
+     * @param int $count
+     * @throws DatabaseException
+     */
+    public function removeOldMutationResults($userId, $count);
+}
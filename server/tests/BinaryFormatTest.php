@@ -0,0 +1,106 @@
+<?php
+
+use SmartMap\Control\BinaryFormat;
+
+use Symfony\Component\HttpFoundation\JsonResponse;
+use Symfony\Component\HttpFoundation\Request;
+
+/** Tests for the BinaryFormat class.
+ * To run them, run
+ * $> phpunit --bootstrap vendor/autoload.php tests/BinaryFormatTest.php
+ * from the server directory.
+ *
+ * @author Pamoi
+ *
+ */
+class BinaryFormatTest extends PHPUnit_Framework_TestCase
+{
+    public function testVarint()
+    {
+        $this->assertEquals("\x00", BinaryFormat::varint(0));
+        $this->assertEquals("\x7F", BinaryFormat::varint(127));
+        $this->assertEquals("\x80\x01", BinaryFormat::varint(128));
+        $this->assertEquals("\xAC\x02", BinaryFormat::varint(300));
+    }
+
+    public function testSignedVarint()
+    {
+        $this->assertEquals("\x00", BinaryFormat::signedVarint(0));
+        $this->assertEquals("\x01", BinaryFormat::signedVarint(-1));
+        $this->assertEquals("\x02", BinaryFormat::signedVarint(1));
+        $this->assertEquals("\x03", BinaryFormat::signedVarint(-2));
+    }
+
+    public function testDateIsServerTime()
+    {
+        $this->assertEquals(86400 + 3600, BinaryFormat::date('1970-01-02 01:00:00'));
+    }
+
+    public function testEncodePositions()
+    {
+        $request = $this->acceptingRequest('/listFriendsPos');
+        $response = new JsonResponse(array('status' => 'Ok', 'message' => 'M', 'positions' => array(
+            array('id' => 3, 'latitude' => 46.5, 'longitude' => 6.5, 'lastUpdate' => '1970-01-01 00:01:00'),
+            array('id' => 5, 'latitude' => 46.5, 'longitude' => 6.5, 'lastUpdate' => '1970-01-01 00:01:00')
+        )));
+
+        BinaryFormat::encodeResponse($request, $response);
+
+        $expected = "SM\x01\x00\x01M\x02\x02"
+            . "\x06" . BinaryFormat::signedVarint(46500000) . BinaryFormat::signedVarint(6500000) . "\x78"
+            // Only the id changes in the second position
+            . "\x04\x00\x00\x00";
+
+        $this->assertEquals('application/vnd.smartmap', $response->headers->get('Content-Type'));
+        $this->assertEquals($expected, $response->getContent());
+    }
+
+    public function testEncodeIds()
+    {
+        $request = $this->acceptingRequest('/getFriendsIds');
+        $response = new JsonResponse(array('status' => 'Ok', 'message' => '', 'friends' => array(10, 12, 11)));
+
+        BinaryFormat::encodeResponse($request, $response);
+
+        $this->assertEquals("SM\x01\x00\x00\x01\x03\x14\x04\x01", $response->getContent());
+    }
+
+    public function testEncodeError()
+    {
+        $request = $this->acceptingRequest('/getPublicEvents');
+        $response = new JsonResponse(array('status' => 'error', 'message' => 'Bad'));
+
+        BinaryFormat::encodeResponse($request, $response);
+
+        $this->assertEquals("SM\x01\x01\x03Bad\x00", $response->getContent());
+    }
+
+    public function testResponseIsNotEncodedIfNotAccepted()
+    {
+        $request = Request::create('/listFriendsPos', 'POST');
+        $response = new JsonResponse(array('status' => 'Ok', 'message' => 'M', 'positions' => array()));
+        $content = $response->getContent();
+
+        BinaryFormat::encodeResponse($request, $response);
+
+        $this->assertEquals($content, $response->getContent());
+        $this->assertEquals('application/json', $response->headers->get('Content-Type'));
+    }
+
+    public function testOtherRoutesAreNotEncoded()
+    {
+        $request = $this->acceptingRequest('/getUsersInfo');
+        $response = new JsonResponse(array('status' => 'Ok', 'message' => 'M', 'users' => array()));
+        $content = $response->getContent();
+
+        BinaryFormat::encodeResponse($request, $response);
+
+        $this->assertEquals($content, $response->getContent());
+    }
+
+    private function acceptingRequest($uri)
+    {
+        return Request::create($uri, 'POST', array(), array(), array(),
+            array('HTTP_ACCEPT' => 'application/vnd.smartmap, application/json;q=0.5'));
+    }
+}
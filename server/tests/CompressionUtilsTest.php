@@ -0,0 +1,93 @@
+<?php
+
+use SmartMap\Control\CompressionUtils;
+
+use Symfony\Component\HttpFoundation\JsonResponse;
+use Symfony\Component\HttpFoundation\Request;
+
+/** Tests for the CompressionUtils class.
+ * To run them, run
+ * $> phpunit --bootstrap vendor/autoload.php tests/CompressionUtilsTest.php
+ * from the server directory.
+ *
+ * @author Pamoi
+ *
+ */
+class CompressionUtilsTest extends PHPUnit_Framework_TestCase
+{
+    public function testDecompressRequest()
+    {
+        $body = http_build_query(array('user_ids' => '1,2,3', 'name' => 'Toto'));
+
+        $request = Request::create('/getUsersInfo', 'POST', array(), array(), array(),
+            array('HTTP_CONTENT_ENCODING' => 'gzip'), gzencode($body));
+
+        CompressionUtils::decompressRequest($request);
+
+        $this->assertEquals('1,2,3', $request->request->get('user_ids'));
+        $this->assertEquals('Toto', $request->request->get('name'));
+    }
+
+    public function testUncompressedRequestIsUnchanged()
+    {
+        $request = new Request($query = array(), $request = array('user_ids' => '1,2,3'));
+
+        CompressionUtils::decompressRequest($request);
+
+        $this->assertEquals('1,2,3', $request->request->get('user_ids'));
+    }
+
+    /**
+     * @expectedException SmartMap\Control\InvalidRequestException
+     * @expectedExceptionMessage Invalid compressed request body.
+     */
+    public function testInvalidCompressedRequest()
+    {
+        $request = Request::create('/getUsersInfo', 'POST', array(), array(), array(),
+            array('HTTP_CONTENT_ENCODING' => 'gzip'), 'not gzip');
+
+        CompressionUtils::decompressRequest($request);
+    }
+
+    public function testCompressLargeResponse()
+    {
+        $request = Request::create('/getUsersInfo', 'POST', array(), array(), array(),
+            array('HTTP_ACCEPT_ENCODING' => 'gzip, deflate'));
+
+        $data = array('status' => 'Ok', 'list' => array_fill(0, 200, array('id' => 1, 'name' => 'Toto')));
+        $response = new JsonResponse($data);
+        $content = $response->getContent();
+
+        CompressionUtils::compressResponse($request, $response);
+
+        $this->assertEquals('gzip', $response->headers->get('Content-Encoding'));
+        $this->assertLessThan(strlen($content), strlen($response->getContent()));
+        $this->assertEquals($content, gzdecode($response->getContent()));
+    }
+
+    public function testSmallResponseIsNotCompressed()
+    {
+        $request = Request::create('/getUserInfo', 'POST', array(), array(), array(),
+            array('HTTP_ACCEPT_ENCODING' => 'gzip'));
+
+        $response = new JsonResponse(array('status' => 'Ok', 'message' => 'Fetched user info !'));
+        $content = $response->getContent();
+
+        CompressionUtils::compressResponse($request, $response);
+
+        $this->assertFalse($response->headers->has('Content-Encoding'));
+        $this->assertEquals($content, $response->getContent());
+    }
+
+    public function testResponseIsNotCompressedIfNotAccepted()
+    {
+        $request = Request::create('/getUsersInfo', 'POST');
+
+        $data = array('status' => 'Ok', 'list' => array_fill(0, 200, array('id' => 1, 'name' => 'Toto')));
+        $response = new JsonResponse($data);
+
+        CompressionUtils::compressResponse($request, $response);
+
+        $this->assertFalse($response->headers->has('Content-Encoding'));
+    }
+}
@@ -228,6 +228,63 @@ class DataControllerTest extends PHPUnit_Framework_TestCase
 
         $this->assertEquals($response->getContent(), json_encode($validResponse));
     }
+
+    public function testListFriendsPosSince()
+    {
+        $user = new User(14, 1234, 'Me', 'VISIBLE', 10, 20, '2014-11-21 21:44:54');
+
+        $returnUsers = array(
+            new User(1, 2, 'Toto', 'VISIBLE', 1.0, 2.0, '2014-11-12 13:33:45'),
+            new User(2, 3, 'Titi', 'VISIBLE', 3.0, 4.0, '2014-11-13 01:56:22'),
+        );
+
+        $this->mockRepo
+            ->method('getUser')
+            ->willReturn($user);
+
+        $this->mockRepo
+            ->method('getFriendsIds')
+            ->willReturn(array(1, 2));
+
+        $this->mockRepo
+            ->method('getUsers')
+            ->willReturn($returnUsers);
+
+        $request = new Request($query = array(), $request = array('since' => '2014-11-13 00:00:00'));
+
+        $session =  new Session(new MockArraySessionStorage());
+        $session->set('userId', 14);
+        $request->setSession($session);
+
+        $controller = new DataController($this->mockRepo);
+
+        $jsonResponse = $controller->listFriendsPos($request);
+        $response = json_decode($jsonResponse->getContent(), true);
+
+        // Only Titi moved since the cursor
+        $this->assertEquals(1, count($response['positions']));
+        $this->assertEquals(2, $response['positions'][0]['id']);
+        $this->assertTrue(strcmp($response['cursor'], '2014-11-13 01:56:22') > 0);
+        // Also in the header, for the binary format
+        $this->assertEquals($response['cursor'], $jsonResponse->headers->get('X-SmartMap-Cursor'));
+    }
+
+    /**
+     * @expectedException SmartMap\Control\InvalidRequestException
+     * @expectedExceptionMessage Invalid cursor.
+     */
+    public function testListFriendsPosInvalidSince()
+    {
+        $request = new Request($query = array(), $request = array('since' => 'yesterday'));
+
+        $session =  new Session(new MockArraySessionStorage());
+        $session->set('userId', 14);
+        $request->setSession($session);
+
+        $controller = new DataController($this->mockRepo);
+
+        $controller->listFriendsPos($request);
+    }
     
     public function testValidGetFriendsIds()
     {
@@ -553,6 +610,48 @@ class DataControllerTest extends PHPUnit_Framework_TestCase
 
         $this->assertEquals($response->getContent(), json_encode($validResponse));
     }
+
+    public function testGetInvitationsUnchangedSince()
+    {
+        $this->mockRepo
+            ->method('getInvitationIds')
+            ->willReturn(array(1));
+
+        $this->mockRepo
+            ->method('getAcceptedInvitations')
+            ->willReturn(array());
+
+        $this->mockRepo
+            ->method('getUsers')
+            ->will($this->onConsecutiveCalls(
+                array(new User(1, 2, 'Toto', 'VISIBLE', 1.0, 2.0)), array(),
+                array(new User(1, 2, 'Toto', 'VISIBLE', 1.0, 2.0)), array()
+            ));
+
+        $this->mockRepo
+            ->method('getRemovedFriends')
+            ->willReturn(array());
+
+        $session = new Session(new MockArraySessionStorage());
+        $session->set('userId', 14);
+
+        $controller = new DataController($this->mockRepo);
+
+        $request = new Request($query = array(), $request = array('since' => ''));
+        $request->setSession($session);
+
+        $first = json_decode($controller->getInvitations($request)->getContent(), true);
+
+        $this->assertEquals(1, count($first['invitations']));
+
+        $request = new Request($query = array(), $request = array('since' => $first['cursor']));
+        $request->setSession($session);
+
+        $second = json_decode($controller->getInvitations($request)->getContent(), true);
+
+        $this->assertEquals(array(), $second['invitations']);
+        $this->assertEquals($first['cursor'], $second['cursor']);
+    }
     
     public function testValidAcceptInvitation()
     {
@@ -871,4 +970,92 @@ class DataControllerTest extends PHPUnit_Framework_TestCase
         
         $this->assertEquals($response->getContent(), json_encode($validResponse));
     }
-}
\ No newline at end of file
+
+    public function testValidGetUsersInfo()
+    {
+        $returnUsers = array(
+            new User(14, 12345, 'Toto', 'VISIBLE', 1.0, 2.0),
+            new User(15, 12346, 'Titi', 'VISIBLE', 1.0, 2.0),
+            new User(16, 12347, 'Tata', 'INVISIBLE', 1.0, 2.0)
+        );
+
+        $this->mockRepo
+             ->method('getUsers')
+             ->willReturn($returnUsers);
+
+        $this->mockRepo->expects($this->once())
+             ->method('getUsers')
+             ->with($this->equalTo(array(14, 15, 16, 17)));
+
+        $this->mockRepo
+             ->method('getFriendsIds')
+             ->willReturn(array(11, 15));
+
+        $this->mockRepo->expects($this->once())
+             ->method('getFriendsIds')
+             ->with($this->equalTo(14));
+
+        $request = new Request($query = array(), $request = array('user_ids' => '14,15, 16,17,'));
+
+        $session =  new Session(new MockArraySessionStorage());
+        $session->set('userId', 14);
+        $request->setSession($session);
+
+        $controller = new DataController($this->mockRepo);
+
+        $response = $controller->getUsersInfo($request);
+
+        $validResponse = array('status' => 'Ok',
+            'message' => 'Fetched users info !',
+            'users' => array(
+                array('id' => 14, 'name' => 'Toto', 'isFriend' => 2),
+                array('id' => 15, 'name' => 'Titi', 'isFriend' => 1),
+                array('id' => 16, 'name' => 'Tata', 'isFriend' => 0)
+            )
+        );
+
+        $this->assertEquals($response->getContent(), json_encode($validResponse));
+    }
+
+    /**
+     * @expectedException SmartMap\Control\InvalidRequestException
+     */
+    public function testGetUsersInfoTooManyIds()
+    {
+        $this->mockRepo->expects($this->never())
+             ->method('getUsers');
+
+        $ids = implode(',', range(1, DataController::$MAX_BATCH_SIZE + 1));
+
+        $request = new Request($query = array(), $request = array('user_ids' => $ids));
+
+        $session =  new Session(new MockArraySessionStorage());
+        $session->set('userId', 14);
+        $request->setSession($session);
+
+        $controller = new DataController($this->mockRepo);
+
+        $controller->getUsersInfo($request);
+    }
+
+    /**
+     * @expectedException SmartMap\Control\ControlLogicException
+     * @expectedExceptionMessage Error in getUsersInfo.
+     */
+    public function testGetUsersInfoDBException()
+    {
+        $this->mockRepo
+             ->method('getUsers')
+             ->will($this->throwException(new \SmartMap\DBInterface\DatabaseException()));
+
+        $request = new Request($query = array(), $request = array('user_ids' => '15,16'));
+
+        $session =  new Session(new MockArraySessionStorage());
+        $session->set('userId', 14);
+        $request->setSession($session);
+
+        $controller = new DataController($this->mockRepo);
+
+        $controller->getUsersInfo($request);
+    }
+}
@@ -286,6 +286,15 @@ class EventRepositoryTest extends PHPUnit_Extensions_Database_TestCase
         $this->assertEquals(array(13, 5), $participants);
     }
 
+    public function testGetEventsParticipants()
+    {
+        $repo = new EventRepository(self::$doctrine);
+
+        $participants = $repo->getEventsParticipants(array(1, 999));
+
+        $this->assertEquals(array(1 => array(13, 5), 999 => array()), $participants);
+    }
+
     public function testGetEventInvitations()
     {
         $repo = new EventRepository(self::$doctrine);
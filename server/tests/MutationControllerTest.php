@@ -0,0 +1,239 @@
+<?php
+
+use SmartMap\Control\MutationController;
+use SmartMap\Control\InvalidRequestException;
+use SmartMap\Control\ControlLogicException;
+
+use Symfony\Component\HttpFoundation\JsonResponse;
+use Symfony\Component\HttpFoundation\Request;
+use Symfony\Component\HttpFoundation\Session\Session;
+use Symfony\Component\HttpFoundation\Session\Storage\MockArraySessionStorage;
+
+/**
+ * Tests for the MutationController class.
+ * To run them, run
+ * $> phpunit --bootstrap vendor/autoload.php tests/MutationControllerTest.php
+ * from the server directory.
+ *
+ * @author Pamoi
+ *
+ */
+class MutationControllerTest extends PHPUnit_Framework_TestCase
+{
+    private $mockRepo;
+    private $mockData;
+    private $mockAuthorization;
+    private $mockEvent;
+    private $session;
+    private $storedResults;
+
+    public function setUp()
+    {
+        // The mock repo remembers results like the database does
+        $this->storedResults = array();
+        $stored = &$this->storedResults;
+        $this->mockRepo = $this->getMock('SmartMap\DBInterface\MutationRepositoryInterface');
+        $this->mockRepo->expects($this->any())
+                       ->method('getMutationResults')
+                       ->will($this->returnCallback(function($userId, $keys) use (&$stored) {
+                           return isset($stored[$userId]) ? array_intersect_key($stored[$userId], array_flip($keys))
+                               : array();
+                       }));
+        $this->mockRepo->expects($this->any())
+                       ->method('addMutationResult')
+                       ->will($this->returnCallback(function($userId, $key, $result) use (&$stored) {
+                           $stored[$userId][$key] = $result;
+                       }));
+
+        $this->mockData = $this->getMock('SmartMap\Control\DataControllerInterface');
+        $this->mockAuthorization = $this->getMock('SmartMap\Control\AuthorizationControllerInterface');
+        $this->mockEvent = $this->getMock('SmartMap\Control\EventControllerInterface');
+
+        $this->session = new Session(new MockArraySessionStorage());
+        $this->session->set('userId', 14);
+    }
+
+    public function testValidReplayMutations()
+    {
+        $this->mockAuthorization->expects($this->once())
+                                ->method('blockFriend')
+                                ->with($this->callback(function($request) {
+                                    return $request->request->get('friend_id') == 15;
+                                }))
+                                ->willReturn(new JsonResponse(array('status' => 'Ok',
+                                                                    'message' => 'Blocked friend !')));
+
+        $this->mockEvent->expects($this->once())
+                        ->method('createEvent')
+                        ->willReturn(new JsonResponse(array('status' => 'Ok', 'message' => 'Created event.',
+                                                            'id' => 7)));
+
+        $response = $this->replay(array(
+            array('key' => 'a', 'uri' => '/blockFriend', 'params' => array('friend_id' => '15')),
+            array('key' => 'b', 'uri' => '/createEvent', 'params' => array('name' => 'Party'))
+        ));
+
+        $validResponse = array('status' => 'Ok', 'message' => 'Replayed mutations.', 'results' => array(
+            array('status' => 'Ok', 'message' => 'Blocked friend !', 'key' => 'a'),
+            array('status' => 'Ok', 'message' => 'Created event.', 'id' => 7, 'key' => 'b')
+        ));
+
+        $this->assertEquals($response->getContent(), json_encode($validResponse));
+    }
+
+    public function testEventChangesAndDeclineAreApplied()
+    {
+        $this->mockData->expects($this->once())
+                       ->method('declineInvitation')
+                       ->willReturn(new JsonResponse(array('status' => 'Ok', 'message' => 'Declined invitation.')));
+
+        $this->mockEvent->expects($this->once())
+                        ->method('leaveEvent')
+                        ->with($this->callback(function($request) {
+                            return $request->request->get('event_id') == 3;
+                        }))
+                        ->willReturn(new JsonResponse(array('status' => 'Ok', 'message' => 'Left event.')));
+
+        $this->mockEvent->expects($this->once())
+                        ->method('updateEvent')
+                        ->with($this->callback(function($request) {
+                            return $request->request->get('eventId') == 4;
+                        }))
+                        ->willReturn(new JsonResponse(array('status' => 'Ok', 'message' => 'Updated event.')));
+
+        $response = $this->replay(array(
+            array('key' => 'a', 'uri' => '/declineInvitation', 'params' => array('friend_id' => '15')),
+            array('key' => 'b', 'uri' => '/leaveEvent', 'params' => array('event_id' => '3')),
+            array('key' => 'c', 'uri' => '/updateEvent', 'params' => array('eventId' => '4'))
+        ));
+
+        $data = json_decode($response->getContent(), true);
+
+        $this->assertEquals(3, count($data['results']));
+        $this->assertEquals('Updated event.', $data['results'][2]['message']);
+    }
+
+    public function testAlreadyAppliedMutationIsNotAppliedAgain()
+    {
+        $this->mockData->expects($this->once())
+                       ->method('inviteFriend')
+                       ->willReturn(new JsonResponse(array('status' => 'Ok', 'message' => 'Invited friend !')));
+
+        $mutations = array(array('key' => 'a', 'uri' => '/inviteFriend', 'params' => array('friend_id' => '15')));
+
+        $first = $this->replay($mutations);
+        $second = $this->replay($mutations);
+
+        $this->assertEquals($first->getContent(), $second->getContent());
+    }
+
+    public function testResultIsRememberedForTheUserInAnotherSession()
+    {
+        $this->mockData->expects($this->once())
+                       ->method('inviteFriend')
+                       ->willReturn(new JsonResponse(array('status' => 'Ok', 'message' => 'Invited friend !')));
+
+        $mutations = array(array('key' => 'a', 'uri' => '/inviteFriend', 'params' => array('friend_id' => '15')));
+
+        $this->replay($mutations);
+
+        $this->session = new Session(new MockArraySessionStorage());
+        $this->session->set('userId', 14);
+
+        $response = $this->replay($mutations);
+
+        $data = json_decode($response->getContent(), true);
+
+        $this->assertEquals(array('status' => 'Ok', 'message' => 'Invited friend !', 'key' => 'a'),
+                            $data['results'][0]);
+        $this->assertEquals(array('a'), array_keys($this->storedResults[14]));
+    }
+
+    public function testOldResultsAreForgotten()
+    {
+        $this->mockRepo->expects($this->once())
+                       ->method('removeOldMutationResults')
+                       ->with(14, MutationController::$MAX_REMEMBERED_KEYS);
+
+        $this->replay(array(array('key' => 'a', 'uri' => '/deleteEverything', 'params' => array())));
+    }
+
+    public function testRefusedMutationGivesItsError()
+    {
+        $this->mockData->expects($this->once())
+                       ->method('acceptInvitation')
+                       ->will($this->throwException(new InvalidRequestException('No invitation.')));
+
+        $response = $this->replay(array(
+            array('key' => 'a', 'uri' => '/acceptInvitation', 'params' => array('friend_id' => '15')),
+            array('key' => 'b', 'uri' => '/deleteEverything', 'params' => array())
+        ));
+
+        $data = json_decode($response->getContent(), true);
+
+        $this->assertEquals('error', $data['results'][0]['status']);
+        $this->assertEquals('No invitation.', $data['results'][0]['message']);
+        $this->assertEquals('error', $data['results'][1]['status']);
+    }
+
+    public function testInternalErrorStopsReplay()
+    {
+        $this->mockEvent->expects($this->once())
+                        ->method('joinEvent')
+                        ->will($this->throwException(new ControlLogicException('Error in joinEvent.')));
+
+        $this->mockData->expects($this->never())
+                       ->method('inviteFriend');
+
+        $response = $this->replay(array(
+            array('key' => 'a', 'uri' => '/joinEvent', 'params' => array('event_id' => '3')),
+            array('key' => 'b', 'uri' => '/inviteFriend', 'params' => array('friend_id' => '15'))
+        ));
+
+        $data = json_decode($response->getContent(), true);
+
+        $this->assertEquals(array(), $data['results']);
+    }
+
+    /**
+     * @expectedException SmartMap\Control\InvalidRequestException
+     * @expectedExceptionMessage Too many mutations, the maximum is 50.
+     */
+    public function testTooManyMutations()
+    {
+        $mutations = array();
+
+        for ($i = 0; $i <= MutationController::$MAX_BATCH_SIZE; $i++)
+        {
+            $mutations[] = array('key' => 'k' . $i, 'uri' => '/inviteFriend', 'params' => array('friend_id' => $i));
+        }
+
+        $this->replay($mutations);
+    }
+
+    /**
+     * @expectedException SmartMap\Control\InvalidRequestException
+     * @expectedExceptionMessage Invalid mutations.
+     */
+    public function testInvalidMutations()
+    {
+        $request = new Request($query = array(), $request = array('mutations' => 'not json'));
+        $request->setSession($this->session);
+
+        $controller = new MutationController($this->mockRepo, $this->mockData, $this->mockAuthorization,
+                                             $this->mockEvent);
+
+        $controller->replayMutations($request);
+    }
+
+    private function replay(array $mutations)
+    {
+        $request = new Request($query = array(), $request = array('mutations' => json_encode($mutations)));
+        $request->setSession($this->session);
+
+        $controller = new MutationController($this->mockRepo, $this->mockData, $this->mockAuthorization,
+                                             $this->mockEvent);
+
+        return $controller->replayMutations($request);
+    }
+}
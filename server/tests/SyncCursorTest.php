@@ -0,0 +1,64 @@
+<?php
+
+use SmartMap\Control\SyncCursor;
+
+use Symfony\Component\HttpFoundation\Request;
+
+/** Tests for the SyncCursor class.
+ * To run them, run
+ * $> phpunit --bootstrap vendor/autoload.php tests/SyncCursorTest.php
+ * from the server directory.
+ *
+ * @author Pamoi
+ *
+ */
+class SyncCursorTest extends PHPUnit_Framework_TestCase
+{
+    public function testGetCursor()
+    {
+        $request = new Request($query = array(), $request = array('since' => '2014-11-12 13:33:45'));
+
+        $this->assertEquals('2014-11-12 13:33:45', SyncCursor::getCursor($request));
+    }
+
+    public function testGetEmptyCursor()
+    {
+        $request = new Request($query = array(), $request = array('since' => ''));
+
+        $this->assertSame('', SyncCursor::getCursor($request));
+    }
+
+    public function testGetMissingCursor()
+    {
+        $this->assertNull(SyncCursor::getCursor(new Request()));
+    }
+
+    public function testValidDateCursor()
+    {
+        SyncCursor::checkDateCursor('');
+        SyncCursor::checkDateCursor('2014-11-12 13:33:45');
+    }
+
+    /**
+     * @expectedException SmartMap\Control\InvalidRequestException
+     * @expectedExceptionMessage Invalid cursor.
+     */
+    public function testInvalidDateCursor()
+    {
+        SyncCursor::checkDateCursor('12.11.2014');
+    }
+
+    public function testIsChangedSince()
+    {
+        $this->assertTrue(SyncCursor::isChangedSince('2014-11-12 13:33:45', ''));
+        $this->assertTrue(SyncCursor::isChangedSince('2014-11-12 13:33:45', '2014-11-12 13:33:45'));
+        $this->assertTrue(SyncCursor::isChangedSince('2014-11-13 01:56:22', '2014-11-12 13:33:45'));
+        $this->assertFalse(SyncCursor::isChangedSince('2014-11-12 13:33:44', '2014-11-12 13:33:45'));
+    }
+
+    public function testVersionCursorChangesWithData()
+    {
+        $this->assertEquals(SyncCursor::versionCursor(array(1, 2)), SyncCursor::versionCursor(array(1, 2)));
+        $this->assertNotEquals(SyncCursor::versionCursor(array(1, 2)), SyncCursor::versionCursor(array(1)));
+    }
+}
@@ -4,6 +4,7 @@ require_once __DIR__.'/../vendor/autoload.php';
 
 use Symfony\Component\HttpFoundation\JsonResponse;
 use Symfony\Component\HttpFoundation\Request;
+use Symfony\Component\HttpFoundation\Response;
 
 use Monolog\Logger;
 use Monolog\Handler\StreamHandler;
@@ -42,6 +43,10 @@ $app['event.repository'] = $app->share(function() use($app) {
     return new SmartMap\DBInterface\EventRepository($app['db']);
 });
 
+$app['mutation.repository'] = $app->share(function() use($app) {
+    return new SmartMap\DBInterface\MutationRepository($app['db']);
+});
+
 
 // Starting logging service
 $app['logging'] = $app->share(function() use($app, $options) {
@@ -68,13 +73,20 @@ $app['data.controller'] = $app->share(function() use($app) {
 });
 
 $app['profile.controller'] = $app->share(function() use($app) {
-    return new SmartMap\Control\ProfileController();
+    return new SmartMap\Control\ProfileController($app['user.repository']);
 });
 
 $app['event.controller'] = $app->share(function() use($app) {
     return new SmartMap\Control\EventController($app['event.repository'], $app['user.repository']);
 });
 
+$app['mutation.controller'] = $app->share(function() use($app) {
+    return new SmartMap\Control\MutationController($app['mutation.repository'],
+                                                   $app['data.controller'],
+                                                   $app['authorization.controller'],
+                                                   $app['event.controller']);
+});
+
 
 // Error management
 $app->error(function (SmartMap\Control\InvalidRequestException $e, $code) use ($app) {
@@ -115,6 +127,22 @@ $app->error(function (\Exception $e, $code) use ($app) {
 });
 
 
+// Compact binary encoding of responses, before they are compressed
+$app->after(function (Request $request, Response $response) {
+    SmartMap\Control\BinaryFormat::encodeResponse($request, $response);
+});
+
+
+// Compression of request and response bodies
+$app->before(function (Request $request) {
+    SmartMap\Control\CompressionUtils::decompressRequest($request);
+});
+
+$app->after(function (Request $request, Response $response) {
+    SmartMap\Control\CompressionUtils::compressResponse($request, $response);
+});
+
+
 // Routing
 $app->post('/auth', 'authentication.controller:authenticate');
 
@@ -136,8 +164,12 @@ $app->post('/setVisibility', 'authorization.controller:setVisibility');
 
 $app->post('/getUserInfo', 'data.controller:getUserInfo');
 
+$app->post('/getUsersInfo', 'data.controller:getUsersInfo');
+
 $app->post('/getProfilePicture', 'profile.controller:getProfilePicture');
 
+$app->post('/getProfilePictures', 'profile.controller:getProfilePictures');
+
 $app->post('/inviteFriend', 'data.controller:inviteFriend');
 
 $app->post('/getInvitations', 'data.controller:getInvitations');
@@ -178,6 +210,10 @@ $app->post('/ackEventInvitation', 'event.controller:ackEventInvitation');
 
 $app->post('/getEventInfo', 'event.controller:getEventInfo');
 
+$app->post('/getEventsInfo', 'event.controller:getEventsInfo');
+
+$app->post('/replayMutations', 'mutation.controller:replayMutations');
+
 // Easy authentication for testing
 if ($app['debug'] == true)
 {